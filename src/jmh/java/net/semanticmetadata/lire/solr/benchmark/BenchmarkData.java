@@ -0,0 +1,72 @@
+package net.semanticmetadata.lire.solr.benchmark;
+
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import net.semanticmetadata.lire.imageanalysis.features.global.GenericGlobalIntFeature;
+import net.semanticmetadata.lire.solr.FeatureRegistry;
+import net.semanticmetadata.lire.solr.features.DoubleFeatureCosineDistance;
+import net.semanticmetadata.lire.solr.features.ShortFeatureCosineDistance;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+/**
+ * Reproducible features for the benchmarks. Image features are extracted from synthetic images made of random
+ * rectangles and ellipses, the generic ones are random vectors with about one non zero dimension in five, like the
+ * sparse vectors of a neural network layer.
+ */
+class BenchmarkData {
+    static final int IMAGE_SIZE = 256;
+    static final int GENERIC_DIMENSIONS = 512;
+
+    /**
+     * @param code   the code of a feature registered in FeatureRegistry, eg. cl
+     * @param number the number of features
+     * @param seed   the seed of the random generator, the same seed gives the same features.
+     * @return new instances of the feature class registered for the code.
+     * @throws Exception if the feature cannot be instantiated.
+     */
+    static GlobalFeature[] features(String code, int number, long seed) throws Exception {
+        Class<? extends GlobalFeature> featureClass = FeatureRegistry.getClassForCode(code);
+        if (featureClass == null) throw new IllegalArgumentException("No feature registered for code " + code);
+        Random random = new Random(seed);
+        GlobalFeature[] features = new GlobalFeature[number];
+        for (int i = 0; i < number; i++) {
+            GlobalFeature feature = featureClass.getDeclaredConstructor().newInstance();
+            if (feature instanceof DoubleFeatureCosineDistance) {
+                double[] data = new double[GENERIC_DIMENSIONS];
+                for (int d = 0; d < data.length; d++) data[d] = random.nextInt(5) == 0 ? random.nextDouble() : 0;
+                ((DoubleFeatureCosineDistance) feature).setData(data);
+            } else if (feature instanceof ShortFeatureCosineDistance) {
+                short[] data = new short[GENERIC_DIMENSIONS];
+                for (int d = 0; d < data.length; d++) data[d] = (short) (random.nextInt(5) == 0 ? random.nextInt(Short.MAX_VALUE) : 0);
+                ((ShortFeatureCosineDistance) feature).setData(data);
+            } else if (feature instanceof GenericGlobalIntFeature) {
+                int[] data = new int[GENERIC_DIMENSIONS];
+                for (int d = 0; d < data.length; d++) data[d] = random.nextInt(5) == 0 ? random.nextInt(256) : 0;
+                ((GenericGlobalIntFeature) feature).setData(data);
+            } else {
+                feature.extract(image(random));
+            }
+            features[i] = feature;
+        }
+        return features;
+    }
+
+    private static BufferedImage image(Random random) {
+        BufferedImage image = new BufferedImage(IMAGE_SIZE, IMAGE_SIZE, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setColor(new Color(random.nextInt(0x1000000)));
+        g.fillRect(0, 0, IMAGE_SIZE, IMAGE_SIZE);
+        for (int i = 0; i < 20; i++) {
+            g.setColor(new Color(random.nextInt(0x1000000)));
+            int x = random.nextInt(IMAGE_SIZE), y = random.nextInt(IMAGE_SIZE);
+            int w = 8 + random.nextInt(IMAGE_SIZE / 2), h = 8 + random.nextInt(IMAGE_SIZE / 2);
+            if (random.nextBoolean()) g.fillRect(x, y, w, h);
+            else g.fillOval(x, y, w, h);
+        }
+        g.dispose();
+        return image;
+    }
+}
@@ -0,0 +1,85 @@
+package net.semanticmetadata.lire.solr.benchmark;
+
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import net.semanticmetadata.lire.solr.FeatureRegistry;
+import net.semanticmetadata.lire.solr.distance.BytesDistance;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Distance and serialization of the features, the operations done per candidate when re-ranking and per document
+ * when indexing. Every invocation uses the next one of a fixed set of candidates, so the results are not dominated by
+ * a single, cached feature. The parameter is the code of the feature. It has no defaults, {@link LireBenchmarks} runs
+ * this for all the codes registered in FeatureRegistry unless codes are given with -p feature=...
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FeatureBenchmark {
+    private static final int CANDIDATES = 256; // a power of two for the index mask.
+
+    @Param({})
+    public String feature;
+
+    private GlobalFeature query;
+    private GlobalFeature[] candidates;
+    private byte[][] serialized;
+    private GlobalFeature target;
+    private BytesDistance bytesDistance;
+    private int next = 0;
+
+    @Setup
+    public void setUp() throws Exception {
+        query = BenchmarkData.features(feature, 1, 0)[0];
+        candidates = BenchmarkData.features(feature, CANDIDATES, 1);
+        serialized = new byte[CANDIDATES][];
+        for (int i = 0; i < CANDIDATES; i++) serialized[i] = candidates[i].getByteArrayRepresentation();
+        target = BenchmarkData.features(feature, 1, 2)[0];
+        // null for the features without a distance on the serialized form, see BytesDistances.
+        bytesDistance = FeatureRegistry.getBytesDistance(FeatureRegistry.codeToFeatureField(feature), query);
+    }
+
+    private int next() {
+        return next++ & (CANDIDATES - 1);
+    }
+
+    @Benchmark
+    public double getDistance() {
+        return query.getDistance(candidates[next()]);
+    }
+
+    /**
+     * The distance as computed by ParallelReRanker, directly on the bytes of the DocValues.
+     */
+    @Benchmark
+    public double bytesDistance() {
+        byte[] data = serialized[next()];
+        return bytesDistance != null ? bytesDistance.distance(data, 0, data.length) : Double.NaN;
+    }
+
+    @Benchmark
+    public byte[] getByteArrayRepresentation() {
+        return candidates[next()].getByteArrayRepresentation();
+    }
+
+    @Benchmark
+    public GlobalFeature setByteArrayRepresentation() {
+        byte[] data = serialized[next()];
+        target.setByteArrayRepresentation(data, 0, data.length);
+        return target;
+    }
+}
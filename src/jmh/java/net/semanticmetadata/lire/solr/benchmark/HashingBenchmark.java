@@ -0,0 +1,66 @@
+package net.semanticmetadata.lire.solr.benchmark;
+
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import net.semanticmetadata.lire.indexers.hashing.BitSampling;
+import net.semanticmetadata.lire.indexers.hashing.MetricSpaces;
+import net.semanticmetadata.lire.solr.HashingMetricSpacesManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hash generation for the query and for indexing, BitSampling and MetricSpaces with the hash functions and reference
+ * points loaded by HashingMetricSpacesManager. The codes are the features there are reference points for.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HashingBenchmark {
+    private static final int FEATURES = 64; // a power of two for the index mask.
+
+    @Param({"ce", "cl", "eh", "fc", "jc", "oh", "ph"})
+    public String code;
+
+    private GlobalFeature[] features;
+    private double[][] vectors;
+    private int next = 0;
+
+    @Setup
+    public void setUp() throws Exception {
+        HashingMetricSpacesManager.init();
+        // the hash functions shipped with LIRE, if the ones of the handler are not in the class path.
+        if (HashingMetricSpacesManager.getBitSamplingFunctions() == null) BitSampling.readHashFunctions();
+        features = BenchmarkData.features(code, FEATURES, 3);
+        vectors = new double[FEATURES][];
+        for (int i = 0; i < FEATURES; i++) vectors[i] = features[i].getFeatureVector();
+        if (!MetricSpaces.supportsFeature(features[0]))
+            throw new IllegalArgumentException("No MetricSpaces reference points for code " + code);
+    }
+
+    private int next() {
+        return next++ & (FEATURES - 1);
+    }
+
+    @Benchmark
+    public int[] bitSamplingHashes() {
+        return BitSampling.generateHashes(vectors[next()]);
+    }
+
+    @Benchmark
+    public String metricSpacesHashString() {
+        return MetricSpaces.generateHashString(features[next()]);
+    }
+}
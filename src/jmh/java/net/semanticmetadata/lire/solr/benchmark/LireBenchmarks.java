@@ -0,0 +1,32 @@
+package net.semanticmetadata.lire.solr.benchmark;
+
+import net.semanticmetadata.lire.solr.FeatureRegistry;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the JMH benchmarks, taking the same arguments as JMH's own main class. Unless features are given with
+ * -p feature=..., FeatureBenchmark runs for every code registered in FeatureRegistry, so newly registered features
+ * are benchmarked without changing its parameter list. Use it with gradle, eg.
+ * <pre>
+ *     $> gradle jmh --args='-prof gc -p feature=cl,sf FeatureBenchmark'
+ * </pre>
+ */
+public class LireBenchmarks {
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions options = new CommandLineOptions(args);
+        if (options.shouldHelp() || options.shouldList() || options.shouldListProfilers()
+                || options.shouldListResultFormats()) {
+            // help and lists are printed by the JMH main.
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+        ChainedOptionsBuilder builder = new OptionsBuilder().parent(options);
+        if (!options.getParameter("feature").hasValue()) {
+            builder.param("feature", FeatureRegistry.getCodes().toArray(new String[0]));
+        }
+        new Runner(builder.build()).run();
+    }
+}
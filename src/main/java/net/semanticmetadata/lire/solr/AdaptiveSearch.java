@@ -0,0 +1,167 @@
+package net.semanticmetadata.lire.solr;
+
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Retrieves and re-ranks the candidates of a hash query in chunks instead of a fixed number of them at once. The
+ * candidates are fetched in the order of their hash query score, the first chunk with the initial size and every
+ * further one twice as large as the one before. The search stops
+ * <ul>
+ * <li>if the top k has not changed for a given number of candidates (stable),</li>
+ * <li>if the last chunk did not change the top k and the hash query score of the remaining candidates is lower than
+ * the one of every candidate that made it into the top k so far (score), or</li>
+ * <li>if the maximum number of candidates is reached or there are no more (candidates).</li>
+ * </ul>
+ * Queries that converge quickly stop after a few hundred candidates while hard ones go on to the maximum. The score
+ * criterion is a heuristic, a candidate matching less hashes is less likely but not guaranteed to be nearer.
+ */
+public class AdaptiveSearch {
+    public static final int DEFAULT_CHUNK = 500;
+    public static final int DEFAULT_STABLE = 2000;
+    private final ParallelReRanker reRanker;
+    private final int initialChunk;
+    private final int maximumCandidates;
+    private final int stableCandidates;
+    // statistics of the last search.
+    private int candidates, chunks;
+    private String stopReason;
+    private long searchNanos, reRankNanos;
+    private int[] fetched;
+
+    /**
+     * @param reRanker          the re-ranker for the chunks
+     * @param initialChunk      the number of candidates of the first chunk
+     * @param maximumCandidates the maximum number of candidates, like the candidates parameter of a fixed search.
+     * @param stableCandidates  the number of candidates without a change in the top k the search stops after.
+     */
+    public AdaptiveSearch(ParallelReRanker reRanker, int initialChunk, int maximumCandidates, int stableCandidates) {
+        this.reRanker = reRanker;
+        this.initialChunk = Math.max(1, initialChunk);
+        this.maximumCandidates = maximumCandidates;
+        this.stableCandidates = stableCandidates;
+    }
+
+    /**
+     * Searches the candidates chunk by chunk, see above. Not thread safe, as the statistics of the search are kept.
+     *
+     * @param searcher         the searcher
+     * @param query            the hash query, including the filters.
+     * @param featureFieldName the DocValues field holding the feature, eg. cl_hi
+     * @param queryFeature     the feature of the query, it is not modified.
+     * @param maximumHits      the number of results to be returned.
+     * @param keepCandidates   if the candidates should be kept for {@link #getFetched()}, eg. for debugging.
+     * @return the nearest maximumHits candidates, sorted by ascending distance.
+     * @throws IOException
+     */
+    public BoundedDistanceHeap search(IndexSearcher searcher, Query query, String featureFieldName,
+                                      GlobalFeature queryFeature, int maximumHits, boolean keepCandidates) throws IOException {
+        BoundedDistanceHeap resultScoreDocs = new BoundedDistanceHeap(maximumHits);
+        candidates = chunks = 0;
+        searchNanos = reRankNanos = 0;
+        stopReason = "candidates";
+        fetched = keepCandidates ? new int[0] : null;
+        // the lowest hash query score of a candidate that entered the top k.
+        float lowestEnteredScore = Float.POSITIVE_INFINITY;
+        int unchanged = 0;
+        ScoreDoc after = null;
+        int chunk = initialChunk;
+        while (candidates < maximumCandidates) {
+            long start = System.nanoTime();
+            TopDocs docs = searcher.searchAfter(after, query, Math.min(chunk, maximumCandidates - candidates));
+            searchNanos += System.nanoTime() - start;
+            ScoreDoc[] scoreDocs = docs.scoreDocs;
+            if (scoreDocs.length == 0) break;
+            candidates += scoreDocs.length;
+            chunks++;
+            after = scoreDocs[scoreDocs.length - 1];
+            if (fetched != null) {
+                int offset = fetched.length;
+                fetched = Arrays.copyOf(fetched, offset + scoreDocs.length);
+                for (int i = 0; i < scoreDocs.length; i++) fetched[offset + i] = scoreDocs[i].doc;
+            }
+
+            start = System.nanoTime();
+            BoundedDistanceHeap chunkResults = reRanker.reRank(new TopDocsIterator(docs), featureFieldName,
+                    queryFeature, maximumHits, searcher);
+            boolean changed = false;
+            for (int i = 0; i < chunkResults.size(); i++) {
+                if (resultScoreDocs.offer(chunkResults.doc(i), chunkResults.distance(i))) {
+                    changed = true;
+                    lowestEnteredScore = Math.min(lowestEnteredScore, score(scoreDocs, chunkResults.doc(i)));
+                }
+            }
+            reRankNanos += System.nanoTime() - start;
+
+            unchanged = changed ? 0 : unchanged + scoreDocs.length;
+            if (scoreDocs.length < chunk) break; // no more candidates.
+            if (resultScoreDocs.isFull() && unchanged >= stableCandidates) {
+                stopReason = "stable";
+                break;
+            }
+            // the next candidate scores at most as high as the last one.
+            if (resultScoreDocs.isFull() && !changed && after.score < lowestEnteredScore) {
+                stopReason = "score";
+                break;
+            }
+            chunk = (int) Math.min(Integer.MAX_VALUE, 2L * chunk);
+        }
+        resultScoreDocs.sort();
+        return resultScoreDocs;
+    }
+
+    private static float score(ScoreDoc[] scoreDocs, int doc) {
+        for (ScoreDoc scoreDoc : scoreDocs) {
+            if (scoreDoc.doc == doc) return scoreDoc.score;
+        }
+        return Float.POSITIVE_INFINITY;
+    }
+
+    /**
+     * @return the number of candidates re-ranked in the last search.
+     */
+    public int getCandidates() {
+        return candidates;
+    }
+
+    /**
+     * @return the number of chunks of the last search.
+     */
+    public int getChunks() {
+        return chunks;
+    }
+
+    /**
+     * @return why the last search stopped: stable, score or candidates.
+     */
+    public String getStopReason() {
+        return stopReason;
+    }
+
+    /**
+     * @return the time spent on the hash queries in the last search.
+     */
+    public long getSearchNanos() {
+        return searchNanos;
+    }
+
+    /**
+     * @return the time spent on re-ranking in the last search.
+     */
+    public long getReRankNanos() {
+        return reRankNanos;
+    }
+
+    /**
+     * @return the candidates of the last search in the order they were fetched, null if they were not kept.
+     */
+    public int[] getFetched() {
+        return fetched;
+    }
+}
@@ -0,0 +1,144 @@
+package net.semanticmetadata.lire.solr;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Multi-probe querying for BitSampling hashes (Lv et al., Multi-probe LSH, VLDB 2007). Each hash of
+ * {@link net.semanticmetadata.lire.indexers.hashing.BitSampling} is a bundle of bits, each bit tells on which side of a
+ * random hyperplane the feature lies. The closer the feature is to a hyperplane, the higher the chance that a near
+ * neighbour is on the other side. So besides the hash itself the hashes with the bits of the smallest margins flipped
+ * are likely to match near neighbours and are probed in ascending order of the sum of the squared margins.
+ * <p>
+ * The hashes are computed exactly like in BitSampling, so they match the ones in the index as long as the same hash
+ * functions are used, see {@link HashingMetricSpacesManager#getBitSamplingFunctions()}.
+ */
+public class BitSamplingProbes {
+    private final int[] hashes;
+    private final double[][] squaredMargins;
+    private final double meanSquaredMargin;
+
+    /**
+     * @param vector    the feature vector, see {@link net.semanticmetadata.lire.imageanalysis.features.GlobalFeature#getFeatureVector()}
+     * @param functions the hash functions, [bundle][bit][dimension]
+     */
+    public BitSamplingProbes(double[] vector, double[][][] functions) {
+        hashes = new int[functions.length];
+        squaredMargins = new double[functions.length][];
+        double sum = 0d;
+        int count = 0;
+        for (int bundle = 0; bundle < functions.length; bundle++) {
+            double[][] bits = functions[bundle];
+            squaredMargins[bundle] = new double[bits.length];
+            for (int bit = 0; bit < bits.length; bit++) {
+                double projection = 0d;
+                for (int i = 0; i < vector.length; i++) {
+                    projection += bits[bit][i] * vector[i];
+                }
+                if (projection >= 0) hashes[bundle] |= 1 << bit;
+                squaredMargins[bundle][bit] = projection * projection;
+                sum += projection * projection;
+                count++;
+            }
+        }
+        meanSquaredMargin = count > 0 ? sum / count : 0d;
+    }
+
+    /**
+     * @return the hashes, the same as BitSampling.generateHashes(vector) gives.
+     */
+    public int[] getHashes() {
+        return hashes;
+    }
+
+    /**
+     * Estimates how likely a probe matches a near neighbour compared to the hash itself.
+     *
+     * @param score the score of the probe, see {@link Probe#getScore()}
+     * @return a weight in (0, 1], 1 for a score of 0.
+     */
+    public double weight(double score) {
+        return meanSquaredMargin > 0 ? Math.exp(-score / meanSquaredMargin) : 1d;
+    }
+
+    /**
+     * Generates the hashes of the neighbouring buckets of a bundle, ie. the hash with one or more bits flipped, by
+     * ascending score with a heap of bit sets as described by Lv et al.
+     *
+     * @param bundle the index of the hash
+     * @param n      the maximum number of probes
+     * @return the probes, the best first. The hash itself is not included.
+     */
+    public List<Probe> probes(int bundle, int n) {
+        double[] margins = squaredMargins[bundle];
+        Integer[] order = new Integer[margins.length];
+        for (int i = 0; i < order.length; i++) order[i] = i;
+        Arrays.sort(order, Comparator.comparingDouble(i -> margins[i]));
+        double[] sorted = new double[order.length];
+        for (int i = 0; i < order.length; i++) sorted[i] = margins[order[i]];
+
+        List<Probe> result = new ArrayList<>(n);
+        if (order.length == 0) return result;
+        // sets of positions in the sorted margins, each one flips the bits at the positions.
+        PriorityQueue<int[]> heap = new PriorityQueue<>(Comparator.comparingDouble(set -> score(set, sorted)));
+        heap.add(new int[]{0});
+        while (result.size() < n && !heap.isEmpty()) {
+            int[] set = heap.poll();
+            int hash = hashes[bundle];
+            for (int position : set) hash ^= 1 << order[position];
+            result.add(new Probe(bundle, hash, score(set, sorted)));
+            int last = set[set.length - 1];
+            if (last + 1 < sorted.length) {
+                // shift: replace the last position with the next one.
+                int[] shifted = set.clone();
+                shifted[shifted.length - 1] = last + 1;
+                heap.add(shifted);
+                // expand: add the next position.
+                int[] expanded = Arrays.copyOf(set, set.length + 1);
+                expanded[set.length] = last + 1;
+                heap.add(expanded);
+            }
+        }
+        return result;
+    }
+
+    private static double score(int[] set, double[] sorted) {
+        double score = 0d;
+        for (int position : set) score += sorted[position];
+        return score;
+    }
+
+    /**
+     * A neighbouring bucket of a bundle.
+     */
+    public static class Probe {
+        private final int bundle;
+        private final int hash;
+        private final double score;
+
+        Probe(int bundle, int hash, double score) {
+            this.bundle = bundle;
+            this.hash = hash;
+            this.score = score;
+        }
+
+        public int getBundle() {
+            return bundle;
+        }
+
+        public int getHash() {
+            return hash;
+        }
+
+        /**
+         * @return the sum of the squared margins of the flipped bits, the lower the more likely a near neighbour is
+         * in the bucket.
+         */
+        public double getScore() {
+            return score;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package net.semanticmetadata.lire.solr;
+
+import net.semanticmetadata.lire.indexers.hashing.BitSampling;
+
+/**
+ * The bits of all BitSampling hashes of a feature packed into a long[], stored as a binary DocValue in a *_bs field.
+ * The Hamming distance of two signatures counts the hyperplanes the two features are on different sides of, it
+ * estimates the angle between the features. Computing it with {@link Long#bitCount(long)} is a lot cheaper than
+ * matching the hashes as terms and gives an actual ordering instead of the number of matching terms.
+ * <p>
+ * Bit j of hash i is bit (i * bits + j) of the signature, bits being the number of bits of a hash, see
+ * {@link BitSampling#getBits()}. In the serialized form the longs are stored big endian one after the other.
+ */
+public class BitSamplingSignature {
+    /**
+     * Packs BitSampling hashes into a signature.
+     *
+     * @param hashes the hashes, see {@link BitSampling#generateHashes(double[])}
+     * @param bits   the number of bits of each hash
+     * @return the signature
+     */
+    public static long[] fromHashes(int[] hashes, int bits) {
+        long[] signature = new long[(hashes.length * bits + 63) / 64];
+        for (int i = 0; i < hashes.length; i++) {
+            for (int j = 0; j < bits; j++) {
+                if ((hashes[i] >>> j & 1) != 0) {
+                    int position = i * bits + j;
+                    signature[position >>> 6] |= 1L << (position & 63);
+                }
+            }
+        }
+        return signature;
+    }
+
+    /**
+     * @param featureVector the feature vector, see {@link net.semanticmetadata.lire.imageanalysis.features.GlobalFeature#getFeatureVector()}
+     * @return the signature of the BitSampling hashes of the feature.
+     */
+    public static long[] generateSignature(double[] featureVector) {
+        return fromHashes(BitSampling.generateHashes(featureVector), BitSampling.getBits());
+    }
+
+    public static byte[] toBytes(long[] signature) {
+        byte[] bytes = new byte[signature.length * 8];
+        for (int i = 0; i < signature.length; i++) {
+            for (int b = 0; b < 8; b++) {
+                bytes[i * 8 + b] = (byte) (signature[i] >>> (56 - 8 * b));
+            }
+        }
+        return bytes;
+    }
+
+    public static long[] fromBytes(byte[] bytes, int offset, int length) {
+        long[] signature = new long[length / 8];
+        for (int i = 0; i < signature.length; i++) {
+            signature[i] = readLong(bytes, offset + i * 8);
+        }
+        return signature;
+    }
+
+    private static long readLong(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xffL) << 56 | (bytes[offset + 1] & 0xffL) << 48
+                | (bytes[offset + 2] & 0xffL) << 40 | (bytes[offset + 3] & 0xffL) << 32
+                | (bytes[offset + 4] & 0xffL) << 24 | (bytes[offset + 5] & 0xffL) << 16
+                | (bytes[offset + 6] & 0xffL) << 8 | (bytes[offset + 7] & 0xffL);
+    }
+
+    /**
+     * Computes the Hamming distance directly on a serialized signature.
+     *
+     * @param query  the signature of the query
+     * @param bytes  the serialized signature, eg. of the DocValues
+     * @param offset the offset of the signature in bytes
+     * @param length the length of the signature in bytes
+     * @return the number of differing bits, or Integer.MAX_VALUE if the signatures differ in length.
+     */
+    public static int distance(long[] query, byte[] bytes, int offset, int length) {
+        if (length != query.length * 8) return Integer.MAX_VALUE;
+        int distance = 0;
+        for (int i = 0; i < query.length; i++) {
+            distance += Long.bitCount(query[i] ^ readLong(bytes, offset + i * 8));
+        }
+        return distance;
+    }
+}
@@ -0,0 +1,151 @@
+package net.semanticmetadata.lire.solr;
+
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * A bounded max-heap of (document id, distance) pairs on primitive arrays, used to keep the k nearest candidates
+ * while re-ranking. Nothing is allocated per candidate and the worst of the current top k is always at hand. Ties
+ * in distance are broken by the document id, like it is done in {@link net.semanticmetadata.lire.searchers.SimpleResult}.
+ * <p>
+ * Call {@link #sort()} once all candidates have been offered, afterwards {@link #doc(int)} and
+ * {@link #distance(int)} give the results by ascending distance.
+ */
+public class BoundedDistanceHeap {
+    private final int[] docs;
+    private final double[] distances;
+    private int size = 0;
+    private boolean sorted = false;
+
+    /**
+     * @param capacity the maximum number of results kept, ie. the k in top k.
+     */
+    public BoundedDistanceHeap(int capacity) {
+        docs = new int[Math.max(0, capacity)];
+        distances = new double[Math.max(0, capacity)];
+    }
+
+    /**
+     * Offers a candidate to the heap. It is kept if the heap is not full or if it is nearer than the current worst
+     * result, which is evicted then. A NaN distance is never kept, it cannot be ordered.
+     *
+     * @param doc      the document id
+     * @param distance the distance of the document to the query
+     * @return true if the candidate entered the heap.
+     * @throws IllegalStateException if the heap has been sorted already.
+     */
+    public boolean offer(int doc, double distance) {
+        if (sorted) throw new IllegalStateException("No candidates may be offered after sorting.");
+        if (Double.isNaN(distance)) return false;
+        if (size < docs.length) {
+            // sift up
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (!greater(distance, doc, distances[parent], docs[parent])) break;
+                docs[i] = docs[parent];
+                distances[i] = distances[parent];
+                i = parent;
+            }
+            docs[i] = doc;
+            distances[i] = distance;
+            return true;
+        } else if (size > 0 && greater(distances[0], docs[0], distance, doc)) {
+            siftDown(doc, distance, size);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the heap holds as many results as it has been created for.
+     */
+    public boolean isFull() {
+        return size == docs.length;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the largest distance in the heap, or Double.MAX_VALUE if it is empty.
+     */
+    public double worstDistance() {
+        return size > 0 ? distances[0] : Double.MAX_VALUE;
+    }
+
+    /**
+     * Offers all results of another heap to this one.
+     *
+     * @param other the heap to merge, it is not modified.
+     */
+    public void addAll(BoundedDistanceHeap other) {
+        for (int i = 0; i < other.size; i++) {
+            offer(other.docs[i], other.distances[i]);
+        }
+    }
+
+    /**
+     * Sorts the content by ascending distance (heap sort in place). No candidates may be offered after sorting,
+     * {@link #offer(int, double)} throws an IllegalStateException then.
+     */
+    public void sort() {
+        if (sorted) return;
+        for (int end = size - 1; end > 0; end--) {
+            int doc = docs[end];
+            double distance = distances[end];
+            docs[end] = docs[0];
+            distances[end] = distances[0];
+            siftDown(doc, distance, end);
+        }
+        sorted = true;
+    }
+
+    /**
+     * @param i the rank of the result, starting with 0
+     * @return the document id at the rank, only valid after {@link #sort()}.
+     */
+    public int doc(int i) {
+        return docs[i];
+    }
+
+    /**
+     * @param i the rank of the result, starting with 0
+     * @return the distance at the rank, only valid after {@link #sort()}.
+     */
+    public double distance(int i) {
+        return distances[i];
+    }
+
+    /**
+     * @return the document ids in the heap, by ascending distance if it has been sorted.
+     */
+    public Iterator<Integer> docIterator() {
+        return Arrays.stream(docs, 0, size).iterator();
+    }
+
+    /**
+     * Puts the given element at the root and moves it down to its place in the heap of the given length.
+     */
+    private void siftDown(int doc, double distance, int length) {
+        int i = 0;
+        while (true) {
+            int child = (i << 1) + 1;
+            if (child >= length) break;
+            if (child + 1 < length && greater(distances[child + 1], docs[child + 1], distances[child], docs[child])) {
+                child++;
+            }
+            if (!greater(distances[child], docs[child], distance, doc)) break;
+            docs[i] = docs[child];
+            distances[i] = distances[child];
+            i = child;
+        }
+        docs[i] = doc;
+        distances[i] = distance;
+    }
+
+    private static boolean greater(double d1, int doc1, double d2, int doc2) {
+        return d1 > d2 || (d1 == d2 && doc1 > doc2);
+    }
+}
@@ -0,0 +1,133 @@
+package net.semanticmetadata.lire.solr;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the features extracted from image URLs, so repeated queries with the same URL, eg. retries and paging, do not
+ * download and extract the image again. Entries are the serialized feature and its BitSampling hashes by URL and
+ * feature code. The cache is bounded by the approximate number of bytes of its entries, the least recently used ones
+ * are evicted first, and entries older than the time to live are not used anymore, as the image behind a URL might
+ * change. All methods are thread safe.
+ */
+public class ExtractedFeatureCache {
+    /**
+     * Rough overhead of an entry in bytes: key, entry object, arrays and the map entry.
+     */
+    private static final int ENTRY_OVERHEAD = 128;
+
+    private final long maxBytes;
+    private final long timeToLiveMillis;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long bytes = 0;
+    private long hits = 0, misses = 0, evictions = 0, expirations = 0;
+
+    /**
+     * @param maxBytes         the maximum size of all entries in bytes
+     * @param timeToLiveMillis the time an entry is used after it has been put, 0 or less to keep them until evicted.
+     */
+    public ExtractedFeatureCache(long maxBytes, long timeToLiveMillis) {
+        this.maxBytes = maxBytes;
+        this.timeToLiveMillis = timeToLiveMillis;
+    }
+
+    private static String key(String url, String code) {
+        return code + ' ' + url;
+    }
+
+    /**
+     * @param url  the URL of the image
+     * @param code the code of the feature, eg. cl
+     * @return the entry or null if there is none or it has expired.
+     */
+    public synchronized Entry get(String url, String code) {
+        String key = key(url, code);
+        Entry entry = entries.get(key);
+        if (entry != null && timeToLiveMillis > 0 && System.currentTimeMillis() - entry.created > timeToLiveMillis) {
+            remove(key);
+            expirations++;
+            entry = null;
+        }
+        if (entry == null) misses++;
+        else hits++;
+        return entry;
+    }
+
+    /**
+     * Adds a feature, evicting the least recently used entries if the cache is full. Entries larger than the whole
+     * cache are not added.
+     *
+     * @param url     the URL of the image
+     * @param code    the code of the feature, eg. cl
+     * @param feature the serialized feature, see GlobalFeature#getByteArrayRepresentation()
+     * @param hashes  the BitSampling hashes of the feature
+     * @return the new entry
+     */
+    public synchronized Entry put(String url, String code, byte[] feature, int[] hashes) {
+        String key = key(url, code);
+        Entry entry = new Entry(feature, hashes, ENTRY_OVERHEAD + 2L * key.length() + feature.length + 4L * hashes.length);
+        remove(key);
+        if (entry.size > maxBytes) return entry;
+        entries.put(key, entry);
+        bytes += entry.size;
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (bytes > maxBytes && iterator.hasNext()) {
+            bytes -= iterator.next().getValue().size;
+            iterator.remove();
+            evictions++;
+        }
+        return entry;
+    }
+
+    private void remove(String key) {
+        Entry removed = entries.remove(key);
+        if (removed != null) bytes -= removed.size;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    /**
+     * Adds the statistics of the cache to a map, eg. for the metrics of the request handler.
+     *
+     * @param map the map to add the statistics to.
+     */
+    public synchronized void getStatistics(Map<String, Object> map) {
+        long lookups = hits + misses;
+        map.put("lookups", lookups);
+        map.put("hits", hits);
+        map.put("hitratio", lookups > 0 ? (double) hits / lookups : 0d);
+        map.put("evictions", evictions);
+        map.put("expirations", expirations);
+        map.put("size", entries.size());
+        map.put("ramBytesUsed", bytes);
+        map.put("maxRamBytes", maxBytes);
+    }
+
+    /**
+     * A cached feature, it is shared between requests and must not be modified.
+     */
+    public static class Entry {
+        private final byte[] feature;
+        private final int[] hashes;
+        private final long size;
+        private final long created = System.currentTimeMillis();
+
+        Entry(byte[] feature, int[] hashes, long size) {
+            this.feature = feature;
+            this.hashes = hashes;
+            this.size = size;
+        }
+
+        public byte[] getFeature() {
+            return feature;
+        }
+
+        public int[] getHashes() {
+            return hashes;
+        }
+    }
+}
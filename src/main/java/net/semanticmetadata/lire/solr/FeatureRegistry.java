@@ -5,11 +5,17 @@ import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
 import net.semanticmetadata.lire.imageanalysis.features.global.*;
 import net.semanticmetadata.lire.imageanalysis.features.global.joint.JointHistogram;
 import net.semanticmetadata.lire.imageanalysis.features.global.spatialpyramid.SPCEDD;
+import net.semanticmetadata.lire.solr.distance.BytesDistance;
+import net.semanticmetadata.lire.solr.distance.BytesDistanceFactory;
+import net.semanticmetadata.lire.solr.distance.BytesDistances;
 import net.semanticmetadata.lire.solr.features.DoubleFeatureCosineDistance;
 import net.semanticmetadata.lire.solr.features.ShortFeatureCosineDistance;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Set;
+import java.util.TreeSet;
 
 /**
  * This file is part of LIRE Solr, a Java library for content based image retrieval.
@@ -28,12 +34,20 @@ public class FeatureRegistry {
     private static HashMap<String, Class<? extends GlobalFeature>> featureFieldToClass = new HashMap<String, Class<? extends GlobalFeature>>(16);
     private static HashMap<String, String> hashFieldToFeatureField = new HashMap<String, String>(16);
     private static HashMap<Class<? extends GlobalFeature>, String> classToCode = new HashMap<Class<? extends GlobalFeature>, String>(16);
+    /**
+     * Distance functions working on the serialized features, by code. Features without one are deserialized.
+     */
+    private static HashMap<String, BytesDistanceFactory> codeToDistance = new HashMap<String, BytesDistanceFactory>(16);
+    private static HashMap<String, BytesDistanceFactory> featureFieldToDistance = new HashMap<String, BytesDistanceFactory>(16);
 
 
     // Constants.
     public static final String featureFieldPostfix = "_hi";   // contains the histogram
     public static final String hashFieldPostfix = "_ha";      // contains the hash
     public static final String metricSpacesFieldPostfix = "_ms";      // contains the hash
+    public static final String quantizedFieldPostfix = "_pq";      // contains the product quantization code
+    public static final String clusterFieldPostfix = "_iv";      // contains the cluster id of the inverted file
+    public static final String signatureFieldPostfix = "_bs";      // contains the packed BitSampling hash bits
 
     static {
         // initial adding of the supported features:
@@ -60,6 +74,24 @@ public class FeatureRegistry {
         codeToClass.put("sf", ShortFeatureCosineDistance.class);
 //        codeToClass.put("sf", GenericGlobalShortFeature.class);
 
+        // distance functions on the serialized features, see BytesDistances
+        codeToDistance.put("cl", BytesDistances.COLOR_LAYOUT);
+        codeToDistance.put("eh", BytesDistances.EDGE_HISTOGRAM);
+        codeToDistance.put("jc", BytesDistances.JCD);
+        codeToDistance.put("oh", BytesDistances.OPPONENT_HISTOGRAM);
+        codeToDistance.put("ph", BytesDistances.PHOG);
+        codeToDistance.put("ac", BytesDistances.AUTO_COLOR_CORRELOGRAM);
+        codeToDistance.put("ad", BytesDistances.ACCID);
+        codeToDistance.put("ce", BytesDistances.CEDD);
+        codeToDistance.put("fc", BytesDistances.FCTH);
+        codeToDistance.put("fo", BytesDistances.BYTE_HISTOGRAM);
+        codeToDistance.put("jh", BytesDistances.BYTE_HISTOGRAM);
+        codeToDistance.put("sc", BytesDistances.SCALABLE_COLOR);
+        codeToDistance.put("pc", BytesDistances.CEDD);
+        codeToDistance.put("df", BytesDistances.SPARSE_DOUBLE_COSINE);
+        codeToDistance.put("if", BytesDistances.GENERIC_INT);
+        codeToDistance.put("sf", BytesDistances.SPARSE_SHORT_COSINE);
+
         // local feature based histograms.
         // codeToClass.put("sim_ce", GenericByteLireFeature.class); // SIMPLE CEDD ... just to give a hint how it might look like.
 
@@ -74,6 +106,9 @@ public class FeatureRegistry {
             featureFieldToClass.put(code + featureFieldPostfix, codeToClass.get(code));
             hashFieldToFeatureField.put(code + hashFieldPostfix, code + featureFieldPostfix);
             classToCode.put(codeToClass.get(code), code);
+            if (codeToDistance.containsKey(code)) {
+                featureFieldToDistance.put(code + featureFieldPostfix, codeToDistance.get(code));
+            }
         }
     }
 
@@ -82,7 +117,7 @@ public class FeatureRegistry {
      * @param hashFieldName the name of the hash field
      * @return the class for the given field or null if not registered.
      */
-    public static Class getClassForHashField(String hashFieldName) {
+    public static Class<? extends GlobalFeature> getClassForHashField(String hashFieldName) {
         return hashFieldToClass.get(hashFieldName);
     }
 
@@ -92,7 +127,7 @@ public class FeatureRegistry {
      * @param featureFieldName the name of the field containing the histogram
      * @return the class for the given field or null if not registered.
      */
-    public static Class getClassForFeatureField(String featureFieldName) {
+    public static Class<? extends GlobalFeature> getClassForFeatureField(String featureFieldName) {
         return featureFieldToClass.get(featureFieldName);
     }
 
@@ -105,6 +140,17 @@ public class FeatureRegistry {
         return hashFieldToFeatureField.get(hashFieldName);
     }
 
+    /**
+     * Creates the distance function working directly on the serialized features of a field.
+     * @param featureFieldName the name of the field containing the histogram, eg. cl_hi
+     * @param queryFeature the query, an instance of the class registered for the field.
+     * @return the distance function or null if there is none for the field.
+     */
+    public static BytesDistance getBytesDistance(String featureFieldName, GlobalFeature queryFeature) {
+        BytesDistanceFactory factory = featureFieldToDistance.get(featureFieldName);
+        return factory != null ? factory.forQuery(queryFeature) : null;
+    }
+
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
@@ -128,10 +174,17 @@ public class FeatureRegistry {
         return classToCode.get(featureClass);
     }
 
-    public static Class getClassForCode(String code) {
+    public static Class<? extends GlobalFeature> getClassForCode(String code) {
         return codeToClass.get(code);
     }
 
+    /**
+     * @return the codes of all registered features, sorted, eg. for tools and benchmarks iterating over all of them.
+     */
+    public static Set<String> getCodes() {
+        return Collections.unmodifiableSet(new TreeSet<String>(codeToClass.keySet()));
+    }
+
     public static String codeToHashField(String code) {
         return code + hashFieldPostfix;
     }
@@ -143,4 +196,16 @@ public class FeatureRegistry {
     public static String codeToFeatureField(String code) {
         return code + featureFieldPostfix;
     }
+
+    public static String codeToQuantizedField(String code) {
+        return code + quantizedFieldPostfix;
+    }
+
+    public static String codeToClusterField(String code) {
+        return code + clusterFieldPostfix;
+    }
+
+    public static String codeToSignatureField(String code) {
+        return code + signatureFieldPostfix;
+    }
 }
@@ -2,8 +2,12 @@ package net.semanticmetadata.lire.solr;
 
 import net.semanticmetadata.lire.indexers.hashing.BitSampling;
 import net.semanticmetadata.lire.indexers.hashing.MetricSpaces;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.zip.GZIPInputStream;
 
 /**
@@ -12,6 +16,10 @@ import java.util.zip.GZIPInputStream;
  * @author Mathias Lux, 19.12.2016.
  */
 public class HashingMetricSpacesManager {
+    private static final Logger log = LoggerFactory.getLogger(HashingMetricSpacesManager.class);
+    private static final AtomicBoolean missingHashFunctionsLogged = new AtomicBoolean(false);
+    private static double[][][] bitSamplingFunctions = null;
+
     /**
      * Pre-load the static members of MetricSpaces to make sure hash generation is on time.
      */
@@ -28,11 +36,28 @@ public class HashingMetricSpacesManager {
         } catch (Exception e) {
             e.printStackTrace();
         }
+        InputStream hashFunctions = classloader.getResourceAsStream("lsh/LshBitSampling_2048.obj");
+        if (hashFunctions == null) {
+            // init is called by every handler, the missing file is reported once.
+            if (missingHashFunctionsLogged.compareAndSet(false, true)) {
+                log.warn("lsh/LshBitSampling_2048.obj not found in the class path, BitSampling probes are not available.");
+            }
+            return;
+        }
         try {
-            BitSampling.readHashFunctions(classloader.getResourceAsStream("lsh/LshBitSampling_2048.obj")); // load BitSampling data from disk.
+            bitSamplingFunctions = BitSampling.readHashFunctions(hashFunctions); // load BitSampling data from disk.
         } catch (IOException e) {
             e.printStackTrace();
         }
 
     }
+
+    /**
+     * The hash functions loaded by {@link #init()}, they are kept private by BitSampling.
+     *
+     * @return the hash functions as [bundle][bit][dimension] or null if they could not be loaded.
+     */
+    public static double[][][] getBitSamplingFunctions() {
+        return bitSamplingFunctions;
+    }
 }
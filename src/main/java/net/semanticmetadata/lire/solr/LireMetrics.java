@@ -0,0 +1,120 @@
+package net.semanticmetadata.lire.solr;
+
+import com.codahale.metrics.ExponentiallyDecayingReservoir;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Timer;
+import org.apache.solr.core.SolrInfoBean;
+import org.apache.solr.metrics.SolrMetricManager;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latencies of the phases of a search and the number of candidates, aggregated in the metrics registry of the core.
+ * A phase is timed per feature field and mode, the names are like
+ * <code>QUERY./lireq.phases.rerank.cl_hi.hash</code> and <code>QUERY./lireq.candidates.cl_hi.hash</code>, so a
+ * percentile can be watched per phase. Phases are download, extract, hash, query, candidates, pq, search, rerank, docs
+ * and response. Without a metric manager, eg. in tests, the metrics are kept but not registered.
+ */
+public class LireMetrics {
+    private final SolrMetricManager manager;
+    private final String registryName;
+    private final SolrInfoBean bean;
+    private final String scope;
+    private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+    private final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+    /**
+     * Metrics that are not registered.
+     */
+    public LireMetrics() {
+        this(null, null, null, null);
+    }
+
+    /**
+     * @param manager      the metric manager of the core, may be null.
+     * @param registryName the registry of the core
+     * @param bean         the request handler
+     * @param scope        the path of the request handler, eg. /lireq
+     */
+    public LireMetrics(SolrMetricManager manager, String registryName, SolrInfoBean bean, String scope) {
+        this.manager = manager;
+        this.registryName = registryName;
+        this.bean = bean;
+        this.scope = scope;
+    }
+
+    /**
+     * @param phase the phase, eg. rerank
+     * @param field the feature or hash field, eg. cl_hi, or null for phases not specific to a feature, like download.
+     * @param mode  the search mode, eg. hash, or null.
+     * @return the timer of the phase, it is created on first use.
+     */
+    public Timer timer(String phase, String field, String mode) {
+        return timers.computeIfAbsent(key(phase, field, mode), key -> {
+            if (manager == null) return new Timer();
+            String[] path = path("phases", phase, field, mode);
+            return manager.timer(bean, registryName, path[path.length - 1], Arrays.copyOf(path, path.length - 1));
+        });
+    }
+
+    /**
+     * @return the histogram of the sizes of the phase, eg. the number of candidates, it is created on first use.
+     */
+    public Histogram histogram(String name, String field, String mode) {
+        return histograms.computeIfAbsent(key(name, field, mode), key -> {
+            if (manager == null) return new Histogram(new ExponentiallyDecayingReservoir());
+            String[] path = path(name, null, field, mode);
+            return manager.histogram(bean, registryName, path[path.length - 1], Arrays.copyOf(path, path.length - 1));
+        });
+    }
+
+    /**
+     * Records the time of a phase from its start until now.
+     *
+     * @param startNanos the start of the phase by {@link System#nanoTime()}
+     * @return the time of the phase in nanoseconds, eg. for the timings in the response.
+     */
+    public long record(String phase, String field, String mode, long startNanos) {
+        long nanos = System.nanoTime() - startNanos;
+        update(phase, field, mode, nanos);
+        return nanos;
+    }
+
+    /**
+     * Records the time of a phase measured elsewhere, eg. summed up over several parts.
+     *
+     * @param nanos the time of the phase in nanoseconds
+     */
+    public void update(String phase, String field, String mode, long nanos) {
+        timer(phase, field, mode).update(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Records a size of a phase, eg. the number of candidates.
+     */
+    public void count(String name, String field, String mode, long value) {
+        histogram(name, field, mode).update(value);
+    }
+
+    private static String key(String name, String field, String mode) {
+        return name + '.' + field + '.' + mode;
+    }
+
+    /**
+     * @return the parts of the metric name, null parts are left out. The last part is the name as given to the
+     * metric manager, the others are its path.
+     */
+    private String[] path(String... parts) {
+        String[] path = new String[parts.length + 2];
+        int length = 0;
+        path[length++] = bean.getCategory().toString();
+        if (scope != null) path[length++] = scope;
+        for (String part : parts) {
+            if (part != null) path[length++] = part;
+        }
+        return Arrays.copyOf(path, length);
+    }
+}
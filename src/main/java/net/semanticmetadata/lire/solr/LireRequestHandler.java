@@ -40,59 +40,93 @@
 package net.semanticmetadata.lire.solr;
 
 import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.StringTokenizer;
-import java.util.TreeSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import javax.imageio.ImageIO;
 
 import net.semanticmetadata.lire.imageanalysis.features.global.GenericGlobalShortFeature;
+import net.semanticmetadata.lire.solr.columns.ExactSearch;
+import net.semanticmetadata.lire.solr.columns.FeatureColumnWarmer;
+import net.semanticmetadata.lire.solr.columns.HnswGraphStore;
+import net.semanticmetadata.lire.solr.columns.VectorDistance;
 import net.semanticmetadata.lire.solr.features.ShortFeatureCosineDistance;
+import net.semanticmetadata.lire.solr.quantization.CoarseQuantizer;
+import net.semanticmetadata.lire.solr.quantization.ProductQuantizer;
 import net.semanticmetadata.lire.solr.tools.EncodeAndHashCSV;
 import net.semanticmetadata.lire.solr.tools.Utilities;
 import org.apache.commons.codec.binary.Base64;
 import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.index.BinaryDocValues;
-import org.apache.lucene.index.IndexableField;
-import org.apache.lucene.index.MultiDocValues;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.ReaderUtil;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
 import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.queryparser.classic.QueryParser;
 import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanQuery;
-import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.BoostQuery;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.search.MatchAllDocsQuery;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.Sort;
 import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BitSetIterator;
+import org.apache.lucene.util.Bits;
 import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
 import org.apache.solr.common.SolrDocument;
 import org.apache.solr.common.SolrDocumentList;
 import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.core.SolrCore;
 import org.apache.solr.handler.RequestHandlerBase;
+import org.apache.solr.metrics.MetricsMap;
+import org.apache.solr.metrics.SolrMetricManager;
 import org.apache.solr.request.SolrQueryRequest;
 import org.apache.solr.response.SolrQueryResponse;
 import org.apache.solr.search.DocIterator;
+import org.apache.solr.search.DocSet;
 import org.apache.solr.search.DocList;
 import org.apache.solr.search.QParser;
+import org.apache.solr.search.SolrCache;
 import org.apache.solr.search.SolrIndexSearcher;
 import org.apache.solr.search.SyntaxError;
+import org.apache.solr.util.plugin.SolrCoreAware;
 
 import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
 import net.semanticmetadata.lire.imageanalysis.features.global.ColorLayout;
 import net.semanticmetadata.lire.indexers.hashing.BitSampling;
 import net.semanticmetadata.lire.indexers.hashing.MetricSpaces;
-import net.semanticmetadata.lire.solr.tools.RandomAccessBinaryDocValues;
 import net.semanticmetadata.lire.utils.ImageUtils;
 import net.semanticmetadata.lire.utils.StatsUtils;
 
@@ -103,15 +137,13 @@ import net.semanticmetadata.lire.utils.StatsUtils;
  * @author Mathias Lux, mathias@juggle.at, 07.07.13
  */
 
-public class LireRequestHandler extends RequestHandlerBase {
+public class LireRequestHandler extends RequestHandlerBase implements SolrCoreAware, Closeable {
     //    private static HashMap<String, Class> fieldToClass = new HashMap<String, Class>(5);
-    private long time = 0;
     private int defaultNumberOfResults = 60;
     /**
      * number of candidate results retrieved from the index. The higher this number, the slower,
      * the but more accurate the retrieval will be. 10k is a good value for starters.
      */
-    private int numberOfCandidateResults = 10000;
     private static final int DEFAULT_NUMBER_OF_CANDIDATES = 10000;
 
     /**
@@ -119,15 +151,78 @@ public class LireRequestHandler extends RequestHandlerBase {
      * score, the less the faster. I put down a minimum of three in the method, this value gives
      * the percentage of the overall number used (selected randomly).
      */
-    private double numberOfQueryTerms = 0.33;
     private static final double DEFAULT_NUMBER_OF_QUERY_TERMS = 0.33;
 
     /**
      * If metric spaces should be used instead of BitSampling.
      */
-    private boolean useMetricSpaces = false;
     private static final boolean DEFAULT_USE_METRIC_SPACES = false;
 
+    /**
+     * The pool the candidates are re-ranked with. Its size can be set with the init parameter reRankThreads in the
+     * solrconfig.xml file, default is the number of available processors.
+     */
+    private ForkJoinPool reRankPool;
+    private ParallelReRanker reRanker;
+
+    /**
+     * The pool the fields of a multi-field URL search are searched on, of the same size as the re-ranking pool. The
+     * searches wait for the re-ranking tasks they submit, so they must not run on the re-ranking pool themselves.
+     */
+    private ExecutorService fieldSearchPool;
+
+    /**
+     * If the decoded features should be taken from memory mapped feature columns instead of the BinaryDocValues,
+     * init parameter featureColumns in the solrconfig.xml file, see {@link FeatureColumnWarmer}. Searches with an
+     * accuracy of 0.9 or more use the exact scan over the columns only if it is set. The columns are built for
+     * requests with mode=exact or mode=hnsw regardless of it.
+     */
+    private boolean useFeatureColumns = false;
+
+    /**
+     * Product quantizers by feature code, loaded from the directory given with the init parameter quantizers. With the
+     * request parameter pq=true the candidates are pre-selected by their *_pq codes and only the best pqRerank ones
+     * are re-ranked with the actual feature distance.
+     */
+    private String quantizerDirectory = null;
+    private Map<String, ProductQuantizer> quantizers = Collections.emptyMap();
+    private static final int DEFAULT_PQ_RERANK = 1000;
+
+    /**
+     * Coarse quantizers by feature code, loaded from the directory given with the init parameter clusters. With the
+     * request parameter nprobe &gt; 0 the candidates are the documents of the nprobe clusters nearest to the query,
+     * taken from the *_iv fields, instead of the documents matching the hashes.
+     */
+    private String clusterDirectory = null;
+    private Map<String, CoarseQuantizer> clusters = Collections.emptyMap();
+
+    /**
+     * With mode=hnsw the results are taken from the HNSW graphs of the segments, built on demand in the column
+     * directory of the core, see {@link HnswGraphStore}. ef is the size of the candidate list per segment.
+     */
+    private File columnDirectory = null;
+    private static final int DEFAULT_EF = 100;
+
+    /**
+     * Name of the optional user cache in the solrconfig.xml file holding the results of recent searches of the current
+     * searcher, see {@link ResultCacheRegenerator}.
+     */
+    public static final String RESULT_CACHE_NAME = "lireResultCache";
+
+    /**
+     * Features extracted from image URLs, so repeated URL queries skip download and extraction. The size in MB and
+     * the time to live in seconds can be set with the init parameters featureCacheMB and featureCacheTTL, a size of 0
+     * disables the cache. The statistics are part of the metrics of the handler.
+     */
+    private ExtractedFeatureCache featureCache = null;
+    private static final int DEFAULT_FEATURE_CACHE_MB = 32;
+    private static final int DEFAULT_FEATURE_CACHE_TTL = 300;
+
+    /**
+     * Latencies of the phases of the searches by feature field and mode, registered with the metrics of the handler.
+     */
+    private LireMetrics metrics = new LireMetrics();
+
     static {
         HashingMetricSpacesManager.init(); // load reference points from disk.
     }
@@ -136,13 +231,78 @@ public class LireRequestHandler extends RequestHandlerBase {
     @Override
     public void init(NamedList args) {
         super.init(args);
+        int reRankThreads = Runtime.getRuntime().availableProcessors();
+        Object threadsArg = args != null ? args.get("reRankThreads") : null;
+        if (threadsArg != null) {
+            reRankThreads = Math.max(1, Integer.parseInt(threadsArg.toString()));
+        }
+        reRankPool = new ForkJoinPool(reRankThreads);
+        reRanker = new ParallelReRanker(reRankPool);
+        fieldSearchPool = Executors.newFixedThreadPool(reRankThreads);
+        Object columnsArg = args != null ? args.get("featureColumns") : null;
+        useFeatureColumns = columnsArg != null && Boolean.parseBoolean(columnsArg.toString());
+        Object quantizersArg = args != null ? args.get("quantizers") : null;
+        quantizerDirectory = quantizersArg != null ? quantizersArg.toString() : null;
+        Object clustersArg = args != null ? args.get("clusters") : null;
+        clusterDirectory = clustersArg != null ? clustersArg.toString() : null;
+        Object cacheSizeArg = args != null ? args.get("featureCacheMB") : null;
+        Object cacheTtlArg = args != null ? args.get("featureCacheTTL") : null;
+        long cacheSize = cacheSizeArg != null ? Long.parseLong(cacheSizeArg.toString()) : DEFAULT_FEATURE_CACHE_MB;
+        long cacheTtl = cacheTtlArg != null ? Long.parseLong(cacheTtlArg.toString()) : DEFAULT_FEATURE_CACHE_TTL;
+        featureCache = cacheSize > 0 ? new ExtractedFeatureCache(cacheSize << 20, cacheTtl * 1000) : null;
+    }
+
+    @Override
+    public void initializeMetrics(SolrMetricManager manager, String registryName, String tag, String scope) {
+        super.initializeMetrics(manager, registryName, tag, scope);
+        metrics = new LireMetrics(manager, registryName, this, scope);
+        if (featureCache != null) {
+            manager.registerGauge(this, registryName, new MetricsMap((detailed, map) -> featureCache.getStatistics(map)),
+                    tag, true, "featureCache", getCategory().toString(), scope);
+        }
+    }
+
+    @Override
+    public void inform(SolrCore core) {
+        columnDirectory = FeatureColumnWarmer.getColumnDirectory(core);
+        if (useFeatureColumns) {
+            reRanker.setColumnDirectory(columnDirectory);
+        }
+        if (quantizerDirectory != null) {
+            quantizers = ProductQuantizer.loadAll(resolveConfigFile(core, quantizerDirectory));
+        }
+        if (clusterDirectory != null) {
+            clusters = CoarseQuantizer.loadAll(resolveConfigFile(core, clusterDirectory));
+        }
+    }
+
+    /**
+     * Relative paths are resolved against the conf directory of the core.
+     */
+    private static File resolveConfigFile(SolrCore core, String path) {
+        File file = new File(path);
+        if (!file.isAbsolute()) {
+            file = new File(core.getResourceLoader().getConfigDir(), path);
+        }
+        return file;
+    }
+
+    @Override
+    public void close() {
+        if (reRankPool != null) {
+            reRankPool.shutdown();
+        }
+        if (fieldSearchPool != null) {
+            fieldSearchPool.shutdown();
+        }
     }
 
     /**
-     * Handles three types of requests.
+     * Handles four types of requests.
      * <ol>
      * <li>search by already extracted images.</li>
      * <li>search by an image URL.</li>
+     * <li>search for many ids or features in one batch.</li>
      * <li>Random results.</li>
      * </ol>
      *
@@ -152,6 +312,9 @@ public class LireRequestHandler extends RequestHandlerBase {
      */
     @Override
     public void handleRequestBody(SolrQueryRequest req, SolrQueryResponse rsp) throws Exception {
+        if (req.getParams().getBool("debug", false)) {
+            rsp.add("debug", new SimpleOrderedMap<>());
+        }
         // (1) check if the necessary parameters are here
         if (req.getParams().get("hashes") != null) { // we are searching for hashes ... without hashes one should go for the lirefunc version.
             handleHashSearch(req, rsp); // not really supported, just here for legacy.
@@ -159,6 +322,8 @@ public class LireRequestHandler extends RequestHandlerBase {
             handleUrlSearch(req, rsp);
         } else if (req.getParams().get("id") != null) { // we are searching for an image based on an URL
             handleIdSearch(req, rsp);
+        } else if (req.getParams().get("ids") != null || req.getParams().get("features") != null) { // many queries at once.
+            handleBatchSearch(req, rsp);
         } else if (req.getParams().get("extract") != null) { // we are trying to extract from an image URL.
             handleExtract(req, rsp);
         } else { // lets return random results.
@@ -167,7 +332,9 @@ public class LireRequestHandler extends RequestHandlerBase {
     }
 
     /**
-     * Handles the get parameters id, field and rows.
+     * Handles the get parameters id, field and rows. With more than one field, eg. field=cl,eh,jc, the image is
+     * searched for with each of the features and the rankings are returned per field in fields, as with searches by
+     * URL. The rankings are fused into one with fuse=true or weighted fields, see {@link #isFusedSearch(SolrParams)}.
      *
      * @param req
      * @param rsp
@@ -181,71 +348,418 @@ public class LireRequestHandler extends RequestHandlerBase {
 //            TopDocs hits = searcher.search(new TermQuery(new Term("id", req.getParams().get("id"))), 1);
             int queryDocId = searcher.getFirstMatch(new Term("id", req.getParams().get("id")));
             // get the parameters
-            String tmpParamField = req.getParams().get("field", "cl_ha");
-            if (!tmpParamField.endsWith("_ha")) {
-                tmpParamField += "_ha";
-            }
-            final String paramField = tmpParamField;
-            numberOfQueryTerms = req.getParams().getDouble("accuracy", DEFAULT_NUMBER_OF_QUERY_TERMS);
-            numberOfCandidateResults = req.getParams().getInt("candidates", DEFAULT_NUMBER_OF_CANDIDATES);
-            useMetricSpaces = req.getParams().getBool("ms", DEFAULT_USE_METRIC_SPACES);
+            if (isFusedSearch(req.getParams())) {
+                handleFusedIdSearch(req, rsp, queryDocId, parseFieldWeights(req.getParams().get("field", "cl_ha")));
+                return;
+            }
+            String[] paramFields = parseFields(req.getParams().get("field", "cl_ha"));
             int paramRows = req.getParams().getInt("rows", defaultNumberOfResults);
-
-            GlobalFeature queryFeature = (GlobalFeature) FeatureRegistry.getClassForHashField(paramField).newInstance();
-            rsp.add("QueryField", paramField);
-            rsp.add("QueryFeature", queryFeature.getClass().getName());
-            if (queryDocId > -1) {
-                // Using DocValues to get the actual data from the index.
-//              BinaryDocValues binaryValues = MultiDocValues.getBinaryValues(searcher.getIndexReader(), FeatureRegistry.getFeatureFieldName(paramField));
-                BinaryDocValues binaryValues = new RandomAccessBinaryDocValues(() -> {
-                    try {
-                        return MultiDocValues.getBinaryValues(searcher.getIndexReader(), FeatureRegistry.getFeatureFieldName(paramField));
-                    } catch (IOException e) {
-                        throw new RuntimeException("BinaryDocValues problem.", e);
-                    }
-
-                });
-                if (binaryValues == null) {
-                    rsp.add("Error", "Could not find the DocValues of the query document. Are they in the index? Id: " + req.getParams().get("id"));
-                    // System.err.println("Could not find the DocValues of the query document. Are they in the index?");
+            if (paramFields.length == 1) {
+                searchById(req, rsp, searcher, queryDocId, paramFields[0], paramRows);
+                return;
+            }
+            NamedList<Object> fields = new SimpleOrderedMap<>();
+            for (String paramField : paramFields) {
+                SolrQueryResponse fieldRsp = new SolrQueryResponse();
+                if (getDebug(rsp) != null) {
+                    fieldRsp.add("debug", new SimpleOrderedMap<>());
                 }
-//                queryFeature.setByteArrayRepresentation(binaryValues.get(queryDocId).bytes, binaryValues.get(queryDocId).offset, binaryValues.get(queryDocId).length);
-                BytesRef bvBytesRef = getBytesRef(binaryValues, queryDocId);
-                queryFeature.setByteArrayRepresentation(
-                        bvBytesRef.bytes, bvBytesRef.offset, bvBytesRef.length);
-
-                Query query = null;
-                if (numberOfQueryTerms >= 0.90) {
-                    query = new MatchAllDocsQuery();
-                    rsp.add("Note", "Switching to AllDocumentsQuery because accuracy is set higher than 0.9.");
-                } else {
-                    if (!useMetricSpaces) {
-                        // check singleton cache if the term stats can be cached.
-                        HashTermStatistics.addToStatistics(searcher, paramField);
-                        // Re-generating the hashes to save space (instead of storing them in the index)
-                        int[] hashes = BitSampling.generateHashes(queryFeature.getFeatureVector());
-                        query = createQuery(hashes, paramField, numberOfQueryTerms);
-                    } else if (MetricSpaces.supportsFeature(queryFeature)) {
-                        // ----< Metric Spaces >-----
-                        int queryLength = (int) StatsUtils.clamp(numberOfQueryTerms * MetricSpaces.getPostingListLength(queryFeature), 3, MetricSpaces.getPostingListLength(queryFeature));
-                        String msQuery = MetricSpaces.generateBoostedQuery(queryFeature, queryLength);
-                        QueryParser qp = new QueryParser(paramField.replace("_ha", "_ms"), new WhitespaceAnalyzer());
-                        query = qp.parse(msQuery);
-                    } else {
-                        query = new MatchAllDocsQuery();
-                        rsp.add("Error", "Feature not supported by MetricSpaces: " + queryFeature.getClass().getSimpleName());
-                    }
+                try {
+                    searchById(req, fieldRsp, searcher, queryDocId, paramField, paramRows);
+                } catch (Exception e) {
+                    fieldRsp.add("Error", "Error searching " + paramField + " for the image with the id "
+                            + req.getParams().get("id") + ": " + e.getMessage());
                 }
-                doSearch(req, rsp, searcher, paramField, paramRows, getFilterQueries(req), query, queryFeature);
-            } else {
-                rsp.add("Error", "Did not find an image with the given id " + req.getParams().get("id"));
+                fields.add(paramField, fieldRsp.getValues());
             }
+            rsp.add("fields", fields);
         } catch (Exception e) {
             rsp.add("Error", "There was an error with your search for the image with the id " + req.getParams().get("id")
                     + ": " + e.getMessage());
         }
     }
 
+    /**
+     * Searches for the indexed image with the feature of one hash field.
+     */
+    private void searchById(SolrQueryRequest req, SolrQueryResponse rsp, SolrIndexSearcher searcher, int queryDocId,
+                            String paramField, int paramRows) throws Exception {
+        GlobalFeature queryFeature = FeatureRegistry.getClassForHashField(paramField).getDeclaredConstructor().newInstance();
+        rsp.add("QueryField", paramField);
+        rsp.add("QueryFeature", queryFeature.getClass().getName());
+        if (queryDocId > -1) {
+            // Using DocValues of the document's segment to get the actual data from the index.
+            BytesRef bvBytesRef = getFeatureBytes(searcher, FeatureRegistry.getFeatureFieldName(paramField), queryDocId);
+            if (bvBytesRef == null) {
+                rsp.add("Error", "Could not find the DocValues of the query document. Are they in the index? Id: " + req.getParams().get("id"));
+                return;
+            }
+            queryFeature.setByteArrayRepresentation(
+                    bvBytesRef.bytes, bvBytesRef.offset, bvBytesRef.length);
+
+            Query query = createFeatureQuery(req, rsp, searcher, paramField, queryFeature);
+            doSearch(req, rsp, searcher, paramField, paramRows, getFilterQueries(req), query, queryFeature);
+        } else {
+            rsp.add("Error", "Did not find an image with the given id " + req.getParams().get("id"));
+        }
+    }
+
+    /**
+     * Creates the candidate query for the feature of an indexed image or one given as a parameter, the hashes are
+     * re-generated from the feature.
+     *
+     * @return the query or null with mode=hamming, which does not need one.
+     */
+    private Query createFeatureQuery(SolrQueryRequest req, SolrQueryResponse rsp, SolrIndexSearcher searcher,
+                                String paramField, GlobalFeature queryFeature) throws IOException, ParseException {
+        if (isHammingMode(req.getParams())) return null;
+        double numberOfQueryTerms = req.getParams().getDouble("accuracy", DEFAULT_NUMBER_OF_QUERY_TERMS);
+        boolean useMetricSpaces = req.getParams().getBool("ms", DEFAULT_USE_METRIC_SPACES);
+        long start = System.nanoTime();
+        Query query;
+        if (numberOfQueryTerms >= 0.90) {
+            query = new MatchAllDocsQuery();
+            rsp.add("Note", "Switching to AllDocumentsQuery because accuracy is set higher than 0.9.");
+        } else {
+            if (!useMetricSpaces) {
+                // check singleton cache if the term stats can be cached.
+                HashTermStatistics.addToStatistics(searcher, paramField);
+                // Re-generating the hashes to save space (instead of storing them in the index)
+                query = createQuery(queryFeature.getFeatureVector(), paramField, numberOfQueryTerms,
+                        req.getParams().getInt("probes", 0));
+            } else if (MetricSpaces.supportsFeature(queryFeature)) {
+                // ----< Metric Spaces >-----
+                int queryLength = (int) StatsUtils.clamp(numberOfQueryTerms * MetricSpaces.getPostingListLength(queryFeature), 3, MetricSpaces.getPostingListLength(queryFeature));
+                String msQuery = MetricSpaces.generateBoostedQuery(queryFeature, queryLength);
+                QueryParser qp = new QueryParser(paramField.replace("_ha", "_ms"), new WhitespaceAnalyzer());
+                query = qp.parse(msQuery);
+            } else {
+                query = new MatchAllDocsQuery();
+                rsp.add("Error", "Feature not supported by MetricSpaces: " + queryFeature.getClass().getSimpleName());
+            }
+        }
+        record(rsp, "query", FeatureRegistry.getFeatureFieldName(paramField), null, start);
+        explainQuery(rsp, searcher, paramField, query, useMetricSpaces ? null : queryFeature.getFeatureVector(), null);
+        return query;
+    }
+
+    /**
+     * The candidates of fused searches are the union of the results of the hash queries, mode=hamming has none.
+     */
+    private static final String HAMMING_NOT_FUSED = "mode=hamming is not supported for fused searches, use fuse=false "
+            + "and unweighted fields to search the fields with it one by one.";
+
+    /**
+     * Searches with several fields fuse the rankings of the features into one if fuse=true or any of the fields is
+     * weighted, eg. field=cl:0.5,eh,ce, by id as well as by URL. Otherwise each field is ranked on its own.
+     */
+    private static boolean isFusedSearch(SolrParams params) {
+        return params.getBool("fuse", false) || params.get("field", "cl_ha").contains(":");
+    }
+
+    /**
+     * Parses a comma separated list of fields, eg. cl,eh_ha, to the hash fields.
+     */
+    private static String[] parseFields(String paramField) {
+        String[] paramFields = paramField.split(",");
+        for (int i = 0; i < paramFields.length; i++) {
+            paramFields[i] = paramFields[i].trim();
+            if (!paramFields[i].endsWith("_ha")) {
+                paramFields[i] += "_ha";
+            }
+        }
+        return paramFields;
+    }
+
+    /**
+     * Parses a list of hash fields with optional weights, eg. cl:0.5,eh:0.3,ce:0.2 or cl_ha,eh_ha. Fields without a
+     * weight get a weight of 1.
+     *
+     * @return the weights by hash field, in the order given.
+     */
+    private static LinkedHashMap<String, Double> parseFieldWeights(String paramField) {
+        LinkedHashMap<String, Double> fieldWeights = new LinkedHashMap<>();
+        for (String token : paramField.split(",")) {
+            token = token.trim();
+            if (token.isEmpty()) continue;
+            double weight = 1d;
+            int colon = token.indexOf(':');
+            if (colon >= 0) {
+                weight = Double.parseDouble(token.substring(colon + 1).trim());
+                token = token.substring(0, colon).trim();
+            }
+            if (!token.endsWith("_ha")) {
+                token += "_ha";
+            }
+            fieldWeights.put(token, weight);
+        }
+        return fieldWeights;
+    }
+
+    /**
+     * Searches for an indexed image with several fused features, see
+     * {@link #doFusedSearch(SolrQueryRequest, SolrQueryResponse, SolrIndexSearcher, LinkedHashMap, GlobalFeature[], Query[], int)}.
+     */
+    private void handleFusedIdSearch(SolrQueryRequest req, SolrQueryResponse rsp, int queryDocId,
+                                     LinkedHashMap<String, Double> fieldWeights) throws Exception {
+        SolrIndexSearcher searcher = req.getSearcher();
+        int paramRows = req.getParams().getInt("rows", defaultNumberOfResults);
+        rsp.add("QueryField", String.join(",", fieldWeights.keySet()));
+        if (isHammingMode(req.getParams())) {
+            rsp.add("Error", HAMMING_NOT_FUSED);
+            return;
+        }
+        if (queryDocId < 0) {
+            rsp.add("Error", "Did not find an image with the given id " + req.getParams().get("id"));
+            return;
+        }
+        GlobalFeature[] queryFeatures = new GlobalFeature[fieldWeights.size()];
+        Query[] queries = new Query[fieldWeights.size()];
+        int f = 0;
+        for (String paramField : fieldWeights.keySet()) {
+            Class<? extends GlobalFeature> featureClass = FeatureRegistry.getClassForHashField(paramField);
+            if (featureClass == null) {
+                rsp.add("Error", "Unknown feature field " + paramField);
+                return;
+            }
+            BytesRef bvBytesRef = getFeatureBytes(searcher, FeatureRegistry.getFeatureFieldName(paramField), queryDocId);
+            if (bvBytesRef == null) {
+                rsp.add("Error", "Could not find the DocValues of the query document for " + paramField
+                        + ". Are they in the index? Id: " + req.getParams().get("id"));
+                return;
+            }
+            queryFeatures[f] = featureClass.getDeclaredConstructor().newInstance();
+            queryFeatures[f].setByteArrayRepresentation(bvBytesRef.bytes, bvBytesRef.offset, bvBytesRef.length);
+            queries[f] = createFeatureQuery(req, rsp, searcher, paramField, queryFeatures[f]);
+            f++;
+        }
+        doFusedSearch(req, rsp, searcher, fieldWeights, queryFeatures, queries, paramRows);
+    }
+
+    /**
+     * Late fusion of several features. The candidates are the union of the results of the queries of all features,
+     * they are re-ranked by the weighted sum of their normalised distances in a single pass, see
+     * {@link ParallelReRanker#reRankFused(Iterator, String[], GlobalFeature[], double[], int, IndexSearcher)}.
+     * Stored fields are loaded for the final results only, once per document.
+     *
+     * @param fieldWeights  the weights by hash field
+     * @param queryFeatures the query feature for each of the fields
+     * @param queries       the candidate query for each of the fields
+     */
+    private void doFusedSearch(SolrQueryRequest req, SolrQueryResponse rsp, SolrIndexSearcher searcher,
+                               LinkedHashMap<String, Double> fieldWeights, GlobalFeature[] queryFeatures,
+                               Query[] queries, int maximumHits) throws IOException {
+        int numberOfCandidateResults = req.getParams().getInt("candidates", DEFAULT_NUMBER_OF_CANDIDATES);
+        List<Query> filterQueries = getFilterQueries(req);
+        String[] featureFieldNames = new String[fieldWeights.size()];
+        double[] weights = new double[fieldWeights.size()];
+        int f = 0;
+        for (Map.Entry<String, Double> entry : fieldWeights.entrySet()) {
+            featureFieldNames[f] = FeatureRegistry.getFeatureFieldName(entry.getKey());
+            weights[f++] = entry.getValue();
+        }
+        String fusedFieldName = String.join("+", featureFieldNames);
+        long start = System.nanoTime();
+        FixedBitSet candidates = new FixedBitSet(searcher.maxDoc());
+        for (Query query : queries) {
+            Iterator<Integer> docIterator;
+            if (filterQueries != null) {
+                docIterator = searcher.getDocList(query, filterQueries, Sort.RELEVANCE, 0, numberOfCandidateResults, 0).iterator();
+            } else {
+                docIterator = new TopDocsIterator(searcher.search(query, numberOfCandidateResults));
+            }
+            while (docIterator.hasNext()) {
+                candidates.set(docIterator.next());
+            }
+        }
+        long time = record(rsp, "candidates", fusedFieldName, "fused", start);
+        metrics.count("candidates", fusedFieldName, "fused", candidates.cardinality());
+        rsp.add("RawDocsCount", candidates.cardinality() + "");
+        rsp.add("RawDocsSearchTime", time + "");
+        NamedList<Object> debug = getDebug(rsp);
+        if (debug != null) {
+            int[] docs = new int[candidates.cardinality()];
+            BitSetIterator it = new BitSetIterator(candidates, docs.length);
+            for (int i = 0; i < docs.length; i++) docs[i] = it.nextDoc();
+            debug.add("segments", SearchExplanation.explainCandidates(docs, searcher.getIndexReader().leaves()));
+        }
+
+        start = System.nanoTime();
+        BitSetIterator bitSetIterator = new BitSetIterator(candidates, 0);
+        Iterator<Integer> docIterator = new Iterator<Integer>() {
+            int doc = bitSetIterator.nextDoc();
+
+            @Override
+            public boolean hasNext() {
+                return doc != DocIdSetIterator.NO_MORE_DOCS;
+            }
+
+            @Override
+            public Integer next() {
+                int current = doc;
+                doc = bitSetIterator.nextDoc();
+                return current;
+            }
+        };
+        BoundedDistanceHeap resultScoreDocs = reRanker.reRankFused(docIterator, featureFieldNames, queryFeatures,
+                weights, maximumHits, searcher);
+        time = record(rsp, "rerank", fusedFieldName, "fused", start);
+        rsp.add("ReRankSearchTime", time + "");
+        addResults(req, rsp, searcher, resultScoreDocs, fusedFieldName, "fused");
+    }
+
+    /**
+     * Searches for many images at once, given by their ids (ids=a,b,c) or by Base64 encoded features
+     * (features=...,...), all with the same field. The ids are resolved in one pass over the terms of the id field
+     * and the query features are read in doc id order. The candidates of all queries are re-ranked together, see
+     * {@link ParallelReRanker#reRankBatch(int[][], String, GlobalFeature[], int, IndexSearcher)}, and a ranked list is
+     * returned per query in batch.
+     *
+     * @param req
+     * @param rsp
+     * @throws Exception
+     */
+    private void handleBatchSearch(SolrQueryRequest req, SolrQueryResponse rsp) throws Exception {
+        SolrIndexSearcher searcher = req.getSearcher();
+        String paramField = req.getParams().get("field", "cl_ha");
+        if (!paramField.endsWith("_ha")) {
+            paramField += "_ha";
+        }
+        int paramRows = req.getParams().getInt("rows", defaultNumberOfResults);
+        int numberOfCandidateResults = req.getParams().getInt("candidates", DEFAULT_NUMBER_OF_CANDIDATES);
+        Class<? extends GlobalFeature> featureClass = FeatureRegistry.getClassForHashField(paramField);
+        if (featureClass == null) {
+            rsp.add("Error", "Unknown feature field " + paramField);
+            return;
+        }
+        String featureFieldName = FeatureRegistry.getFeatureFieldName(paramField);
+        rsp.add("QueryField", paramField);
+        rsp.add("QueryFeature", featureClass.getName());
+        if (isHammingMode(req.getParams())) {
+            // the candidates are taken from the hash queries, mode=hamming has none.
+            rsp.add("Error", "mode=hamming is not supported for batch searches.");
+            return;
+        }
+
+        // the queries, either ids or features, an entry stays null if its feature cannot be found.
+        boolean byId = req.getParams().get("ids") != null;
+        List<String> keys = new ArrayList<>();
+        for (String value : req.getParams().getParams(byId ? "ids" : "features")) {
+            for (String key : value.split(",")) {
+                if (!key.trim().isEmpty()) keys.add(key.trim());
+            }
+        }
+        GlobalFeature[] queryFeatures = new GlobalFeature[keys.size()];
+        if (byId) {
+            int[] queryDocs = resolveIds(searcher, keys);
+            Integer[] order = new Integer[queryDocs.length];
+            for (int i = 0; i < order.length; i++) order[i] = i;
+            Arrays.sort(order, Comparator.comparingInt(i -> queryDocs[i]));
+            List<LeafReaderContext> leaves = searcher.getIndexReader().leaves();
+            LeafReaderContext leaf = null;
+            BinaryDocValues binaryValues = null;
+            for (int i : order) {
+                if (queryDocs[i] < 0) continue;
+                if (leaf == null || queryDocs[i] >= leaf.docBase + leaf.reader().maxDoc()) {
+                    leaf = leaves.get(ReaderUtil.subIndex(queryDocs[i], leaves));
+                    binaryValues = DocValues.getBinary(leaf.reader(), featureFieldName);
+                }
+                if (binaryValues.advanceExact(queryDocs[i] - leaf.docBase)) {
+                    BytesRef bytesRef = binaryValues.binaryValue();
+                    queryFeatures[i] = featureClass.getDeclaredConstructor().newInstance();
+                    queryFeatures[i].setByteArrayRepresentation(bytesRef.bytes, bytesRef.offset, bytesRef.length);
+                }
+            }
+        } else {
+            for (int i = 0; i < queryFeatures.length; i++) {
+                queryFeatures[i] = featureClass.getDeclaredConstructor().newInstance();
+                queryFeatures[i].setByteArrayRepresentation(Base64.decodeBase64(keys.get(i)));
+            }
+        }
+
+        // candidates of each query.
+        List<Query> filterQueries = getFilterQueries(req);
+        long start = System.nanoTime();
+        long numberOfResults = 0;
+        int[][] candidates = new int[queryFeatures.length][];
+        List<GlobalFeature> found = new ArrayList<>(queryFeatures.length);
+        SolrQueryResponse[] queryRsps = new SolrQueryResponse[queryFeatures.length];
+        for (int i = 0; i < queryFeatures.length; i++) {
+            queryRsps[i] = new SolrQueryResponse();
+            queryRsps[i].add(byId ? "id" : "feature", byId ? keys.get(i) : Integer.toString(i));
+            if (queryFeatures[i] == null) continue;
+            Query query = createFeatureQuery(req, queryRsps[i], searcher, paramField, queryFeatures[i]);
+            if (filterQueries != null) {
+                DocList docList = searcher.getDocList(query, filterQueries, Sort.RELEVANCE, 0, numberOfCandidateResults, 0);
+                candidates[found.size()] = new int[docList.size()];
+                DocIterator it = docList.iterator();
+                for (int j = 0; it.hasNext(); j++) candidates[found.size()][j] = it.nextDoc();
+            } else {
+                TopDocs docs = searcher.search(query, numberOfCandidateResults);
+                candidates[found.size()] = new int[docs.scoreDocs.length];
+                for (int j = 0; j < docs.scoreDocs.length; j++) candidates[found.size()][j] = docs.scoreDocs[j].doc;
+            }
+            numberOfResults += candidates[found.size()].length;
+            metrics.count("candidates", featureFieldName, "batch", candidates[found.size()].length);
+            found.add(queryFeatures[i]);
+        }
+        long time = record(rsp, "candidates", featureFieldName, "batch", start);
+        rsp.add("RawDocsCount", numberOfResults + "");
+        rsp.add("RawDocsSearchTime", time + "");
+
+        start = System.nanoTime();
+        BoundedDistanceHeap[] results = reRanker.reRankBatch(Arrays.copyOf(candidates, found.size()), featureFieldName,
+                found.toArray(new GlobalFeature[0]), paramRows, searcher);
+        time = record(rsp, "rerank", featureFieldName, "batch", start);
+        rsp.add("ReRankSearchTime", time + "");
+
+        List<NamedList<?>> batch = new ArrayList<>(keys.size());
+        for (int i = 0, r = 0; i < keys.size(); i++) {
+            if (queryFeatures[i] != null) {
+                addResults(req, queryRsps[i], searcher, results[r++], featureFieldName, "batch");
+            } else {
+                queryRsps[i].add("Error", "Did not find an image with the given id or its DocValues.");
+            }
+            batch.add(queryRsps[i].getValues());
+        }
+        rsp.add("batch", batch);
+    }
+
+    /**
+     * Looks up many ids in one pass over the terms of the id field per segment, the ids are sorted to seek forward.
+     *
+     * @return the global document ids of the live documents with the given ids, -1 if there is none.
+     */
+    private static int[] resolveIds(SolrIndexSearcher searcher, List<String> ids) throws IOException {
+        int[] docs = new int[ids.size()];
+        Arrays.fill(docs, -1);
+        BytesRef[] terms = new BytesRef[ids.size()];
+        Integer[] order = new Integer[ids.size()];
+        for (int i = 0; i < order.length; i++) {
+            terms[i] = new BytesRef(ids.get(i));
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> terms[a].compareTo(terms[b]));
+        PostingsEnum postings = null;
+        for (LeafReaderContext context : searcher.getIndexReader().leaves()) {
+            Terms idTerms = context.reader().terms("id");
+            if (idTerms == null) continue;
+            TermsEnum termsEnum = idTerms.iterator();
+            Bits liveDocs = context.reader().getLiveDocs();
+            for (int i : order) {
+                if (docs[i] >= 0 || !termsEnum.seekExact(terms[i])) continue;
+                postings = termsEnum.postings(postings, PostingsEnum.NONE);
+                for (int doc = postings.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = postings.nextDoc()) {
+                    if (liveDocs == null || liveDocs.get(doc)) {
+                        docs[i] = context.docBase + doc;
+                        break;
+                    }
+                }
+            }
+        }
+        return docs;
+    }
+
     /**
      * Parses the fq param and adds it as a list of filter queries or reverts to null if nothing is found
      * or an Exception is thrown.
@@ -286,6 +800,7 @@ public class LireRequestHandler extends RequestHandlerBase {
      * @throws IOException
      */
     private void handleRandomSearch(SolrQueryRequest req, SolrQueryResponse rsp) throws IOException {
+        int numberOfCandidateResults = req.getParams().getInt("candidates", DEFAULT_NUMBER_OF_CANDIDATES);
         SolrIndexSearcher searcher = req.getSearcher();
         Query query = new MatchAllDocsQuery();
         DocList docList = searcher.getDocList(query, getFilterQueries(req), Sort.RELEVANCE, 0, numberOfCandidateResults, 0);
@@ -308,9 +823,45 @@ public class LireRequestHandler extends RequestHandlerBase {
         }
     }
 
+    /**
+     * Downloads an image, trims white space and extracts a feature, or takes the feature from the feature cache if
+     * the same URL has been queried recently.
+     *
+     * @param image        the image, it is only downloaded if the feature is not in the cache.
+     * @param featureClass the feature to extract
+     * @param rsp          the response, a hit is noted there.
+     * @return the serialized feature and its BitSampling hashes, they must not be modified.
+     */
+    private ExtractedFeatureCache.Entry extractFromUrl(UrlImage image, Class<? extends GlobalFeature> featureClass,
+                                                      SolrQueryResponse rsp) throws IOException, ReflectiveOperationException {
+        String url = image.getUrl();
+        String code = FeatureRegistry.getCodeForClass(featureClass);
+        ExtractedFeatureCache.Entry entry = featureCache != null ? featureCache.get(url, code) : null;
+        if (entry != null) {
+            rsp.add("FeatureCache", "hit");
+            return entry;
+        }
+        GlobalFeature feature = featureClass.getDeclaredConstructor().newInstance();
+        BufferedImage img = image.get();
+        String featureFieldName = FeatureRegistry.codeToFeatureField(code);
+        long start = System.nanoTime();
+        feature.extract(img);
+        byte[] data = feature.getByteArrayRepresentation();
+        record(rsp, "extract", featureFieldName, null, start);
+        // hashes of the serialized feature, just like for an indexed one.
+        start = System.nanoTime();
+        GlobalFeature decoded = featureClass.getDeclaredConstructor().newInstance();
+        decoded.setByteArrayRepresentation(data);
+        int[] hashes = BitSampling.generateHashes(decoded.getFeatureVector());
+        record(rsp, "hash", featureFieldName, null, start);
+        return featureCache != null ? featureCache.put(url, code, data, hashes) : new ExtractedFeatureCache.Entry(data, hashes, 0);
+    }
+
     /**
      * Searches for an image given by an URL. Note that (i) extracting image features takes time and
-     * (ii) not every image is readable by Java.
+     * (ii) not every image is readable by Java. With more than one field, eg. field=cl,eh,jc, the image is searched
+     * for with each of the features, see {@link #handleMultiFieldUrlSearch(SolrQueryRequest, SolrQueryResponse, UrlImage, String[], int)},
+     * unless the rankings are fused, see {@link #isFusedSearch(SolrParams)}.
      *
      * @param req
      * @param rsp
@@ -321,57 +872,278 @@ public class LireRequestHandler extends RequestHandlerBase {
     private void handleUrlSearch(SolrQueryRequest req, SolrQueryResponse rsp) throws IOException, InstantiationException, IllegalAccessException {
         SolrParams params = req.getParams();
         String paramUrl = params.get("url");
-        String paramField = req.getParams().get("field", "cl_ha");
-        if (!paramField.endsWith("_ha")) {
-            paramField += "_ha";
+        if (isFusedSearch(params)) {
+            handleFusedUrlSearch(req, rsp, new UrlImage(paramUrl, metrics), parseFieldWeights(params.get("field", "cl_ha")));
+            return;
         }
+        String[] paramFields = parseFields(params.get("field", "cl_ha"));
         int paramRows = params.getInt("rows", defaultNumberOfResults);
-        numberOfQueryTerms = req.getParams().getDouble("accuracy", DEFAULT_NUMBER_OF_QUERY_TERMS);
-        numberOfCandidateResults = req.getParams().getInt("candidates", DEFAULT_NUMBER_OF_CANDIDATES);
-        useMetricSpaces = req.getParams().getBool("ms", DEFAULT_USE_METRIC_SPACES);
-
+        boolean useMetricSpaces = req.getParams().getBool("ms", DEFAULT_USE_METRIC_SPACES);
+        UrlImage image = new UrlImage(paramUrl, metrics);
+        if (paramFields.length > 1) {
+            handleMultiFieldUrlSearch(req, rsp, image, paramFields, paramRows);
+            return;
+        }
+        String paramField = paramFields[0];
 
         GlobalFeature feat = null;
-        int[] hashes = null;
         Query query = null;
         // wrapping the whole part in the try
         try {
-            BufferedImage img = ImageIO.read(new URL(paramUrl).openStream());
-            img = ImageUtils.trimWhiteSpace(img);
-            // getting the right feature per field:
-            if (FeatureRegistry.getClassForHashField(paramField) == null) {
-                feat = new ColorLayout();
-            } else {
-                feat = (GlobalFeature) FeatureRegistry.getClassForHashField(paramField).newInstance();
-            }
-            feat.extract(img);
-
-            if (!useMetricSpaces) {
-                // Re-generating the hashes to save space (instead of storing them in the index)
+            Class<? extends GlobalFeature> featureClass = getClassForUrlSearch(paramField);
+            ExtractedFeatureCache.Entry extracted = extractFromUrl(image, featureClass, rsp);
+            feat = featureClass.getDeclaredConstructor().newInstance();
+            feat.setByteArrayRepresentation(extracted.getFeature());
+            if (!useMetricSpaces && !isHammingMode(params)) {
                 HashTermStatistics.addToStatistics(req.getSearcher(), paramField);
-                hashes = BitSampling.generateHashes(feat.getFeatureVector());
-                query = createQuery(hashes, paramField, numberOfQueryTerms);
-            } else if (MetricSpaces.supportsFeature(feat)) {
-                // ----< Metric Spaces >-----
-                int queryLength = (int) StatsUtils.clamp(numberOfQueryTerms * MetricSpaces.getPostingListLength(feat), 3, MetricSpaces.getPostingListLength(feat));
-                String msQuery = MetricSpaces.generateBoostedQuery(feat, queryLength);
-                QueryParser qp = new QueryParser(paramField.replace("_ha", "_ms"), new WhitespaceAnalyzer());
-                query = qp.parse(msQuery);
-            } else {
-                rsp.add("Error", "Feature not supported by MetricSpaces: " + feat.getClass().getSimpleName());
-                query = new MatchAllDocsQuery();
             }
-
+            query = createUrlQuery(req, rsp, paramField, feat, extracted.getHashes());
         } catch (Exception e) {
             rsp.add("Error", "Error reading image from URL: " + paramUrl + ": " + e.getMessage());
             e.printStackTrace();
         }
-        // search if the feature has been extracted and query is there.
-        if (feat != null && query != null) {
+        // search if the feature has been extracted and query is there, mode=hamming does not need one.
+        if (feat != null && (query != null || isHammingMode(params))) {
             doSearch(req, rsp, req.getSearcher(), paramField, paramRows, getFilterQueries(req), query, feat);
         }
     }
 
+    /**
+     * Searches for an image given by an URL with several features at once. The image is downloaded and decoded only
+     * once and the features are extracted concurrently on the re-ranking pool, then the fields are searched
+     * concurrently on the field search pool. The searches are not run on the re-ranking pool, as tasks waiting for the
+     * re-ranking tasks they submit to the same pool would block its threads for concurrent requests. The results of
+     * each field are returned in the same format as for a single field, within fields.
+     */
+    private void handleMultiFieldUrlSearch(SolrQueryRequest req, SolrQueryResponse rsp, UrlImage image,
+                                           String[] paramFields, int paramRows) throws IOException {
+        boolean useMetricSpaces = req.getParams().getBool("ms", DEFAULT_USE_METRIC_SPACES);
+        SolrIndexSearcher searcher = req.getSearcher();
+        List<Query> filterQueries = getFilterQueries(req);
+        SolrQueryResponse[] fieldRsps = new SolrQueryResponse[paramFields.length];
+        List<Callable<ExtractedFeatureCache.Entry>> extractions = new ArrayList<>(paramFields.length);
+        for (int f = 0; f < paramFields.length; f++) {
+            SolrQueryResponse fieldRsp = new SolrQueryResponse();
+            if (getDebug(rsp) != null) {
+                fieldRsp.add("debug", new SimpleOrderedMap<>());
+            }
+            fieldRsps[f] = fieldRsp;
+            String paramField = paramFields[f];
+            extractions.add(() -> extractFromUrl(image, getClassForUrlSearch(paramField), fieldRsp));
+        }
+        List<Callable<Void>> searches = new ArrayList<>(paramFields.length);
+        try {
+            List<Future<ExtractedFeatureCache.Entry>> extracted = reRankPool.invokeAll(extractions);
+            for (int f = 0; f < paramFields.length; f++) {
+                String paramField = paramFields[f];
+                SolrQueryResponse fieldRsp = fieldRsps[f];
+                try {
+                    ExtractedFeatureCache.Entry entry = extracted.get(f).get();
+                    // the term statistics are loaded here, they are not safe to be loaded concurrently.
+                    if (!useMetricSpaces && !isHammingMode(req.getParams())) {
+                        HashTermStatistics.addToStatistics(searcher, paramField);
+                    }
+                    searches.add(() -> {
+                        try {
+                            GlobalFeature feat = getClassForUrlSearch(paramField).getDeclaredConstructor().newInstance();
+                            feat.setByteArrayRepresentation(entry.getFeature());
+                            Query query = createUrlQuery(req, fieldRsp, paramField, feat, entry.getHashes());
+                            doSearch(req, fieldRsp, searcher, paramField, paramRows, filterQueries, query, feat);
+                        } catch (Exception e) {
+                            addFieldError(fieldRsp, paramField, image, e);
+                        }
+                        return null;
+                    });
+                } catch (ExecutionException e) {
+                    addFieldError(fieldRsp, paramField, image, e.getCause());
+                } catch (IOException e) {
+                    addFieldError(fieldRsp, paramField, image, e);
+                }
+            }
+            fieldSearchPool.invokeAll(searches);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Search has been interrupted.", e);
+        }
+        NamedList<Object> fields = new SimpleOrderedMap<>();
+        for (int f = 0; f < paramFields.length; f++) {
+            fields.add(paramFields[f], fieldRsps[f].getValues());
+        }
+        rsp.add("fields", fields);
+    }
+
+    private static void addFieldError(SolrQueryResponse fieldRsp, String paramField, UrlImage image, Throwable e) {
+        fieldRsp.add("Error", "Error searching " + paramField + " for the image from URL: "
+                + image.getUrl() + ": " + e.getMessage());
+    }
+
+    /**
+     * Searches for an image given by an URL with several fused features, eg. field=cl:0.5,eh:0.3,ce:0.2. The
+     * image is decoded once and the features are extracted concurrently, the results are fused, see
+     * {@link #doFusedSearch(SolrQueryRequest, SolrQueryResponse, SolrIndexSearcher, LinkedHashMap, GlobalFeature[], Query[], int)}.
+     */
+    private void handleFusedUrlSearch(SolrQueryRequest req, SolrQueryResponse rsp, UrlImage image,
+                                      LinkedHashMap<String, Double> fieldWeights) throws IOException {
+        if (isHammingMode(req.getParams())) {
+            rsp.add("Error", HAMMING_NOT_FUSED);
+            return;
+        }
+        SolrIndexSearcher searcher = req.getSearcher();
+        boolean useMetricSpaces = req.getParams().getBool("ms", DEFAULT_USE_METRIC_SPACES);
+        int paramRows = req.getParams().getInt("rows", defaultNumberOfResults);
+        List<String> paramFields = new ArrayList<>(fieldWeights.keySet());
+        // each task notes cache hits and timings in a response of its own, they are added to rsp afterwards.
+        SolrQueryResponse[] fieldRsps = new SolrQueryResponse[paramFields.size()];
+        List<Callable<ExtractedFeatureCache.Entry>> tasks = new ArrayList<>(paramFields.size());
+        for (int f = 0; f < fieldRsps.length; f++) {
+            SolrQueryResponse fieldRsp = new SolrQueryResponse();
+            if (getDebug(rsp) != null) {
+                fieldRsp.add("debug", new SimpleOrderedMap<>());
+            }
+            fieldRsps[f] = fieldRsp;
+            String paramField = paramFields.get(f);
+            tasks.add(() -> extractFromUrl(image, getClassForUrlSearch(paramField), fieldRsp));
+        }
+        GlobalFeature[] queryFeatures = new GlobalFeature[paramFields.size()];
+        Query[] queries = new Query[paramFields.size()];
+        try {
+            List<Future<ExtractedFeatureCache.Entry>> futures = reRankPool.invokeAll(tasks);
+            for (SolrQueryResponse fieldRsp : fieldRsps) {
+                addFieldValues(rsp, fieldRsp);
+            }
+            for (int f = 0; f < queryFeatures.length; f++) {
+                ExtractedFeatureCache.Entry extracted = futures.get(f).get();
+                String paramField = paramFields.get(f);
+                queryFeatures[f] = getClassForUrlSearch(paramField).getDeclaredConstructor().newInstance();
+                queryFeatures[f].setByteArrayRepresentation(extracted.getFeature());
+                if (!useMetricSpaces && !isHammingMode(req.getParams())) {
+                    HashTermStatistics.addToStatistics(searcher, paramField);
+                }
+                queries[f] = createUrlQuery(req, rsp, paramField, queryFeatures[f], extracted.getHashes());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Search has been interrupted.", e);
+        } catch (Exception e) {
+            Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+            rsp.add("Error", "Error reading image from URL: " + image.getUrl() + ": " + cause.getMessage());
+            return;
+        }
+        doFusedSearch(req, rsp, searcher, fieldWeights, queryFeatures, queries, paramRows);
+    }
+
+    /**
+     * Adds the values of a response of a single field, eg. FeatureCache, to the response, the timings of its debug
+     * section to the timings of the response.
+     */
+    private static void addFieldValues(SolrQueryResponse rsp, SolrQueryResponse fieldRsp) {
+        NamedList<?> values = fieldRsp.getValues();
+        for (int i = 0; i < values.size(); i++) {
+            if (!"debug".equals(values.getName(i))) {
+                rsp.add(values.getName(i), values.getVal(i));
+            }
+        }
+        NamedList<Object> debug = getDebug(rsp);
+        NamedList<Object> fieldDebug = getDebug(fieldRsp);
+        NamedList<?> fieldTiming = fieldDebug != null ? (NamedList<?>) fieldDebug.get("timing") : null;
+        if (debug != null && fieldTiming != null) {
+            NamedList<Object> timing = getTiming(debug);
+            for (int i = 0; i < fieldTiming.size(); i++) {
+                timing.add(fieldTiming.getName(i), fieldTiming.getVal(i));
+            }
+        }
+    }
+
+    /**
+     * @return the feature class of the hash field, ColorLayout for unknown fields.
+     */
+    @SuppressWarnings("unchecked")
+    private static Class<? extends GlobalFeature> getClassForUrlSearch(String paramField) {
+        Class<? extends GlobalFeature> featureClass = FeatureRegistry.getClassForHashField(paramField);
+        return featureClass != null ? featureClass : ColorLayout.class;
+    }
+
+    /**
+     * Creates the candidate query of an extracted feature, the hashes of the extraction are used unless neighbouring
+     * buckets are probed. The term statistics of the field have to be loaded already.
+     *
+     * @return the query or null with mode=hamming, which does not need one.
+     */
+    private Query createUrlQuery(SolrQueryRequest req, SolrQueryResponse rsp, String paramField, GlobalFeature feat,
+                                 int[] hashes) throws ParseException, IOException {
+        if (isHammingMode(req.getParams())) return null;
+        double numberOfQueryTerms = req.getParams().getDouble("accuracy", DEFAULT_NUMBER_OF_QUERY_TERMS);
+        boolean useMetricSpaces = req.getParams().getBool("ms", DEFAULT_USE_METRIC_SPACES);
+        long start = System.nanoTime();
+        Query query;
+        if (!useMetricSpaces) {
+            int probes = req.getParams().getInt("probes", 0);
+            query = probes > 0 ? createQuery(feat.getFeatureVector(), paramField, numberOfQueryTerms, probes)
+                    : createQuery(hashes, paramField, numberOfQueryTerms);
+        } else if (MetricSpaces.supportsFeature(feat)) {
+            // ----< Metric Spaces >-----
+            int queryLength = (int) StatsUtils.clamp(numberOfQueryTerms * MetricSpaces.getPostingListLength(feat), 3, MetricSpaces.getPostingListLength(feat));
+            String msQuery = MetricSpaces.generateBoostedQuery(feat, queryLength);
+            QueryParser qp = new QueryParser(paramField.replace("_ha", "_ms"), new WhitespaceAnalyzer());
+            query = qp.parse(msQuery);
+        } else {
+            rsp.add("Error", "Feature not supported by MetricSpaces: " + feat.getClass().getSimpleName());
+            query = new MatchAllDocsQuery();
+        }
+        record(rsp, "query", FeatureRegistry.getFeatureFieldName(paramField), null, start);
+        explainQuery(rsp, req.getSearcher(), paramField, query, null, useMetricSpaces ? null : hashes);
+        return query;
+    }
+
+    /**
+     * With debug=true adds the terms of the candidate query to the debug section, along with the hashes of the
+     * feature left out of the query.
+     *
+     * @param featureVector the feature vector the hashes are generated from, if they are not given.
+     * @param hashes        the hashes of the query feature, or null.
+     */
+    private void explainQuery(SolrQueryResponse rsp, SolrIndexSearcher searcher, String paramField, Query query,
+                              double[] featureVector, int[] hashes) throws IOException {
+        NamedList<Object> debug = getDebug(rsp);
+        if (debug == null) return;
+        if (hashes == null && featureVector != null) {
+            hashes = BitSampling.generateHashes(featureVector);
+        }
+        debug.add("query", SearchExplanation.explainQuery(searcher.getIndexReader(), paramField, query, hashes));
+    }
+
+    /**
+     * An image given by URL. It is downloaded, decoded and trimmed on first use only, so several features can be
+     * extracted from it, even concurrently.
+     */
+    private static class UrlImage {
+        private final String url;
+        private final LireMetrics metrics;
+        private BufferedImage image = null;
+
+        UrlImage(String url, LireMetrics metrics) {
+            this.url = url;
+            this.metrics = metrics;
+        }
+
+        String getUrl() {
+            return url;
+        }
+
+        synchronized BufferedImage get() throws IOException {
+            if (image == null) {
+                long start = System.nanoTime();
+                BufferedImage img = ImageIO.read(new URL(url).openStream());
+                if (img == null) {
+                    throw new IOException("Image format not supported.");
+                }
+                image = ImageUtils.trimWhiteSpace(img);
+                metrics.record("download", null, null, start);
+            }
+            return image;
+        }
+    }
+
     /**
      * Methods orders around the hashes already by docFreq removing those with docFreq == 0
      *
@@ -388,21 +1160,20 @@ public class LireRequestHandler extends RequestHandlerBase {
         if (!paramField.endsWith("_ha")) {
             paramField += "_ha";
         }
-        useMetricSpaces = req.getParams().getBool("ms", DEFAULT_USE_METRIC_SPACES);
+        boolean useMetricSpaces = req.getParams().getBool("ms", DEFAULT_USE_METRIC_SPACES);
         double accuracy = req.getParams().getDouble("accuracy", DEFAULT_NUMBER_OF_QUERY_TERMS);
         GlobalFeature feat;
         // wrapping the whole part in the try
         try {
+            int[] hashes = null;
             if (!paramField.startsWith("sf")) {
-                BufferedImage img = ImageIO.read(new URL(paramUrl).openStream());
-                img = ImageUtils.trimWhiteSpace(img);
                 // getting the right feature per field:
-                if (FeatureRegistry.getClassForHashField(paramField) == null) {
-                    feat = new ColorLayout();
-                } else {
-                    feat = (GlobalFeature) FeatureRegistry.getClassForHashField(paramField).newInstance();
-                }
-                feat.extract(img);
+                Class<? extends GlobalFeature> featureClass = FeatureRegistry.getClassForHashField(paramField) == null ?
+                        ColorLayout.class : FeatureRegistry.getClassForHashField(paramField);
+                ExtractedFeatureCache.Entry extracted = extractFromUrl(new UrlImage(paramUrl, metrics), featureClass, rsp);
+                feat = featureClass.getDeclaredConstructor().newInstance();
+                feat.setByteArrayRepresentation(extracted.getFeature());
+                hashes = extracted.getHashes();
             } else {
                 // we assume that this is a generic short feature, like it is used in context of deep features.
                 feat = new ShortFeatureCosineDistance();
@@ -418,7 +1189,9 @@ public class LireRequestHandler extends RequestHandlerBase {
             rsp.add("histogram", Base64.encodeBase64String(feat.getByteArrayRepresentation()));
             if (!useMetricSpaces || true) { // select the most distinguishing hashes and deliver them back.
                 HashTermStatistics.addToStatistics(req.getSearcher(), paramField);
-                int[] hashes = BitSampling.generateHashes(feat.getFeatureVector());
+                if (hashes == null) {
+                    hashes = BitSampling.generateHashes(feat.getFeatureVector());
+                }
                 List<String> hashStrings = orderHashes(hashes, paramField, false);
                 rsp.add("bs_list", hashStrings);
                 List<String> hashQuery = orderHashes(hashes, paramField, true);
@@ -465,25 +1238,31 @@ public class LireRequestHandler extends RequestHandlerBase {
             paramField += "_ha";
         }
         int paramRows = params.getInt("rows", defaultNumberOfResults);
-        numberOfQueryTerms = req.getParams().getDouble("accuracy", DEFAULT_NUMBER_OF_QUERY_TERMS);
-        numberOfCandidateResults = req.getParams().getInt("candidates", DEFAULT_NUMBER_OF_CANDIDATES);
-        useMetricSpaces = req.getParams().getBool("ms", DEFAULT_USE_METRIC_SPACES);
+        double numberOfQueryTerms = req.getParams().getDouble("accuracy", DEFAULT_NUMBER_OF_QUERY_TERMS);
+        boolean useMetricSpaces = req.getParams().getBool("ms", DEFAULT_USE_METRIC_SPACES);
 
         // query feature
         GlobalFeature queryFeature = (GlobalFeature)
                 FeatureRegistry.getClassForHashField(paramField).newInstance();
         queryFeature.setByteArrayRepresentation(featureVector);
+        if (isHammingMode(params)) {
+            // the candidates are found by their signatures, the hashes are not used.
+            doSearch(req, rsp, searcher, paramField, paramRows, getFilterQueries(req), null, queryFeature);
+            return;
+        }
 
         if (!useMetricSpaces) {
             HashTermStatistics.addToStatistics(req.getSearcher(), paramField); // caching the term statistics.
         }
 
+        Query query = null;
         QueryParser qp = null;
         String queryString = null;
         if (params.get("hashes") == null) {
             // we have to create the hashes first ...
             if (!useMetricSpaces) {
-
+                query = createQuery(queryFeature.getFeatureVector(), paramField, numberOfQueryTerms,
+                        params.getInt("probes", 0));
             } else if (MetricSpaces.supportsFeature(queryFeature)) {
                 int queryLength = (int) StatsUtils.clamp(numberOfQueryTerms * MetricSpaces.getPostingListLength(queryFeature),
                         3, MetricSpaces.getPostingListLength(queryFeature));
@@ -500,18 +1279,26 @@ public class LireRequestHandler extends RequestHandlerBase {
             }
         }
 
-
-        Query query = null;
-        try {
-            query = qp.parse(queryString);
-        } catch (ParseException e) {
-            e.printStackTrace();
+        if (query == null) {
+            try {
+                query = qp.parse(queryString);
+            } catch (ParseException e) {
+                e.printStackTrace();
+            }
         }
 
         // get results:
         doSearch(req, rsp, searcher, paramField, paramRows, getFilterQueries(req), query, queryFeature);
     }
 
+    /**
+     * @return the lireResultCache of the searcher or null if it is not configured, only the handler puts into it.
+     */
+    @SuppressWarnings("unchecked")
+    private static SolrCache<ResultCacheKey, BoundedDistanceHeap> getResultCache(SolrIndexSearcher searcher) {
+        return searcher.getCache(RESULT_CACHE_NAME);
+    }
+
     /**
      * Actual search implementation based on (i) hash based retrieval and (ii) feature based re-ranking.
      *
@@ -530,143 +1317,334 @@ public class LireRequestHandler extends RequestHandlerBase {
     private void doSearch(SolrQueryRequest req, SolrQueryResponse rsp, SolrIndexSearcher searcher, String hashFieldName,
                           int maximumHits, List<Query> filterQueries, Query query, GlobalFeature queryFeature)
             throws IOException, IllegalAccessException, InstantiationException {
-        // temp feature instance
-        GlobalFeature tmpFeature = queryFeature.getClass().newInstance();
-        // Taking the time of search for statistical purposes.
-        time = System.currentTimeMillis();
-
         String featureFieldName = FeatureRegistry.getFeatureFieldName(hashFieldName);
-//        BinaryDocValues binaryValues = MultiDocValues.getBinaryValues(searcher.getIndexReader(), featureFieldName);
-        BinaryDocValues binaryValues = new RandomAccessBinaryDocValues(() -> {
-            try {
-                return MultiDocValues.getBinaryValues(searcher.getIndexReader(), featureFieldName);
-            } catch (IOException e) {
-                throw new RuntimeException("BinaryDocValues problem.", e);
-            }
-        });
-
-        time = System.currentTimeMillis() - time;
-        rsp.add("DocValuesOpenTime", time + "");
-
-        Iterator<Integer> docIterator;
-        long numberOfResults = 0;
-        time = System.currentTimeMillis();
-        if (filterQueries != null) {
-            DocList docList = searcher.getDocList(query, filterQueries, Sort.RELEVANCE, 0, numberOfCandidateResults, 0);
-            numberOfResults = docList.size();
-            docIterator = docList.iterator();
+        // results of the same search on the same searcher are taken from the lireResultCache if it is configured.
+        // searches with debug=true are not taken from the cache, as they are run for the debug section.
+        SolrCache<ResultCacheKey, BoundedDistanceHeap> resultCache = req.getParams().getBool("cache", true)
+                && getDebug(rsp) == null ? getResultCache(searcher) : null;
+        ResultCacheKey cacheKey = resultCache != null ? new ResultCacheKey(req.getParams(), hashFieldName, queryFeature) : null;
+        String mode = getSearchMode(req.getParams(), query, featureFieldName, queryFeature);
+        BoundedDistanceHeap resultScoreDocs = cacheKey != null ? resultCache.get(cacheKey) : null;
+        if (resultScoreDocs != null) {
+            rsp.add("ResultCache", "hit");
         } else {
-            TopDocs docs = searcher.search(query, numberOfCandidateResults);
-            numberOfResults = docs.totalHits;
-            docIterator = new TopDocsIterator(docs);
+            resultScoreDocs = search(req, rsp, searcher, featureFieldName, maximumHits, filterQueries, query, queryFeature, mode);
+            if (cacheKey != null) {
+                resultCache.put(cacheKey, resultScoreDocs);
+            }
         }
-        time = System.currentTimeMillis() - time;
-        rsp.add("RawDocsCount", numberOfResults + "");
-        rsp.add("RawDocsSearchTime", time + "");
-        time = System.currentTimeMillis();
-        TreeSet<CachingSimpleResult> resultScoreDocs = getReRankedResults(
-                docIterator, binaryValues, queryFeature, tmpFeature,
-                maximumHits, searcher);
+        addResults(req, rsp, searcher, resultScoreDocs, featureFieldName, mode);
+    }
 
+    /**
+     * Loads the stored fields of the results and adds them to the response, the fields returned are given by fl. With
+     * stream=true the results are written one by one while the response is written, see {@link StreamingResults}.
+     *
+     * @param featureFieldName the feature field the metrics are recorded for
+     * @param mode             the mode the metrics are recorded for
+     */
+    private void addResults(SolrQueryRequest req, SolrQueryResponse rsp, SolrIndexSearcher searcher,
+                            BoundedDistanceHeap resultScoreDocs, String featureFieldName, String mode) throws IOException {
+        long start = System.nanoTime();
+        String fieldsRequested = req.getParams().get("fl");
+        if (req.getParams().getBool("stream", false)) {
+            // the documents are loaded while the response is written.
+            rsp.add("response", new StreamingResults(searcher, resultScoreDocs, fieldsRequested));
+            record(rsp, "response", featureFieldName, mode, start);
+            return;
+        }
         // Creating response ...
-        time = System.currentTimeMillis() - time;
-        rsp.add("ReRankSearchTime", time + "");
         // replaced with SolrDocumentList for consistency.
-//      LinkedList list = new LinkedList();
         SolrDocumentList list = new SolrDocumentList();
-        for (CachingSimpleResult result : resultScoreDocs) {
-            HashMap m = new HashMap(2);
+        Set<String> fieldsToLoad = StreamingResults.getFieldsToLoad(fieldsRequested);
+        long docsNanos = 0;
+        for (int i = 0; i < resultScoreDocs.size(); i++) {
+            // stored fields are loaded for the final results only.
+            int docId = resultScoreDocs.doc(i);
+            long docStart = System.nanoTime();
+            Document document = fieldsToLoad != null ? searcher.doc(docId, fieldsToLoad) : searcher.doc(docId);
+            docsNanos += System.nanoTime() - docStart;
+            CachingSimpleResult result = new CachingSimpleResult(resultScoreDocs.distance(i), document, docId);
+            HashMap<String, Object> m = new HashMap<>(2);
             m.put("d", result.getDistance());
             // add fields as requested:
-            if (req.getParams().get("fl") == null) {
-                m.put("id", result.getDocument().get("id"));
-                if (result.getDocument().get("title") != null) {
-                    m.put("title", result.getDocument().get("title"));
-                }
-            } else {
-                String fieldsRequested = req.getParams().get("fl");
-                if (fieldsRequested.contains("score")) {
-                    m.put("score", result.getDistance());
-                }
-                if (fieldsRequested.contains("*")) {
-                    // all fields
-                    for (IndexableField field : result.getDocument().getFields()) {
-                        String tmpField = field.name();
-
-                        if (result.getDocument().getFields(tmpField).length > 1) {
-                            m.put(result.getDocument().getFields(tmpField)[0].name(), result.getDocument().getValues(tmpField));
-                        } else if (result.getDocument().getFields(tmpField).length > 0) {
-                            m.put(result.getDocument().getFields(tmpField)[0].name(), result.getDocument().getFields(tmpField)[0].stringValue());
-                        }
-                    }
-                } else {
-                    StringTokenizer st;
-                    if (fieldsRequested.contains(",")) {
-                        st = new StringTokenizer(fieldsRequested, ",");
-                    } else {
-                        st = new StringTokenizer(fieldsRequested, " ");
-                    }
-                    while (st.hasMoreElements()) {
-                        String tmpField = st.nextToken();
-                        if (result.getDocument().getFields(tmpField).length > 1) {
-                            m.put(result.getDocument().getFields(tmpField)[0].name(), result.getDocument().getValues(tmpField));
-                        } else if (result.getDocument().getFields(tmpField).length > 0) {
-                            m.put(result.getDocument().getFields(tmpField)[0].name(), result.getDocument().getFields(tmpField)[0].stringValue());
-                        }
-                    }
-                }
-            }
-//            m.put(field, result.getDocument().get(field));
-//            m.put(field.replace("_ha", "_hi"), result.getDocument().getBinaryValue(field));
-            //list.add(m);
+            StreamingResults.putFields(result.getDocument(), result.getDistance(), fieldsRequested, m::put);
             list.add(new SolrDocument(m));
         }
 
         // Format results to be similar to regular response
         rsp.add("response", list);
-        //rsp.add("docs", list);
-        // rsp.add("Test-name", "Test-val");
-    }
-
-    private TreeSet<CachingSimpleResult> getReRankedResults(
-            Iterator<Integer> docIterator, BinaryDocValues binaryValues,
-            GlobalFeature queryFeature, GlobalFeature tmpFeature,
-            int maximumHits, IndexSearcher searcher) throws IOException {
-
-        TreeSet<CachingSimpleResult> resultScoreDocs = new TreeSet<>();
-        double maxDistance = -1f;
-        double tmpScore;
-        BytesRef bytesRef;
-        CachingSimpleResult tmpResult;
-        while (docIterator.hasNext()) {
-            // using DocValues to retrieve the field values ...
-            int doc = docIterator.next();
-
-//            bytesRef = binaryValues.get(doc);
-            bytesRef = getBytesRef(binaryValues, doc);
-            tmpFeature.setByteArrayRepresentation(bytesRef.bytes, bytesRef.offset, bytesRef.length);
-            // Getting the document from the index.
-            // This is the slow step based on the field compression of stored fields.
-//            tmpFeature.setByteArrayRepresentation(d.getBinaryValue(name).bytes, d.getBinaryValue(name).offset, d.getBinaryValue(name).length);
-            tmpScore = queryFeature.getDistance(tmpFeature);
-            if (resultScoreDocs.size() < maximumHits) {
-                resultScoreDocs.add(new CachingSimpleResult(tmpScore, searcher.doc(doc), doc));
-                maxDistance = resultScoreDocs.last().getDistance();
-            } else if (tmpScore < maxDistance) {
-                // if it is nearer to the sample than at least one of the current set:
-                // remove the last one ...
-                tmpResult = resultScoreDocs.last();
-                resultScoreDocs.remove(tmpResult);
-                // set it with new values and re-insert.
-                tmpResult.set(tmpScore, searcher.doc(doc), doc);
-                resultScoreDocs.add(tmpResult);
-                // and set our new distance border ...
-                maxDistance = resultScoreDocs.last().getDistance();
+        recordNanos(rsp, "docs", featureFieldName, mode, docsNanos);
+        record(rsp, "response", featureFieldName, mode, start);
+    }
+
+    /**
+     * The search run for the request, the mode parameter if the feature allows for it. A query for all documents, ie.
+     * an accuracy of 0.9 or more, is answered by the exact scan if the feature columns are enabled.
+     *
+     * @return exact, hnsw, hamming, adaptive or hash, the mode the metrics are recorded for.
+     */
+    private String getSearchMode(SolrParams params, Query query, String featureFieldName, GlobalFeature queryFeature) {
+        String mode = params.get("mode", query instanceof MatchAllDocsQuery && useFeatureColumns ? "exact" : null);
+        if (("exact".equals(mode) || "hnsw".equals(mode)) && ExactSearch.isSupported(featureFieldName, queryFeature)) {
+            return mode;
+        } else if (isHammingMode(params)) {
+            return "hamming";
+        } else if (params.getBool("adaptive", false) && !params.getBool("pq", false)) {
+            return "adaptive";
+        }
+        return "hash";
+    }
+
+    /**
+     * Finds the nearest documents with the search given by {@link #getSearchMode}, the hash based one by default.
+     *
+     * @return the maximumHits nearest documents, sorted by ascending distance.
+     */
+    private BoundedDistanceHeap search(SolrQueryRequest req, SolrQueryResponse rsp, SolrIndexSearcher searcher,
+                                       String featureFieldName, int maximumHits, List<Query> filterQueries,
+                                       Query query, GlobalFeature queryFeature, String mode) throws IOException {
+        String requestedMode = req.getParams().get("mode");
+        if (("exact".equals(requestedMode) || "hnsw".equals(requestedMode)) && !requestedMode.equals(mode)) {
+            rsp.add("Note", "mode=" + requestedMode + " is not supported for " + featureFieldName + ", using the hash based search.");
+        }
+        BoundedDistanceHeap resultScoreDocs;
+        long start = System.nanoTime();
+        if ("exact".equals(mode)) {
+            Bits filter = filterQueries != null ? toBits(searcher.getDocSet(filterQueries), searcher.maxDoc()) : null;
+            resultScoreDocs = ExactSearch.search(searcher, featureFieldName, queryFeature, maximumHits, filter,
+                    columnDirectory, reRankPool);
+            rsp.add("ExactSearchTime", record(rsp, "search", featureFieldName, mode, start) + "");
+        } else if ("hnsw".equals(mode)) {
+            int ef = Math.max(maximumHits, req.getParams().getInt("ef", DEFAULT_EF));
+            Bits filter = filterQueries != null ? toBits(searcher.getDocSet(filterQueries), searcher.maxDoc()) : null;
+            resultScoreDocs = HnswGraphStore.search(searcher, featureFieldName, queryFeature, maximumHits, ef,
+                    filter, columnDirectory, reRankPool);
+            rsp.add("HnswSearchTime", record(rsp, "search", featureFieldName, mode, start) + "");
+        } else {
+            resultScoreDocs = searchCandidates(req, rsp, searcher, featureFieldName, maximumHits, filterQueries, query, queryFeature);
+        }
+        return resultScoreDocs;
+    }
+
+    /**
+     * @return true if the candidates are the documents nearest by the Hamming distance of their BitSampling signatures,
+     * no hash query is needed then.
+     */
+    private static boolean isHammingMode(SolrParams params) {
+        return "hamming".equals(params.get("mode"));
+    }
+
+    private static Bits toBits(DocSet docSet, int maxDoc) {
+        return new Bits() {
+            @Override
+            public boolean get(int index) {
+                return docSet.exists(index);
             }
+
+            @Override
+            public int length() {
+                return maxDoc;
+            }
+        };
+    }
+
+    /**
+     * Retrieves the candidates with the hash based query and re-ranks them by the actual feature distance.
+     *
+     * @return the maximumHits nearest candidates, sorted by ascending distance.
+     */
+    private BoundedDistanceHeap searchCandidates(SolrQueryRequest req, SolrQueryResponse rsp, SolrIndexSearcher searcher,
+                                                 String featureFieldName, int maximumHits, List<Query> filterQueries,
+                                                 Query query, GlobalFeature queryFeature) throws IOException {
+        int numberOfCandidateResults = req.getParams().getInt("candidates", DEFAULT_NUMBER_OF_CANDIDATES);
+        int nprobe = req.getParams().getInt("nprobe", 0);
+        if (nprobe > 0 && !isHammingMode(req.getParams())) {
+            String featureCode = FeatureRegistry.getCodeForClass(queryFeature.getClass());
+            CoarseQuantizer coarseQuantizer = featureCode != null ? clusters.get(featureCode) : null;
+            if (coarseQuantizer != null) {
+                query = createClusterQuery(coarseQuantizer, featureCode, queryFeature, nprobe);
+            } else {
+                rsp.add("Note", "No coarse quantizer for " + featureFieldName + ", using the hash based candidates.");
+            }
+        }
+        if (req.getParams().getBool("adaptive", false)) {
+            if (!isHammingMode(req.getParams()) && !req.getParams().getBool("pq", false)) {
+                return searchAdaptive(req, rsp, searcher, featureFieldName, maximumHits, filterQueries, query, queryFeature);
+            }
+            rsp.add("Note", "adaptive=true is not supported with mode=hamming or pq=true, using a fixed number of candidates.");
+        }
+        // Taking the time of search for statistical purposes.
+        String mode = isHammingMode(req.getParams()) ? "hamming" : "hash";
+        Iterator<Integer> docIterator;
+        long numberOfResults = 0;
+        long start = System.nanoTime();
+        long time;
+        if ("hamming".equals(mode)) {
+            // the candidates nearest by the Hamming distance of their signatures instead of the hash query.
+            String signatureField = FeatureRegistry.codeToSignatureField(FeatureRegistry.getCodeForClass(queryFeature.getClass()));
+            Bits filter = filterQueries != null ? toBits(searcher.getDocSet(filterQueries), searcher.maxDoc()) : null;
+            BoundedDistanceHeap scanned = reRanker.scanSignatures(searcher, signatureField,
+                    BitSamplingSignature.generateSignature(queryFeature.getFeatureVector()), numberOfCandidateResults, filter);
+            docIterator = scanned.docIterator();
+            time = record(rsp, "candidates", featureFieldName, mode, start);
+            metrics.count("candidates", featureFieldName, mode, scanned.size());
+            rsp.add("HammingDocsCount", scanned.size() + "");
+            rsp.add("HammingSearchTime", time + "");
+            if (scanned.size() == 0) {
+                rsp.add("Note", "No signatures found in " + signatureField + ", index them with the ParallelSolrIndexer option -s.");
+            }
+        } else {
+            if (filterQueries != null) {
+                DocList docList = searcher.getDocList(query, filterQueries, Sort.RELEVANCE, 0, numberOfCandidateResults, 0);
+                numberOfResults = docList.size();
+                docIterator = docList.iterator();
+            } else {
+                TopDocs docs = searcher.search(query, numberOfCandidateResults);
+                numberOfResults = docs.totalHits;
+                docIterator = new TopDocsIterator(docs);
+            }
+            time = record(rsp, "candidates", featureFieldName, mode, start);
+            metrics.count("candidates", featureFieldName, mode, numberOfResults);
+            rsp.add("RawDocsCount", numberOfResults + "");
+            rsp.add("RawDocsSearchTime", time + "");
+        }
+        NamedList<Object> debug = getDebug(rsp);
+        int[] candidates = null;
+        if (debug != null) {
+            // the candidates are kept in doc id order for the statistics of the re-ranking.
+            candidates = new int[16];
+            int size = 0;
+            while (docIterator.hasNext()) {
+                if (size == candidates.length) candidates = ArrayUtil.grow(candidates);
+                candidates[size++] = docIterator.next();
+            }
+            candidates = Arrays.copyOf(candidates, size);
+            Arrays.sort(candidates);
+            docIterator = Arrays.stream(candidates).iterator();
+            debug.add("segments", SearchExplanation.explainCandidates(candidates, searcher.getIndexReader().leaves()));
+        }
+        if (req.getParams().getBool("pq", false)) {
+            String featureCode = FeatureRegistry.getCodeForClass(queryFeature.getClass());
+            ProductQuantizer quantizer = featureCode != null ? quantizers.get(featureCode) : null;
+            if (quantizer != null) {
+                // only the candidates nearest by their quantization codes are re-ranked with the actual features.
+                start = System.nanoTime();
+                int pqRerank = Math.max(maximumHits, req.getParams().getInt("pqRerank", DEFAULT_PQ_RERANK));
+                BoundedDistanceHeap preSelected = reRanker.preSelect(docIterator,
+                        FeatureRegistry.codeToQuantizedField(featureCode),
+                        quantizer.distanceTable(VectorDistance.toVector(queryFeature)), pqRerank, searcher);
+                docIterator = preSelected.docIterator();
+                time = record(rsp, "pq", featureFieldName, mode, start);
+                rsp.add("PQDocsCount", preSelected.size() + "");
+                rsp.add("PQSearchTime", time + "");
+            } else {
+                rsp.add("Note", "No product quantizer for " + featureFieldName + ", re-ranking all candidates.");
+            }
+        }
+        start = System.nanoTime();
+        // DocValues are opened per segment within the re-ranking tasks.
+        BoundedDistanceHeap resultScoreDocs = reRanker.reRank(
+                docIterator, featureFieldName, queryFeature, maximumHits, searcher);
+
+        time = record(rsp, "rerank", featureFieldName, mode, start);
+        rsp.add("ReRankSearchTime", time + "");
+        if (debug != null) {
+            debug.add("rerank", SearchExplanation.explainReRank(
+                    reRanker.distances(candidates, featureFieldName, queryFeature, searcher), maximumHits));
         }
         return resultScoreDocs;
     }
 
+    /**
+     * Retrieves and re-ranks the candidates chunk by chunk until the results are stable, see {@link AdaptiveSearch}.
+     * The candidates parameter is the maximum number of candidates then, chunk the size of the first chunk and stable
+     * the number of candidates without a change of the results the search stops after.
+     *
+     * @return the maximumHits nearest candidates, sorted by ascending distance.
+     */
+    private BoundedDistanceHeap searchAdaptive(SolrQueryRequest req, SolrQueryResponse rsp, SolrIndexSearcher searcher,
+                                               String featureFieldName, int maximumHits, List<Query> filterQueries,
+                                               Query query, GlobalFeature queryFeature) throws IOException {
+        int numberOfCandidateResults = req.getParams().getInt("candidates", DEFAULT_NUMBER_OF_CANDIDATES);
+        if (filterQueries != null) {
+            BooleanQuery.Builder queryBuilder = new BooleanQuery.Builder();
+            queryBuilder.add(query, BooleanClause.Occur.MUST);
+            for (Query filterQuery : filterQueries) {
+                queryBuilder.add(filterQuery, BooleanClause.Occur.FILTER);
+            }
+            query = queryBuilder.build();
+        }
+        AdaptiveSearch adaptiveSearch = new AdaptiveSearch(reRanker,
+                req.getParams().getInt("chunk", AdaptiveSearch.DEFAULT_CHUNK), numberOfCandidateResults,
+                req.getParams().getInt("stable", AdaptiveSearch.DEFAULT_STABLE));
+        NamedList<Object> debug = getDebug(rsp);
+        BoundedDistanceHeap resultScoreDocs = adaptiveSearch.search(searcher, query, featureFieldName, queryFeature,
+                maximumHits, debug != null);
+        long time = recordNanos(rsp, "candidates", featureFieldName, "adaptive", adaptiveSearch.getSearchNanos());
+        metrics.count("candidates", featureFieldName, "adaptive", adaptiveSearch.getCandidates());
+        rsp.add("RawDocsCount", adaptiveSearch.getCandidates() + "");
+        rsp.add("RawDocsSearchTime", time + "");
+        rsp.add("AdaptiveChunks", adaptiveSearch.getChunks() + "");
+        rsp.add("AdaptiveStop", adaptiveSearch.getStopReason());
+        time = recordNanos(rsp, "rerank", featureFieldName, "adaptive", adaptiveSearch.getReRankNanos());
+        rsp.add("ReRankSearchTime", time + "");
+        if (debug != null) {
+            int[] candidates = adaptiveSearch.getFetched();
+            Arrays.sort(candidates);
+            debug.add("segments", SearchExplanation.explainCandidates(candidates, searcher.getIndexReader().leaves()));
+            debug.add("rerank", SearchExplanation.explainReRank(
+                    reRanker.distances(candidates, featureFieldName, queryFeature, searcher), maximumHits));
+        }
+        return resultScoreDocs;
+    }
+
+    /**
+     * Records the time of a phase in the metrics and, with debug=true, in the timing of the debug section.
+     *
+     * @param start the start of the phase by {@link System#nanoTime()}
+     * @return the time of the phase in milliseconds.
+     */
+    private long record(SolrQueryResponse rsp, String phase, String field, String mode, long start) {
+        return recordNanos(rsp, phase, field, mode, System.nanoTime() - start);
+    }
+
+    /**
+     * Records the time of a phase measured elsewhere, like {@link #record(SolrQueryResponse, String, String, String, long)}.
+     *
+     * @param nanos the time of the phase in nanoseconds
+     * @return the time of the phase in milliseconds.
+     */
+    private long recordNanos(SolrQueryResponse rsp, String phase, String field, String mode, long nanos) {
+        metrics.update(phase, field, mode, nanos);
+        NamedList<Object> debug = getDebug(rsp);
+        if (debug != null) {
+            getTiming(debug).add(phase, nanos / 1000000d);
+        }
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    /**
+     * @return the timing of the debug section, it is created on first use.
+     */
+    @SuppressWarnings("unchecked")
+    private static NamedList<Object> getTiming(NamedList<Object> debug) {
+        NamedList<Object> timing = (NamedList<Object>) debug.get("timing");
+        if (timing == null) {
+            timing = new SimpleOrderedMap<>();
+            debug.add("timing", timing);
+        }
+        return timing;
+    }
+
+    /**
+     * @return the debug section of the response, null if debug is not set.
+     */
+    @SuppressWarnings("unchecked")
+    private static NamedList<Object> getDebug(SolrQueryResponse rsp) {
+        return (NamedList<Object>) rsp.getValues().get("debug");
+    }
+
     @Override
     public String getDescription() {
         return "LIRE Request Handler to add images to an index and search them. Search images by id, by url and by extracted features.";
@@ -714,6 +1692,78 @@ public class LireRequestHandler extends RequestHandlerBase {
         return query;
     }
 
+    /**
+     * Makes a Boolean query out of the BitSampling hashes of a feature like {@link #createQuery(int[], String, double)}.
+     * With probes &gt; 0 the hashes of the neighbouring buckets of the selected hashes are added as well, the most
+     * likely ones by the projection margins of the feature first and with a lower boost, see {@link BitSamplingProbes}.
+     *
+     * @param featureVector the feature vector of the query
+     * @param paramField    the hash field, eg. cl_ha
+     * @param size          in [0.1, 1], the share of the hashes to use.
+     * @param probes        the number of additional bucket hashes, 0 for none.
+     * @return the query
+     */
+    private BooleanQuery createQuery(double[] featureVector, String paramField, double size, int probes) {
+        double[][][] functions = HashingMetricSpacesManager.getBitSamplingFunctions();
+        if (probes <= 0 || functions == null) {
+            return createQuery(BitSampling.generateHashes(featureVector), paramField, size);
+        }
+        BitSamplingProbes bitSamplingProbes = new BitSamplingProbes(featureVector, functions);
+        int[] hashes = bitSamplingProbes.getHashes();
+        // the bundles ordered by the docFreq of their hash, just like orderHashes does.
+        List<Integer> bundles = new ArrayList<>(hashes.length);
+        for (int i = 0; i < hashes.length; i++) bundles.add(i);
+        bundles.sort(Comparator.comparingInt(b -> HashTermStatistics.docFreq(paramField, Integer.toHexString(hashes[b]))));
+        while (HashTermStatistics.docFreq(paramField, Integer.toHexString(hashes[bundles.get(0)])) < 1 && bundles.size() > 3) {
+            bundles.remove(0);
+        }
+        size = Math.max(0.1, Math.min(size, 1d)); // clamp size.
+        int numHashes = (int) Math.max(3, Math.min(bundles.size(), Math.floor(hashes.length * size)));
+
+        LinkedHashMap<String, Float> terms = new LinkedHashMap<>();
+        List<BitSamplingProbes.Probe> candidates = new ArrayList<>();
+        for (int i = 0; i < Math.min(numHashes, bundles.size()); i++) {
+            terms.put(Integer.toHexString(hashes[bundles.get(i)]), 1f);
+            candidates.addAll(bitSamplingProbes.probes(bundles.get(i), probes));
+        }
+        candidates.sort(Comparator.comparingDouble(BitSamplingProbes.Probe::getScore));
+        for (int i = 0; i < Math.min(probes, candidates.size()); i++) {
+            String term = Integer.toHexString(candidates.get(i).getHash());
+            if (HashTermStatistics.docFreq(paramField, term) > 0) {
+                terms.merge(term, (float) bitSamplingProbes.weight(candidates.get(i).getScore()), Math::max);
+            }
+        }
+
+        BooleanQuery.Builder queryBuilder = new BooleanQuery.Builder();
+        for (Map.Entry<String, Float> term : terms.entrySet()) {
+            Query termQuery = new TermQuery(new Term(paramField, term.getKey()));
+            if (term.getValue() < 1f) termQuery = new BoostQuery(termQuery, term.getValue());
+            queryBuilder.add(new BooleanClause(termQuery, BooleanClause.Occur.SHOULD));
+        }
+        return queryBuilder.build();
+    }
+
+    /**
+     * Makes a query for the documents of the nprobe clusters nearest to the query feature. Nearer clusters get a
+     * higher constant score, so if there are more than the number of candidates those of the far clusters are dropped.
+     *
+     * @param quantizer    the coarse quantizer of the feature
+     * @param featureCode  the code of the feature, eg. cl
+     * @param queryFeature the query
+     * @param nprobe       the number of clusters, limited by the maximum number of clauses of a BooleanQuery.
+     * @return the query
+     */
+    private BooleanQuery createClusterQuery(CoarseQuantizer quantizer, String featureCode, GlobalFeature queryFeature, int nprobe) {
+        int[] nearest = quantizer.nearest(VectorDistance.toVector(queryFeature), Math.min(nprobe, BooleanQuery.getMaxClauseCount()));
+        String clusterField = FeatureRegistry.codeToClusterField(featureCode);
+        BooleanQuery.Builder queryBuilder = new BooleanQuery.Builder();
+        for (int i = 0; i < nearest.length; i++) {
+            Query clusterQuery = new ConstantScoreQuery(new TermQuery(new Term(clusterField, Integer.toString(nearest[i]))));
+            queryBuilder.add(new BooleanClause(new BoostQuery(clusterQuery, nearest.length - i), BooleanClause.Occur.SHOULD));
+        }
+        return queryBuilder.build();
+    }
+
     /**
      * Sorts the hashes to put those first, that do not show up in a large number of documents
      * while deleting those that are not in the index at all. Meaning: terms sorted by docFreq ascending, removing
@@ -773,13 +1823,23 @@ public class LireRequestHandler extends RequestHandlerBase {
         return termFilter;
     }
 
-    private BytesRef getBytesRef(BinaryDocValues bdv, int docId)
+    /**
+     * Reads the feature of a single document from the DocValues of its segment.
+     *
+     * @param searcher         the searcher
+     * @param featureFieldName the name of the DocValues field, eg. cl_hi
+     * @param docId            the global document id
+     * @return the bytes of the feature or null if the document does not have the field.
+     * @throws IOException
+     */
+    private BytesRef getFeatureBytes(SolrIndexSearcher searcher, String featureFieldName, int docId)
             throws IOException {
-        if (bdv != null && bdv.advance(docId) == docId) {
-//        if (bdv != null && bdv.docID() < docId && bdv.advance(docId) == docId) {
-//        if (bdv != null && bdv.advanceExact(docId)) {
+        List<LeafReaderContext> leaves = searcher.getIndexReader().leaves();
+        LeafReaderContext leaf = leaves.get(ReaderUtil.subIndex(docId, leaves));
+        BinaryDocValues bdv = DocValues.getBinary(leaf.reader(), featureFieldName);
+        if (bdv.advanceExact(docId - leaf.docBase)) {
             return bdv.binaryValue();
         }
-        return new BytesRef(BytesRef.EMPTY_BYTES);
+        return null;
     }
 }
@@ -56,6 +56,10 @@ import org.apache.lucene.util.BytesRefBuilder;
 
 import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
 import net.semanticmetadata.lire.imageanalysis.features.global.ColorLayout;
+import net.semanticmetadata.lire.solr.columns.FeatureColumn;
+import net.semanticmetadata.lire.solr.columns.FeatureColumnStore;
+import net.semanticmetadata.lire.solr.columns.VectorDistance;
+import net.semanticmetadata.lire.solr.distance.BytesDistance;
 import net.semanticmetadata.lire.solr.tools.RandomAccessBinaryDocValues;
 
 /**
@@ -195,6 +199,13 @@ public class LireValueSource extends ValueSource {
         if (fieldInfo != null && fieldInfo.getDocValuesType() == DocValuesType.BINARY) {
 //            final BinaryDocValues binaryValues = DocValues.getBinary(readerContext.reader(), field);
 //            final Bits docsWithField = DocValues.getDocsWithField(readerContext.reader(), field);
+            // decoded features from a memory mapped column, if it has been built already.
+            final FeatureColumn column = FeatureColumnStore.getColumn(readerContext.reader(), field);
+            final VectorDistance vectorDistance = column != null ? VectorDistance.forQuery(feature) : null;
+            final float[] vector = vectorDistance != null && vectorDistance.getDimensions() == column.getDimensions()
+                    ? new float[column.getDimensions()] : null;
+            // distance on the serialized features, without decoding every one of them.
+            final BytesDistance bytesDistance = FeatureRegistry.getBytesDistance(field, feature);
             final BinaryDocValues binaryValues = new RandomAccessBinaryDocValues(() -> {
                 try {
                     return DocValues.getBinary(readerContext.reader(), field);
@@ -262,8 +273,13 @@ public class LireValueSource extends ValueSource {
 
                 @Override
                 public double doubleVal(int doc) throws IOException {
+                    if (vector != null) {
+                        return column.read(doc, vector) ? vectorDistance.distance(vector) : maxDistance;
+                    }
                     BytesRef bytesRef = getBytesRef(binaryValues, doc);
-                    if (bytesRef.length > 0) {
+                    if (bytesRef.length > 0 && bytesDistance != null) {
+                        return bytesDistance.distance(bytesRef.bytes, bytesRef.offset, bytesRef.length);
+                    } else if (bytesRef.length > 0) {
                         tmpFeature.setByteArrayRepresentation(
                                 bytesRef.bytes,
                                 bytesRef.offset,
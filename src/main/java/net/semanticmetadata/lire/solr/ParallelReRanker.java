@@ -0,0 +1,747 @@
+package net.semanticmetadata.lire.solr;
+
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import net.semanticmetadata.lire.solr.columns.FeatureColumn;
+import net.semanticmetadata.lire.solr.columns.FeatureColumnStore;
+import net.semanticmetadata.lire.solr.columns.VectorDistance;
+import net.semanticmetadata.lire.solr.distance.BytesDistance;
+import net.semanticmetadata.lire.solr.quantization.ProductQuantizer;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Re-ranks the candidates of a hash based query on multiple threads. Candidates are grouped by the index segment
+ * (leaf) they belong to, each leaf is cut into chunks of at least {@link #MIN_CANDIDATES_PER_TASK} documents and every
+ * chunk keeps its own top k results. The partial results are merged at the end, so a single request can make use of
+ * all the cores of the machine instead of just one.
+ * <p>
+ * Within a leaf the candidates are sorted by document id, so the DocValues of the segment are read sequentially with
+ * forward only {@link BinaryDocValues#advanceExact(int)} instead of seeking back and forth in score order.
+ * <p>
+ * Only document ids and distances are kept, stored fields are to be loaded by the caller for the final results.
+ * <p>
+ * If a column directory is set, the decoded features are read from memory mapped {@link FeatureColumn}s instead,
+ * which saves the deserialization of every candidate.
+ */
+public class ParallelReRanker {
+    /**
+     * Number of candidates a single task should at least work on. Smaller chunks do not pay off the overhead of
+     * opening the DocValues and copying the query feature.
+     */
+    public static final int MIN_CANDIDATES_PER_TASK = 1024;
+    /**
+     * Number of documents a task of a full scan should at least work on.
+     */
+    private static final int MIN_DOCS_PER_SCAN_TASK = 1 << 15;
+    private static final BytesRef EMPTY_BYTES = new BytesRef(BytesRef.EMPTY_BYTES);
+
+    private final ForkJoinPool pool;
+    private volatile File columnDirectory = null;
+
+    /**
+     * @param pool the (bounded) pool the re-ranking tasks are submitted to.
+     */
+    public ParallelReRanker(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Enables the use of {@link FeatureColumn}s, missing columns are built on first use.
+     *
+     * @param columnDirectory the directory the column files are kept in, null to use the BinaryDocValues only.
+     */
+    public void setColumnDirectory(File columnDirectory) {
+        this.columnDirectory = columnDirectory;
+    }
+
+    /**
+     * Computes the distance of all the candidates to the query feature and returns the maximumHits nearest ones.
+     *
+     * @param docIterator      the candidates, global document ids of the searcher in any order.
+     * @param featureFieldName the DocValues field holding the feature, eg. cl_hi
+     * @param queryFeature     the feature of the query, it is not modified.
+     * @param maximumHits      the number of results to be returned.
+     * @param searcher         the searcher the candidates have been retrieved from.
+     * @return the nearest maximumHits candidates, sorted by ascending distance.
+     * @throws IOException
+     */
+    public BoundedDistanceHeap reRank(Iterator<Integer> docIterator, String featureFieldName,
+                                               GlobalFeature queryFeature, int maximumHits,
+                                               IndexSearcher searcher) throws IOException {
+        byte[] queryData = queryFeature.getByteArrayRepresentation();
+        File columnDirectory = this.columnDirectory;
+        return run(docIterator, searcher, maximumHits, (context, docs, start, end) ->
+                new LeafTask(context, docs, start, end, featureFieldName, queryFeature.getClass(), queryData,
+                        maximumHits, columnDirectory));
+    }
+
+    /**
+     * Picks the maximumHits candidates nearest to the query by the asymmetric distance of their product quantization
+     * codes. Reading a code of a few bytes and summing up table entries is much cheaper than the distance of the
+     * actual features, so a lot more candidates can be looked at in the same time. The result is meant to be
+     * re-ranked with {@link #reRank(Iterator, String, GlobalFeature, int, IndexSearcher)}.
+     *
+     * @param docIterator        the candidates, global document ids of the searcher in any order.
+     * @param quantizedFieldName the DocValues field holding the codes, eg. cl_pq
+     * @param distanceTable      the table of the query, see {@link ProductQuantizer#distanceTable(double[])}
+     * @param maximumHits        the number of candidates to be returned.
+     * @param searcher           the searcher the candidates have been retrieved from.
+     * @return the nearest maximumHits candidates, sorted by ascending approximated distance.
+     * @throws IOException
+     */
+    public BoundedDistanceHeap preSelect(Iterator<Integer> docIterator, String quantizedFieldName,
+                                         float[] distanceTable, int maximumHits,
+                                         IndexSearcher searcher) throws IOException {
+        return run(docIterator, searcher, maximumHits, (context, docs, start, end) ->
+                new QuantizedLeafTask(context, docs, start, end, quantizedFieldName, distanceTable, maximumHits));
+    }
+
+    /**
+     * Scans the BitSampling signatures of all documents and picks the maximumHits ones with the smallest Hamming
+     * distance to the query. This replaces the hash based query, the result is meant to be re-ranked with
+     * {@link #reRank(Iterator, String, GlobalFeature, int, IndexSearcher)}. Documents without a signature are skipped.
+     *
+     * @param searcher           the searcher
+     * @param signatureFieldName the DocValues field holding the signatures, eg. cl_bs
+     * @param querySignature     the signature of the query, see {@link BitSamplingSignature}
+     * @param maximumHits        the number of candidates to be returned.
+     * @param filter             the documents allowed as results by global document id, eg. of the filter queries, null for all.
+     * @return the nearest maximumHits live documents, sorted by ascending Hamming distance.
+     * @throws IOException
+     */
+    public BoundedDistanceHeap scanSignatures(IndexSearcher searcher, String signatureFieldName, long[] querySignature,
+                                              int maximumHits, Bits filter) throws IOException {
+        List<Callable<BoundedDistanceHeap>> tasks = new ArrayList<>();
+        for (LeafReaderContext context : searcher.getIndexReader().leaves()) {
+            int maxDoc = context.reader().maxDoc();
+            int numberOfChunks = Math.max(1, Math.min(pool.getParallelism(), maxDoc / MIN_DOCS_PER_SCAN_TASK));
+            int chunkSize = (maxDoc + numberOfChunks - 1) / numberOfChunks;
+            for (int start = 0; start < maxDoc; start += chunkSize) {
+                tasks.add(new SignatureScanTask(context, start, Math.min(start + chunkSize, maxDoc),
+                        signatureFieldName, querySignature, maximumHits, filter));
+            }
+        }
+        return merge(tasks, maximumHits);
+    }
+
+    /**
+     * Re-ranks the candidates of many queries of the same feature at once. The (document, query) pairs of all the
+     * queries are sorted by document, so the value of a candidate shared by several queries is read and decoded only
+     * once in a single doc id ordered pass and then compared to each of these queries.
+     *
+     * @param candidates       the candidates of each query, global document ids of the searcher in any order.
+     * @param featureFieldName the DocValues field holding the feature, eg. cl_hi
+     * @param queryFeatures    the query features, all of the same class, they are not modified.
+     * @param maximumHits      the number of results to be returned per query.
+     * @param searcher         the searcher the candidates have been retrieved from.
+     * @return the nearest maximumHits candidates of each query, sorted by ascending distance.
+     * @throws IOException
+     */
+    public BoundedDistanceHeap[] reRankBatch(int[][] candidates, String featureFieldName, GlobalFeature[] queryFeatures,
+                                             int maximumHits, IndexSearcher searcher) throws IOException {
+        int size = 0;
+        for (int[] docs : candidates) size += docs.length;
+        // document in the upper, query in the lower half, sorting orders by document first.
+        long[] pairs = new long[size];
+        size = 0;
+        for (int q = 0; q < candidates.length; q++) {
+            for (int doc : candidates[q]) pairs[size++] = ((long) doc << 32) | q;
+        }
+        Arrays.sort(pairs);
+        byte[][] queryData = new byte[queryFeatures.length][];
+        for (int q = 0; q < queryFeatures.length; q++) {
+            queryData[q] = queryFeatures[q].getByteArrayRepresentation();
+        }
+        File columnDirectory = this.columnDirectory;
+        List<Callable<BoundedDistanceHeap[]>> tasks = new ArrayList<>();
+        int start = 0;
+        for (LeafReaderContext context : searcher.getIndexReader().leaves()) {
+            long leafEnd = (long) (context.docBase + context.reader().maxDoc()) << 32;
+            int end = start;
+            while (end < size && pairs[end] < leafEnd) end++;
+            int numberOfChunks = Math.max(1, Math.min(pool.getParallelism(), (end - start) / MIN_CANDIDATES_PER_TASK));
+            int chunkSize = (end - start + numberOfChunks - 1) / numberOfChunks;
+            for (int chunkStart = start; chunkStart < end; chunkStart += chunkSize) {
+                tasks.add(new BatchLeafTask(context, pairs, chunkStart, Math.min(chunkStart + chunkSize, end),
+                        featureFieldName, queryFeatures[0].getClass(), queryData, maximumHits, columnDirectory));
+            }
+            start = end;
+        }
+        BoundedDistanceHeap[] results = new BoundedDistanceHeap[queryFeatures.length];
+        for (int q = 0; q < results.length; q++) {
+            results[q] = new BoundedDistanceHeap(maximumHits);
+        }
+        for (BoundedDistanceHeap[] partial : invokeAll(tasks)) {
+            for (int q = 0; q < results.length; q++) {
+                if (partial[q] != null) results[q].addAll(partial[q]);
+            }
+        }
+        for (BoundedDistanceHeap result : results) {
+            result.sort();
+        }
+        return results;
+    }
+
+    /**
+     * Late fusion of several features: the distances of the candidates to all the query features are computed in a
+     * single doc id ordered pass, reading the DocValues (or columns) of all the fields document by document. The
+     * distances of each feature are normalised to [0, 1] by their minimum and maximum among the candidates, a
+     * candidate without a value for a feature gets the maximum of 1. Candidates are ranked by the weighted sum of the
+     * normalised distances.
+     *
+     * @param docIterator       the candidates, global document ids of the searcher in any order. Duplicates are
+     *                          allowed, eg. from the union of the hash queries of the features.
+     * @param featureFieldNames the DocValues fields holding the features, eg. cl_hi and eh_hi
+     * @param queryFeatures     the query feature for each field, they are not modified.
+     * @param weights           the weight of each field, they are normalised to sum up to 1.
+     * @param maximumHits       the number of results to be returned.
+     * @param searcher          the searcher the candidates have been retrieved from.
+     * @return the nearest maximumHits candidates, sorted by ascending fused distance.
+     * @throws IOException
+     */
+    public BoundedDistanceHeap reRankFused(Iterator<Integer> docIterator, String[] featureFieldNames,
+                                           GlobalFeature[] queryFeatures, double[] weights, int maximumHits,
+                                           IndexSearcher searcher) throws IOException {
+        List<LeafReaderContext> leaves = searcher.getIndexReader().leaves();
+        int[] leafCount = new int[leaves.size()];
+        int[][] leafDocs = groupByLeaf(docIterator, leaves, leafCount);
+        // the sorted and de-duplicated candidates of all leaves in one array, it is in global doc id order.
+        int size = 0;
+        for (int i = 0; i < leafDocs.length; i++) {
+            if (leafCount[i] == 0) continue;
+            Arrays.sort(leafDocs[i], 0, leafCount[i]);
+            int unique = 1;
+            for (int j = 1; j < leafCount[i]; j++) {
+                if (leafDocs[i][j] != leafDocs[i][unique - 1]) leafDocs[i][unique++] = leafDocs[i][j];
+            }
+            leafCount[i] = unique;
+            size += unique;
+        }
+        int[] docs = new int[size];
+        for (int i = 0, offset = 0; i < leafDocs.length; offset += leafCount[i], i++) {
+            if (leafCount[i] > 0) System.arraycopy(leafDocs[i], 0, docs, offset, leafCount[i]);
+        }
+        double[][] distances = distances(docs, leaves, featureFieldNames, queryFeatures);
+
+        double weightSum = 0;
+        for (double weight : weights) weightSum += weight;
+        double[] fused = new double[size];
+        for (int f = 0; f < distances.length; f++) {
+            double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+            for (double d : distances[f]) {
+                if (Double.isNaN(d) || Double.isInfinite(d)) continue;
+                min = Math.min(min, d);
+                max = Math.max(max, d);
+            }
+            double weight = weightSum > 0 ? weights[f] / weightSum : 1d / weights.length;
+            for (int j = 0; j < size; j++) {
+                double d = distances[f][j];
+                double normalised;
+                if (Double.isNaN(d) || Double.isInfinite(d)) normalised = 1d;
+                else normalised = max > min ? (d - min) / (max - min) : 0d;
+                fused[j] += weight * normalised;
+            }
+        }
+        BoundedDistanceHeap resultScoreDocs = new BoundedDistanceHeap(maximumHits);
+        for (int j = 0; j < size; j++) {
+            resultScoreDocs.offer(docs[j], fused[j]);
+        }
+        resultScoreDocs.sort();
+        return resultScoreDocs;
+    }
+
+    /**
+     * Computes the full distances of the candidates to a query feature, without the early termination of the
+     * re-ranking, eg. for the statistics of a search with debug=true.
+     *
+     * @param docs             the candidates, global document ids in ascending order without duplicates.
+     * @param featureFieldName the DocValues field holding the feature, eg. cl_hi
+     * @param queryFeature     the query feature, it is not modified.
+     * @param searcher         the searcher the candidates have been retrieved from.
+     * @return the distance for each of the candidates, NaN for a candidate without a value.
+     * @throws IOException
+     */
+    public double[] distances(int[] docs, String featureFieldName, GlobalFeature queryFeature,
+                              IndexSearcher searcher) throws IOException {
+        return distances(docs, searcher.getIndexReader().leaves(), new String[]{featureFieldName},
+                new GlobalFeature[]{queryFeature})[0];
+    }
+
+    /**
+     * Computes the distances of the doc id sorted candidates to the query features, one task per leaf or chunk of a
+     * leaf.
+     *
+     * @return the distances by feature and candidate, NaN for a candidate without a value.
+     */
+    private double[][] distances(int[] docs, List<LeafReaderContext> leaves, String[] featureFieldNames,
+                                 GlobalFeature[] queryFeatures) throws IOException {
+        double[][] distances = new double[featureFieldNames.length][docs.length];
+        byte[][] queryData = new byte[queryFeatures.length][];
+        for (int f = 0; f < queryFeatures.length; f++) {
+            queryData[f] = queryFeatures[f].getByteArrayRepresentation();
+        }
+        File columnDirectory = this.columnDirectory;
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int offset = 0; offset < docs.length; ) {
+            LeafReaderContext leaf = leaves.get(ReaderUtil.subIndex(docs[offset], leaves));
+            int leafEnd = offset;
+            while (leafEnd < docs.length && docs[leafEnd] < leaf.docBase + leaf.reader().maxDoc()) leafEnd++;
+            int numberOfChunks = Math.max(1, Math.min(pool.getParallelism(), (leafEnd - offset) / MIN_CANDIDATES_PER_TASK));
+            int chunkSize = (leafEnd - offset + numberOfChunks - 1) / numberOfChunks;
+            for (int start = offset; start < leafEnd; start += chunkSize) {
+                tasks.add(new FusedLeafTask(leaf, docs, start, Math.min(start + chunkSize, leafEnd),
+                        featureFieldNames, queryFeatures, queryData, distances, columnDirectory));
+            }
+            offset = leafEnd;
+        }
+        invokeAll(tasks);
+        return distances;
+    }
+
+    /**
+     * Groups the candidates by leaf, splits them into doc id ordered chunks, runs a task per chunk and merges the
+     * partial results.
+     */
+    private BoundedDistanceHeap run(Iterator<Integer> docIterator, IndexSearcher searcher, int maximumHits,
+                                    TaskFactory taskFactory) throws IOException {
+        List<LeafReaderContext> leaves = searcher.getIndexReader().leaves();
+        int[] leafCount = new int[leaves.size()];
+        int[][] leafDocs = groupByLeaf(docIterator, leaves, leafCount);
+
+        List<Callable<BoundedDistanceHeap>> tasks = new ArrayList<>();
+        for (int i = 0; i < leafDocs.length; i++) {
+            if (leafCount[i] == 0) continue;
+            // doc id order, each chunk gets a consecutive range and is read forward only.
+            Arrays.sort(leafDocs[i], 0, leafCount[i]);
+            int numberOfChunks = Math.max(1, Math.min(pool.getParallelism(), leafCount[i] / MIN_CANDIDATES_PER_TASK));
+            int chunkSize = (leafCount[i] + numberOfChunks - 1) / numberOfChunks;
+            for (int start = 0; start < leafCount[i]; start += chunkSize) {
+                tasks.add(taskFactory.create(leaves.get(i), leafDocs[i], start, Math.min(start + chunkSize, leafCount[i])));
+            }
+        }
+
+        return merge(tasks, maximumHits);
+    }
+
+    /**
+     * Groups the candidates by their leaf.
+     *
+     * @param leafCount filled with the number of candidates per leaf.
+     * @return the candidates per leaf in the order given, null for leaves without candidates.
+     */
+    private static int[][] groupByLeaf(Iterator<Integer> docIterator, List<LeafReaderContext> leaves, int[] leafCount) {
+        int[][] leafDocs = new int[leaves.size()][];
+        while (docIterator.hasNext()) {
+            int doc = docIterator.next();
+            int leaf = ReaderUtil.subIndex(doc, leaves);
+            if (leafDocs[leaf] == null) {
+                leafDocs[leaf] = new int[64];
+            } else if (leafCount[leaf] == leafDocs[leaf].length) {
+                leafDocs[leaf] = ArrayUtil.grow(leafDocs[leaf]);
+            }
+            leafDocs[leaf][leafCount[leaf]++] = doc;
+        }
+        return leafDocs;
+    }
+
+    /**
+     * Runs the tasks and merges the partial results.
+     */
+    private BoundedDistanceHeap merge(List<Callable<BoundedDistanceHeap>> tasks, int maximumHits) throws IOException {
+        BoundedDistanceHeap resultScoreDocs = new BoundedDistanceHeap(maximumHits);
+        for (BoundedDistanceHeap partial : invokeAll(tasks)) {
+            resultScoreDocs.addAll(partial);
+        }
+        resultScoreDocs.sort();
+        return resultScoreDocs;
+    }
+
+    /**
+     * Runs the tasks on the pool and waits for all of them.
+     *
+     * @return the results of the tasks in the order of the tasks.
+     */
+    private <T> List<T> invokeAll(List<Callable<T>> tasks) throws IOException {
+        List<T> results = new ArrayList<>(tasks.size());
+        for (Future<T> future : pool.invokeAll(tasks)) {
+            try {
+                results.add(future.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Re-ranking has been interrupted.", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new RuntimeException("Re-ranking failed.", e.getCause());
+            }
+        }
+        return results;
+    }
+
+    private interface TaskFactory {
+        Callable<BoundedDistanceHeap> create(LeafReaderContext context, int[] docs, int start, int end);
+    }
+
+    /**
+     * Re-ranks a consecutive range of the doc id sorted candidates of one leaf. Each task works on its own copy of the query
+     * feature as several LIRE features keep temporary values in members when computing the distance.
+     */
+    private static class LeafTask implements Callable<BoundedDistanceHeap> {
+        private final LeafReaderContext context;
+        private final int[] docs;
+        private final int start, end;
+        private final String featureFieldName;
+        private final Class<? extends GlobalFeature> featureClass;
+        private final byte[] queryData;
+        private final int maximumHits;
+        private final File columnDirectory;
+
+        LeafTask(LeafReaderContext context, int[] docs, int start, int end, String featureFieldName,
+                 Class<? extends GlobalFeature> featureClass, byte[] queryData, int maximumHits, File columnDirectory) {
+            this.context = context;
+            this.docs = docs;
+            this.start = start;
+            this.end = end;
+            this.featureFieldName = featureFieldName;
+            this.featureClass = featureClass;
+            this.queryData = queryData;
+            this.maximumHits = maximumHits;
+            this.columnDirectory = columnDirectory;
+        }
+
+        @Override
+        public BoundedDistanceHeap call() throws Exception {
+            GlobalFeature queryFeature = featureClass.getDeclaredConstructor().newInstance();
+            queryFeature.setByteArrayRepresentation(queryData);
+            if (columnDirectory != null) {
+                FeatureColumn column = FeatureColumnStore.getOrBuildColumn(context.reader(), featureFieldName, columnDirectory);
+                VectorDistance distance = column != null ? VectorDistance.forQuery(queryFeature) : null;
+                if (distance != null && distance.getDimensions() == column.getDimensions()) {
+                    return reRank(column, distance);
+                }
+            }
+            // if possible the distance is computed on the serialized feature without decoding it.
+            BytesDistance bytesDistance = FeatureRegistry.getBytesDistance(featureFieldName, queryFeature);
+            GlobalFeature tmpFeature = bytesDistance == null ? featureClass.getDeclaredConstructor().newInstance() : null;
+            BinaryDocValues binaryValues = DocValues.getBinary(context.reader(), featureFieldName);
+
+            BoundedDistanceHeap resultScoreDocs = new BoundedDistanceHeap(maximumHits);
+            BytesRef bytesRef;
+            for (int i = start; i < end; i++) {
+                int doc = docs[i];
+                if (binaryValues.advanceExact(doc - context.docBase)) {
+                    bytesRef = binaryValues.binaryValue();
+                } else {
+                    bytesRef = EMPTY_BYTES;
+                }
+                // stored fields are not touched here, that's up to the caller for the final results.
+                if (bytesDistance != null) {
+                    // once the heap is full, candidates farther away than the worst result are abandoned early.
+                    double maxDistance = resultScoreDocs.isFull() ? resultScoreDocs.worstDistance() : Double.POSITIVE_INFINITY;
+                    resultScoreDocs.offer(doc, bytesDistance.distance(bytesRef.bytes, bytesRef.offset, bytesRef.length, maxDistance));
+                } else {
+                    tmpFeature.setByteArrayRepresentation(bytesRef.bytes, bytesRef.offset, bytesRef.length);
+                    resultScoreDocs.offer(doc, queryFeature.getDistance(tmpFeature));
+                }
+            }
+            return resultScoreDocs;
+        }
+
+        private BoundedDistanceHeap reRank(FeatureColumn column, VectorDistance distance) {
+            BoundedDistanceHeap resultScoreDocs = new BoundedDistanceHeap(maximumHits);
+            float[] vector = new float[column.getDimensions()];
+            for (int i = start; i < end; i++) {
+                if (!column.read(docs[i] - context.docBase, vector)) {
+                    // no value, so compare to an empty feature like above.
+                    Arrays.fill(vector, 0f);
+                }
+                resultScoreDocs.offer(docs[i], distance.distance(vector));
+            }
+            return resultScoreDocs;
+        }
+    }
+
+    /**
+     * Re-ranks a consecutive range of the sorted (document, query) pairs of one leaf for {@link #reRankBatch}. The
+     * value of a document is read once for all of its queries, the copies of the query features and their distance
+     * functions are created on the first pair of a query.
+     */
+    private static class BatchLeafTask implements Callable<BoundedDistanceHeap[]> {
+        private final LeafReaderContext context;
+        private final long[] pairs;
+        private final int start, end;
+        private final String featureFieldName;
+        private final Class<? extends GlobalFeature> featureClass;
+        private final byte[][] queryData;
+        private final int maximumHits;
+        private final File columnDirectory;
+
+        BatchLeafTask(LeafReaderContext context, long[] pairs, int start, int end, String featureFieldName,
+                      Class<? extends GlobalFeature> featureClass, byte[][] queryData, int maximumHits,
+                      File columnDirectory) {
+            this.context = context;
+            this.pairs = pairs;
+            this.start = start;
+            this.end = end;
+            this.featureFieldName = featureFieldName;
+            this.featureClass = featureClass;
+            this.queryData = queryData;
+            this.maximumHits = maximumHits;
+            this.columnDirectory = columnDirectory;
+        }
+
+        @Override
+        public BoundedDistanceHeap[] call() throws Exception {
+            int numberOfQueries = queryData.length;
+            BoundedDistanceHeap[] resultScoreDocs = new BoundedDistanceHeap[numberOfQueries];
+            GlobalFeature[] queryFeatures = new GlobalFeature[numberOfQueries];
+            VectorDistance[] vectorDistances = new VectorDistance[numberOfQueries];
+            BytesDistance[] bytesDistances = new BytesDistance[numberOfQueries];
+            FeatureColumn column = columnDirectory != null && VectorDistance.isSupported(featureClass) ?
+                    FeatureColumnStore.getOrBuildColumn(context.reader(), featureFieldName, columnDirectory) : null;
+            float[] vector = column != null ? new float[column.getDimensions()] : null;
+            BinaryDocValues binaryValues = DocValues.getBinary(context.reader(), featureFieldName);
+            GlobalFeature tmpFeature = featureClass.getDeclaredConstructor().newInstance();
+            BytesRef bytesRef = EMPTY_BYTES;
+            boolean bytesRead = false, decoded = false;
+            int currentDoc = -1;
+            for (int i = start; i < end; i++) {
+                if (i > start && pairs[i] == pairs[i - 1]) continue;
+                int doc = (int) (pairs[i] >>> 32) - context.docBase;
+                int q = (int) pairs[i];
+                if (doc != currentDoc) {
+                    currentDoc = doc;
+                    if (column != null && !column.read(doc, vector)) {
+                        // no value, so compare to an empty feature like in the LeafTask.
+                        Arrays.fill(vector, 0f);
+                    }
+                    bytesRead = false;
+                    decoded = false;
+                }
+                if (queryFeatures[q] == null) {
+                    queryFeatures[q] = featureClass.getDeclaredConstructor().newInstance();
+                    queryFeatures[q].setByteArrayRepresentation(queryData[q]);
+                    VectorDistance distance = column != null ? VectorDistance.forQuery(queryFeatures[q]) : null;
+                    if (distance != null && distance.getDimensions() == column.getDimensions()) {
+                        vectorDistances[q] = distance;
+                    } else {
+                        bytesDistances[q] = FeatureRegistry.getBytesDistance(featureFieldName, queryFeatures[q]);
+                    }
+                    resultScoreDocs[q] = new BoundedDistanceHeap(maximumHits);
+                }
+                double distance;
+                if (vectorDistances[q] != null) {
+                    distance = vectorDistances[q].distance(vector);
+                } else {
+                    if (!bytesRead) {
+                        bytesRef = binaryValues.advanceExact(doc) ? binaryValues.binaryValue() : EMPTY_BYTES;
+                        bytesRead = true;
+                    }
+                    if (bytesDistances[q] != null) {
+                        double maxDistance = resultScoreDocs[q].isFull() ? resultScoreDocs[q].worstDistance() : Double.POSITIVE_INFINITY;
+                        distance = bytesDistances[q].distance(bytesRef.bytes, bytesRef.offset, bytesRef.length, maxDistance);
+                    } else {
+                        if (!decoded) {
+                            tmpFeature.setByteArrayRepresentation(bytesRef.bytes, bytesRef.offset, bytesRef.length);
+                            decoded = true;
+                        }
+                        distance = queryFeatures[q].getDistance(tmpFeature);
+                    }
+                }
+                resultScoreDocs[q].offer(doc + context.docBase, distance);
+            }
+            return resultScoreDocs;
+        }
+    }
+
+    /**
+     * Computes the distances of a consecutive range of the doc id sorted candidates of one leaf to several query
+     * features, the values of all the fields are read document by document. The distances are written to the shared
+     * array at the positions of the candidates, NaN for a candidate without a value.
+     */
+    private static class FusedLeafTask implements Callable<Void> {
+        private final LeafReaderContext context;
+        private final int[] docs;
+        private final int start, end;
+        private final String[] featureFieldNames;
+        private final GlobalFeature[] queryFeatures;
+        private final byte[][] queryData;
+        private final double[][] distances;
+        private final File columnDirectory;
+
+        FusedLeafTask(LeafReaderContext context, int[] docs, int start, int end, String[] featureFieldNames,
+                      GlobalFeature[] queryFeatures, byte[][] queryData, double[][] distances, File columnDirectory) {
+            this.context = context;
+            this.docs = docs;
+            this.start = start;
+            this.end = end;
+            this.featureFieldNames = featureFieldNames;
+            this.queryFeatures = queryFeatures;
+            this.queryData = queryData;
+            this.distances = distances;
+            this.columnDirectory = columnDirectory;
+        }
+
+        @Override
+        public Void call() throws Exception {
+            LeafDistance[] fields = new LeafDistance[featureFieldNames.length];
+            for (int f = 0; f < fields.length; f++) {
+                // again a copy of the query feature per task, see LeafTask.
+                GlobalFeature queryFeature = queryFeatures[f].getClass().getDeclaredConstructor().newInstance();
+                queryFeature.setByteArrayRepresentation(queryData[f]);
+                fields[f] = new LeafDistance(context, featureFieldNames[f], queryFeature, columnDirectory);
+            }
+            for (int i = start; i < end; i++) {
+                int doc = docs[i] - context.docBase;
+                for (int f = 0; f < fields.length; f++) {
+                    distances[f][i] = fields[f].distance(doc);
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Distance of the documents of a leaf to a query feature, read forward only from the column of the field if
+     * there is one or from its DocValues otherwise.
+     */
+    private static class LeafDistance {
+        private final GlobalFeature queryFeature;
+        private FeatureColumn column = null;
+        private VectorDistance vectorDistance = null;
+        private float[] vector = null;
+        private BinaryDocValues binaryValues = null;
+        private BytesDistance bytesDistance = null;
+        private GlobalFeature tmpFeature = null;
+
+        LeafDistance(LeafReaderContext context, String featureFieldName, GlobalFeature queryFeature,
+                     File columnDirectory) throws IOException, ReflectiveOperationException {
+            this.queryFeature = queryFeature;
+            if (columnDirectory != null) {
+                column = FeatureColumnStore.getOrBuildColumn(context.reader(), featureFieldName, columnDirectory);
+                vectorDistance = column != null ? VectorDistance.forQuery(queryFeature) : null;
+                if (vectorDistance != null && vectorDistance.getDimensions() == column.getDimensions()) {
+                    vector = new float[column.getDimensions()];
+                    return;
+                }
+            }
+            binaryValues = DocValues.getBinary(context.reader(), featureFieldName);
+            bytesDistance = FeatureRegistry.getBytesDistance(featureFieldName, queryFeature);
+            tmpFeature = bytesDistance == null ? queryFeature.getClass().getDeclaredConstructor().newInstance() : null;
+        }
+
+        /**
+         * @param doc the segment local document id, larger than the one of the previous call.
+         * @return the distance or NaN if the document has no value.
+         */
+        double distance(int doc) throws IOException {
+            if (vector != null) {
+                return column.read(doc, vector) ? vectorDistance.distance(vector) : Double.NaN;
+            }
+            if (!binaryValues.advanceExact(doc)) return Double.NaN;
+            BytesRef bytesRef = binaryValues.binaryValue();
+            if (bytesDistance != null) {
+                return bytesDistance.distance(bytesRef.bytes, bytesRef.offset, bytesRef.length, Double.POSITIVE_INFINITY);
+            }
+            tmpFeature.setByteArrayRepresentation(bytesRef.bytes, bytesRef.offset, bytesRef.length);
+            return queryFeature.getDistance(tmpFeature);
+        }
+    }
+
+    /**
+     * Computes the asymmetric product quantization distance for a consecutive range of the doc id sorted candidates
+     * of one leaf. Candidates without a code are put last.
+     */
+    private static class QuantizedLeafTask implements Callable<BoundedDistanceHeap> {
+        private final LeafReaderContext context;
+        private final int[] docs;
+        private final int start, end;
+        private final String quantizedFieldName;
+        private final float[] distanceTable;
+        private final int maximumHits;
+
+        QuantizedLeafTask(LeafReaderContext context, int[] docs, int start, int end, String quantizedFieldName,
+                          float[] distanceTable, int maximumHits) {
+            this.context = context;
+            this.docs = docs;
+            this.start = start;
+            this.end = end;
+            this.quantizedFieldName = quantizedFieldName;
+            this.distanceTable = distanceTable;
+            this.maximumHits = maximumHits;
+        }
+
+        @Override
+        public BoundedDistanceHeap call() throws Exception {
+            BinaryDocValues codes = DocValues.getBinary(context.reader(), quantizedFieldName);
+            BoundedDistanceHeap resultScoreDocs = new BoundedDistanceHeap(maximumHits);
+            for (int i = start; i < end; i++) {
+                int doc = docs[i];
+                if (codes.advanceExact(doc - context.docBase)) {
+                    BytesRef bytesRef = codes.binaryValue();
+                    resultScoreDocs.offer(doc, ProductQuantizer.distance(distanceTable, bytesRef.bytes, bytesRef.offset, bytesRef.length));
+                } else {
+                    resultScoreDocs.offer(doc, Double.POSITIVE_INFINITY);
+                }
+            }
+            return resultScoreDocs;
+        }
+    }
+
+    /**
+     * Computes the Hamming distance of the signatures of a range of documents of one leaf. Deleted documents and
+     * documents not accepted by the filter are skipped.
+     */
+    private static class SignatureScanTask implements Callable<BoundedDistanceHeap> {
+        private final LeafReaderContext context;
+        private final int start, end;
+        private final String signatureFieldName;
+        private final long[] querySignature;
+        private final int maximumHits;
+        private final Bits filter;
+
+        SignatureScanTask(LeafReaderContext context, int start, int end, String signatureFieldName,
+                          long[] querySignature, int maximumHits, Bits filter) {
+            this.context = context;
+            this.start = start;
+            this.end = end;
+            this.signatureFieldName = signatureFieldName;
+            this.querySignature = querySignature;
+            this.maximumHits = maximumHits;
+            this.filter = filter;
+        }
+
+        @Override
+        public BoundedDistanceHeap call() throws Exception {
+            BinaryDocValues signatures = DocValues.getBinary(context.reader(), signatureFieldName);
+            Bits liveDocs = context.reader().getLiveDocs();
+            BoundedDistanceHeap resultScoreDocs = new BoundedDistanceHeap(maximumHits);
+            for (int doc = signatures.advance(start); doc < end; doc = signatures.nextDoc()) {
+                if (liveDocs != null && !liveDocs.get(doc)) continue;
+                if (filter != null && !filter.get(context.docBase + doc)) continue;
+                BytesRef bytesRef = signatures.binaryValue();
+                resultScoreDocs.offer(context.docBase + doc,
+                        BitSamplingSignature.distance(querySignature, bytesRef.bytes, bytesRef.offset, bytesRef.length));
+            }
+            return resultScoreDocs;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package net.semanticmetadata.lire.solr;
+
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.SolrParams;
+
+import java.util.Arrays;
+
+/**
+ * Key of the results of a search in the lireResultCache, see {@link ResultCacheRegenerator}. Two searches are the same
+ * if they have the same query feature in the same field and the same parameters influencing the results. Parameters
+ * only changing the format of the response, like fl or wt, are not part of the key. The parameters of the request are
+ * kept to repeat the search when the cache is autowarmed.
+ */
+public class ResultCacheKey {
+    /**
+     * Parameters changing the results of a search.
+     */
+    private static final String[] RESULT_PARAMS = new String[]{"hashes", "accuracy", "candidates", "ms", "fq", "rows",
+            "mode", "ef", "pq", "pqRerank", "nprobe", "probes", "adaptive", "chunk", "stable"};
+
+    private final String field;
+    private final byte[] feature;
+    private final String[][] values;
+    private final SolrParams params;
+    private final int hashCode;
+
+    /**
+     * @param params       the parameters of the request
+     * @param field        the field searched, eg. cl_ha
+     * @param queryFeature the feature of the query
+     */
+    public ResultCacheKey(SolrParams params, String field, GlobalFeature queryFeature) {
+        this.field = field;
+        this.feature = queryFeature.getByteArrayRepresentation();
+        this.values = new String[RESULT_PARAMS.length][];
+        for (int i = 0; i < RESULT_PARAMS.length; i++) {
+            values[i] = params.getParams(RESULT_PARAMS[i]);
+        }
+        this.params = new ModifiableSolrParams(params);
+        this.hashCode = 31 * (31 * field.hashCode() + Arrays.hashCode(feature)) + Arrays.deepHashCode(values);
+    }
+
+    /**
+     * @return a copy of the parameters of the request the results have been computed for.
+     */
+    public SolrParams getParams() {
+        return params;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof ResultCacheKey)) return false;
+        ResultCacheKey other = (ResultCacheKey) o;
+        return hashCode == other.hashCode && field.equals(other.field) && Arrays.equals(feature, other.feature)
+                && Arrays.deepEquals(values, other.values);
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+
+    @Override
+    public String toString() {
+        return field + ":" + params;
+    }
+}
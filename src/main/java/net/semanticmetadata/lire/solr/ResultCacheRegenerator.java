@@ -0,0 +1,61 @@
+package net.semanticmetadata.lire.solr;
+
+import org.apache.solr.core.PluginBag;
+import org.apache.solr.request.LocalSolrQueryRequest;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.request.SolrRequestHandler;
+import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.search.CacheRegenerator;
+import org.apache.solr.search.SolrCache;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+
+/**
+ * Autowarms the lireResultCache of a new searcher by repeating the most recently used searches of the old one. The
+ * results hold document ids of the old searcher, so they cannot be copied, instead each search is run again by the
+ * {@link LireRequestHandler} of the core on the new searcher, which puts the results into the new cache. Declare the
+ * cache in the query section of the solrconfig.xml file:
+ * <pre>
+ * &lt;cache name="lireResultCache" class="solr.LRUCache" size="1024" initialSize="128" autowarmCount="64"
+ *        regenerator="net.semanticmetadata.lire.solr.ResultCacheRegenerator"/&gt;
+ * </pre>
+ */
+public class ResultCacheRegenerator implements CacheRegenerator {
+    private static final Logger log = LoggerFactory.getLogger(ResultCacheRegenerator.class);
+
+    @Override
+    @SuppressWarnings("rawtypes") // the signature of CacheRegenerator.
+    public boolean regenerateItem(SolrIndexSearcher newSearcher, SolrCache newCache, SolrCache oldCache,
+                                  Object oldKey, Object oldVal) throws IOException {
+        if (!(oldKey instanceof ResultCacheKey)) return true;
+        LireRequestHandler handler = null;
+        PluginBag<SolrRequestHandler> requestHandlers = newSearcher.getCore().getRequestHandlers();
+        for (String name : requestHandlers.keySet()) {
+            SolrRequestHandler requestHandler = requestHandlers.get(name);
+            if (requestHandler instanceof LireRequestHandler) {
+                handler = (LireRequestHandler) requestHandler;
+                break;
+            }
+        }
+        if (handler == null) return false;
+        SolrQueryRequest req = new LocalSolrQueryRequest(newSearcher.getCore(), ((ResultCacheKey) oldKey).getParams()) {
+            @Override
+            public SolrIndexSearcher getSearcher() {
+                // the new searcher is not registered yet while it is warmed.
+                return newSearcher;
+            }
+        };
+        try {
+            handler.handleRequestBody(req, new SolrQueryResponse());
+        } catch (Exception e) {
+            // the search just isn't warmed, the next request will run it.
+            log.warn("Could not regenerate LIRE result for {}", oldKey, e);
+        } finally {
+            req.close();
+        }
+        return true;
+    }
+}
@@ -0,0 +1,155 @@
+package net.semanticmetadata.lire.solr;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.BoostQuery;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The parts of the debug section of a search with debug=true: the terms of the candidate query, the candidates per
+ * segment and what happened while re-ranking them. Meant for tuning accuracy and candidates per field, not for
+ * production traffic, as the distances of all the candidates are computed a second time for the statistics.
+ */
+public class SearchExplanation {
+    private static final double[] PERCENTILES = {0.1, 0.25, 0.5, 0.75, 0.9};
+
+    /**
+     * Lists the terms of a candidate query with their docFreq and boost, and the hashes of the feature left out of
+     * the query with the reason, either docFreq=0 or accuracy.
+     *
+     * @param reader    the index the docFreqs are taken from
+     * @param hashField the hash field, eg. cl_ha
+     * @param query     the candidate query
+     * @param hashes    the BitSampling hashes of the query feature, or null if the query is not made of them.
+     * @return the explanation of the query
+     * @throws IOException
+     */
+    public static NamedList<Object> explainQuery(IndexReader reader, String hashField, Query query, int[] hashes) throws IOException {
+        NamedList<Object> explanation = new SimpleOrderedMap<>();
+        explanation.add("field", hashField);
+        explanation.add("query", query.getClass().getSimpleName());
+        if (query instanceof MatchAllDocsQuery) {
+            explanation.add("note", "All documents are candidates.");
+            return explanation;
+        }
+        Map<Term, Float> terms = new LinkedHashMap<>();
+        collectTerms(query, 1f, terms);
+        List<NamedList<Object>> used = new ArrayList<>(terms.size());
+        for (Map.Entry<Term, Float> entry : terms.entrySet()) {
+            NamedList<Object> term = new SimpleOrderedMap<>();
+            term.add("term", entry.getKey().text());
+            term.add("docFreq", reader.docFreq(entry.getKey()));
+            term.add("boost", entry.getValue());
+            used.add(term);
+        }
+        explanation.add("terms", used);
+        if (hashes != null) {
+            List<NamedList<Object>> dropped = new ArrayList<>();
+            for (int hash : hashes) {
+                Term hashTerm = new Term(hashField, Integer.toHexString(hash));
+                if (terms.containsKey(hashTerm)) continue;
+                int docFreq = reader.docFreq(hashTerm);
+                NamedList<Object> term = new SimpleOrderedMap<>();
+                term.add("term", hashTerm.text());
+                term.add("docFreq", docFreq);
+                term.add("reason", docFreq == 0 ? "docFreq=0" : "accuracy");
+                dropped.add(term);
+            }
+            explanation.add("dropped", dropped);
+        }
+        return explanation;
+    }
+
+    private static void collectTerms(Query query, float boost, Map<Term, Float> terms) {
+        if (query instanceof BoostQuery) {
+            collectTerms(((BoostQuery) query).getQuery(), boost * ((BoostQuery) query).getBoost(), terms);
+        } else if (query instanceof ConstantScoreQuery) {
+            collectTerms(((ConstantScoreQuery) query).getQuery(), boost, terms);
+        } else if (query instanceof BooleanQuery) {
+            for (BooleanClause clause : (BooleanQuery) query) {
+                collectTerms(clause.getQuery(), boost, terms);
+            }
+        } else if (query instanceof TermQuery) {
+            terms.merge(((TermQuery) query).getTerm(), boost, Math::max);
+        }
+    }
+
+    /**
+     * @param candidates the global document ids of the candidates
+     * @param leaves     the leaves of the searcher
+     * @return the number of candidates per segment, segments without candidates are left out.
+     */
+    public static List<NamedList<Object>> explainCandidates(int[] candidates, List<LeafReaderContext> leaves) {
+        int[] counts = new int[leaves.size()];
+        for (int doc : candidates) {
+            counts[ReaderUtil.subIndex(doc, leaves)]++;
+        }
+        List<NamedList<Object>> segments = new ArrayList<>();
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] == 0) continue;
+            NamedList<Object> segment = new SimpleOrderedMap<>();
+            segment.add("segment", i);
+            segment.add("maxDoc", leaves.get(i).reader().maxDoc());
+            segment.add("numDocs", leaves.get(i).reader().numDocs());
+            segment.add("candidates", counts[i]);
+            segments.add(segment);
+        }
+        return segments;
+    }
+
+    /**
+     * Replays the re-ranking of the candidates in doc id order: how many of them entered the top k, how many of
+     * those were evicted again, and how the distances are distributed.
+     *
+     * @param distances   the distances of the candidates in doc id order, NaN for a candidate without a feature.
+     * @param maximumHits the k in top k
+     * @return the explanation of the re-ranking
+     */
+    public static NamedList<Object> explainReRank(double[] distances, int maximumHits) {
+        NamedList<Object> explanation = new SimpleOrderedMap<>();
+        BoundedDistanceHeap heap = new BoundedDistanceHeap(maximumHits);
+        double[] sorted = new double[distances.length];
+        int entered = 0, size = 0;
+        for (int i = 0; i < distances.length; i++) {
+            if (Double.isNaN(distances[i])) continue;
+            if (heap.offer(i, distances[i])) entered++;
+            sorted[size++] = distances[i];
+        }
+        explanation.add("candidates", distances.length);
+        explanation.add("missing", distances.length - size);
+        explanation.add("entered", entered);
+        explanation.add("evicted", entered - heap.size());
+        if (size > 0) {
+            Arrays.sort(sorted, 0, size);
+            NamedList<Object> distribution = new SimpleOrderedMap<>();
+            double sum = 0;
+            for (int i = 0; i < size; i++) sum += sorted[i];
+            distribution.add("min", sorted[0]);
+            for (double p : PERCENTILES) {
+                distribution.add("p" + Math.round(p * 100), sorted[(int) Math.min(size - 1, Math.floor(p * size))]);
+            }
+            distribution.add("max", sorted[size - 1]);
+            distribution.add("mean", sum / size);
+            // the distance a candidate has to beat to be among the results.
+            distribution.add("kth", heap.worstDistance());
+            explanation.add("distances", distribution);
+        }
+        return explanation;
+    }
+}
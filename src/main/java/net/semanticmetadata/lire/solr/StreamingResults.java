@@ -0,0 +1,109 @@
+package net.semanticmetadata.lire.solr;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.solr.common.IteratorWriter;
+import org.apache.solr.common.MapWriter;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.StringTokenizer;
+import java.util.function.BiConsumer;
+
+/**
+ * Results of a search that are written one by one while the response is written, for requests with a lot of rows
+ * (stream=true). Only the document ids and distances are kept in memory. The stored fields of a result are loaded
+ * right before it is written and can be collected right after, so memory does not grow with the number of rows.
+ * Works with the response writers supporting {@link IteratorWriter}, eg. javabin and json.
+ */
+public class StreamingResults implements IteratorWriter {
+    private final IndexSearcher searcher;
+    private final BoundedDistanceHeap results;
+    private final String fieldsRequested;
+
+    /**
+     * @param searcher        the searcher of the request, it has to stay open until the response is written.
+     * @param results         the sorted results
+     * @param fieldsRequested the fl parameter, may be null.
+     */
+    public StreamingResults(IndexSearcher searcher, BoundedDistanceHeap results, String fieldsRequested) {
+        this.searcher = searcher;
+        this.results = results;
+        this.fieldsRequested = fieldsRequested;
+    }
+
+    @Override
+    public void writeIter(ItemWriter iw) throws IOException {
+        Set<String> fieldsToLoad = getFieldsToLoad(fieldsRequested);
+        for (int i = 0; i < results.size(); i++) {
+            Document document = fieldsToLoad != null ? searcher.doc(results.doc(i), fieldsToLoad) : searcher.doc(results.doc(i));
+            double distance = results.distance(i);
+            iw.add((MapWriter) ew -> {
+                ew.put("d", distance);
+                putFields(document, distance, fieldsRequested, ew::putNoEx);
+            });
+        }
+    }
+
+    /**
+     * @param fieldsRequested the fl parameter, may be null.
+     * @return the stored fields needed for the results, null for all of them.
+     */
+    static Set<String> getFieldsToLoad(String fieldsRequested) {
+        Set<String> fields = new HashSet<>();
+        if (fieldsRequested == null) {
+            fields.add("id");
+            fields.add("title");
+        } else if (fieldsRequested.contains("*")) {
+            return null;
+        } else {
+            StringTokenizer st = new StringTokenizer(fieldsRequested, fieldsRequested.contains(",") ? "," : " ");
+            while (st.hasMoreTokens()) fields.add(st.nextToken());
+        }
+        return fields;
+    }
+
+    /**
+     * Puts the fields of a result given by fl: id and title by default, all stored fields for *, the listed ones
+     * otherwise. Multi valued fields are put as arrays, the distance is put as score if requested.
+     *
+     * @param document        the stored fields of the result
+     * @param distance        the distance of the result
+     * @param fieldsRequested the fl parameter, may be null.
+     * @param put             receives the names and values.
+     */
+    static void putFields(Document document, double distance, String fieldsRequested, BiConsumer<String, Object> put) {
+        if (fieldsRequested == null) {
+            put.accept("id", document.get("id"));
+            if (document.get("title") != null) {
+                put.accept("title", document.get("title"));
+            }
+            return;
+        }
+        if (fieldsRequested.contains("score")) {
+            put.accept("score", distance);
+        }
+        if (fieldsRequested.contains("*")) {
+            // all fields, each one once.
+            Set<String> names = new HashSet<>();
+            for (IndexableField field : document.getFields()) {
+                if (names.add(field.name())) putField(document, field.name(), put);
+            }
+        } else {
+            for (String name : getFieldsToLoad(fieldsRequested)) {
+                putField(document, name, put);
+            }
+        }
+    }
+
+    private static void putField(Document document, String name, BiConsumer<String, Object> put) {
+        IndexableField[] fields = document.getFields(name);
+        if (fields.length > 1) {
+            put.accept(name, document.getValues(name));
+        } else if (fields.length > 0) {
+            put.accept(name, fields[0].stringValue());
+        }
+    }
+}
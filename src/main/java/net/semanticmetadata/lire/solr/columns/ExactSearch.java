@@ -0,0 +1,103 @@
+package net.semanticmetadata.lire.solr.columns;
+
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import net.semanticmetadata.lire.solr.BoundedDistanceHeap;
+import net.semanticmetadata.lire.solr.FeatureRegistry;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.util.Bits;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Exact search by a linear scan over the {@link FeatureColumn}s of all segments. Every segment is cut into ranges of
+ * at least {@link #MIN_DOCS_PER_TASK} documents, each range is scanned by its own task with its own
+ * {@link VectorDistance} and top k heap, and the partial results are merged. There is no hash query, no candidate
+ * list and no feature object involved, so for indexes up to a few million images this is fast enough to do without
+ * the approximation and its loss of recall.
+ */
+public class ExactSearch {
+    /**
+     * Number of documents a single task should at least work on.
+     */
+    public static final int MIN_DOCS_PER_TASK = 1 << 14;
+
+    /**
+     * @return true if the query can be searched in the field, it needs to be a feature of the field with a
+     * {@link VectorDistance}.
+     */
+    public static boolean isSupported(String field, GlobalFeature queryFeature) {
+        return VectorDistance.isSupported(queryFeature.getClass())
+                && queryFeature.getClass() == FeatureRegistry.getClassForFeatureField(field);
+    }
+
+    /**
+     * Searches the k nearest neighbours of a query among all live documents having a value for the field.
+     *
+     * @param searcher     the searcher
+     * @param field        the feature field, eg. cl_hi
+     * @param queryFeature the query
+     * @param k            the number of results
+     * @param filter       the documents allowed as results by global document id, eg. of the filter queries, null for all.
+     * @param directory    the directory for the column files, missing columns are built.
+     * @param pool         the pool the scans are run on
+     * @return the nearest k documents sorted by ascending distance, or null if the feature is not supported.
+     * @throws IOException
+     */
+    public static BoundedDistanceHeap search(IndexSearcher searcher, String field, GlobalFeature queryFeature, int k,
+                                             Bits filter, File directory, ForkJoinPool pool) throws IOException {
+        if (!isSupported(field, queryFeature)) return null;
+        // decoded once, each task gets its own distance function on the shared vector.
+        double[] query = VectorDistance.toVector(queryFeature);
+        Class<? extends GlobalFeature> featureClass = queryFeature.getClass();
+        List<Callable<BoundedDistanceHeap>> tasks = new ArrayList<>();
+        for (LeafReaderContext context : searcher.getIndexReader().leaves()) {
+            int maxDoc = context.reader().maxDoc();
+            int numberOfChunks = Math.max(1, Math.min(pool.getParallelism(), maxDoc / MIN_DOCS_PER_TASK));
+            int chunkSize = (maxDoc + numberOfChunks - 1) / numberOfChunks;
+            for (int start = 0; start < maxDoc; start += chunkSize) {
+                int from = start, to = Math.min(start + chunkSize, maxDoc);
+                tasks.add(() -> {
+                    FeatureColumn column = FeatureColumnStore.getOrBuildColumn(context.reader(), field, directory);
+                    // no column means no document of the segment has a value.
+                    if (column == null || column.getDimensions() != query.length) return new BoundedDistanceHeap(0);
+                    return scan(column, VectorDistance.forVector(featureClass, query), k,
+                            HnswGraphStore.acceptDocs(context, filter), context.docBase, from, to);
+                });
+            }
+        }
+        BoundedDistanceHeap result = new BoundedDistanceHeap(k);
+        for (Future<BoundedDistanceHeap> future : pool.invokeAll(tasks)) {
+            try {
+                result.addAll(future.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Exact search has been interrupted.", e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException("Exact search failed.", e.getCause());
+            }
+        }
+        result.sort();
+        return result;
+    }
+
+    private static BoundedDistanceHeap scan(FeatureColumn column, VectorDistance distance, int k, Bits acceptDocs,
+                                            int docBase, int from, int to) {
+        BoundedDistanceHeap resultScoreDocs = new BoundedDistanceHeap(k);
+        float[] vector = new float[column.getDimensions()];
+        for (int doc = from; doc < to; doc++) {
+            if (acceptDocs != null && !acceptDocs.get(doc)) continue;
+            if (column.read(doc, vector)) {
+                resultScoreDocs.offer(docBase + doc, distance.distance(vector));
+            }
+        }
+        return resultScoreDocs;
+    }
+}
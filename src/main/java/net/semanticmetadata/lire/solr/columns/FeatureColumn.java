@@ -0,0 +1,184 @@
+package net.semanticmetadata.lire.solr.columns;
+
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * The decoded features of one field of one index segment in a memory mapped file. There is a fixed width record for
+ * every document of the segment, so the vector of a document is found by its (segment local) id without any lookup:
+ * <pre>
+ * header:  magic, version, dimensions, maxDoc (int each)
+ * records: flag, v_0, v_1, ... v_(dimensions-1) (float each, flag is 1 if the document has a value)
+ * </pre>
+ * All values are little endian. The data lives in the page cache and not on the heap, so even large indexes can be
+ * re-ranked without filling the heap with decoded features.
+ */
+public class FeatureColumn {
+    private static final int MAGIC = 0x4c464331; // LFC1
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 16;
+    /**
+     * Maximum size of a single mapping, MappedByteBuffer is limited to 2GB.
+     */
+    private static final long MAX_CHUNK_BYTES = 1L << 30;
+
+    private final int dimensions;
+    private final int maxDoc;
+    private final int recordFloats;
+    private final int recordsPerChunk;
+    private final FloatBuffer[] chunks;
+
+    private FeatureColumn(FileChannel channel, int dimensions, int maxDoc) throws IOException {
+        this.dimensions = dimensions;
+        this.maxDoc = maxDoc;
+        recordFloats = dimensions + 1;
+        long recordBytes = 4L * recordFloats;
+        recordsPerChunk = (int) Math.max(1, MAX_CHUNK_BYTES / recordBytes);
+        int numberOfChunks = Math.max(1, (maxDoc + recordsPerChunk - 1) / recordsPerChunk);
+        chunks = new FloatBuffer[numberOfChunks];
+        for (int i = 0; i < numberOfChunks; i++) {
+            long start = HEADER_BYTES + i * recordsPerChunk * recordBytes;
+            long records = Math.min(recordsPerChunk, maxDoc - (long) i * recordsPerChunk);
+            chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, records * recordBytes)
+                    .order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+        }
+    }
+
+    /**
+     * @return the length of the stored vectors, 0 if no document of the segment has a value.
+     */
+    public int getDimensions() {
+        return dimensions;
+    }
+
+    public int getMaxDoc() {
+        return maxDoc;
+    }
+
+    /**
+     * Reads the vector of a document. Absolute reads only, so a column can be used by many threads at once.
+     *
+     * @param doc    the segment local document id.
+     * @param target the array the vector is copied to, at least {@link #getDimensions()} long.
+     * @return false if the document has no value for the field.
+     */
+    public boolean read(int doc, float[] target) {
+        FloatBuffer chunk = chunks[doc / recordsPerChunk];
+        int base = (doc % recordsPerChunk) * recordFloats;
+        if (chunk.get(base) == 0f) return false;
+        for (int i = 0; i < dimensions; i++) {
+            target[i] = chunk.get(base + 1 + i);
+        }
+        return true;
+    }
+
+    /**
+     * Opens an existing column file.
+     *
+     * @param file   the file
+     * @param maxDoc the number of documents of the segment, the file is rejected if it does not match.
+     * @return the column or null if the file does not exist or does not fit.
+     * @throws IOException
+     */
+    public static FeatureColumn open(File file, int maxDoc) throws IOException {
+        if (!file.exists()) return null;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            if (channel.size() < HEADER_BYTES) return null;
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            channel.read(header, 0);
+            header.flip();
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) return null;
+            int dimensions = header.getInt();
+            if (header.getInt() != maxDoc) return null;
+            if (channel.size() != HEADER_BYTES + 4L * (dimensions + 1) * maxDoc) return null;
+            // the mapping stays valid after closing the channel.
+            return new FeatureColumn(channel, dimensions, maxDoc);
+        }
+    }
+
+    /**
+     * Decodes all values of a BinaryDocValues field of a segment and writes them to a column file. The file is
+     * written to a temporary file first and moved in place at the end, so readers never see a partial file.
+     *
+     * @param reader       the segment
+     * @param field        the field, eg. cl_hi
+     * @param featureClass the LIRE feature class stored in the field, it has to be supported by {@link VectorDistance}
+     * @param file         the target file
+     * @return the opened column
+     * @throws IOException if writing fails or the features of the field have different lengths.
+     */
+    public static FeatureColumn build(LeafReader reader, String field, Class<? extends GlobalFeature> featureClass,
+                                      File file) throws IOException {
+        GlobalFeature feature;
+        try {
+            feature = featureClass.getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IOException("Could not instantiate " + featureClass.getName(), e);
+        }
+        int maxDoc = reader.maxDoc();
+        BinaryDocValues values = DocValues.getBinary(reader, field);
+        int doc = values.nextDoc();
+        double[] vector = doc != DocIdSetIterator.NO_MORE_DOCS ? decode(feature, values.binaryValue()) : new double[0];
+        int dimensions = vector.length;
+
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw"); FileChannel channel = raf.getChannel()) {
+            raf.setLength(0);
+            ByteBuffer buffer = ByteBuffer.allocate(Math.max(64 * 1024, 4 * (dimensions + 1))).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(dimensions).putInt(maxDoc);
+            for (int i = 0; i < maxDoc; i++) {
+                if (buffer.remaining() < 4 * (dimensions + 1)) {
+                    flush(buffer, channel);
+                }
+                if (i == doc) {
+                    if (vector.length > dimensions) {
+                        throw new IOException("Features of field " + field + " differ in length, no column can be built.");
+                    }
+                    buffer.putFloat(1f);
+                    for (int j = 0; j < dimensions; j++) {
+                        buffer.putFloat(j < vector.length ? (float) vector[j] : 0f);
+                    }
+                    doc = values.nextDoc();
+                    if (doc != DocIdSetIterator.NO_MORE_DOCS) vector = decode(feature, values.binaryValue());
+                } else {
+                    for (int j = 0; j <= dimensions; j++) buffer.putFloat(0f);
+                }
+            }
+            flush(buffer, channel);
+            channel.force(false);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tmp.toPath());
+            throw e;
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return open(file, maxDoc);
+    }
+
+    private static double[] decode(GlobalFeature feature, BytesRef bytesRef) {
+        // a fresh array, as not all features respect the offset when deserializing.
+        byte[] data = new byte[bytesRef.length];
+        System.arraycopy(bytesRef.bytes, bytesRef.offset, data, 0, bytesRef.length);
+        feature.setByteArrayRepresentation(data);
+        return VectorDistance.toVector(feature);
+    }
+
+    private static void flush(ByteBuffer buffer, FileChannel channel) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) channel.write(buffer);
+        buffer.clear();
+    }
+}
@@ -0,0 +1,160 @@
+package net.semanticmetadata.lire.solr.columns;
+
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import net.semanticmetadata.lire.solr.FeatureRegistry;
+import org.apache.lucene.index.DocValuesType;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.FilterLeafReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.util.StringHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Keeps track of the {@link FeatureColumn}s of the open index segments. Columns are bound to the segment core, so
+ * they are shared by all searchers using the segment and dropped when the segment is closed. The files are named
+ * after segment name, segment id and doc values generation, so a column is never used for other data than it has
+ * been built from and can be re-used after a restart.
+ * <p>
+ * Each column is built only once, concurrent requests for the same column wait for the first one to finish.
+ */
+public class FeatureColumnStore {
+    private static final Logger log = LoggerFactory.getLogger(FeatureColumnStore.class);
+
+    public static final String EXTENSION = ".lfc";
+    private static final Map<IndexReader.CacheKey, Map<String, Future<FeatureColumn>>> columns = new ConcurrentHashMap<>();
+
+    /**
+     * Returns a column if it has already been built, eg. by the {@link FeatureColumnWarmer}. Does never block.
+     *
+     * @param reader the segment
+     * @param field  the feature field, eg. cl_hi
+     * @return the column or null if there is none (yet).
+     */
+    public static FeatureColumn getColumn(LeafReader reader, String field) {
+        SegmentReader segmentReader = toSegmentReader(reader);
+        if (segmentReader == null) return null;
+        Map<String, Future<FeatureColumn>> segmentColumns = columns.get(segmentReader.getCoreCacheHelper().getKey());
+        if (segmentColumns == null) return null;
+        Future<FeatureColumn> future = segmentColumns.get(columnKey(segmentReader, field));
+        if (future == null || !future.isDone()) return null;
+        return getQuietly(future);
+    }
+
+    /**
+     * Returns the column of a segment, it is opened from or built to the given directory if needed.
+     *
+     * @param reader    the segment
+     * @param field     the feature field, eg. cl_hi
+     * @param directory the directory for the column files, typically in the data directory of the core.
+     * @return the column or null if no column can be created for the segment or field.
+     */
+    public static FeatureColumn getOrBuildColumn(LeafReader reader, String field, File directory) {
+        SegmentReader segmentReader = toSegmentReader(reader);
+        if (segmentReader == null || directory == null) return null;
+        Class<? extends GlobalFeature> featureClass = FeatureRegistry.getClassForFeatureField(field);
+        FieldInfo fieldInfo = segmentReader.getFieldInfos().fieldInfo(field);
+        if (featureClass == null || !VectorDistance.isSupported(featureClass)
+                || fieldInfo == null || fieldInfo.getDocValuesType() != DocValuesType.BINARY) {
+            return null;
+        }
+        IndexReader.CacheHelper cacheHelper = segmentReader.getCoreCacheHelper();
+        Map<String, Future<FeatureColumn>> segmentColumns = columns.computeIfAbsent(cacheHelper.getKey(), key -> {
+            cacheHelper.addClosedListener(columns::remove);
+            return new ConcurrentHashMap<>();
+        });
+        File file = new File(directory, fileName(segmentReader, field));
+        FutureTask<FeatureColumn> task = new FutureTask<>(() -> {
+            try {
+                FeatureColumn column = FeatureColumn.open(file, segmentReader.maxDoc());
+                if (column == null) {
+                    if (!directory.exists() && !directory.mkdirs()) {
+                        throw new IOException("Could not create directory " + directory.getAbsolutePath());
+                    }
+                    column = FeatureColumn.build(segmentReader, field, featureClass, file);
+                }
+                return column;
+            } catch (IOException | RuntimeException e) {
+                log.warn("Could not create feature column {}", file.getName(), e);
+                throw e;
+            }
+        });
+        String key = columnKey(segmentReader, field);
+        Future<FeatureColumn> future = segmentColumns.putIfAbsent(key, task);
+        if (future == null) {
+            future = task;
+            task.run();
+        }
+        FeatureColumn column = getQuietly(future);
+        // failures are not cached, eg. a full disk or a missing directory, the next request tries again.
+        if (column == null && future == task) segmentColumns.remove(key, task);
+        return column;
+    }
+
+    /**
+     * Deletes the column and graph files of segments which are not part of the index anymore.
+     *
+     * @param directory the directory of the column files.
+     * @param reader    the current (top level) reader of the index.
+     */
+    public static void removeStaleFiles(File directory, IndexReader reader) {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(EXTENSION) || name.endsWith(HnswGraphStore.EXTENSION));
+        if (files == null) return;
+        Set<String> prefixes = new HashSet<>();
+        for (LeafReaderContext context : reader.leaves()) {
+            SegmentReader segmentReader = toSegmentReader(context.reader());
+            if (segmentReader != null) prefixes.add(filePrefix(segmentReader));
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (!prefixes.contains(name.substring(0, Math.max(0, name.lastIndexOf('#') + 1)))) {
+                // on some platforms mapped files cannot be deleted, we'll try again next time.
+                file.delete();
+            }
+        }
+    }
+
+    static String fileName(SegmentReader segmentReader, String field) {
+        return filePrefix(segmentReader) + field + EXTENSION;
+    }
+
+    static String filePrefix(SegmentReader segmentReader) {
+        return segmentReader.getSegmentName() + '_' + StringHelper.idToString(segmentReader.getSegmentInfo().info.getId())
+                + '_' + segmentReader.getSegmentInfo().getDocValuesGen() + '#';
+    }
+
+    static String columnKey(SegmentReader segmentReader, String field) {
+        // doc values updates change the data but not the core.
+        return field + '#' + segmentReader.getSegmentInfo().getDocValuesGen();
+    }
+
+    static SegmentReader toSegmentReader(LeafReader reader) {
+        LeafReader unwrapped = FilterLeafReader.unwrap(reader);
+        return unwrapped instanceof SegmentReader ? (SegmentReader) unwrapped : null;
+    }
+
+    private static FeatureColumn getQuietly(Future<FeatureColumn> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            // the column cannot be used, the BinaryDocValues are taken instead.
+            return null;
+        }
+    }
+}
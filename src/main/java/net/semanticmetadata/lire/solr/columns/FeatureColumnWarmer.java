@@ -0,0 +1,69 @@
+package net.semanticmetadata.lire.solr.columns;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.AbstractSolrEventListener;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.search.SolrIndexSearcher;
+
+import java.io.File;
+
+/**
+ * Builds the {@link FeatureColumn}s of new segments before a searcher is registered, so the first queries do not
+ * have to wait for them. Add it as listener for the firstSearcher and newSearcher events in solrconfig.xml:
+ * <pre>
+ * &lt;listener event="newSearcher" class="net.semanticmetadata.lire.solr.columns.FeatureColumnWarmer"&gt;
+ *     &lt;str name="fields"&gt;cl_hi,ph_hi&lt;/str&gt;
+ * &lt;/listener&gt;
+ * </pre>
+ * With &lt;bool name="hnsw"&gt;true&lt;/bool&gt; the {@link HnswGraph}s of the fields are built as well, which is
+ * recommended for mode=hnsw as building a graph takes a lot longer than building a column. Column and graph files of
+ * segments not in the index anymore are removed afterwards.
+ */
+public class FeatureColumnWarmer extends AbstractSolrEventListener {
+    /**
+     * Name of the directory within the data directory of the core the column files are written to.
+     */
+    public static final String DEFAULT_DIRECTORY = "lire-columns";
+    private String[] fields = new String[0];
+    private boolean buildGraphs = false;
+
+    public FeatureColumnWarmer(SolrCore core) {
+        super(core);
+    }
+
+    /**
+     * @param core the core
+     * @return the directory the columns of the core are kept in.
+     */
+    public static File getColumnDirectory(SolrCore core) {
+        return new File(core.getDataDir(), DEFAULT_DIRECTORY);
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes") // the signature of AbstractSolrEventListener.
+    public void init(NamedList args) {
+        super.init(args);
+        Object fieldsArg = args.get("fields");
+        if (fieldsArg != null) {
+            fields = fieldsArg.toString().trim().split("\\s*,\\s*");
+        }
+        Object hnswArg = args.get("hnsw");
+        buildGraphs = hnswArg != null && Boolean.parseBoolean(hnswArg.toString());
+    }
+
+    @Override
+    public void newSearcher(SolrIndexSearcher newSearcher, SolrIndexSearcher currentSearcher) {
+        File directory = getColumnDirectory(getCore());
+        for (LeafReaderContext context : newSearcher.getIndexReader().leaves()) {
+            for (String field : fields) {
+                if (buildGraphs) {
+                    HnswGraphStore.getOrBuildGraph(context.reader(), field, directory);
+                } else {
+                    FeatureColumnStore.getOrBuildColumn(context.reader(), field, directory);
+                }
+            }
+        }
+        FeatureColumnStore.removeStaleFiles(directory, newSearcher.getIndexReader());
+    }
+}
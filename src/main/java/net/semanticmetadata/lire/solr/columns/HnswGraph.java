@@ -0,0 +1,498 @@
+package net.semanticmetadata.lire.solr.columns;
+
+import net.semanticmetadata.lire.solr.BoundedDistanceHeap;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.SparseFixedBitSet;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Hierarchical navigable small world graph (Malkov &amp; Yashunin, 2016) over the features of one field of one index
+ * segment. The nodes are the segment local document ids, the distances are the ones of the LIRE feature, computed
+ * with a {@link VectorDistance} on the vectors of a {@link FeatureColumn}. A k nearest neighbour search visits only a
+ * few hundred nodes instead of all documents or thousands of hash query candidates.
+ * <p>
+ * The graph is written to a file next to the column of the segment:
+ * <pre>
+ * header:  magic, version, maxDoc, m, entry point, maximum level (int each)
+ * level 0: one record per document: number of neighbours, up to 2 * m neighbours (int each)
+ * level i: number of nodes, then per node: node, number of neighbours, neighbours (int each)
+ * </pre>
+ * All values are little endian, documents without a value have no neighbours. Level 0 is memory mapped, the few
+ * nodes of the upper levels are kept on the heap. Graphs are immutable once built and can be searched by many threads
+ * at once.
+ */
+public class HnswGraph {
+    /**
+     * Maximum number of neighbours per node on the upper levels, twice as many on level 0.
+     */
+    public static final int DEFAULT_M = 16;
+    /**
+     * Size of the candidate list when inserting nodes, the higher the better the graph and the slower the build.
+     */
+    public static final int DEFAULT_EF_CONSTRUCTION = 100;
+    private static final int MAGIC = 0x4c484e31; // LHN1
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 24;
+    private static final int MAX_LEVEL = 16;
+    private static final long MAX_CHUNK_BYTES = 1L << 30;
+
+    private final FeatureColumn column;
+    private final Class<?> featureClass;
+    private final int maxDoc;
+    private final int m;
+    private final int recordInts;
+    private final int recordsPerChunk;
+    private final IntBuffer[] level0;
+    private final Map<Integer, int[]>[] upperLevels;
+    private int entryPoint = -1;
+    private int maxLevel = -1;
+
+    @SuppressWarnings({"unchecked", "rawtypes"}) // the array of the upper levels.
+    private HnswGraph(FeatureColumn column, Class<?> featureClass, int m, IntBuffer[] level0, int recordsPerChunk,
+                      int maxLevel) {
+        this.column = column;
+        this.featureClass = featureClass;
+        this.maxDoc = column.getMaxDoc();
+        this.m = m;
+        this.recordInts = 2 * m + 1;
+        this.level0 = level0;
+        this.recordsPerChunk = recordsPerChunk;
+        this.upperLevels = new Map[MAX_LEVEL];
+        for (int i = 0; i < MAX_LEVEL; i++) upperLevels[i] = new HashMap<>();
+        this.maxLevel = maxLevel;
+    }
+
+    /**
+     * Builds the graph of a segment by inserting all documents with a value in doc id order and writes it to a file.
+     * The file is written to a temporary file first and moved in place at the end.
+     *
+     * @param column         the decoded features of the segment
+     * @param featureClass   the LIRE feature class of the column, it has to be supported by {@link VectorDistance}.
+     * @param file           the target file
+     * @param m              the maximum number of neighbours per node, see {@link #DEFAULT_M}
+     * @param efConstruction see {@link #DEFAULT_EF_CONSTRUCTION}
+     * @return the graph, read from the file.
+     * @throws IOException
+     */
+    public static HnswGraph build(FeatureColumn column, Class<?> featureClass, File file, int m, int efConstruction) throws IOException {
+        return build(column, featureClass, file, m, efConstruction, MAX_CHUNK_BYTES);
+    }
+
+    /**
+     * Like {@link #build(FeatureColumn, Class, File, int, int)}, level 0 is kept in chunks of at most chunkBytes while
+     * building, so large segments do not need a single array of more than 2^31 ints.
+     */
+    static HnswGraph build(FeatureColumn column, Class<?> featureClass, File file, int m, int efConstruction,
+                           long chunkBytes) throws IOException {
+        int maxDoc = column.getMaxDoc();
+        long recordBytes = 4L * (2 * m + 1);
+        int recordsPerChunk = (int) Math.min(Math.max(1, maxDoc), Math.max(1, chunkBytes / recordBytes));
+        int numberOfChunks = Math.max(1, (int) ((maxDoc + (long) recordsPerChunk - 1) / recordsPerChunk));
+        IntBuffer[] heapLevel0 = new IntBuffer[numberOfChunks];
+        for (int i = 0; i < numberOfChunks; i++) {
+            long records = Math.max(1, Math.min(recordsPerChunk, maxDoc - (long) i * recordsPerChunk));
+            heapLevel0[i] = IntBuffer.wrap(new int[(int) (records * (2 * m + 1))]);
+        }
+        HnswGraph graph = new HnswGraph(column, featureClass, m, heapLevel0, recordsPerChunk, -1);
+        Random random = new Random(42L);
+        double levelFactor = 1d / Math.log(m);
+        float[] vector = new float[column.getDimensions()];
+        for (int doc = 0; doc < maxDoc; doc++) {
+            if (!column.read(doc, vector)) continue;
+            int level = Math.min(MAX_LEVEL, (int) (-Math.log(1d - random.nextDouble()) * levelFactor));
+            graph.insert(doc, level, efConstruction);
+        }
+        graph.write(file);
+        return open(file, column, featureClass);
+    }
+
+    /**
+     * Opens an existing graph file.
+     *
+     * @param file         the file
+     * @param column       the column of the segment the graph has been built for
+     * @param featureClass the LIRE feature class of the column
+     * @return the graph or null if the file does not exist or does not fit the column.
+     * @throws IOException
+     */
+    public static HnswGraph open(File file, FeatureColumn column, Class<?> featureClass) throws IOException {
+        if (!file.exists()) return null;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            if (channel.size() < HEADER_BYTES) return null;
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            channel.read(header, 0);
+            header.flip();
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) return null;
+            int maxDoc = header.getInt();
+            int m = header.getInt();
+            int entryPoint = header.getInt();
+            int maxLevel = header.getInt();
+            if (maxDoc != column.getMaxDoc() || m < 1 || maxLevel > MAX_LEVEL) return null;
+
+            long position = HEADER_BYTES;
+            long recordBytes = 4L * (2 * m + 1);
+            int recordsPerChunk = (int) Math.max(1, MAX_CHUNK_BYTES / recordBytes);
+            int numberOfChunks = Math.max(1, (maxDoc + recordsPerChunk - 1) / recordsPerChunk);
+            if (channel.size() < position + recordBytes * maxDoc) return null;
+            IntBuffer[] level0 = new IntBuffer[numberOfChunks];
+            for (int i = 0; i < numberOfChunks; i++) {
+                long records = Math.min(recordsPerChunk, maxDoc - (long) i * recordsPerChunk);
+                level0[i] = channel.map(FileChannel.MapMode.READ_ONLY, position + i * recordsPerChunk * recordBytes,
+                        records * recordBytes).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+            }
+            position += recordBytes * maxDoc;
+
+            HnswGraph graph = new HnswGraph(column, featureClass, m, level0, recordsPerChunk, maxLevel);
+            graph.entryPoint = entryPoint;
+            if (maxLevel > 0) {
+                IntBuffer upper = channel.map(FileChannel.MapMode.READ_ONLY, position, channel.size() - position)
+                        .order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+                for (int level = 1; level <= maxLevel; level++) {
+                    int nodes = upper.get();
+                    for (int i = 0; i < nodes; i++) {
+                        int node = upper.get();
+                        int[] neighbours = new int[m + 1];
+                        neighbours[0] = upper.get();
+                        upper.get(neighbours, 1, neighbours[0]);
+                        graph.upperLevels[level - 1].put(node, neighbours);
+                    }
+                }
+            }
+            return graph;
+        }
+    }
+
+    public int getMaxDoc() {
+        return maxDoc;
+    }
+
+    /**
+     * @return the dimensions of the vectors of the column the graph is built on.
+     */
+    public int getDimensions() {
+        return column.getDimensions();
+    }
+
+    /**
+     * Searches the k nearest neighbours of a query.
+     *
+     * @param query      the distance function of the query, it has to be the one of the feature class of the graph.
+     * @param k          the number of results
+     * @param ef         the size of the candidate list on level 0, the higher the better the recall. At least k.
+     * @param acceptDocs the segment local documents allowed as results, eg. the live docs, null for all.
+     * @param docBase    added to the document ids of the results, eg. the doc base of the segment.
+     * @return the nearest k accepted documents, not sorted.
+     */
+    public BoundedDistanceHeap search(VectorDistance query, int k, int ef, Bits acceptDocs, int docBase) {
+        BoundedDistanceHeap result = new BoundedDistanceHeap(k);
+        if (entryPoint < 0) return result;
+        float[] vector = new float[column.getDimensions()];
+        int entry = entryPoint;
+        double entryDistance = distance(query, entry, vector);
+        for (int level = maxLevel; level > 0; level--) {
+            entry = greedySearch(query, entry, entryDistance, level, vector);
+            entryDistance = distance(query, entry, vector);
+        }
+        BoundedDistanceHeap candidates = searchLevel(query, entry, entryDistance, Math.max(ef, k), 0, acceptDocs, vector);
+        for (int i = 0; i < candidates.size(); i++) {
+            result.offer(candidates.doc(i) + docBase, candidates.distance(i));
+        }
+        return result;
+    }
+
+    private void insert(int node, int level, int efConstruction) {
+        float[] vector = new float[column.getDimensions()];
+        VectorDistance query = nodeDistance(node, vector);
+        if (entryPoint < 0) {
+            for (int l = 1; l <= level; l++) setNeighbours(l, node, new int[maxConnections(l) + 1]);
+            entryPoint = node;
+            maxLevel = level;
+            return;
+        }
+        int entry = entryPoint;
+        double entryDistance = distance(query, entry, vector);
+        for (int l = maxLevel; l > level; l--) {
+            entry = greedySearch(query, entry, entryDistance, l, vector);
+            entryDistance = distance(query, entry, vector);
+        }
+        for (int l = Math.min(level, maxLevel); l >= 0; l--) {
+            BoundedDistanceHeap candidates = searchLevel(query, entry, entryDistance, efConstruction, l, null, vector);
+            candidates.sort();
+            int[] selected = selectNeighbours(candidates, maxConnections(l), vector);
+            int[] neighbours = new int[maxConnections(l) + 1];
+            System.arraycopy(selected, 0, neighbours, 0, selected.length);
+            setNeighbours(l, node, neighbours);
+            for (int i = 1; i <= selected[0]; i++) {
+                addLink(selected[i], node, l, vector);
+            }
+            entry = candidates.doc(0);
+            entryDistance = candidates.distance(0);
+        }
+        for (int l = maxLevel + 1; l <= level; l++) {
+            // the node is the only one on the new levels.
+            setNeighbours(l, node, new int[maxConnections(l) + 1]);
+        }
+        if (level > maxLevel) {
+            maxLevel = level;
+            entryPoint = node;
+        }
+    }
+
+    /**
+     * Adds the link from node to newNeighbour, the neighbours are pruned if there are too many.
+     */
+    private void addLink(int node, int newNeighbour, int level, float[] vector) {
+        int maxConnections = maxConnections(level);
+        int[] neighbours = getNeighbours(level, node);
+        if (neighbours[0] < maxConnections) {
+            neighbours[++neighbours[0]] = newNeighbour;
+            setNeighbours(level, node, neighbours);
+            return;
+        }
+        VectorDistance nodeDistance = nodeDistance(node, vector);
+        BoundedDistanceHeap candidates = new BoundedDistanceHeap(maxConnections + 1);
+        for (int i = 1; i <= neighbours[0]; i++) {
+            candidates.offer(neighbours[i], distance(nodeDistance, neighbours[i], vector));
+        }
+        candidates.offer(newNeighbour, distance(nodeDistance, newNeighbour, vector));
+        candidates.sort();
+        int[] selected = selectNeighbours(candidates, maxConnections, vector);
+        System.arraycopy(selected, 0, neighbours, 0, selected.length);
+        setNeighbours(level, node, neighbours);
+    }
+
+    /**
+     * Neighbour selection heuristic of the paper: a candidate is taken if it is nearer to the base node than to all
+     * neighbours selected so far, so the links point in different directions.
+     *
+     * @param candidates the candidates, sorted by ascending distance to the base node.
+     * @return the number of neighbours followed by the neighbours.
+     */
+    private int[] selectNeighbours(BoundedDistanceHeap candidates, int maxConnections, float[] vector) {
+        int[] selected = new int[Math.min(maxConnections, candidates.size()) + 1];
+        VectorDistance[] selectedDistances = new VectorDistance[selected.length - 1];
+        for (int i = 0; i < candidates.size() && selected[0] < selected.length - 1; i++) {
+            int candidate = candidates.doc(i);
+            double candidateDistance = candidates.distance(i);
+            boolean good = true;
+            for (int j = 0; j < selected[0] && good; j++) {
+                good = distance(selectedDistances[j], candidate, vector) > candidateDistance;
+            }
+            if (good) {
+                selectedDistances[selected[0]] = nodeDistance(candidate, vector);
+                selected[++selected[0]] = candidate;
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * Moves to the nearest neighbour as long as there is one nearer to the query.
+     *
+     * @return the node nearest to the query found.
+     */
+    private int greedySearch(VectorDistance query, int entry, double entryDistance, int level, float[] vector) {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            int current = entry;
+            int count = neighbourCount(level, current);
+            for (int i = 0; i < count; i++) {
+                int neighbour = neighbour(level, current, i);
+                double d = distance(query, neighbour, vector);
+                if (d < entryDistance) {
+                    entryDistance = d;
+                    entry = neighbour;
+                    changed = true;
+                }
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Best first search on one level.
+     *
+     * @return the nearest ef accepted nodes found, not sorted.
+     */
+    private BoundedDistanceHeap searchLevel(VectorDistance query, int entry, double entryDistance, int ef, int level,
+                                            Bits acceptDocs, float[] vector) {
+        BoundedDistanceHeap result = new BoundedDistanceHeap(ef);
+        NodeQueue candidates = new NodeQueue();
+        SparseFixedBitSet visited = new SparseFixedBitSet(Math.max(1, maxDoc));
+        visited.set(entry);
+        candidates.add(entry, entryDistance);
+        if (acceptDocs == null || acceptDocs.get(entry)) result.offer(entry, entryDistance);
+        while (candidates.size() > 0) {
+            double candidateDistance = candidates.topDistance();
+            if (result.isFull() && candidateDistance > result.worstDistance()) break;
+            int candidate = candidates.pop();
+            int count = neighbourCount(level, candidate);
+            for (int i = 0; i < count; i++) {
+                int neighbour = neighbour(level, candidate, i);
+                if (visited.get(neighbour)) continue;
+                visited.set(neighbour);
+                double d = distance(query, neighbour, vector);
+                if (!result.isFull() || d < result.worstDistance()) {
+                    candidates.add(neighbour, d);
+                    if (acceptDocs == null || acceptDocs.get(neighbour)) result.offer(neighbour, d);
+                }
+            }
+        }
+        return result;
+    }
+
+    private double distance(VectorDistance query, int node, float[] vector) {
+        column.read(node, vector);
+        return query.distance(vector);
+    }
+
+    private VectorDistance nodeDistance(int node, float[] vector) {
+        column.read(node, vector);
+        double[] v = new double[vector.length];
+        for (int i = 0; i < v.length; i++) v[i] = vector[i];
+        return VectorDistance.forVector(featureClass, v);
+    }
+
+    private int maxConnections(int level) {
+        return level == 0 ? 2 * m : m;
+    }
+
+    private int neighbourCount(int level, int node) {
+        if (level == 0) {
+            return level0[node / recordsPerChunk].get((node % recordsPerChunk) * recordInts);
+        }
+        int[] neighbours = upperLevels[level - 1].get(node);
+        return neighbours != null ? neighbours[0] : 0;
+    }
+
+    private int neighbour(int level, int node, int i) {
+        if (level == 0) {
+            return level0[node / recordsPerChunk].get((node % recordsPerChunk) * recordInts + 1 + i);
+        }
+        return upperLevels[level - 1].get(node)[1 + i];
+    }
+
+    private int[] getNeighbours(int level, int node) {
+        if (level == 0) {
+            int[] neighbours = new int[recordInts];
+            IntBuffer chunk = level0[node / recordsPerChunk];
+            int base = (node % recordsPerChunk) * recordInts;
+            for (int i = 0; i < recordInts; i++) neighbours[i] = chunk.get(base + i);
+            return neighbours;
+        }
+        return upperLevels[level - 1].get(node);
+    }
+
+    /**
+     * Only used while building, level 0 is on the heap then.
+     */
+    private void setNeighbours(int level, int node, int[] neighbours) {
+        if (level == 0) {
+            IntBuffer chunk = level0[node / recordsPerChunk];
+            int base = (node % recordsPerChunk) * recordInts;
+            for (int i = 0; i <= neighbours[0]; i++) chunk.put(base + i, neighbours[i]);
+        } else {
+            upperLevels[level - 1].put(node, neighbours);
+        }
+    }
+
+    private void write(File file) throws IOException {
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+            writeIntLE(out, MAGIC);
+            writeIntLE(out, VERSION);
+            writeIntLE(out, maxDoc);
+            writeIntLE(out, m);
+            writeIntLE(out, entryPoint);
+            writeIntLE(out, maxLevel);
+            // the chunks hold at most maxDoc records, the last one may be larger than needed.
+            long remaining = (long) maxDoc * recordInts;
+            for (IntBuffer chunk : level0) {
+                long ints = Math.min(remaining, chunk.capacity());
+                for (long i = 0; i < ints; i++) writeIntLE(out, chunk.get((int) i));
+                remaining -= ints;
+            }
+            for (int level = 1; level <= maxLevel; level++) {
+                writeIntLE(out, upperLevels[level - 1].size());
+                for (Map.Entry<Integer, int[]> entry : upperLevels[level - 1].entrySet()) {
+                    writeIntLE(out, entry.getKey());
+                    int[] neighbours = entry.getValue();
+                    for (int i = 0; i <= neighbours[0]; i++) writeIntLE(out, neighbours[i]);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tmp.toPath());
+            throw e;
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeIntLE(DataOutputStream out, int v) throws IOException {
+        out.writeInt(Integer.reverseBytes(v));
+    }
+
+    /**
+     * Min-heap of (node, distance) pairs on primitive arrays, the candidates of the best first search.
+     */
+    private static class NodeQueue {
+        private int[] nodes = new int[64];
+        private double[] distances = new double[64];
+        private int size = 0;
+
+        void add(int node, double distance) {
+            if (size == nodes.length) {
+                nodes = ArrayUtil.grow(nodes);
+                distances = ArrayUtil.growExact(distances, nodes.length);
+            }
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (distances[parent] <= distance) break;
+                nodes[i] = nodes[parent];
+                distances[i] = distances[parent];
+                i = parent;
+            }
+            nodes[i] = node;
+            distances[i] = distance;
+        }
+
+        int size() {
+            return size;
+        }
+
+        double topDistance() {
+            return distances[0];
+        }
+
+        int pop() {
+            int top = nodes[0];
+            int node = nodes[--size];
+            double distance = distances[size];
+            int i = 0;
+            while (true) {
+                int child = (i << 1) + 1;
+                if (child >= size) break;
+                if (child + 1 < size && distances[child + 1] < distances[child]) child++;
+                if (distances[child] >= distance) break;
+                nodes[i] = nodes[child];
+                distances[i] = distances[child];
+                i = child;
+            }
+            nodes[i] = node;
+            distances[i] = distance;
+            return top;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package net.semanticmetadata.lire.solr.columns;
+
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import net.semanticmetadata.lire.solr.BoundedDistanceHeap;
+import net.semanticmetadata.lire.solr.FeatureRegistry;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.util.Bits;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Keeps track of the {@link HnswGraph}s of the open index segments, just like the {@link FeatureColumnStore} does
+ * for the columns the graphs are built on. Graph files are named like the column files and are removed along with
+ * them by {@link FeatureColumnStore#removeStaleFiles(File, IndexReader)}. Graphs are not merged, the graph of a
+ * merged segment is built from scratch when the segment is first used, or by the {@link FeatureColumnWarmer}.
+ */
+public class HnswGraphStore {
+    private static final Logger log = LoggerFactory.getLogger(HnswGraphStore.class);
+
+    public static final String EXTENSION = ".hnsw";
+    private static final Map<IndexReader.CacheKey, Map<String, Future<HnswGraph>>> graphs = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the graph of a segment, it is opened from or built to the given directory if needed. The column of the
+     * segment is built as well if it does not exist yet.
+     *
+     * @param reader    the segment
+     * @param field     the feature field, eg. cl_hi
+     * @param directory the directory for the column and graph files, typically in the data directory of the core.
+     * @return the graph or null if no graph can be created for the segment or field.
+     */
+    public static HnswGraph getOrBuildGraph(LeafReader reader, String field, File directory) {
+        FeatureColumn column = FeatureColumnStore.getOrBuildColumn(reader, field, directory);
+        if (column == null) return null;
+        SegmentReader segmentReader = FeatureColumnStore.toSegmentReader(reader);
+        Class<? extends GlobalFeature> featureClass = FeatureRegistry.getClassForFeatureField(field);
+        IndexReader.CacheHelper cacheHelper = segmentReader.getCoreCacheHelper();
+        Map<String, Future<HnswGraph>> segmentGraphs = graphs.computeIfAbsent(cacheHelper.getKey(), key -> {
+            cacheHelper.addClosedListener(graphs::remove);
+            return new ConcurrentHashMap<>();
+        });
+        File file = new File(directory, FeatureColumnStore.filePrefix(segmentReader) + field + EXTENSION);
+        FutureTask<HnswGraph> task = new FutureTask<>(() -> {
+            try {
+                HnswGraph graph = HnswGraph.open(file, column, featureClass);
+                if (graph == null) {
+                    graph = HnswGraph.build(column, featureClass, file, HnswGraph.DEFAULT_M, HnswGraph.DEFAULT_EF_CONSTRUCTION);
+                }
+                return graph;
+            } catch (IOException | RuntimeException e) {
+                log.warn("Could not create HNSW graph {}", file.getName(), e);
+                throw e;
+            }
+        });
+        String key = FeatureColumnStore.columnKey(segmentReader, field);
+        Future<HnswGraph> future = segmentGraphs.putIfAbsent(key, task);
+        if (future == null) {
+            future = task;
+            task.run();
+        }
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            // failures are not cached, the next request tries again.
+            segmentGraphs.remove(key, task);
+            return null;
+        }
+    }
+
+    /**
+     * Searches the k nearest neighbours of a query in the graphs of all segments, one task per segment.
+     *
+     * @param searcher     the searcher
+     * @param field        the feature field, eg. cl_hi
+     * @param queryFeature the query
+     * @param k            the number of results
+     * @param ef           the size of the candidate list per segment, the higher the better the recall.
+     * @param filter       the documents allowed as results by global document id, eg. of the filter queries, null for all.
+     * @param directory    the directory for the column and graph files
+     * @param pool         the pool the searches are run on
+     * @return the nearest k live documents sorted by ascending distance, or null if the feature is not supported.
+     * @throws IOException
+     */
+    public static BoundedDistanceHeap search(IndexSearcher searcher, String field, GlobalFeature queryFeature, int k,
+                                             int ef, Bits filter, File directory, ForkJoinPool pool) throws IOException {
+        VectorDistance query = VectorDistance.forQuery(queryFeature);
+        if (query == null || queryFeature.getClass() != FeatureRegistry.getClassForFeatureField(field)) return null;
+        List<Callable<BoundedDistanceHeap>> tasks = new ArrayList<>();
+        for (LeafReaderContext context : searcher.getIndexReader().leaves()) {
+            tasks.add(() -> {
+                HnswGraph graph = getOrBuildGraph(context.reader(), field, directory);
+                // no graph means no document of the segment has a value.
+                if (graph == null || graph.getDimensions() != query.getDimensions()) return new BoundedDistanceHeap(0);
+                return graph.search(query, k, ef, acceptDocs(context, filter), context.docBase);
+            });
+        }
+        BoundedDistanceHeap result = new BoundedDistanceHeap(k);
+        for (Future<BoundedDistanceHeap> future : pool.invokeAll(tasks)) {
+            try {
+                result.addAll(future.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("HNSW search has been interrupted.", e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException("HNSW search failed.", e.getCause());
+            }
+        }
+        result.sort();
+        return result;
+    }
+
+    /**
+     * @return the live documents of the segment accepted by the filter, by segment local id, or null for all.
+     */
+    static Bits acceptDocs(LeafReaderContext context, Bits filter) {
+        Bits liveDocs = context.reader().getLiveDocs();
+        if (liveDocs == null && filter == null) return null;
+        int docBase = context.docBase;
+        int maxDoc = context.reader().maxDoc();
+        return new Bits() {
+            @Override
+            public boolean get(int index) {
+                return (liveDocs == null || liveDocs.get(index)) && (filter == null || filter.get(docBase + index));
+            }
+
+            @Override
+            public int length() {
+                return maxDoc;
+            }
+        };
+    }
+}
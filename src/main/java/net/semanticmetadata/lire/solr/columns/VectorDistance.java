@@ -0,0 +1,324 @@
+package net.semanticmetadata.lire.solr.columns;
+
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import net.semanticmetadata.lire.imageanalysis.features.global.*;
+import net.semanticmetadata.lire.imageanalysis.features.global.joint.JointHistogram;
+import net.semanticmetadata.lire.imageanalysis.features.global.spatialpyramid.SPCEDD;
+import net.semanticmetadata.lire.solr.features.DoubleFeatureCosineDistance;
+import net.semanticmetadata.lire.solr.features.ShortFeatureCosineDistance;
+import net.semanticmetadata.lire.utils.SerializationUtils;
+
+import static net.semanticmetadata.lire.solr.distance.FeatureConstants.*;
+
+/**
+ * Distance functions of the LIRE global features working on decoded feature vectors, like they are stored in a
+ * {@link FeatureColumn}. Each implementation reproduces the getDistance(...) method of the respective LIRE class,
+ * but on a plain float array, so no feature object has to be filled for a candidate.
+ * <p>
+ * Instances hold the decoded query and are not thread safe, as some of them keep temporary sums.
+ */
+public abstract class VectorDistance {
+    protected final double[] query;
+
+    protected VectorDistance(double[] query) {
+        this.query = query;
+    }
+
+    /**
+     * @return the length of the vectors this distance function works on.
+     */
+    public int getDimensions() {
+        return query.length;
+    }
+
+    /**
+     * Computes the distance between the query and a candidate vector. If the candidate is shorter than the query,
+     * missing values are treated as 0.
+     *
+     * @param candidate the decoded feature vector of the candidate, at least {@link #getDimensions()} long.
+     * @return the distance, just like LIRE's getDistance(...) would compute it.
+     */
+    public abstract double distance(float[] candidate);
+
+    /**
+     * Checks if a feature class can be used with decoded vectors.
+     *
+     * @param featureClass the LIRE feature class
+     * @return true if there is an implementation for the class.
+     */
+    public static boolean isSupported(Class<?> featureClass) {
+        return featureClass == CEDD.class || featureClass == FCTH.class || featureClass == JCD.class
+                || featureClass == SPCEDD.class || featureClass == PHOG.class || featureClass == EdgeHistogram.class
+                || featureClass == ColorLayout.class || featureClass == OpponentHistogram.class
+                || featureClass == ACCID.class || featureClass == FuzzyOpponentHistogram.class
+                || featureClass == JointHistogram.class || featureClass == AutoColorCorrelogram.class
+                || featureClass == ScalableColor.class || featureClass == GenericGlobalIntFeature.class
+                || featureClass == ShortFeatureCosineDistance.class || featureClass == DoubleFeatureCosineDistance.class;
+    }
+
+    /**
+     * Decodes a feature to the vector stored in a column.
+     *
+     * @param feature the feature, its class has to be supported.
+     * @return the vector
+     */
+    public static double[] toVector(GlobalFeature feature) {
+        if (feature instanceof ColorLayout) {
+            // only the coefficients used in the distance function, see ColorLayout.getSimilarity(...)
+            ColorLayout cl = (ColorLayout) feature;
+            double[] result = new double[CL_Y_COEFF + 2 * CL_C_COEFF];
+            for (int i = 0; i < Math.min(CL_Y_COEFF, cl.YCoeff.length); i++) result[i] = cl.YCoeff[i];
+            for (int i = 0; i < Math.min(CL_C_COEFF, cl.CbCoeff.length); i++) {
+                result[CL_Y_COEFF + i] = cl.CbCoeff[i];
+                result[CL_Y_COEFF + CL_C_COEFF + i] = cl.CrCoeff[i];
+            }
+            return result;
+        } else if (feature instanceof ScalableColor) {
+            // getFeatureVector() drops the header, so we take the serialized ints.
+            int[] data = SerializationUtils.toIntArray(feature.getByteArrayRepresentation());
+            double[] result = new double[data.length];
+            for (int i = 0; i < data.length; i++) result[i] = data[i];
+            return result;
+        }
+        return feature.getFeatureVector();
+    }
+
+    /**
+     * Creates the distance function for a query.
+     *
+     * @param queryFeature the query
+     * @return the distance function or null if the feature class is not supported.
+     */
+    public static VectorDistance forQuery(GlobalFeature queryFeature) {
+        if (!isSupported(queryFeature.getClass())) return null;
+        return forVector(queryFeature.getClass(), toVector(queryFeature));
+    }
+
+    /**
+     * Creates the distance function for a query given as decoded vector, eg. one read from a {@link FeatureColumn}.
+     *
+     * @param c     the feature class the vector has been decoded from
+     * @param query the vector, see {@link #toVector(GlobalFeature)}. It is not copied.
+     * @return the distance function or null if the feature class is not supported.
+     */
+    public static VectorDistance forVector(Class<?> c, double[] query) {
+        if (!isSupported(c)) return null;
+        if (c == CEDD.class || c == FCTH.class || c == JCD.class || c == SPCEDD.class) {
+            return new Tanimoto(query);
+        } else if (c == PHOG.class) {
+            return new L1(query, false);
+        } else if (c == GenericGlobalIntFeature.class) {
+            return new L1(query, true);
+        } else if (c == OpponentHistogram.class) {
+            return new JensenShannon(query, 1d);
+        } else if (c == ACCID.class || c == FuzzyOpponentHistogram.class || c == JointHistogram.class) {
+            return new JensenShannon(query, 2d);
+        } else if (c == AutoColorCorrelogram.class) {
+            return new FloatJensenShannon(query);
+        } else if (c == EdgeHistogram.class) {
+            return new EdgeHistogramDistance(query);
+        } else if (c == ColorLayout.class) {
+            return new ColorLayoutDistance(query);
+        } else if (c == ScalableColor.class) {
+            return new ScalableColorDistance(query);
+        } else {
+            return new Cosine(query);
+        }
+    }
+
+    /**
+     * Tanimoto coefficient on L1 normalized vectors as in CEDD, FCTH, JCD and SPCEDD.
+     */
+    static class Tanimoto extends VectorDistance {
+        private final double querySum;
+
+        Tanimoto(double[] query) {
+            super(query);
+            double sum = 0d;
+            for (double v : query) sum += v;
+            querySum = sum;
+        }
+
+        @Override
+        public double distance(float[] candidate) {
+            double candidateSum = 0d;
+            for (int i = 0; i < query.length; i++) candidateSum += candidate[i];
+            if (candidateSum == 0d && querySum == 0d) return 0d;
+            if (candidateSum == 0d || querySum == 0d) return 100d;
+            double dot = 0d, qq = 0d, cc = 0d;
+            for (int i = 0; i < query.length; i++) {
+                double c = candidate[i] / candidateSum;
+                double q = query[i] / querySum;
+                dot += c * q;
+                qq += q * q;
+                cc += c * c;
+            }
+            return 100d - 100d * (dot / (qq + cc - dot));
+        }
+    }
+
+    /**
+     * Sum of absolute differences, optionally divided by the dimension as in MetricsUtils.distL1(int[], int[])
+     */
+    static class L1 extends VectorDistance {
+        private final boolean mean;
+
+        L1(double[] query, boolean mean) {
+            super(query);
+            this.mean = mean;
+        }
+
+        @Override
+        public double distance(float[] candidate) {
+            double sum = 0d;
+            for (int i = 0; i < query.length; i++) sum += Math.abs(query[i] - candidate[i]);
+            return mean ? sum / query.length : sum;
+        }
+    }
+
+    /**
+     * Jensen-Shannon divergence as in MetricsUtils.jsd(...), the byte[] version lacks the division by two.
+     */
+    static class JensenShannon extends VectorDistance {
+        private final double divisor;
+
+        JensenShannon(double[] query, double divisor) {
+            super(query);
+            this.divisor = divisor;
+        }
+
+        @Override
+        public double distance(float[] candidate) {
+            double sum = 0d;
+            for (int i = 0; i < query.length; i++) {
+                double q = query[i], c = candidate[i];
+                sum += (q > 0d ? q / divisor * Math.log(2d * q / (q + c)) : 0d)
+                        + (c > 0d ? c / divisor * Math.log(2d * c / (q + c)) : 0d);
+            }
+            return sum;
+        }
+    }
+
+    /**
+     * The Jensen-Shannon divergence of the auto color correlogram, which is computed with float precision.
+     */
+    static class FloatJensenShannon extends VectorDistance {
+        private final float[] floatQuery;
+
+        FloatJensenShannon(double[] query) {
+            super(query);
+            floatQuery = new float[query.length];
+            for (int i = 0; i < query.length; i++) floatQuery[i] = (float) query[i];
+        }
+
+        @Override
+        public double distance(float[] candidate) {
+            float result = 0f;
+            for (int i = 0; i < floatQuery.length; i++) {
+                float q = floatQuery[i], c = candidate[i];
+                result = (float) (result + ((q > 0f ? (double) (q / 2f) * Math.log(2f * q / (q + c)) : 0d)
+                        + (c > 0f ? (double) (c / 2f) * Math.log(2f * c / (q + c)) : 0d)));
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Cosine distance like MetricsUtils.cosineDistance(...), the norm of the query is computed only once.
+     */
+    static class Cosine extends VectorDistance {
+        private final double queryNorm;
+
+        Cosine(double[] query) {
+            super(query);
+            double qq = 0d;
+            for (double v : query) qq += v * v;
+            queryNorm = qq;
+        }
+
+        @Override
+        public double distance(float[] candidate) {
+            double dot = 0d, cc = 0d;
+            for (int i = 0; i < query.length; i++) {
+                double c = candidate[i];
+                dot += query[i] * c;
+                cc += c * c;
+            }
+            if (queryNorm * cc > 0d) return 1d - dot / (Math.sqrt(queryNorm) * Math.sqrt(cc));
+            return 0d;
+        }
+    }
+
+    /**
+     * MPEG-7 edge histogram distance, see EdgeHistogramImplementation.calculateDistance(...)
+     */
+    static class EdgeHistogramDistance extends VectorDistance {
+        private final int[] bins;
+
+        EdgeHistogramDistance(double[] query) {
+            super(query);
+            bins = new int[query.length];
+            for (int i = 0; i < query.length; i++) bins[i] = (int) query[i];
+        }
+
+        @Override
+        public double distance(float[] candidate) {
+            double result = 0d;
+            for (int i = 0; i < bins.length; i++) {
+                result += Math.abs(edgeHistogramValue(i, bins[i]) - edgeHistogramValue(i, (int) candidate[i]));
+            }
+            for (int i = 0; i < 5; i++) {
+                result += 5d * Math.abs(bins[i] - (int) candidate[i]);
+            }
+            for (int i = 5; i < bins.length; i++) {
+                result += Math.abs(bins[i] - (int) candidate[i]);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * MPEG-7 color layout distance, see ColorLayout.getSimilarity(...)
+     */
+    static class ColorLayoutDistance extends VectorDistance {
+        ColorLayoutDistance(double[] query) {
+            super(query);
+        }
+
+        @Override
+        public double distance(float[] candidate) {
+            int sumY = 0, sumCb = 0, sumCr = 0;
+            for (int j = 0; j < CL_Y_COEFF; j++) {
+                int diff = (int) query[j] - (int) candidate[j];
+                sumY += colorLayoutWeight(0, j) * diff * diff;
+            }
+            for (int j = 0; j < CL_C_COEFF; j++) {
+                int diffCb = (int) query[CL_Y_COEFF + j] - (int) candidate[CL_Y_COEFF + j];
+                sumCb += colorLayoutWeight(1, j) * diffCb * diffCb;
+                int diffCr = (int) query[CL_Y_COEFF + CL_C_COEFF + j] - (int) candidate[CL_Y_COEFF + CL_C_COEFF + j];
+                sumCr += colorLayoutWeight(2, j) * diffCr * diffCr;
+            }
+            return Math.sqrt(sumY) + Math.sqrt(sumCb) + Math.sqrt(sumCr);
+        }
+    }
+
+    /**
+     * MPEG-7 scalable color distance, see ScalableColorImpl.getSimilarity(...). The first two values are the
+     * number of discarded bit planes and the number of coefficients, they have to match.
+     */
+    static class ScalableColorDistance extends VectorDistance {
+        ScalableColorDistance(double[] query) {
+            super(query);
+        }
+
+        @Override
+        public double distance(float[] candidate) {
+            if ((int) query[0] != (int) candidate[0] || (int) query[1] != (int) candidate[1]) return -1d;
+            int sum = 0;
+            for (int i = 2; i < 2 + (int) query[1] && i < query.length; i++) {
+                sum += Math.abs((int) candidate[i] - (int) query[i]);
+            }
+            return sum;
+        }
+    }
+}
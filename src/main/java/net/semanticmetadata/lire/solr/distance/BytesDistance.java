@@ -0,0 +1,31 @@
+package net.semanticmetadata.lire.solr.distance;
+
+/**
+ * Distance between a query feature, which has been decoded once, and the serialized form of a candidate feature as
+ * it is stored in the BinaryDocValues. Implementations read the bytes directly, so no feature object and no arrays
+ * are created per candidate. Instances are created per query with a {@link BytesDistanceFactory} and are not
+ * necessarily thread safe.
+ */
+public interface BytesDistance {
+    /**
+     * @param data   the bytes holding the serialized candidate feature, eg. BytesRef.bytes
+     * @param offset the start of the feature in data
+     * @param length the number of bytes of the feature
+     * @return the distance, just like LIRE's getDistance(...) would compute it for the deserialized feature.
+     */
+    double distance(byte[] data, int offset, int length);
+
+    /**
+     * Like {@link #distance(byte[], int, int)}, but the computation may stop as soon as it is clear that the
+     * candidate is farther away than maxDistance, eg. the k-th best distance so far when re-ranking.
+     *
+     * @param data        the bytes holding the serialized candidate feature, eg. BytesRef.bytes
+     * @param offset      the start of the feature in data
+     * @param length      the number of bytes of the feature
+     * @param maxDistance the distance beyond which the exact value is of no interest.
+     * @return the exact distance if it is not larger than maxDistance, otherwise any value larger than maxDistance.
+     */
+    default double distance(byte[] data, int offset, int length, double maxDistance) {
+        return distance(data, offset, length);
+    }
+}
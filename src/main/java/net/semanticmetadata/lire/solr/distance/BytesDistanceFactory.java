@@ -0,0 +1,16 @@
+package net.semanticmetadata.lire.solr.distance;
+
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+
+/**
+ * Creates the {@link BytesDistance} for a query. One factory is registered per feature code in the
+ * {@link net.semanticmetadata.lire.solr.FeatureRegistry}, see {@link BytesDistances} for the implementations of the
+ * features supported out of the box.
+ */
+public interface BytesDistanceFactory {
+    /**
+     * @param queryFeature the query, it is decoded once and not modified.
+     * @return the distance function for the query.
+     */
+    BytesDistance forQuery(GlobalFeature queryFeature);
+}
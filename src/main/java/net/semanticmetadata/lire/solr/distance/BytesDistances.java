@@ -0,0 +1,549 @@
+package net.semanticmetadata.lire.solr.distance;
+
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import net.semanticmetadata.lire.solr.columns.VectorDistance;
+import net.semanticmetadata.lire.solr.features.SparseVector;
+
+import static net.semanticmetadata.lire.solr.distance.FeatureConstants.*;
+
+/**
+ * The {@link BytesDistance} implementations for the features registered in the
+ * {@link net.semanticmetadata.lire.solr.FeatureRegistry}. Each of them decodes the serialized candidate on the fly,
+ * following the setByteArrayRepresentation(...) method of the respective LIRE class, and computes the distance
+ * like its getDistance(...) method does, in the same order of summation.
+ * <p>
+ * Where partial results allow to tell early that a candidate is farther away than a given maximum distance (sums of
+ * non negative terms, the Tanimoto coefficient with a bound on the remaining bins), the implementations stop there,
+ * see {@link BytesDistance#distance(byte[], int, int, double)}.
+ */
+public class BytesDistances {
+    /**
+     * CEDD and SPCEDD: two 4 bit values per byte, Tanimoto coefficient.
+     */
+    public static final BytesDistanceFactory CEDD = query -> new NibbleTanimoto(query, 1d);
+    /**
+     * FCTH: two 4 bit values per byte storing the doubled value, Tanimoto coefficient.
+     */
+    public static final BytesDistanceFactory FCTH = query -> new NibbleTanimoto(query, 0.5d);
+    /**
+     * JCD: run length encoded zeros, Tanimoto coefficient.
+     */
+    public static final BytesDistanceFactory JCD = JcdTanimoto::new;
+    /**
+     * PHOG: two 4 bit values per byte, L1 distance.
+     */
+    public static final BytesDistanceFactory PHOG = NibbleL1::new;
+    public static final BytesDistanceFactory EDGE_HISTOGRAM = EdgeHistogramDistance::new;
+    public static final BytesDistanceFactory COLOR_LAYOUT = ColorLayoutDistance::new;
+    /**
+     * OpponentHistogram: one value per byte, Jensen-Shannon divergence without the division by two.
+     */
+    public static final BytesDistanceFactory OPPONENT_HISTOGRAM = query -> new ByteJensenShannon(query, 1d);
+    /**
+     * FuzzyOpponentHistogram and JointHistogram: one value per byte, Jensen-Shannon divergence.
+     */
+    public static final BytesDistanceFactory BYTE_HISTOGRAM = query -> new ByteJensenShannon(query, 2d);
+    /**
+     * ACCID: one short (big endian) per value, Jensen-Shannon divergence.
+     */
+    public static final BytesDistanceFactory ACCID = ShortJensenShannon::new;
+    public static final BytesDistanceFactory AUTO_COLOR_CORRELOGRAM = NibbleFloatJensenShannon::new;
+    public static final BytesDistanceFactory SCALABLE_COLOR = ScalableColorDistance::new;
+    /**
+     * GenericGlobalIntFeature: ints (big endian), L1 distance divided by the dimension.
+     */
+    public static final BytesDistanceFactory GENERIC_INT = IntMeanL1::new;
+    /**
+     * ShortFeatureCosineDistance: shorts (big endian) [dimensions, index, value, index, value, ...], cosine distance.
+     */
+    public static final BytesDistanceFactory SPARSE_SHORT_COSINE = SparseShortCosine::new;
+    /**
+     * DoubleFeatureCosineDistance: doubles (big endian) [dimensions, index, value, ...], cosine distance.
+     */
+    public static final BytesDistanceFactory SPARSE_DOUBLE_COSINE = SparseDoubleCosine::new;
+
+    private static int readInt(byte[] data, int offset) {
+        return (data[offset] & 0xFF) << 24 | (data[offset + 1] & 0xFF) << 16 | (data[offset + 2] & 0xFF) << 8 | data[offset + 3] & 0xFF;
+    }
+
+    private static short readShort(byte[] data, int offset) {
+        return (short) ((data[offset] & 0xFF) << 8 | data[offset + 1] & 0xFF);
+    }
+
+    private static double readDouble(byte[] data, int offset) {
+        return Double.longBitsToDouble(((long) readInt(data, offset) << 32) | (readInt(data, offset + 4) & 0xFFFFFFFFL));
+    }
+
+    /**
+     * Tolerance for comparing lower bounds to the maximum distance, so rounding does not abandon a candidate which
+     * is exactly at the maximum distance.
+     */
+    private static final double BOUND_TOLERANCE = 1e-9;
+    /**
+     * Number of bins between two checks of the Tanimoto bound, computing the bound is not for free.
+     */
+    private static final int TANIMOTO_CHECK_INTERVAL = 16;
+
+    private static boolean isNonNegative(double[] values) {
+        for (double v : values) if (v < 0d) return false;
+        return true;
+    }
+
+    private static double tanimoto(double dot, double qq, double cc) {
+        return 100d - 100d * (dot / (qq + cc - dot));
+    }
+
+    /**
+     * The L1 normalized query of a Tanimoto distance along with what is needed to bound the distance while the
+     * candidate is read: the squared sum of all and of the remaining bins and the maximum of the remaining bins.
+     */
+    static class TanimotoQuery {
+        final double[] normalized;
+        final double sum, squaredSum;
+        final double[] remainingSquaredSum, remainingMax;
+
+        TanimotoQuery(double[] query) {
+            double s = 0d;
+            for (double v : query) s += v;
+            sum = s;
+            normalized = new double[query.length];
+            double qq = 0d;
+            for (int i = 0; i < query.length; i++) {
+                normalized[i] = query[i] / sum;
+                qq += normalized[i] * normalized[i];
+            }
+            squaredSum = qq;
+            remainingSquaredSum = new double[query.length + 1];
+            remainingMax = new double[query.length + 1];
+            for (int i = query.length - 1; i >= 0; i--) {
+                remainingSquaredSum[i] = remainingSquaredSum[i + 1] + normalized[i] * normalized[i];
+                remainingMax[i] = Math.max(remainingMax[i + 1], normalized[i]);
+            }
+        }
+
+        /**
+         * Lower bound of the distance after the first j bins. The dot product of the remaining bins is at most
+         * sqrt(remaining query squares) * remaining candidate mass (Cauchy-Schwarz, as the sum of squares of non
+         * negative values is at most the square of their sum) and at most the largest remaining query value times the
+         * remaining candidate mass. The coefficient grows with the dot product, and does not grow with the squared
+         * sum of the candidate, which is at least the partial one.
+         *
+         * @param j             the number of bins read
+         * @param dot           the partial dot product
+         * @param cc            the partial squared sum of the normalized candidate
+         * @param remainingMass the normalized mass of the candidate not read yet.
+         * @return the lower bound of the distance.
+         */
+        double lowerBound(int j, double dot, double cc, double remainingMass) {
+            if (remainingMass < 0d) remainingMass = 0d;
+            double maxDot = Math.min(Math.sqrt(remainingSquaredSum[j]), remainingMax[j]) * remainingMass;
+            double denominator = squaredSum + cc - dot - maxDot;
+            if (denominator <= 0d) return 0d;
+            return 100d - 100d * Math.min(1d, (dot + maxDot) / denominator);
+        }
+    }
+
+    static class NibbleTanimoto implements BytesDistance {
+        private final TanimotoQuery query;
+        private final double scale;
+
+        NibbleTanimoto(GlobalFeature queryFeature, double scale) {
+            query = new TanimotoQuery(VectorDistance.toVector(queryFeature));
+            this.scale = scale;
+        }
+
+        @Override
+        public double distance(byte[] data, int offset, int length) {
+            return distance(data, offset, length, Double.POSITIVE_INFINITY);
+        }
+
+        @Override
+        public double distance(byte[] data, int offset, int length, double maxDistance) {
+            double[] q = query.normalized;
+            int n = Math.min(length, (q.length + 1) >> 1);
+            int intSum = 0;
+            for (int i = offset; i < offset + n; i++) {
+                int tmp = data[i] + 128;
+                intSum += (tmp >> 4) + (tmp & 0xF);
+            }
+            double candidateSum = intSum * scale;
+            if (candidateSum == 0d && query.sum == 0d) return 0d;
+            if (candidateSum == 0d || query.sum == 0d) return 100d;
+            boolean bounded = maxDistance < 100d;
+            double dot = 0d, cc = 0d;
+            int j = 0, partialSum = 0;
+            for (int i = offset; i < offset + n; i++) {
+                int tmp = data[i] + 128;
+                double c = (tmp >> 4) * scale / candidateSum;
+                dot += c * q[j++];
+                cc += c * c;
+                if (j < q.length) {
+                    c = (tmp & 0xF) * scale / candidateSum;
+                    dot += c * q[j++];
+                    cc += c * c;
+                }
+                if (bounded && j % TANIMOTO_CHECK_INTERVAL == 0) {
+                    partialSum += (tmp >> 4) + (tmp & 0xF);
+                    double lowerBound = query.lowerBound(j, dot, cc, 1d - partialSum * scale / candidateSum);
+                    if (lowerBound - BOUND_TOLERANCE > maxDistance) return lowerBound;
+                } else {
+                    partialSum += (tmp >> 4) + (tmp & 0xF);
+                }
+            }
+            return tanimoto(dot, query.squaredSum, cc);
+        }
+    }
+
+    static class JcdTanimoto implements BytesDistance {
+        private final TanimotoQuery query;
+
+        JcdTanimoto(GlobalFeature queryFeature) {
+            query = new TanimotoQuery(queryFeature.getFeatureVector());
+        }
+
+        @Override
+        public double distance(byte[] data, int offset, int length) {
+            return distance(data, offset, length, Double.POSITIVE_INFINITY);
+        }
+
+        @Override
+        public double distance(byte[] data, int offset, int length, double maxDistance) {
+            double[] q = query.normalized;
+            double candidateSum = 0d;
+            for (int i = offset; i < offset + length; i++) {
+                if (data[i] > 0) candidateSum += data[i] / 2d;
+            }
+            if (candidateSum == 0d && query.sum == 0d) return 0d;
+            if (candidateSum == 0d || query.sum == 0d) return 100d;
+            boolean bounded = maxDistance < 100d;
+            double dot = 0d, cc = 0d, partialSum = 0d;
+            int j = 0;
+            for (int i = offset; i < offset + length && j < q.length; i++) {
+                if (data[i] > 0) {
+                    double c = data[i] / 2d / candidateSum;
+                    dot += q[j++] * c;
+                    cc += c * c;
+                    partialSum += data[i] / 2d;
+                    if (bounded && j % TANIMOTO_CHECK_INTERVAL == 0) {
+                        double lowerBound = query.lowerBound(j, dot, cc, 1d - partialSum / candidateSum);
+                        if (lowerBound - BOUND_TOLERANCE > maxDistance) return lowerBound;
+                    }
+                } else {
+                    // a run of zeros
+                    j = Math.min(q.length, j - data[i]);
+                }
+            }
+            return tanimoto(dot, query.squaredSum, cc);
+        }
+    }
+
+    static class NibbleL1 implements BytesDistance {
+        private final int[] query;
+
+        NibbleL1(GlobalFeature queryFeature) {
+            double[] vector = queryFeature.getFeatureVector();
+            query = new int[vector.length];
+            for (int i = 0; i < vector.length; i++) query[i] = (int) vector[i];
+        }
+
+        @Override
+        public double distance(byte[] data, int offset, int length) {
+            return distance(data, offset, length, Double.POSITIVE_INFINITY);
+        }
+
+        @Override
+        public double distance(byte[] data, int offset, int length, double maxDistance) {
+            double sum = 0d;
+            int j = 0;
+            for (int i = offset; i < offset + length && j < query.length; i++) {
+                int tmp = data[i] + 128;
+                sum += Math.abs(query[j++] - (tmp >> 4));
+                if (j < query.length) sum += Math.abs(query[j++] - (tmp & 0xF));
+                if (sum > maxDistance) return sum;
+            }
+            for (; j < query.length; j++) sum += Math.abs(query[j]);
+            return sum;
+        }
+    }
+
+    static class EdgeHistogramDistance implements BytesDistance {
+        private final int[] query;
+
+        EdgeHistogramDistance(GlobalFeature queryFeature) {
+            double[] vector = queryFeature.getFeatureVector();
+            query = new int[vector.length];
+            for (int i = 0; i < vector.length; i++) query[i] = (int) vector[i];
+        }
+
+        private static int bin(byte[] data, int offset, int length, int i) {
+            if (i >> 1 >= length) return 0;
+            int tmp = data[offset + (i >> 1)] + 128;
+            return (i & 1) == 0 ? tmp >> 4 : tmp & 0xF;
+        }
+
+        @Override
+        public double distance(byte[] data, int offset, int length) {
+            return distance(data, offset, length, Double.POSITIVE_INFINITY);
+        }
+
+        @Override
+        public double distance(byte[] data, int offset, int length, double maxDistance) {
+            double result = 0d;
+            for (int i = 0; i < query.length; i++) {
+                result += Math.abs(edgeHistogramValue(i, bin(data, offset, length, i)) - edgeHistogramValue(i, query[i]));
+            }
+            for (int i = 0; i <= 4; i++) {
+                result += 5d * Math.abs(bin(data, offset, length, i) - query[i]);
+            }
+            if (result > maxDistance) return result;
+            for (int i = 5; i < query.length; i++) {
+                result += Math.abs(bin(data, offset, length, i) - query[i]);
+                if (result > maxDistance) return result;
+            }
+            return result;
+        }
+    }
+
+    static class ColorLayoutDistance implements BytesDistance {
+        private final double[] query;
+
+        ColorLayoutDistance(GlobalFeature queryFeature) {
+            query = VectorDistance.toVector(queryFeature);
+        }
+
+        @Override
+        public double distance(byte[] data, int offset, int length) {
+            int numY = length > 0 ? data[offset] : 0, numC = length > 1 ? data[offset + 1] : 0;
+            int sumY = 0, sumCb = 0, sumCr = 0;
+            for (int j = 0; j < CL_Y_COEFF; j++) {
+                int diff = (int) query[j] - (j < numY ? data[offset + 2 + j] : 0);
+                sumY += colorLayoutWeight(0, j) * diff * diff;
+            }
+            for (int j = 0; j < CL_C_COEFF; j++) {
+                int diffCb = (int) query[CL_Y_COEFF + j] - (j < numC ? data[offset + 2 + numY + j] : 0);
+                sumCb += colorLayoutWeight(1, j) * diffCb * diffCb;
+                int diffCr = (int) query[CL_Y_COEFF + CL_C_COEFF + j] - (j < numC ? data[offset + 2 + numY + numC + j] : 0);
+                sumCr += colorLayoutWeight(2, j) * diffCr * diffCr;
+            }
+            return Math.sqrt(sumY) + Math.sqrt(sumCb) + Math.sqrt(sumCr);
+        }
+    }
+
+    static class ByteJensenShannon implements BytesDistance {
+        private final double[] query;
+        private final double divisor;
+
+        private final boolean nonNegative;
+
+        ByteJensenShannon(GlobalFeature queryFeature, double divisor) {
+            query = queryFeature.getFeatureVector();
+            this.divisor = divisor;
+            nonNegative = isNonNegative(query);
+        }
+
+        @Override
+        public double distance(byte[] data, int offset, int length) {
+            return distance(data, offset, length, Double.POSITIVE_INFINITY);
+        }
+
+        @Override
+        public double distance(byte[] data, int offset, int length, double maxDistance) {
+            // each bin adds a non negative value as long as there are no negative values.
+            if (!nonNegative) maxDistance = Double.POSITIVE_INFINITY;
+            double sum = 0d;
+            for (int i = 0; i < Math.min(length, query.length); i++) {
+                double c = data[offset + i], q = query[i];
+                if (c < 0d) maxDistance = Double.POSITIVE_INFINITY;
+                sum += (c > 0d ? c / divisor * Math.log(2d * c / (c + q)) : 0d)
+                        + (q > 0d ? q / divisor * Math.log(2d * q / (c + q)) : 0d);
+                if (sum > maxDistance) return sum;
+            }
+            return sum;
+        }
+    }
+
+    static class ShortJensenShannon implements BytesDistance {
+        private final double[] query;
+
+        private final boolean nonNegative;
+
+        ShortJensenShannon(GlobalFeature queryFeature) {
+            query = queryFeature.getFeatureVector();
+            nonNegative = isNonNegative(query);
+        }
+
+        @Override
+        public double distance(byte[] data, int offset, int length) {
+            return distance(data, offset, length, Double.POSITIVE_INFINITY);
+        }
+
+        @Override
+        public double distance(byte[] data, int offset, int length, double maxDistance) {
+            if (!nonNegative) maxDistance = Double.POSITIVE_INFINITY;
+            double sum = 0d;
+            for (int i = 0; i < query.length; i++) {
+                double q = query[i], c = 2 * i + 1 < length ? readShort(data, offset + 2 * i) : 0d;
+                if (c < 0d) maxDistance = Double.POSITIVE_INFINITY;
+                sum += (q > 0d ? q / 2d * Math.log(2d * q / (q + c)) : 0d)
+                        + (c > 0d ? c / 2d * Math.log(2d * c / (q + c)) : 0d);
+                if (sum > maxDistance) return sum;
+            }
+            return sum;
+        }
+    }
+
+    static class NibbleFloatJensenShannon implements BytesDistance {
+        private final float[] query;
+
+        private final boolean nonNegative;
+
+        NibbleFloatJensenShannon(GlobalFeature queryFeature) {
+            double[] vector = queryFeature.getFeatureVector();
+            query = new float[vector.length];
+            for (int i = 0; i < vector.length; i++) query[i] = (float) vector[i];
+            nonNegative = isNonNegative(vector);
+        }
+
+        @Override
+        public double distance(byte[] data, int offset, int length) {
+            return distance(data, offset, length, Double.POSITIVE_INFINITY);
+        }
+
+        @Override
+        public double distance(byte[] data, int offset, int length, double maxDistance) {
+            // the decoded candidate values are never negative.
+            if (!nonNegative) maxDistance = Double.POSITIVE_INFINITY;
+            float result = 0f;
+            for (int j = 0; j < query.length; j++) {
+                float q = query[j], c = 0f;
+                if (j >> 1 < length) {
+                    int tmp = data[offset + (j >> 1)] + 128;
+                    c = (j & 1) == 0 ? tmp >> 4 : tmp & 0xF;
+                }
+                result = (float) (result + ((q > 0f ? (double) (q / 2f) * Math.log(2f * q / (q + c)) : 0d)
+                        + (c > 0f ? (double) (c / 2f) * Math.log(2f * c / (q + c)) : 0d)));
+                if (result > maxDistance) return result;
+            }
+            return result;
+        }
+    }
+
+    static class ScalableColorDistance implements BytesDistance {
+        private final int[] query;
+
+        ScalableColorDistance(GlobalFeature queryFeature) {
+            double[] vector = VectorDistance.toVector(queryFeature);
+            query = new int[vector.length];
+            for (int i = 0; i < vector.length; i++) query[i] = (int) vector[i];
+        }
+
+        @Override
+        public double distance(byte[] data, int offset, int length) {
+            if (length < 8 || readInt(data, offset) != query[0] || readInt(data, offset + 4) != query[1]) return -1d;
+            int sum = 0;
+            for (int i = 2; i < 2 + query[1] && i < query.length && 4 * i + 3 < length; i++) {
+                sum += Math.abs(readInt(data, offset + 4 * i) - query[i]);
+            }
+            return sum;
+        }
+    }
+
+    static class IntMeanL1 implements BytesDistance {
+        private final int[] query;
+
+        IntMeanL1(GlobalFeature queryFeature) {
+            double[] vector = queryFeature.getFeatureVector();
+            query = new int[vector.length];
+            for (int i = 0; i < vector.length; i++) query[i] = (int) vector[i];
+        }
+
+        @Override
+        public double distance(byte[] data, int offset, int length) {
+            return distance(data, offset, length, Double.POSITIVE_INFINITY);
+        }
+
+        @Override
+        public double distance(byte[] data, int offset, int length, double maxDistance) {
+            int n = length >> 2;
+            double sum = 0d, maxSum = maxDistance * n;
+            for (int i = 0; i < n; i++) {
+                sum += Math.abs(readInt(data, offset + 4 * i) - (i < query.length ? query[i] : 0));
+                if (sum > maxSum && sum / n > maxDistance) return sum / n;
+            }
+            return sum / n;
+        }
+    }
+
+    /**
+     * Cosine distance of sparse features: the non zero dimensions of the query are normalized once, the candidate's
+     * index/value pairs are merge joined with them in the order they are serialized, ie. ascending index.
+     */
+    abstract static class SparseCosine implements BytesDistance {
+        private final int[] queryIndexes;
+        private final double[] queryValues;
+        private final int headerBytes, pairBytes;
+
+        SparseCosine(GlobalFeature queryFeature, int valueBytes) {
+            SparseVector query = SparseVector.fromDense(queryFeature.getFeatureVector());
+            queryIndexes = new int[query.size()];
+            queryValues = new double[query.size()];
+            for (int i = 0; i < query.size(); i++) {
+                queryIndexes[i] = query.getIndex(i);
+                queryValues[i] = query.getValue(i) / query.getNorm();
+            }
+            headerBytes = valueBytes;
+            pairBytes = 2 * valueBytes;
+        }
+
+        abstract int readIndex(byte[] data, int offset);
+
+        abstract double readValue(byte[] data, int offset);
+
+        @Override
+        public double distance(byte[] data, int offset, int length) {
+            double dot = 0d, cc = 0d;
+            int j = 0;
+            for (int i = offset + headerBytes; i + pairBytes <= offset + length; i += pairBytes) {
+                int index = readIndex(data, i);
+                double value = readValue(data, i + headerBytes);
+                cc += value * value;
+                while (j < queryIndexes.length && queryIndexes[j] < index) j++;
+                if (j < queryIndexes.length && queryIndexes[j] == index) dot += queryValues[j] * value;
+            }
+            if (queryIndexes.length > 0 && cc > 0d) return 1d - dot / Math.sqrt(cc);
+            return 0d;
+        }
+    }
+
+    static class SparseShortCosine extends SparseCosine {
+        SparseShortCosine(GlobalFeature queryFeature) {
+            super(queryFeature, 2);
+        }
+
+        @Override
+        int readIndex(byte[] data, int offset) {
+            return readShort(data, offset);
+        }
+
+        @Override
+        double readValue(byte[] data, int offset) {
+            return readShort(data, offset);
+        }
+    }
+
+    static class SparseDoubleCosine extends SparseCosine {
+        SparseDoubleCosine(GlobalFeature queryFeature) {
+            super(queryFeature, 8);
+        }
+
+        @Override
+        int readIndex(byte[] data, int offset) {
+            return (int) readDouble(data, offset);
+        }
+
+        @Override
+        double readValue(byte[] data, int offset) {
+            return readDouble(data, offset);
+        }
+    }
+}
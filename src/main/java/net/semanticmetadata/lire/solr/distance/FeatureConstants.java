@@ -0,0 +1,48 @@
+package net.semanticmetadata.lire.solr.distance;
+
+/**
+ * Constants of the LIRE features the distance functions of {@link BytesDistances} and
+ * {@link net.semanticmetadata.lire.solr.columns.VectorDistance} need, but which are private in LIRE. Kept in one place,
+ * so they cannot get out of sync. The tables are not exposed as arrays, as these could be modified.
+ */
+public final class FeatureConstants {
+    /**
+     * Number of coefficients actually compared by ColorLayout for deserialized features.
+     */
+    public static final int CL_Y_COEFF = 21, CL_C_COEFF = 6;
+    private static final int[][] CL_WEIGHTS = new int[][]{
+            {2, 2, 2, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1},
+            {2, 1, 1, 1, 1, 1},
+            {4, 2, 2, 1, 1, 1}
+    };
+    /**
+     * Copy of the quantization table of the MPEG-7 edge histogram.
+     */
+    private static final double[][] EH_QUANT_TABLE = new double[][]{
+            {0.010867, 0.057915, 0.099526, 0.144849, 0.195573, 0.260504, 0.358031, 0.530128},
+            {0.012266, 0.069934, 0.125879, 0.182307, 0.243396, 0.314563, 0.411728, 0.564319},
+            {0.004193, 0.025852, 0.04686, 0.068519, 0.093286, 0.12349, 0.161505, 0.22896},
+            {0.004174, 0.025924, 0.046232, 0.067163, 0.089655, 0.115391, 0.151904, 0.217745},
+            {0.006778, 0.051667, 0.10865, 0.166257, 0.224226, 0.285691, 0.356375, 0.450972}};
+
+    private FeatureConstants() {
+    }
+
+    /**
+     * @param component   0 for Y, 1 for Cb and 2 for Cr
+     * @param coefficient the index of the coefficient, less than {@link #CL_Y_COEFF} or {@link #CL_C_COEFF}.
+     * @return the weight of the coefficient in the ColorLayout distance.
+     */
+    public static int colorLayoutWeight(int component, int coefficient) {
+        return CL_WEIGHTS[component][coefficient];
+    }
+
+    /**
+     * @param bin   the bin of the edge histogram, 0 to 79.
+     * @param value the quantized value of the bin, 0 to 7.
+     * @return the value of the bin the EdgeHistogram distance is computed on.
+     */
+    public static double edgeHistogramValue(int bin, int value) {
+        return EH_QUANT_TABLE[bin % 5][value];
+    }
+}
@@ -13,11 +13,39 @@ import java.util.LinkedList;
  * GenericGlobalDoubleFeature but with cosine coefficient based distance function.
  */
 public class DoubleFeatureCosineDistance extends GenericGlobalDoubleFeature {
+    /**
+     * The non zero dimensions, created on first use and reset if the data is set. Note that changes to the array
+     * given to {@link #setData(double[])} afterwards are not reflected.
+     */
+    private SparseVector sparseVector = null;
+
     @Override
     public double getDistance(LireFeature feature) {
+        if (feature instanceof DoubleFeatureCosineDistance) {
+            // merge join on the non zero dimensions only.
+            return getSparseVector().cosineDistance(((DoubleFeatureCosineDistance) feature).getSparseVector());
+        }
         return MetricsUtils.cosineDistance(getFeatureVector(), feature.getFeatureVector());
     }
 
+    /**
+     * @return the non zero dimensions of the feature.
+     */
+    public SparseVector getSparseVector() {
+        SparseVector result = sparseVector;
+        if (result == null) {
+            result = SparseVector.fromDense(getFeatureVector());
+            sparseVector = result;
+        }
+        return result;
+    }
+
+    @Override
+    public void setData(double[] data) {
+        super.setData(data);
+        sparseVector = null;
+    }
+
     @Override
     public byte[] getByteArrayRepresentation() {
         int numDimensions = 0;
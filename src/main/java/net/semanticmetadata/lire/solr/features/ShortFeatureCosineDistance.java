@@ -17,11 +17,38 @@ import java.util.LinkedList;
  * representation for sparse vectors.
  */
 public class ShortFeatureCosineDistance extends GenericGlobalShortFeature {
+    /**
+     * The non zero dimensions, created on first use and reset if the data changes.
+     */
+    private SparseVector sparseVector = null;
+
     @Override
     public double getDistance(LireFeature feature) {
+        if (feature instanceof ShortFeatureCosineDistance) {
+            // merge join on the non zero dimensions only.
+            return getSparseVector().cosineDistance(((ShortFeatureCosineDistance) feature).getSparseVector());
+        }
         return MetricsUtils.cosineDistance(getFeatureVector(), feature.getFeatureVector());
     }
 
+    /**
+     * @return the non zero dimensions of the feature.
+     */
+    public SparseVector getSparseVector() {
+        SparseVector result = sparseVector;
+        if (result == null) {
+            result = SparseVector.fromDense(data);
+            sparseVector = result;
+        }
+        return result;
+    }
+
+    @Override
+    public void setData(short[] data) {
+        super.setData(data);
+        sparseVector = null;
+    }
+
     @Override
     public byte[] getByteArrayRepresentation() {
         int numDimensions = 0;
@@ -51,6 +78,7 @@ public class ShortFeatureCosineDistance extends GenericGlobalShortFeature {
     @Override
     public void setByteArrayRepresentation(byte[] featureData, int offset, int length) {
         short[] s = SerializationUtils.toShortArray(featureData, offset, length);
+        sparseVector = null;
         data = new short[s[0]];
         for (int i = 1; i < s.length; i+=2) {
             data[s[i]] = s[i+1];
@@ -0,0 +1,107 @@
+package net.semanticmetadata.lire.solr.features;
+
+import java.util.Arrays;
+
+/**
+ * The non zero dimensions of a feature vector as ascending indexes and their values, along with the L2 norm. Used
+ * for the cosine distance of sparse features, which then only has to look at the non zero dimensions of both vectors
+ * in a merge join instead of running over all dimensions. Instances are immutable.
+ */
+public class SparseVector {
+    private final int[] indexes;
+    private final double[] values;
+    private final double norm;
+
+    private SparseVector(int[] indexes, double[] values, int size) {
+        this.indexes = size == indexes.length ? indexes : Arrays.copyOf(indexes, size);
+        this.values = size == values.length ? values : Arrays.copyOf(values, size);
+        double sum = 0d;
+        for (int i = 0; i < size; i++) sum += values[i] * values[i];
+        norm = Math.sqrt(sum);
+    }
+
+    /**
+     * @param data the dense vector
+     * @return the sparse form of the vector.
+     */
+    public static SparseVector fromDense(double[] data) {
+        int size = 0;
+        for (double v : data) if (v != 0d) size++;
+        int[] indexes = new int[size];
+        double[] values = new double[size];
+        size = 0;
+        for (int i = 0; i < data.length; i++) {
+            if (data[i] != 0d) {
+                indexes[size] = i;
+                values[size++] = data[i];
+            }
+        }
+        return new SparseVector(indexes, values, size);
+    }
+
+    /**
+     * @param data the dense vector
+     * @return the sparse form of the vector.
+     */
+    public static SparseVector fromDense(short[] data) {
+        int size = 0;
+        for (short v : data) if (v != 0) size++;
+        int[] indexes = new int[size];
+        double[] values = new double[size];
+        size = 0;
+        for (int i = 0; i < data.length; i++) {
+            if (data[i] != 0) {
+                indexes[size] = i;
+                values[size++] = data[i];
+            }
+        }
+        return new SparseVector(indexes, values, size);
+    }
+
+    public int size() {
+        return indexes.length;
+    }
+
+    public int getIndex(int i) {
+        return indexes[i];
+    }
+
+    public double getValue(int i) {
+        return values[i];
+    }
+
+    /**
+     * @return the L2 norm of the vector.
+     */
+    public double getNorm() {
+        return norm;
+    }
+
+    /**
+     * Cosine distance like MetricsUtils.cosineDistance(...), 0 if one of the vectors is all zeros.
+     *
+     * @param other the vector to compare to
+     * @return 1 - cosine coefficient
+     */
+    public double cosineDistance(SparseVector other) {
+        if (norm * other.norm > 0d) {
+            return 1d - dot(other) / (norm * other.norm);
+        }
+        return 0d;
+    }
+
+    private double dot(SparseVector other) {
+        double dot = 0d;
+        int i = 0, j = 0;
+        while (i < indexes.length && j < other.indexes.length) {
+            if (indexes[i] < other.indexes[j]) {
+                i++;
+            } else if (indexes[i] > other.indexes[j]) {
+                j++;
+            } else {
+                dot += values[i++] * other.values[j++];
+            }
+        }
+        return dot;
+    }
+}
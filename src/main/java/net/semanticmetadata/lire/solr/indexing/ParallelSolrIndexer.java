@@ -47,8 +47,12 @@ import net.semanticmetadata.lire.imageanalysis.features.global.PHOG;
 import net.semanticmetadata.lire.indexers.hashing.BitSampling;
 import net.semanticmetadata.lire.indexers.hashing.MetricSpaces;
 import net.semanticmetadata.lire.indexers.parallel.WorkItem;
+import net.semanticmetadata.lire.solr.BitSamplingSignature;
 import net.semanticmetadata.lire.solr.FeatureRegistry;
 import net.semanticmetadata.lire.solr.HashingMetricSpacesManager;
+import net.semanticmetadata.lire.solr.columns.VectorDistance;
+import net.semanticmetadata.lire.solr.quantization.CoarseQuantizer;
+import net.semanticmetadata.lire.solr.quantization.ProductQuantizer;
 import net.semanticmetadata.lire.utils.ImageUtils;
 
 import javax.imageio.ImageIO;
@@ -78,6 +82,11 @@ import java.util.concurrent.LinkedBlockingQueue;
  * <li> -a ... use both BitSampling and MetricSpaces.</li>
  * <li> -l ... disables BitSampling and uses MetricSpaces instead.</li>
  * <li> -r ... defines a class implementing net.semanticmetadata.lire.solr.indexing.ImageDataProcessor that provides additional fields.</li>
+ * <li> -s ... adds the BitSampling hashes as packed signature (*_bs) for the Hamming distance based candidate search.</li>
+ * <li> -q &lt;directory&gt; ... adds a product quantization code (*_pq) for every feature with a quantizer in the directory,
+ * see {@link net.semanticmetadata.lire.solr.tools.ProductQuantizerTrainer}.</li>
+ * <li> -c &lt;directory&gt; ... adds the inverted file cluster id (*_iv) for every feature with a coarse quantizer in the
+ * directory, see {@link net.semanticmetadata.lire.solr.tools.CoarseQuantizerTrainer}.</li>
  * </ul>
  * <p>
  * TODO: Make feature list change-able
@@ -96,6 +105,7 @@ public class ParallelSolrIndexer implements Runnable {
     private static int numberOfThreads = 8;
 
     private boolean useMetricSpaces = false, useBitSampling = true;
+    private boolean useSignatures = false;
 
     LinkedBlockingQueue<WorkItem> images = new LinkedBlockingQueue<WorkItem>(maxCacheSize);
     boolean ended = false;
@@ -109,6 +119,8 @@ public class ParallelSolrIndexer implements Runnable {
     private int maxSideLength = 512;
     private boolean isPreprocessing = true;
     private Class imageDataProcessor = null;
+    private HashMap<String, ProductQuantizer> quantizers = new HashMap<String, ProductQuantizer>();
+    private HashMap<String, CoarseQuantizer> clusters = new HashMap<String, CoarseQuantizer>();
 
     public ParallelSolrIndexer() {
         // default constructor.
@@ -189,6 +201,18 @@ public class ParallelSolrIndexer implements Runnable {
                         }
                     }
                 }
+            } else if (arg.startsWith("-q")) {
+                // directory with product quantizers
+                if ((i + 1) < args.length)
+                    e.setQuantizerDirectory(new File(args[i + 1]));
+                else printHelp();
+            } else if (arg.startsWith("-c")) {
+                // directory with coarse quantizers
+                if ((i + 1) < args.length)
+                    e.setClusterDirectory(new File(args[i + 1]));
+                else printHelp();
+            } else if (arg.startsWith("-s")) {
+                e.setUseSignatures(true);
             } else if (arg.startsWith("-p")) {
                 e.setPreprocessing(true);
             } else if (arg.startsWith("-a")) {
@@ -221,8 +245,8 @@ public class ParallelSolrIndexer implements Runnable {
     private static void printHelp() {
         System.out.println("This help text is shown if you start the ParallelSolrIndexer with the '-h' option.\n" +
                 "\n" +
-                "$> ParallelSolrIndexer -i <infile> [-o <outfile>] [-n <threads>] [-f] [-p] [-l] [-a] [-m <max_side_length>] [-r <full class name>] \\\\ \n" +
-                "         [-y <list of feature classes>]\n" +
+                "$> ParallelSolrIndexer -i <infile> [-o <outfile>] [-n <threads>] [-f] [-p] [-l] [-a] [-s] [-m <max_side_length>] [-r <full class name>] \\\\ \n" +
+                "         [-y <list of feature classes>] [-q <quantizer directory>] [-c <cluster directory>]\n" +
                 "\n" +
                 "Note: if you don't specify an outfile just \".xml\" is appended to the input image for output. So there will be one XML\n" +
                 "file per image. Specifying an outfile will collect the information of all images in one single file.\n" +
@@ -232,11 +256,16 @@ public class ParallelSolrIndexer implements Runnable {
                 "-p ... enables image processing before indexing (despeckle, trim white space)\n" +
                 "-a ... use both BitSampling and MetricSpaces.\n" +
                 "-l ... disables BitSampling and uses MetricSpaces instead.\n" +
+                "-s ... adds the BitSampling hash bits packed in a *_bs field for mode=hamming.\n" +
                 "-m ... maximum side length of images when indexed. All bigger files are scaled down. default is 512.\n" +
                 "-r ... defines a class implementing net.semanticmetadata.lire.solr.indexing.ImageDataProcessor\n" +
                 "       that provides additional fields.\n" +
                 "-y ... defines which feature classes are to be extracted. default is \"-y ph,cl,eh,jc\". \"-y ce,ac\" would \n" +
-                "       add to the other four features. ");
+                "       add to the other four features. \n" +
+                "-q ... directory with product quantizers (<code>.pq) created by the ProductQuantizerTrainer. For each\n" +
+                "       feature with a quantizer the code is added in a *_pq field.\n" +
+                "-c ... directory with coarse quantizers (<code>.ivf) created by the CoarseQuantizerTrainer. For each\n" +
+                "       feature with a quantizer the id of the nearest cluster is added in a *_iv field.");
     }
 
     public static String arrayToString(int[] array) {
@@ -275,6 +304,30 @@ public class ParallelSolrIndexer implements Runnable {
         this.outFile = outFile;
     }
 
+    /**
+     * Loads the product quantizers of a directory, features with a quantizer get an additional *_pq field.
+     *
+     * @param quantizerDirectory the directory with the &lt;code&gt;.pq files
+     */
+    public void setQuantizerDirectory(File quantizerDirectory) {
+        quantizers = ProductQuantizer.loadAll(quantizerDirectory);
+        if (quantizers.isEmpty()) {
+            System.err.println("No product quantizers found in " + quantizerDirectory.getPath());
+        }
+    }
+
+    /**
+     * Loads the coarse quantizers of a directory, features with a quantizer get an additional *_iv field.
+     *
+     * @param clusterDirectory the directory with the &lt;code&gt;.ivf files
+     */
+    public void setClusterDirectory(File clusterDirectory) {
+        clusters = CoarseQuantizer.loadAll(clusterDirectory);
+        if (clusters.isEmpty()) {
+            System.err.println("No coarse quantizers found in " + clusterDirectory.getPath());
+        }
+    }
+
     public void setImageDataProcessor(Class imageDataProcessor) {
         this.imageDataProcessor = imageDataProcessor;
     }
@@ -376,6 +429,13 @@ public class ParallelSolrIndexer implements Runnable {
         this.useBitSampling = !useMetricSpaces;
     }
 
+    /**
+     * @param useSignatures true to add the BitSampling hash bits packed in *_bs fields, see {@link BitSamplingSignature}.
+     */
+    public void setUseSignatures(boolean useSignatures) {
+        this.useSignatures = useSignatures;
+    }
+
     public boolean isPreprocessing() {
         return isPreprocessing;
     }
@@ -563,11 +623,29 @@ public class ParallelSolrIndexer implements Runnable {
                                     sb.append(arrayToString(BitSampling.generateHashes(feature.getFeatureVector())));
                                     sb.append("</field>");
                                 }
+                                if (useSignatures) {
+                                    sb.append("<field name=\"" + FeatureRegistry.codeToSignatureField(featureCode) + "\">");
+                                    sb.append(Base64.getEncoder().encodeToString(BitSamplingSignature.toBytes(
+                                            BitSamplingSignature.generateSignature(feature.getFeatureVector()))));
+                                    sb.append("</field>");
+                                }
                                 if (useMetricSpaces && MetricSpaces.supportsFeature(feature)) {
                                     sb.append("<field name=\"" + metricSpacesField + "\">");
                                     sb.append(MetricSpaces.generateHashString(feature));
                                     sb.append("</field>");
                                 }
+                                ProductQuantizer quantizer = quantizers.get(featureCode);
+                                if (quantizer != null) {
+                                    sb.append("<field name=\"" + FeatureRegistry.codeToQuantizedField(featureCode) + "\">");
+                                    sb.append(Base64.getEncoder().encodeToString(quantizer.encode(VectorDistance.toVector(feature))));
+                                    sb.append("</field>");
+                                }
+                                CoarseQuantizer coarseQuantizer = clusters.get(featureCode);
+                                if (coarseQuantizer != null) {
+                                    sb.append("<field name=\"" + FeatureRegistry.codeToClusterField(featureCode) + "\">");
+                                    sb.append(coarseQuantizer.assign(VectorDistance.toVector(feature)));
+                                    sb.append("</field>");
+                                }
                             }
                         }
                         sb.append("</doc>\n");
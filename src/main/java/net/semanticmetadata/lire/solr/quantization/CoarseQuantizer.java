@@ -0,0 +1,241 @@
+package net.semanticmetadata.lire.solr.quantization;
+
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import net.semanticmetadata.lire.solr.FeatureRegistry;
+import net.semanticmetadata.lire.solr.columns.VectorDistance;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Coarse quantizer of an inverted file index: k-means clusters of the features of one feature field. In contrast to
+ * the {@link ProductQuantizer} the clusters are built with the distance function of the LIRE feature (see
+ * {@link VectorDistance}), so it works for every registered feature and a cluster contains the features that are
+ * near by the distance used for the results. Every document is indexed with the id of its cluster, a query then
+ * retrieves the documents of the nprobe clusters nearest to it as candidates. The number of candidates is
+ * predictable, about nprobe / k of the index.
+ * <p>
+ * Quantizers are trained with {@link #train(Class, List, int, int, long)} and stored in files named &lt;code&gt;.ivf,
+ * eg. ce.ivf for CEDD, see {@link net.semanticmetadata.lire.solr.tools.CoarseQuantizerTrainer}.
+ */
+public class CoarseQuantizer {
+    private static final Logger log = LoggerFactory.getLogger(CoarseQuantizer.class);
+
+    public static final String FILE_EXTENSION = ".ivf";
+    private static final int MAGIC = 0x4c495631; // LIV1
+    private static final int VERSION = 1;
+
+    private final Class<? extends GlobalFeature> featureClass;
+    private final int dimensions;
+    private final float[][] centroids;
+
+    private CoarseQuantizer(Class<? extends GlobalFeature> featureClass, int dimensions, float[][] centroids) {
+        this.featureClass = featureClass;
+        this.dimensions = dimensions;
+        this.centroids = centroids;
+    }
+
+    /**
+     * Trains the clusters with k-means, vectors are assigned to the centroid nearest by the distance of the feature.
+     *
+     * @param featureClass the LIRE feature class the vectors have been decoded from, it has to be supported by
+     *                     {@link VectorDistance}.
+     * @param vectors      the training vectors, see {@link VectorDistance#toVector(GlobalFeature)}.
+     * @param k            the number of clusters, limited to the number of vectors.
+     * @param iterations   the maximum number of k-means iterations.
+     * @param seed         seed for picking the initial centroids.
+     * @return the trained quantizer
+     */
+    public static CoarseQuantizer train(Class<? extends GlobalFeature> featureClass, List<double[]> vectors, int k,
+                                        int iterations, long seed) {
+        if (vectors.isEmpty() || !VectorDistance.isSupported(featureClass)) {
+            throw new IllegalArgumentException("No training vectors given or feature not supported.");
+        }
+        int n = vectors.size();
+        int dimensions = vectors.get(0).length;
+        k = Math.max(1, Math.min(k, n));
+        Random random = new Random(seed);
+        // initial centroids are randomly picked training vectors.
+        int[] permutation = new int[n];
+        for (int i = 0; i < n; i++) permutation[i] = i;
+        float[][] centroids = new float[k][];
+        for (int c = 0; c < k; c++) {
+            int j = c + random.nextInt(n - c);
+            int tmp = permutation[c];
+            permutation[c] = permutation[j];
+            permutation[j] = tmp;
+            centroids[c] = toFloats(vectors.get(permutation[c]), dimensions);
+        }
+        CoarseQuantizer quantizer = new CoarseQuantizer(featureClass, dimensions, centroids);
+        int[] assignment = new int[n];
+        Arrays.fill(assignment, -1);
+        double[][] sums = new double[k][dimensions];
+        int[] counts = new int[k];
+        for (int iteration = 0; iteration < iterations; iteration++) {
+            int changed = 0;
+            for (int j = 0; j < n; j++) {
+                int nearest = quantizer.assign(vectors.get(j));
+                if (nearest != assignment[j]) {
+                    assignment[j] = nearest;
+                    changed++;
+                }
+            }
+            if (changed == 0) break;
+            for (double[] sum : sums) Arrays.fill(sum, 0d);
+            Arrays.fill(counts, 0);
+            for (int j = 0; j < n; j++) {
+                double[] v = vectors.get(j);
+                int c = assignment[j];
+                counts[c]++;
+                for (int i = 0; i < Math.min(dimensions, v.length); i++) sums[c][i] += v[i];
+            }
+            for (int c = 0; c < k; c++) {
+                if (counts[c] > 0) {
+                    for (int i = 0; i < dimensions; i++) centroids[c][i] = (float) (sums[c][i] / counts[c]);
+                } else {
+                    // empty cluster, re-seed it with a random training vector.
+                    centroids[c] = toFloats(vectors.get(random.nextInt(n)), dimensions);
+                }
+            }
+        }
+        return quantizer;
+    }
+
+    private static float[] toFloats(double[] vector, int dimensions) {
+        float[] result = new float[dimensions];
+        for (int i = 0; i < Math.min(dimensions, vector.length); i++) result[i] = (float) vector[i];
+        return result;
+    }
+
+    public Class<? extends GlobalFeature> getFeatureClass() {
+        return featureClass;
+    }
+
+    public int getNumberOfClusters() {
+        return centroids.length;
+    }
+
+    /**
+     * @param cluster the id of the cluster
+     * @return a copy of the centroid of the cluster
+     */
+    public float[] getCentroid(int cluster) {
+        return centroids[cluster].clone();
+    }
+
+    /**
+     * @param vector the decoded feature, see {@link VectorDistance#toVector(GlobalFeature)}
+     * @return the id of the nearest cluster.
+     */
+    public int assign(double[] vector) {
+        return nearest(vector, 1)[0];
+    }
+
+    /**
+     * @param vector the decoded feature, see {@link VectorDistance#toVector(GlobalFeature)}
+     * @param n      the number of clusters
+     * @return the ids of the n nearest clusters, the nearest one first.
+     */
+    public int[] nearest(double[] vector, int n) {
+        VectorDistance distance = VectorDistance.forVector(featureClass,
+                vector.length == dimensions ? vector : Arrays.copyOf(vector, dimensions));
+        n = Math.max(1, Math.min(n, centroids.length));
+        int[] result = new int[n];
+        double[] distances = new double[n];
+        int size = 0;
+        for (int c = 0; c < centroids.length; c++) {
+            double d = distance.distance(centroids[c]);
+            if (size < n || d < distances[size - 1]) {
+                // insertion into the sorted top n, n is small.
+                int i = size < n ? size++ : size - 1;
+                while (i > 0 && distances[i - 1] > d) {
+                    result[i] = result[i - 1];
+                    distances[i] = distances[i - 1];
+                    i--;
+                }
+                result[i] = c;
+                distances[i] = d;
+            }
+        }
+        return result;
+    }
+
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeUTF(featureClass.getName());
+        out.writeInt(dimensions);
+        out.writeInt(centroids.length);
+        for (float[] centroid : centroids) {
+            for (float v : centroid) out.writeFloat(v);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public static CoarseQuantizer read(DataInput in) throws IOException {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            throw new IOException("Not a coarse quantizer or unsupported version.");
+        }
+        String className = in.readUTF();
+        Class<? extends GlobalFeature> featureClass;
+        try {
+            featureClass = (Class<? extends GlobalFeature>) Class.forName(className);
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Unknown feature class " + className, e);
+        }
+        int dimensions = in.readInt();
+        int k = in.readInt();
+        if (k < 1 || dimensions < 0) {
+            throw new IOException("Invalid coarse quantizer header.");
+        }
+        float[][] centroids = new float[k][dimensions];
+        for (float[] centroid : centroids) {
+            for (int i = 0; i < dimensions; i++) centroid[i] = in.readFloat();
+        }
+        return new CoarseQuantizer(featureClass, dimensions, centroids);
+    }
+
+    public void save(File file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            write(out);
+        }
+    }
+
+    public static CoarseQuantizer load(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            return read(in);
+        }
+    }
+
+    /**
+     * Loads all the quantizers of a directory, files of feature classes not registered for the code are skipped.
+     *
+     * @param directory the directory holding the &lt;code&gt;.ivf files
+     * @return the quantizers by feature code, eg. "ce", empty if there are none.
+     */
+    public static HashMap<String, CoarseQuantizer> loadAll(File directory) {
+        HashMap<String, CoarseQuantizer> quantizers = new HashMap<>();
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(FILE_EXTENSION));
+        if (files == null) return quantizers;
+        for (File file : files) {
+            String name = file.getName();
+            String code = name.substring(0, name.length() - FILE_EXTENSION.length());
+            try {
+                CoarseQuantizer quantizer = load(file);
+                if (quantizer.getFeatureClass() == FeatureRegistry.getClassForCode(code)) {
+                    quantizers.put(code, quantizer);
+                } else {
+                    log.warn("Coarse quantizer {} is not for the feature {}", file.getPath(), code);
+                }
+            } catch (IOException e) {
+                log.warn("Could not load coarse quantizer {}", file.getPath(), e);
+            }
+        }
+        return quantizers;
+    }
+}
@@ -0,0 +1,289 @@
+package net.semanticmetadata.lire.solr.quantization;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Product quantizer for the feature vectors of one feature field. The vector is cut into a number of consecutive
+ * sub spaces and each sub space is quantized with its own k-means codebook of up to {@link #CENTROIDS} centroids, so
+ * the code of a vector is one byte per sub space, eg. 16 bytes instead of the 1-2 kB of a serialized CEDD.
+ * <p>
+ * At query time a table with the squared euclidean distances of the query's sub vectors to all the centroids is
+ * computed once, see {@link #distanceTable(double[])}. The (asymmetric) distance of the query to an encoded vector is
+ * then just the sum of one table lookup per byte of the code, see {@link #distance(float[], byte[], int, int)}. This
+ * approximates the euclidean distance and not the distance function of the LIRE feature, so it is used to pick
+ * the candidates that are re-ranked with the actual distance, not to rank the results.
+ * <p>
+ * Quantizers are trained with {@link #train(List, int, int, long)} and stored in files named &lt;code&gt;.pq, eg.
+ * ce.pq for CEDD, see {@link net.semanticmetadata.lire.solr.tools.ProductQuantizerTrainer}.
+ */
+public class ProductQuantizer {
+    private static final Logger log = LoggerFactory.getLogger(ProductQuantizer.class);
+
+    /**
+     * Maximum number of centroids per sub space, so a code fits in one byte.
+     */
+    public static final int CENTROIDS = 256;
+    public static final String FILE_EXTENSION = ".pq";
+    private static final int MAGIC = 0x4c505131; // LPQ1
+    private static final int VERSION = 1;
+
+    private final int dimensions;
+    /**
+     * The first dimension of each sub space, offsets[m] is the number of dimensions.
+     */
+    private final int[] offsets;
+    private final int numberOfCentroids;
+    /**
+     * centroids[s][c * subDimensions + i] is dimension i of centroid c of sub space s.
+     */
+    private final float[][] centroids;
+
+    private ProductQuantizer(int dimensions, int[] offsets, int numberOfCentroids, float[][] centroids) {
+        this.dimensions = dimensions;
+        this.offsets = offsets;
+        this.numberOfCentroids = numberOfCentroids;
+        this.centroids = centroids;
+    }
+
+    /**
+     * Trains a quantizer with k-means (Lloyd's algorithm) in every sub space.
+     *
+     * @param vectors    the training vectors, shorter vectors are padded with zeros, longer ones are cut off.
+     * @param subspaces  the number of sub spaces, ie. the number of bytes per code. Limited to the dimensions.
+     * @param iterations the maximum number of k-means iterations per sub space.
+     * @param seed       seed for picking the initial centroids.
+     * @return the trained quantizer
+     */
+    public static ProductQuantizer train(List<double[]> vectors, int subspaces, int iterations, long seed) {
+        if (vectors.isEmpty()) {
+            throw new IllegalArgumentException("No training vectors given.");
+        }
+        int dimensions = vectors.get(0).length;
+        int m = Math.max(1, Math.min(subspaces, dimensions));
+        int[] offsets = new int[m + 1];
+        for (int s = 0; s <= m; s++) {
+            // dimensions are spread as evenly as possible.
+            offsets[s] = (int) ((long) s * dimensions / m);
+        }
+        int k = Math.min(CENTROIDS, vectors.size());
+        Random random = new Random(seed);
+        float[][] centroids = new float[m][];
+        for (int s = 0; s < m; s++) {
+            centroids[s] = kMeans(vectors, offsets[s], offsets[s + 1], k, iterations, random);
+        }
+        return new ProductQuantizer(dimensions, offsets, k, centroids);
+    }
+
+    private static float[] kMeans(List<double[]> vectors, int from, int to, int k, int iterations, Random random) {
+        int n = vectors.size();
+        int d = to - from;
+        float[] centroids = new float[k * d];
+        // initial centroids are randomly picked training vectors.
+        int[] permutation = new int[n];
+        for (int i = 0; i < n; i++) permutation[i] = i;
+        for (int c = 0; c < k; c++) {
+            int j = c + random.nextInt(n - c);
+            int tmp = permutation[c];
+            permutation[c] = permutation[j];
+            permutation[j] = tmp;
+            double[] v = vectors.get(permutation[c]);
+            for (int i = 0; i < d; i++) centroids[c * d + i] = (float) value(v, from + i);
+        }
+        int[] assignment = new int[n];
+        Arrays.fill(assignment, -1);
+        double[] sums = new double[k * d];
+        int[] counts = new int[k];
+        for (int iteration = 0; iteration < iterations; iteration++) {
+            int changed = 0;
+            for (int j = 0; j < n; j++) {
+                int nearest = nearest(centroids, k, d, vectors.get(j), from);
+                if (nearest != assignment[j]) {
+                    assignment[j] = nearest;
+                    changed++;
+                }
+            }
+            if (changed == 0) break;
+            Arrays.fill(sums, 0d);
+            Arrays.fill(counts, 0);
+            for (int j = 0; j < n; j++) {
+                double[] v = vectors.get(j);
+                int c = assignment[j];
+                counts[c]++;
+                for (int i = 0; i < d; i++) sums[c * d + i] += value(v, from + i);
+            }
+            for (int c = 0; c < k; c++) {
+                if (counts[c] > 0) {
+                    for (int i = 0; i < d; i++) centroids[c * d + i] = (float) (sums[c * d + i] / counts[c]);
+                } else {
+                    // empty cluster, re-seed it with a random training vector.
+                    double[] v = vectors.get(random.nextInt(n));
+                    for (int i = 0; i < d; i++) centroids[c * d + i] = (float) value(v, from + i);
+                }
+            }
+        }
+        return centroids;
+    }
+
+    private static int nearest(float[] centroids, int k, int d, double[] vector, int from) {
+        int nearest = 0;
+        double best = Double.MAX_VALUE;
+        for (int c = 0; c < k; c++) {
+            double sum = 0d;
+            for (int i = 0; i < d && sum < best; i++) {
+                double diff = value(vector, from + i) - centroids[c * d + i];
+                sum += diff * diff;
+            }
+            if (sum < best) {
+                best = sum;
+                nearest = c;
+            }
+        }
+        return nearest;
+    }
+
+    private static double value(double[] vector, int i) {
+        return i < vector.length ? vector[i] : 0d;
+    }
+
+    public int getDimensions() {
+        return dimensions;
+    }
+
+    /**
+     * @return the number of sub spaces, ie. the length of a code in bytes.
+     */
+    public int getSubspaces() {
+        return offsets.length - 1;
+    }
+
+    /**
+     * Encodes a vector with the index of the nearest centroid in each sub space.
+     *
+     * @param vector the vector, shorter vectors are padded with zeros, longer ones are cut off.
+     * @return the code, one byte per sub space.
+     */
+    public byte[] encode(double[] vector) {
+        byte[] code = new byte[getSubspaces()];
+        for (int s = 0; s < code.length; s++) {
+            code[s] = (byte) nearest(centroids[s], numberOfCentroids, offsets[s + 1] - offsets[s], vector, offsets[s]);
+        }
+        return code;
+    }
+
+    /**
+     * Computes the squared euclidean distances of the sub vectors of the query to all the centroids.
+     *
+     * @param query the query vector
+     * @return the table for {@link #distance(float[], byte[], int, int)}, {@link #CENTROIDS} entries per sub space.
+     */
+    public float[] distanceTable(double[] query) {
+        int m = getSubspaces();
+        float[] table = new float[m * CENTROIDS];
+        // unused entries are never looked up for valid codes, but should not be a match for broken ones.
+        Arrays.fill(table, Float.MAX_VALUE);
+        for (int s = 0; s < m; s++) {
+            int d = offsets[s + 1] - offsets[s];
+            for (int c = 0; c < numberOfCentroids; c++) {
+                double sum = 0d;
+                for (int i = 0; i < d; i++) {
+                    double diff = value(query, offsets[s] + i) - centroids[s][c * d + i];
+                    sum += diff * diff;
+                }
+                table[s * CENTROIDS + c] = (float) sum;
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Asymmetric distance of the query a table has been computed for to an encoded vector.
+     *
+     * @param table  the result of {@link #distanceTable(double[])}
+     * @param code   the bytes holding the code, eg. BytesRef.bytes
+     * @param offset the start of the code
+     * @param length the length of the code, it has to be the number of sub spaces.
+     * @return the approximated squared euclidean distance, Double.POSITIVE_INFINITY if the length does not match.
+     */
+    public static double distance(float[] table, byte[] code, int offset, int length) {
+        if (length * CENTROIDS != table.length) {
+            return Double.POSITIVE_INFINITY;
+        }
+        double sum = 0d;
+        for (int s = 0; s < length; s++) {
+            sum += table[s * CENTROIDS + (code[offset + s] & 0xff)];
+        }
+        return sum;
+    }
+
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(dimensions);
+        out.writeInt(getSubspaces());
+        out.writeInt(numberOfCentroids);
+        for (int offset : offsets) out.writeInt(offset);
+        for (float[] c : centroids) {
+            for (float v : c) out.writeFloat(v);
+        }
+    }
+
+    public static ProductQuantizer read(DataInput in) throws IOException {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            throw new IOException("Not a product quantizer or unsupported version.");
+        }
+        int dimensions = in.readInt();
+        int m = in.readInt();
+        int numberOfCentroids = in.readInt();
+        if (m < 1 || numberOfCentroids < 1 || numberOfCentroids > CENTROIDS) {
+            throw new IOException("Invalid product quantizer header.");
+        }
+        int[] offsets = new int[m + 1];
+        for (int s = 0; s <= m; s++) offsets[s] = in.readInt();
+        float[][] centroids = new float[m][];
+        for (int s = 0; s < m; s++) {
+            centroids[s] = new float[numberOfCentroids * (offsets[s + 1] - offsets[s])];
+            for (int i = 0; i < centroids[s].length; i++) centroids[s][i] = in.readFloat();
+        }
+        return new ProductQuantizer(dimensions, offsets, numberOfCentroids, centroids);
+    }
+
+    public void save(File file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            write(out);
+        }
+    }
+
+    public static ProductQuantizer load(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            return read(in);
+        }
+    }
+
+    /**
+     * Loads all the quantizers of a directory.
+     *
+     * @param directory the directory holding the &lt;code&gt;.pq files
+     * @return the quantizers by feature code, eg. "ce", empty if there are none.
+     */
+    public static HashMap<String, ProductQuantizer> loadAll(File directory) {
+        HashMap<String, ProductQuantizer> quantizers = new HashMap<>();
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(FILE_EXTENSION));
+        if (files == null) return quantizers;
+        for (File file : files) {
+            try {
+                String name = file.getName();
+                quantizers.put(name.substring(0, name.length() - FILE_EXTENSION.length()), load(file));
+            } catch (IOException e) {
+                log.warn("Could not load product quantizer {}", file.getPath(), e);
+            }
+        }
+        return quantizers;
+    }
+}
@@ -0,0 +1,79 @@
+package net.semanticmetadata.lire.solr.tools;
+
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import net.semanticmetadata.lire.solr.FeatureRegistry;
+import net.semanticmetadata.lire.solr.columns.VectorDistance;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.*;
+import java.util.*;
+
+/**
+ * Takes a uniform random sample (reservoir sampling) of the features in the XML output of the
+ * {@link net.semanticmetadata.lire.solr.indexing.ParallelSolrIndexer}, used to train quantizers. The file is
+ * streamed, so it may be larger than the heap.
+ */
+public class FeatureSampler {
+    /**
+     * @param infile     the XML file created by the ParallelSolrIndexer
+     * @param codes      the feature codes to sample, all features found in the file if empty.
+     * @param sampleSize the maximum number of vectors per feature
+     * @return the decoded vectors (see {@link VectorDistance#toVector(GlobalFeature)}) by feature code.
+     * @throws IOException
+     * @throws XMLStreamException
+     */
+    public static Map<String, List<double[]>> sample(File infile, Set<String> codes, int sampleSize) throws IOException, XMLStreamException {
+        Map<String, List<double[]>> samples = new TreeMap<>();
+        Map<String, Integer> seen = new HashMap<>();
+        Map<String, GlobalFeature> features = new HashMap<>();
+        Random random = new Random(42L);
+        StringBuilder sb = new StringBuilder();
+        String code = null;
+        try (InputStream in = new BufferedInputStream(new FileInputStream(infile))) {
+            XMLStreamReader r = XMLInputFactory.newInstance().createXMLStreamReader(in);
+            while (r.hasNext()) {
+                int state = r.next();
+                if (state == XMLStreamReader.START_ELEMENT && r.getLocalName().equals("field")) {
+                    String name = r.getAttributeValue(null, "name");
+                    code = null;
+                    if (name != null && name.endsWith(FeatureRegistry.featureFieldPostfix)) {
+                        String c = name.substring(0, name.length() - FeatureRegistry.featureFieldPostfix.length());
+                        if (FeatureRegistry.getClassForCode(c) != null && (codes.isEmpty() || codes.contains(c))) {
+                            code = c;
+                            sb.setLength(0);
+                        }
+                    }
+                } else if (state == XMLStreamReader.CHARACTERS && code != null) {
+                    sb.append(r.getText());
+                } else if (state == XMLStreamReader.END_ELEMENT && code != null) {
+                    int count = seen.merge(code, 1, Integer::sum);
+                    List<double[]> sample = samples.computeIfAbsent(code, k -> new ArrayList<>());
+                    int slot = count <= sampleSize ? -1 : random.nextInt(count);
+                    if (count <= sampleSize || slot < sampleSize) {
+                        double[] vector = decode(features, code, sb.toString().trim());
+                        if (slot < 0) sample.add(vector);
+                        else sample.set(slot, vector);
+                    }
+                    code = null;
+                }
+            }
+            r.close();
+        }
+        return samples;
+    }
+
+    private static double[] decode(Map<String, GlobalFeature> features, String code, String base64) {
+        GlobalFeature feature = features.computeIfAbsent(code, c -> {
+            try {
+                return FeatureRegistry.getClassForCode(c).getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        feature.setByteArrayRepresentation(Base64.getDecoder().decode(base64));
+        // the vector is copied, as some features hand out their internal arrays.
+        return VectorDistance.toVector(feature).clone();
+    }
+}
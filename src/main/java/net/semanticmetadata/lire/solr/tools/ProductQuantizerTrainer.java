@@ -0,0 +1,104 @@
+package net.semanticmetadata.lire.solr.tools;
+
+import net.semanticmetadata.lire.solr.FeatureRegistry;
+import net.semanticmetadata.lire.solr.quantization.ProductQuantizer;
+import org.apache.commons.cli.*;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Trains a {@link ProductQuantizer} per feature field from the XML output of the
+ * {@link net.semanticmetadata.lire.solr.indexing.ParallelSolrIndexer}. A random sample of the *_hi fields is taken
+ * for each feature with the {@link FeatureSampler} and the quantizers are written to &lt;outdir&gt;/&lt;code&gt;.pq.
+ * Hand the directory to the ParallelSolrIndexer with -q to add the *_pq fields and to the LireRequestHandler with
+ * the init parameter quantizers to use them at query time.
+ */
+public class ProductQuantizerTrainer implements Runnable {
+    private final File infile, outdir;
+    private final Set<String> codes;
+    private int subspaces = 16;
+    private int sampleSize = 50000;
+    private int iterations = 25;
+
+    /**
+     * @param infile the XML file created by the ParallelSolrIndexer
+     * @param outdir the directory the quantizers are written to
+     * @param codes  the feature codes to train quantizers for, all features found in the file if empty.
+     */
+    public ProductQuantizerTrainer(File infile, File outdir, Set<String> codes) {
+        this.infile = infile;
+        this.outdir = outdir;
+        this.codes = codes;
+    }
+
+    public static void main(String[] args) throws ParseException {
+        Options options = new Options();
+        options.addOption("i", "input-file", true, "XML File created by the ParallelSolrIndexer (required)");
+        options.addOption("o", "output-dir", true, "Directory the quantizers are written to, default is the current one");
+        options.addOption("y", "features", true, "Feature codes to train, eg. ce,cl. Default is all found in the file");
+        options.addOption("m", "subspaces", true, "Number of sub spaces, ie. bytes per code, default is 16");
+        options.addOption("s", "samples", true, "Maximum number of training vectors per feature, default is 50000");
+        options.addOption("n", "iterations", true, "Maximum number of k-means iterations, default is 25");
+        options.getOption("i").setRequired(true);
+        CommandLineParser parser = new DefaultParser();
+        CommandLine cmd = parser.parse(options, args);
+
+        File infile = new File(cmd.getOptionValue('i'));
+        if (!infile.exists()) {
+            System.err.println(String.format("File %s does not exist.", cmd.getOptionValue('i')));
+            HelpFormatter formatter = new HelpFormatter();
+            formatter.printHelp("ProductQuantizerTrainer", options);
+            return;
+        }
+        File outdir = new File(cmd.getOptionValue('o', "."));
+        Set<String> codes = new HashSet<>();
+        if (cmd.hasOption('y')) {
+            for (String code : cmd.getOptionValue('y').split(",")) {
+                if (FeatureRegistry.getClassForCode(code.trim()) != null) codes.add(code.trim());
+                else System.err.println(String.format("Unknown feature code %s.", code));
+            }
+        }
+        ProductQuantizerTrainer trainer = new ProductQuantizerTrainer(infile, outdir, codes);
+        trainer.setSubspaces(Integer.parseInt(cmd.getOptionValue('m', "16")));
+        trainer.setSampleSize(Integer.parseInt(cmd.getOptionValue('s', "50000")));
+        trainer.setIterations(Integer.parseInt(cmd.getOptionValue('n', "25")));
+        trainer.run();
+    }
+
+    public void setSubspaces(int subspaces) {
+        this.subspaces = subspaces;
+    }
+
+    public void setSampleSize(int sampleSize) {
+        this.sampleSize = sampleSize;
+    }
+
+    public void setIterations(int iterations) {
+        this.iterations = iterations;
+    }
+
+    @Override
+    public void run() {
+        try {
+            Map<String, List<double[]>> samples = FeatureSampler.sample(infile, codes, sampleSize);
+            if (!outdir.exists()) outdir.mkdirs();
+            for (Map.Entry<String, List<double[]>> entry : samples.entrySet()) {
+                long ms = System.currentTimeMillis();
+                ProductQuantizer quantizer = ProductQuantizer.train(entry.getValue(), subspaces, iterations, 42L);
+                File file = new File(outdir, entry.getKey() + ProductQuantizer.FILE_EXTENSION);
+                quantizer.save(file);
+                System.out.println(String.format("Trained %s on %d vectors (%d dimensions, %d bytes per code) in %d ms, written to %s.",
+                        entry.getKey(), entry.getValue().size(), quantizer.getDimensions(), quantizer.getSubspaces(),
+                        System.currentTimeMillis() - ms, file.getPath()));
+            }
+        } catch (IOException | XMLStreamException e) {
+            e.printStackTrace();
+        }
+    }
+}
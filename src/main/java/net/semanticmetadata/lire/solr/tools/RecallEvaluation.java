@@ -0,0 +1,424 @@
+package net.semanticmetadata.lire.solr.tools;
+
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import net.semanticmetadata.lire.solr.BoundedDistanceHeap;
+import net.semanticmetadata.lire.solr.FeatureRegistry;
+import net.semanticmetadata.lire.solr.HashingMetricSpacesManager;
+import net.semanticmetadata.lire.solr.ParallelReRanker;
+import net.semanticmetadata.lire.utils.ImageUtils;
+import org.apache.commons.cli.*;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.embedded.EmbeddedSolrServer;
+import org.apache.solr.client.solrj.request.QueryRequest;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.util.RefCounted;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Evaluates recall and latency of the LIRE request handler for a grid of settings, to tune accuracy, candidates and
+ * ms for a field on a copy of a production core. The exact k nearest neighbours of each query are computed by brute
+ * force over the feature field first, then every setting is run for all queries and its recall@k and latency
+ * percentiles are reported. Queries are given by ids, by image URLs or files, or sampled from the index at random.
+ * <p>
+ * Runs against an embedded Solr core, eg. with the solr home of a local installation that has the plugin and the
+ * lireq handler configured. The result cache is bypassed, the latency is taken around the whole request.
+ */
+public class RecallEvaluation {
+    private final SolrClient client;
+    private final String handler;
+    private final String code;
+    private final int k;
+    private final List<String[]> queries = new ArrayList<>();
+    private final List<Set<String>> groundTruths = new ArrayList<>();
+
+    /**
+     * @param client  the client of the core
+     * @param handler the path of the request handler, eg. /lireq
+     * @param code    the feature code, eg. cl
+     * @param k       the number of results of a query, the k of recall@k.
+     */
+    public RecallEvaluation(SolrClient client, String handler, String code, int k) {
+        this.client = client;
+        this.handler = handler;
+        this.code = code;
+        this.k = k;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new Options();
+        options.addOption("s", "solr-home", true, "Solr home directory with the core (required)");
+        options.addOption("n", "core", true, "Name of the core (required)");
+        options.addOption("y", "feature", true, "Feature code, eg. cl (required)");
+        options.addOption("q", "ids", true, "File with the ids of the query images, one per line");
+        options.addOption("u", "urls", true, "File with the URLs or paths of the query images, one per line");
+        options.addOption("r", "random", true, "Number of query images sampled from the index if neither -q nor -u are given, default is 100");
+        options.addOption("k", "rows", true, "Number of results, the k of recall@k, default is 10");
+        options.addOption("a", "accuracy", true, "Comma separated accuracy values, default is 0.1,0.2,0.33,0.5");
+        options.addOption("c", "candidates", true, "Comma separated candidates values, default is 1000,5000,10000");
+        options.addOption("m", "ms", true, "Comma separated ms values, default is false");
+        options.addOption("x", "params", true, "Additional parameters for all requests, eg. probes=2&adaptive=true");
+        options.addOption("l", "handler", true, "Path of the request handler, default is /lireq");
+        options.addOption("o", "output", true, "File the results are written to, tab separated");
+        options.addOption("t", "threads", true, "Number of threads for the ground truth, default is the number of cores");
+        options.getOption("s").setRequired(true);
+        options.getOption("n").setRequired(true);
+        options.getOption("y").setRequired(true);
+        CommandLineParser parser = new DefaultParser();
+        CommandLine cmd = parser.parse(options, args);
+
+        String code = cmd.getOptionValue('y');
+        Class<? extends GlobalFeature> featureClass = FeatureRegistry.getClassForCode(code);
+        if (featureClass == null || !new File(cmd.getOptionValue('s')).exists()) {
+            System.err.println("Solr home does not exist or unknown feature.");
+            HelpFormatter formatter = new HelpFormatter();
+            formatter.printHelp("RecallEvaluation", options);
+            return;
+        }
+        HashingMetricSpacesManager.init();
+        int k = Integer.parseInt(cmd.getOptionValue('k', "10"));
+        String featureFieldName = FeatureRegistry.codeToFeatureField(code);
+        ForkJoinPool pool = new ForkJoinPool(Integer.parseInt(cmd.getOptionValue('t',
+                Integer.toString(Runtime.getRuntime().availableProcessors()))));
+        try (EmbeddedSolrServer server = new EmbeddedSolrServer(Paths.get(cmd.getOptionValue('s')), cmd.getOptionValue('n'))) {
+            RecallEvaluation evaluation = new RecallEvaluation(server, cmd.getOptionValue('l', "/lireq"), code, k);
+            ParallelReRanker reRanker = new ParallelReRanker(pool);
+            long ms = System.currentTimeMillis();
+            try (SolrCore core = server.getCoreContainer().getCore(cmd.getOptionValue('n'))) {
+                RefCounted<SolrIndexSearcher> searcherRef = core.getSearcher();
+                try {
+                    SolrIndexSearcher searcher = searcherRef.get();
+                    if (cmd.hasOption('u')) {
+                        for (String url : readLines(cmd.getOptionValue('u'))) {
+                            GlobalFeature queryFeature = extract(url, featureClass);
+                            if (queryFeature == null) continue;
+                            evaluation.addQuery("url", url, groundTruth(searcher, reRanker, featureFieldName, queryFeature, k));
+                        }
+                    } else {
+                        List<String> ids = cmd.hasOption('q') ? readLines(cmd.getOptionValue('q'))
+                                : sampleIds(searcher, featureFieldName, Integer.parseInt(cmd.getOptionValue('r', "100")), new Random(1));
+                        for (String id : ids) {
+                            GlobalFeature queryFeature = readFeature(searcher, featureFieldName, featureClass, id);
+                            if (queryFeature == null) {
+                                System.err.println("No feature found for " + id + ", skipping it.");
+                                continue;
+                            }
+                            evaluation.addQuery("id", id, groundTruth(searcher, reRanker, featureFieldName, queryFeature, k));
+                        }
+                    }
+                } finally {
+                    searcherRef.decref();
+                }
+            }
+            System.out.println(String.format("Ground truth of %d queries computed in %d ms.", evaluation.size(),
+                    System.currentTimeMillis() - ms));
+            if (evaluation.size() == 0) return;
+
+            List<SolrParams> settings = grid(split(cmd.getOptionValue('a', "0.1,0.2,0.33,0.5")),
+                    split(cmd.getOptionValue('c', "1000,5000,10000")), split(cmd.getOptionValue('m', "false")),
+                    cmd.getOptionValue('x'));
+            // one pass to warm up the caches and the JIT, it is not reported.
+            evaluation.evaluate(settings.get(0));
+            try (PrintWriter out = cmd.hasOption('o') ? new PrintWriter(new BufferedWriter(new FileWriter(cmd.getOptionValue('o')))) : null) {
+                String header = "accuracy\tcandidates\tms\trecall@" + k + "\tp50\tp90\tp99\tmax\tavgCandidates\terrors";
+                System.out.println(header);
+                if (out != null) out.println(header);
+                for (SolrParams setting : settings) {
+                    Result result = evaluation.evaluate(setting);
+                    String line = String.format("%s\t%s\t%s\t%.4f\t%.1f\t%.1f\t%.1f\t%.1f\t%.0f\t%d", setting.get("accuracy"),
+                            setting.get("candidates"), setting.get("ms"), result.getRecall(), result.getLatency(0.5),
+                            result.getLatency(0.9), result.getLatency(0.99), result.getLatency(1), result.getCandidates(),
+                            result.getErrors());
+                    System.out.println(line);
+                    if (out != null) out.println(line);
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Adds a query along with the ids of its exact k nearest neighbours.
+     *
+     * @param param       the parameter of the request handler, id or url.
+     * @param value       the id or URL
+     * @param groundTruth the ids of the exact k nearest neighbours, see
+     *                    {@link #groundTruth(IndexSearcher, ParallelReRanker, String, GlobalFeature, int)}
+     */
+    public void addQuery(String param, String value, List<String> groundTruth) {
+        queries.add(new String[]{param, value});
+        groundTruths.add(new HashSet<>(groundTruth));
+    }
+
+    public int size() {
+        return queries.size();
+    }
+
+    /**
+     * Runs all queries with the given setting, one after the other.
+     *
+     * @param setting the parameters of the setting, eg. accuracy, candidates and ms.
+     * @return the recall and latencies of the setting
+     */
+    public Result evaluate(SolrParams setting) throws IOException, SolrServerException {
+        double recallSum = 0, candidatesSum = 0;
+        int errors = 0;
+        long[] latencies = new long[queries.size()];
+        for (int i = 0; i < queries.size(); i++) {
+            ModifiableSolrParams params = new ModifiableSolrParams(setting);
+            params.set(queries.get(i)[0], queries.get(i)[1]);
+            params.set("field", code);
+            params.set("rows", k);
+            params.set("fl", "id");
+            params.set("cache", false);
+            QueryRequest request = new QueryRequest(params);
+            request.setPath(handler);
+            long start = System.nanoTime();
+            NamedList<Object> response = client.request(request);
+            latencies[i] = System.nanoTime() - start;
+            SolrDocumentList results = (SolrDocumentList) response.get("response");
+            if (results == null) {
+                errors++;
+                System.err.println("No results for " + queries.get(i)[1] + ": " + response.get("Error"));
+                continue;
+            }
+            recallSum += recall(groundTruths.get(i), results);
+            Object candidates = response.get("RawDocsCount");
+            if (candidates != null) candidatesSum += Double.parseDouble(candidates.toString());
+        }
+        Arrays.sort(latencies);
+        return new Result(recallSum / queries.size(), candidatesSum / queries.size(), latencies, errors);
+    }
+
+    /**
+     * @return the share of the ground truth among the results.
+     */
+    static double recall(Set<String> groundTruth, SolrDocumentList results) {
+        if (groundTruth.isEmpty()) return 1d;
+        int found = 0;
+        for (SolrDocument document : results) {
+            if (groundTruth.contains(String.valueOf(document.getFirstValue("id")))) found++;
+        }
+        return (double) found / groundTruth.size();
+    }
+
+    /**
+     * Finds the exact k nearest neighbours by the distance to all the live documents, with the same distance and
+     * tie breaking as the re-ranking of the request handler.
+     *
+     * @return the ids of the k nearest documents, nearest first.
+     */
+    public static List<String> groundTruth(IndexSearcher searcher, ParallelReRanker reRanker, String featureFieldName,
+                                           GlobalFeature queryFeature, int k) throws IOException {
+        BoundedDistanceHeap results = reRanker.reRank(liveDocs(searcher), featureFieldName, queryFeature, k, searcher);
+        List<String> ids = new ArrayList<>(results.size());
+        for (int i = 0; i < results.size(); i++) {
+            ids.add(searcher.doc(results.doc(i), Collections.singleton("id")).get("id"));
+        }
+        return ids;
+    }
+
+    private static Iterator<Integer> liveDocs(IndexSearcher searcher) {
+        List<LeafReaderContext> leaves = searcher.getIndexReader().leaves();
+        return new Iterator<Integer>() {
+            int doc = nextLive(0);
+
+            int nextLive(int from) {
+                for (int d = from; d < searcher.getIndexReader().maxDoc(); d++) {
+                    LeafReaderContext leaf = leaves.get(ReaderUtil.subIndex(d, leaves));
+                    Bits liveDocs = leaf.reader().getLiveDocs();
+                    if (liveDocs == null || liveDocs.get(d - leaf.docBase)) return d;
+                }
+                return -1;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return doc >= 0;
+            }
+
+            @Override
+            public Integer next() {
+                int current = doc;
+                doc = nextLive(doc + 1);
+                return current;
+            }
+        };
+    }
+
+    /**
+     * @return the ids of up to n random live documents with a value in the feature field.
+     */
+    static List<String> sampleIds(IndexSearcher searcher, String featureFieldName, int n, Random random) throws IOException {
+        int maxDoc = searcher.getIndexReader().maxDoc();
+        List<LeafReaderContext> leaves = searcher.getIndexReader().leaves();
+        Set<String> ids = new LinkedHashSet<>();
+        for (int tries = 0; ids.size() < n && tries < 10 * n; tries++) {
+            int doc = random.nextInt(maxDoc);
+            LeafReaderContext leaf = leaves.get(ReaderUtil.subIndex(doc, leaves));
+            Bits liveDocs = leaf.reader().getLiveDocs();
+            if (liveDocs != null && !liveDocs.get(doc - leaf.docBase)) continue;
+            if (!DocValues.getBinary(leaf.reader(), featureFieldName).advanceExact(doc - leaf.docBase)) continue;
+            String id = searcher.doc(doc, Collections.singleton("id")).get("id");
+            if (id != null) ids.add(id);
+        }
+        return new ArrayList<>(ids);
+    }
+
+    private static GlobalFeature readFeature(SolrIndexSearcher searcher, String featureFieldName,
+                                             Class<? extends GlobalFeature> featureClass, String id) throws Exception {
+        int doc = searcher.getFirstMatch(new Term("id", id));
+        if (doc < 0) return null;
+        List<LeafReaderContext> leaves = searcher.getIndexReader().leaves();
+        LeafReaderContext leaf = leaves.get(ReaderUtil.subIndex(doc, leaves));
+        BinaryDocValues binaryValues = DocValues.getBinary(leaf.reader(), featureFieldName);
+        if (!binaryValues.advanceExact(doc - leaf.docBase)) return null;
+        BytesRef bytesRef = binaryValues.binaryValue();
+        GlobalFeature feature = featureClass.getDeclaredConstructor().newInstance();
+        feature.setByteArrayRepresentation(bytesRef.bytes, bytesRef.offset, bytesRef.length);
+        return feature;
+    }
+
+    /**
+     * Extracts the feature of an image just like the request handler does for a URL query.
+     */
+    private static GlobalFeature extract(String url, Class<? extends GlobalFeature> featureClass) throws Exception {
+        BufferedImage image;
+        try {
+            image = url.contains("://") ? ImageIO.read(new URL(url)) : ImageIO.read(new File(url));
+        } catch (IOException e) {
+            image = null;
+        }
+        if (image == null) {
+            System.err.println("Could not read " + url + ", skipping it.");
+            return null;
+        }
+        GlobalFeature feature = featureClass.getDeclaredConstructor().newInstance();
+        feature.extract(ImageUtils.trimWhiteSpace(image));
+        // the handler searches with the serialized feature.
+        GlobalFeature decoded = featureClass.getDeclaredConstructor().newInstance();
+        decoded.setByteArrayRepresentation(feature.getByteArrayRepresentation());
+        return decoded;
+    }
+
+    /**
+     * @return all combinations of the values, each with the additional parameters.
+     */
+    static List<SolrParams> grid(List<String> accuracies, List<String> candidates, List<String> ms, String additional) {
+        List<SolrParams> settings = new ArrayList<>();
+        for (String m : ms) {
+            for (String accuracy : accuracies) {
+                for (String candidate : candidates) {
+                    ModifiableSolrParams params = new ModifiableSolrParams();
+                    if (additional != null) {
+                        for (String param : additional.split("&")) {
+                            int equals = param.indexOf('=');
+                            if (equals > 0) params.add(param.substring(0, equals), param.substring(equals + 1));
+                        }
+                    }
+                    params.set("accuracy", accuracy);
+                    params.set("candidates", candidate);
+                    params.set("ms", m);
+                    settings.add(params);
+                }
+            }
+        }
+        return settings;
+    }
+
+    private static List<String> split(String values) {
+        List<String> list = new ArrayList<>();
+        for (String value : values.split(",")) {
+            if (!value.trim().isEmpty()) list.add(value.trim());
+        }
+        return list;
+    }
+
+    private static List<String> readLines(String file) throws IOException {
+        List<String> lines = new ArrayList<>();
+        for (String line : Files.readAllLines(Paths.get(file))) {
+            if (!line.trim().isEmpty()) lines.add(line.trim());
+        }
+        return lines;
+    }
+
+    /**
+     * Recall and latencies of a setting.
+     */
+    public static class Result {
+        private final double recall;
+        private final double candidates;
+        private final long[] latencies;
+        private final int errors;
+
+        Result(double recall, double candidates, long[] latencies, int errors) {
+            this.recall = recall;
+            this.candidates = candidates;
+            this.latencies = latencies;
+            this.errors = errors;
+        }
+
+        /**
+         * @return the mean recall@k over all queries, a query without results counts as 0.
+         */
+        public double getRecall() {
+            return recall;
+        }
+
+        /**
+         * @return the mean number of candidates of the hash queries.
+         */
+        public double getCandidates() {
+            return candidates;
+        }
+
+        /**
+         * @param percentile in (0, 1], eg. 0.99
+         * @return the latency percentile in ms, nearest rank.
+         */
+        public double getLatency(double percentile) {
+            if (latencies.length == 0) return 0;
+            int rank = (int) Math.ceil(percentile * latencies.length) - 1;
+            return latencies[Math.max(0, Math.min(latencies.length - 1, rank))] / 1000000d;
+        }
+
+        public int getErrors() {
+            return errors;
+        }
+    }
+}
@@ -0,0 +1,591 @@
+package net.semanticmetadata.lire.solr.tools;
+
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import net.semanticmetadata.lire.solr.FeatureRegistry;
+import net.semanticmetadata.lire.solr.HashingMetricSpacesManager;
+import net.semanticmetadata.lire.solr.distance.BytesDistance;
+import org.apache.commons.cli.*;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.IntroSorter;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * All-pairs similarity join of the images of an index for near duplicate detection: finds all pairs of images with a
+ * feature distance not larger than a threshold, without a search per image. The BitSampling hashes the *_ha fields
+ * are made of serve as blocking keys, banded like in LSH: the hashes of an image are split into bands of a few
+ * hashes each, images with the same hashes in a band fall into the same block and the pairs within a block are the
+ * candidates. A single hash has 12 bits only, so in a large index a bucket holds far too many images to compare them
+ * all, while a band of several hashes is selective and near duplicates still share at least one band with high
+ * probability. Candidates are verified with the distance of the actual features in parallel, the pairs found are
+ * grouped into clusters of near duplicates with union-find.
+ * <p>
+ * Runs offline on the index directory of a core, it reads the *_hi BinaryDocValues and the stored ids. Memory is
+ * linear in the number of images (a key and a document id per image for one band at a time) plus the pairs found: the
+ * candidates are verified in batches of a bounded size, each band at least once, and a block adds a bounded number of
+ * candidates only. Candidates sharing several bands are verified once per batch they are in.
+ */
+public class SimilarityJoin {
+    private static final int MIN_PAIRS_PER_TASK = 4096;
+    private static final int DEFAULT_BATCH_SIZE = 1 << 22;
+
+    private final IndexReader reader;
+    private final String featureFieldName;
+    private final Class<? extends GlobalFeature> featureClass;
+    private final double threshold;
+    private final double[][][] functions;
+    private int bands = 20;
+    private int rows = 5;
+    private int maxBlockSize = 1000;
+    private int maxPairsPerBlock = 1000000;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private int truncatedBlocks = 0;
+
+    /**
+     * @param reader    the index
+     * @param code      the feature, eg. cl
+     * @param threshold the maximum distance of a pair, by the distance function of the feature.
+     * @param functions the BitSampling hash functions, [bundle][bit][dimension], see
+     *                  {@link HashingMetricSpacesManager#getBitSamplingFunctions()}.
+     */
+    public SimilarityJoin(IndexReader reader, String code, double threshold, double[][][] functions) {
+        this.reader = reader;
+        this.featureFieldName = FeatureRegistry.codeToFeatureField(code);
+        this.featureClass = FeatureRegistry.getClassForCode(code);
+        this.threshold = threshold;
+        this.functions = functions;
+        if (featureClass == null) {
+            throw new IllegalArgumentException("Unknown feature code " + code);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new Options();
+        options.addOption("i", "index", true, "Index directory of the core, eg. data/index (required)");
+        options.addOption("y", "feature", true, "Feature code, eg. cl (required)");
+        options.addOption("t", "threshold", true, "Maximum distance of a pair (required)");
+        options.addOption("o", "pairs", true, "File the pairs are written to, one per line: id1 id2 distance");
+        options.addOption("c", "clusters", true, "File the clusters are written to, one per line: the ids");
+        options.addOption("b", "bands", true, "Number of bands, more find more pairs, default is 20");
+        options.addOption("r", "rows", true, "Number of hashes per band, more give smaller blocks, default is 5");
+        options.addOption("w", "block-size", true, "Larger blocks are compared within a sliding window of this size, default is 1000");
+        options.addOption("m", "max-pairs", true, "Maximum number of candidate pairs per block, the rest of a block is skipped, default is 1000000");
+        options.addOption("n", "threads", true, "Number of threads, default is the number of cores");
+        options.getOption("i").setRequired(true);
+        options.getOption("y").setRequired(true);
+        options.getOption("t").setRequired(true);
+        CommandLineParser parser = new DefaultParser();
+        CommandLine cmd = parser.parse(options, args);
+
+        File indexDirectory = new File(cmd.getOptionValue('i'));
+        if (!indexDirectory.exists() || FeatureRegistry.getClassForCode(cmd.getOptionValue('y')) == null
+                || (!cmd.hasOption('o') && !cmd.hasOption('c'))) {
+            System.err.println("Index directory does not exist, unknown feature or no output file given.");
+            HelpFormatter formatter = new HelpFormatter();
+            formatter.printHelp("SimilarityJoin", options);
+            return;
+        }
+        HashingMetricSpacesManager.init();
+        if (HashingMetricSpacesManager.getBitSamplingFunctions() == null) {
+            System.err.println("Could not load the BitSampling hash functions.");
+            return;
+        }
+        ForkJoinPool pool = new ForkJoinPool(Integer.parseInt(cmd.getOptionValue('n',
+                Integer.toString(Runtime.getRuntime().availableProcessors()))));
+        try (IndexReader reader = DirectoryReader.open(FSDirectory.open(indexDirectory.toPath()))) {
+            SimilarityJoin join = new SimilarityJoin(reader, cmd.getOptionValue('y'),
+                    Double.parseDouble(cmd.getOptionValue('t')), HashingMetricSpacesManager.getBitSamplingFunctions());
+            join.setBands(Integer.parseInt(cmd.getOptionValue('b', "20")));
+            join.setRows(Integer.parseInt(cmd.getOptionValue('r', "5")));
+            join.setMaxBlockSize(Integer.parseInt(cmd.getOptionValue('w', "1000")));
+            join.setMaxPairsPerBlock(Integer.parseInt(cmd.getOptionValue('m', "1000000")));
+            long ms = System.currentTimeMillis();
+            Pairs pairs = join.join(pool);
+            if (join.getTruncatedBlocks() > 0) {
+                System.err.println(String.format("%d blocks had more than %d candidate pairs, use more hashes per band to find all of their pairs.",
+                        join.getTruncatedBlocks(), join.maxPairsPerBlock));
+            }
+            int[][] clusters = clusters(pairs, reader.maxDoc());
+            System.out.println(String.format("Found %d pairs in %d clusters in %d ms.", pairs.size(), clusters.length,
+                    System.currentTimeMillis() - ms));
+            Map<Integer, String> ids = loadIds(reader, pairs);
+            if (cmd.hasOption('o')) {
+                try (BufferedWriter out = new BufferedWriter(new FileWriter(cmd.getOptionValue('o')))) {
+                    for (int i = 0; i < pairs.size(); i++) {
+                        out.write(ids.get(pairs.getLeft(i)) + '\t' + ids.get(pairs.getRight(i)) + '\t' + pairs.getDistance(i));
+                        out.newLine();
+                    }
+                }
+            }
+            if (cmd.hasOption('c')) {
+                try (BufferedWriter out = new BufferedWriter(new FileWriter(cmd.getOptionValue('c')))) {
+                    for (int[] cluster : clusters) {
+                        for (int i = 0; i < cluster.length; i++) {
+                            if (i > 0) out.write('\t');
+                            out.write(ids.get(cluster[i]));
+                        }
+                        out.newLine();
+                    }
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    public void setBands(int bands) {
+        this.bands = bands;
+    }
+
+    public void setRows(int rows) {
+        this.rows = rows;
+    }
+
+    public void setMaxBlockSize(int maxBlockSize) {
+        this.maxBlockSize = maxBlockSize;
+    }
+
+    /**
+     * @param maxPairsPerBlock the maximum number of candidate pairs of a block, the remaining pairs of larger blocks
+     *                         are skipped.
+     */
+    public void setMaxPairsPerBlock(int maxPairsPerBlock) {
+        this.maxPairsPerBlock = maxPairsPerBlock;
+    }
+
+    /**
+     * @param batchSize the maximum number of candidate pairs held in memory before they are verified.
+     */
+    void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @return the number of blocks of the last join with more candidate pairs than allowed, counted per band.
+     */
+    public int getTruncatedBlocks() {
+        return truncatedBlocks;
+    }
+
+    /**
+     * Finds all the pairs of live documents with a distance not larger than the threshold that share the hashes of
+     * at least one band. The candidates are collected band by band and verified whenever a batch is full and at the
+     * end of each band, so only the pairs found are kept for the whole join.
+     *
+     * @param pool the pool the keys are computed and the candidates are verified on.
+     * @return the pairs, sorted by the first and then the second document id, the first one being the smaller one.
+     * @throws IOException
+     */
+    public Pairs join(ForkJoinPool pool) throws IOException {
+        int rows = Math.max(1, Math.min(this.rows, functions.length));
+        int bands = Math.max(1, Math.min(this.bands, functions.length / rows));
+        int batchSize = Math.max(1, this.batchSize);
+        truncatedBlocks = 0;
+        Pairs pairs = new Pairs();
+        long[] candidates = new long[Math.min(batchSize, 1024)];
+        int numberOfCandidates = 0;
+        for (int band = 0; band < bands; band++) {
+            Blocks blocks = computeKeys(band * rows, rows, pool);
+            blocks.sort(0, blocks.size);
+            for (int start = 0; start < blocks.size; ) {
+                int end = start + 1;
+                while (end < blocks.size && blocks.keys[end] == blocks.keys[start]) end++;
+                // all pairs of a block, large blocks within a sliding window and up to maxPairsPerBlock pairs only,
+                // documents are sorted within a block.
+                int pairsOfBlock = 0;
+                block:
+                for (int i = start; i < end; i++) {
+                    for (int j = i + 1; j < Math.min(end, i + 1 + maxBlockSize); j++) {
+                        if (pairsOfBlock == maxPairsPerBlock) {
+                            truncatedBlocks++;
+                            break block;
+                        }
+                        if (numberOfCandidates == batchSize) {
+                            pairs = verify(candidates, numberOfCandidates, pool, pairs);
+                            numberOfCandidates = 0;
+                        }
+                        if (numberOfCandidates == candidates.length) {
+                            candidates = Arrays.copyOf(candidates,
+                                    Math.min(batchSize, ArrayUtil.oversize(numberOfCandidates + 1, Long.BYTES)));
+                        }
+                        candidates[numberOfCandidates++] = (long) blocks.docs[i] << 32 | blocks.docs[j];
+                        pairsOfBlock++;
+                    }
+                }
+                start = end;
+            }
+            pairs = verify(candidates, numberOfCandidates, pool, pairs);
+            numberOfCandidates = 0;
+        }
+        return pairs;
+    }
+
+    private static int sortUnique(long[] values, int size) {
+        Arrays.parallelSort(values, 0, size);
+        int unique = 0;
+        for (int i = 0; i < size; i++) {
+            if (unique == 0 || values[i] != values[unique - 1]) values[unique++] = values[i];
+        }
+        return unique;
+    }
+
+    /**
+     * Computes the key of a band for all live documents with a feature, one task per range of documents.
+     */
+    private Blocks computeKeys(int firstBundle, int numberOfBundles, ForkJoinPool pool) throws IOException {
+        List<Callable<Blocks>> tasks = new ArrayList<>();
+        for (LeafReaderContext context : reader.leaves()) {
+            int maxDoc = context.reader().maxDoc();
+            int numberOfChunks = Math.max(1, Math.min(pool.getParallelism(), maxDoc / MIN_PAIRS_PER_TASK));
+            int chunkSize = (maxDoc + numberOfChunks - 1) / numberOfChunks;
+            for (int start = 0; start < maxDoc; start += chunkSize) {
+                int from = start, to = Math.min(start + chunkSize, maxDoc);
+                tasks.add(() -> {
+                    Blocks blocks = new Blocks(64);
+                    BinaryDocValues binaryValues = DocValues.getBinary(context.reader(), featureFieldName);
+                    Bits liveDocs = context.reader().getLiveDocs();
+                    GlobalFeature feature = featureClass.getDeclaredConstructor().newInstance();
+                    for (int doc = binaryValues.advance(from); doc < to; doc = binaryValues.nextDoc()) {
+                        if (liveDocs != null && !liveDocs.get(doc)) continue;
+                        BytesRef bytesRef = binaryValues.binaryValue();
+                        feature.setByteArrayRepresentation(bytesRef.bytes, bytesRef.offset, bytesRef.length);
+                        blocks.add(key(feature.getFeatureVector(), firstBundle, numberOfBundles), context.docBase + doc);
+                    }
+                    return blocks;
+                });
+            }
+        }
+        List<Blocks> partials = invokeAll(pool, tasks);
+        int size = 0;
+        for (Blocks partial : partials) size += partial.size;
+        Blocks blocks = new Blocks(size);
+        for (Blocks partial : partials) {
+            System.arraycopy(partial.keys, 0, blocks.keys, blocks.size, partial.size);
+            System.arraycopy(partial.docs, 0, blocks.docs, blocks.size, partial.size);
+            blocks.size += partial.size;
+        }
+        return blocks;
+    }
+
+    /**
+     * The BitSampling hashes of the bundles of a band combined into one key. The hashes are concatenated as long as
+     * they fit into 64 bits, otherwise they are mixed and different bands may collide, which only adds candidates.
+     */
+    private long key(double[] vector, int firstBundle, int numberOfBundles) {
+        long key = 0L;
+        for (int bundle = firstBundle; bundle < firstBundle + numberOfBundles; bundle++) {
+            double[][] bits = functions[bundle];
+            int hash = 0;
+            for (int bit = 0; bit < bits.length; bit++) {
+                double projection = 0d;
+                for (int i = 0; i < Math.min(vector.length, bits[bit].length); i++) {
+                    projection += bits[bit][i] * vector[i];
+                }
+                if (projection >= 0) hash |= 1 << bit;
+            }
+            key = Long.rotateLeft(key, bits.length) ^ hash;
+        }
+        return key;
+    }
+
+    /**
+     * Computes the distances of a batch of candidate pairs, one task per range of the sorted pairs. The features of the
+     * first documents are read in order, the ones of the second documents are read randomly.
+     *
+     * @param found the pairs found in the batches before.
+     * @return the pairs found so far including the ones of this batch, pairs found before are kept once.
+     */
+    private Pairs verify(long[] candidates, int numberOfCandidates, ForkJoinPool pool, Pairs found) throws IOException {
+        // pairs sharing several bands of the batch are verified only once.
+        numberOfCandidates = sortUnique(candidates, numberOfCandidates);
+        List<LeafReaderContext> leaves = reader.leaves();
+        List<Callable<Pairs>> tasks = new ArrayList<>();
+        int chunkSize = Math.max(MIN_PAIRS_PER_TASK, numberOfCandidates / (4 * pool.getParallelism()) + 1);
+        for (int start = 0; start < numberOfCandidates; start += chunkSize) {
+            int from = start, to = Math.min(start + chunkSize, numberOfCandidates);
+            tasks.add(() -> {
+                Pairs pairs = new Pairs();
+                BinaryDocValues[] firstValues = new BinaryDocValues[leaves.size()];
+                BinaryDocValues[] secondValues = new BinaryDocValues[leaves.size()];
+                GlobalFeature feature = featureClass.getDeclaredConstructor().newInstance();
+                GlobalFeature tmpFeature = featureClass.getDeclaredConstructor().newInstance();
+                BytesDistance bytesDistance = null;
+                int first = -1;
+                boolean hasFeature = false;
+                for (int i = from; i < to; i++) {
+                    int left = (int) (candidates[i] >>> 32), right = (int) candidates[i];
+                    if (left != first) {
+                        first = left;
+                        BytesRef bytesRef = read(firstValues, leaves, left);
+                        hasFeature = bytesRef != null;
+                        if (hasFeature) {
+                            feature.setByteArrayRepresentation(bytesRef.bytes, bytesRef.offset, bytesRef.length);
+                            bytesDistance = FeatureRegistry.getBytesDistance(featureFieldName, feature);
+                        }
+                    }
+                    BytesRef bytesRef = hasFeature ? read(secondValues, leaves, right) : null;
+                    if (bytesRef == null) continue;
+                    double distance;
+                    if (bytesDistance != null) {
+                        distance = bytesDistance.distance(bytesRef.bytes, bytesRef.offset, bytesRef.length, threshold);
+                    } else {
+                        tmpFeature.setByteArrayRepresentation(bytesRef.bytes, bytesRef.offset, bytesRef.length);
+                        distance = feature.getDistance(tmpFeature);
+                    }
+                    if (distance <= threshold) pairs.add(left, right, (float) distance);
+                }
+                return pairs;
+            });
+        }
+        Pairs pairs = new Pairs();
+        for (Pairs partial : invokeAll(pool, tasks)) {
+            for (int i = 0; i < partial.size(); i++) {
+                pairs.add(partial.getLeft(i), partial.getRight(i), partial.getDistance(i));
+            }
+        }
+        return found.size() > 0 ? Pairs.merge(found, pairs) : pairs;
+    }
+
+    /**
+     * Reads the feature of a document with the DocValues of its leaf, they are reset if read backwards.
+     */
+    private BytesRef read(BinaryDocValues[] values, List<LeafReaderContext> leaves, int doc) throws IOException {
+        int leaf = ReaderUtil.subIndex(doc, leaves);
+        LeafReaderContext context = leaves.get(leaf);
+        if (values[leaf] == null) {
+            values[leaf] = new RandomAccessBinaryDocValues(() -> {
+                try {
+                    return DocValues.getBinary(context.reader(), featureFieldName);
+                } catch (IOException e) {
+                    throw new RuntimeException("BinaryDocValues problem.", e);
+                }
+            });
+        }
+        return values[leaf].advanceExact(doc - context.docBase) ? values[leaf].binaryValue() : null;
+    }
+
+    private static <T> List<T> invokeAll(ForkJoinPool pool, List<Callable<T>> tasks) throws IOException {
+        List<T> results = new ArrayList<>(tasks.size());
+        for (Future<T> future : pool.invokeAll(tasks)) {
+            try {
+                results.add(future.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Similarity join has been interrupted.", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new RuntimeException("Similarity join failed.", e.getCause());
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Groups the documents of the pairs into clusters, the connected components of the pairs, with union-find.
+     *
+     * @param pairs  the pairs
+     * @param maxDoc the maximum document id of the index
+     * @return the clusters with at least two documents, the documents of a cluster and the clusters sorted by id.
+     */
+    public static int[][] clusters(Pairs pairs, int maxDoc) {
+        int[] parent = new int[maxDoc];
+        for (int i = 0; i < maxDoc; i++) parent[i] = i;
+        for (int i = 0; i < pairs.size(); i++) {
+            int a = find(parent, pairs.getLeft(i)), b = find(parent, pairs.getRight(i));
+            // the smaller id is the root, so a cluster is represented by its first document.
+            if (a < b) parent[b] = a;
+            else if (b < a) parent[a] = b;
+        }
+        Map<Integer, List<Integer>> members = new HashMap<>();
+        FixedBitSet seen = new FixedBitSet(maxDoc);
+        for (int i = 0; i < pairs.size(); i++) {
+            for (int doc : new int[]{pairs.getLeft(i), pairs.getRight(i)}) {
+                if (seen.getAndSet(doc)) continue;
+                members.computeIfAbsent(find(parent, doc), root -> new ArrayList<>()).add(doc);
+            }
+        }
+        List<Integer> roots = new ArrayList<>(members.keySet());
+        Collections.sort(roots);
+        int[][] clusters = new int[roots.size()][];
+        for (int c = 0; c < clusters.length; c++) {
+            List<Integer> docs = members.get(roots.get(c));
+            clusters[c] = new int[docs.size()];
+            for (int i = 0; i < clusters[c].length; i++) clusters[c][i] = docs.get(i);
+            Arrays.sort(clusters[c]);
+        }
+        return clusters;
+    }
+
+    private static int find(int[] parent, int doc) {
+        while (parent[doc] != doc) {
+            // path halving
+            parent[doc] = parent[parent[doc]];
+            doc = parent[doc];
+        }
+        return doc;
+    }
+
+    /**
+     * Loads the stored ids of all documents of the pairs in doc id order.
+     */
+    private static Map<Integer, String> loadIds(IndexReader reader, Pairs pairs) throws IOException {
+        FixedBitSet docs = new FixedBitSet(reader.maxDoc());
+        for (int i = 0; i < pairs.size(); i++) {
+            docs.set(pairs.getLeft(i));
+            docs.set(pairs.getRight(i));
+        }
+        Map<Integer, String> ids = new HashMap<>();
+        for (int doc = docs.nextSetBit(0); doc != DocIdSetIterator.NO_MORE_DOCS;
+             doc = doc + 1 < docs.length() ? docs.nextSetBit(doc + 1) : DocIdSetIterator.NO_MORE_DOCS) {
+            Document document = reader.document(doc, Collections.singleton("id"));
+            ids.put(doc, document.get("id"));
+        }
+        return ids;
+    }
+
+    /**
+     * Keys of a band and their documents, sorted by key and document.
+     */
+    private static class Blocks extends IntroSorter {
+        long[] keys;
+        int[] docs;
+        int size = 0;
+        private long pivotKey;
+        private int pivotDoc;
+
+        Blocks(int capacity) {
+            keys = new long[capacity];
+            docs = new int[capacity];
+        }
+
+        void add(long key, int doc) {
+            if (size == keys.length) {
+                // the same size for both, ArrayUtil.grow picks it by the size of the elements.
+                int capacity = ArrayUtil.oversize(size + 1, Long.BYTES);
+                keys = Arrays.copyOf(keys, capacity);
+                docs = Arrays.copyOf(docs, capacity);
+            }
+            keys[size] = key;
+            docs[size++] = doc;
+        }
+
+        @Override
+        protected void swap(int i, int j) {
+            long key = keys[i];
+            keys[i] = keys[j];
+            keys[j] = key;
+            int doc = docs[i];
+            docs[i] = docs[j];
+            docs[j] = doc;
+        }
+
+        @Override
+        protected void setPivot(int i) {
+            pivotKey = keys[i];
+            pivotDoc = docs[i];
+        }
+
+        @Override
+        protected int comparePivot(int j) {
+            int c = Long.compare(pivotKey, keys[j]);
+            return c != 0 ? c : Integer.compare(pivotDoc, docs[j]);
+        }
+
+        @Override
+        protected int compare(int i, int j) {
+            int c = Long.compare(keys[i], keys[j]);
+            return c != 0 ? c : Integer.compare(docs[i], docs[j]);
+        }
+    }
+
+    /**
+     * Pairs of documents and their distance.
+     */
+    public static class Pairs {
+        private int[] left = new int[64], right = new int[64];
+        private float[] distances = new float[64];
+        private int size = 0;
+
+        void add(int a, int b, float distance) {
+            if (size == left.length) {
+                int capacity = ArrayUtil.oversize(size + 1, Integer.BYTES);
+                left = Arrays.copyOf(left, capacity);
+                right = Arrays.copyOf(right, capacity);
+                distances = Arrays.copyOf(distances, capacity);
+            }
+            left[size] = a;
+            right[size] = b;
+            distances[size++] = distance;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        /**
+         * @return the smaller document id of the pair i.
+         */
+        public int getLeft(int i) {
+            return left[i];
+        }
+
+        /**
+         * @return the larger document id of the pair i.
+         */
+        public int getRight(int i) {
+            return right[i];
+        }
+
+        public float getDistance(int i) {
+            return distances[i];
+        }
+
+        private long key(int i) {
+            return (long) left[i] << 32 | right[i];
+        }
+
+        /**
+         * Merges two lists of pairs sorted by document ids, pairs in both are kept once.
+         */
+        static Pairs merge(Pairs a, Pairs b) {
+            Pairs merged = new Pairs();
+            int i = 0, j = 0;
+            while (i < a.size || j < b.size) {
+                if (j == b.size || (i < a.size && a.key(i) < b.key(j))) {
+                    merged.add(a.left[i], a.right[i], a.distances[i++]);
+                } else {
+                    if (i < a.size && a.key(i) == b.key(j)) i++;
+                    merged.add(b.left[j], b.right[j], b.distances[j++]);
+                }
+            }
+            return merged;
+        }
+    }
+}
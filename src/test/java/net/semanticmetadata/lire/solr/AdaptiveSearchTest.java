@@ -0,0 +1,137 @@
+package net.semanticmetadata.lire.solr;
+
+import net.semanticmetadata.lire.imageanalysis.features.global.CEDD;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.BinaryDocValuesField;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+public class AdaptiveSearchTest {
+    private static final int NUM_DOCS = 3000;
+    private ByteBuffersDirectory directory;
+    private DirectoryReader reader;
+    private ForkJoinPool pool;
+    private List<byte[]> features = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        Random random = new Random(5);
+        directory = new ByteBuffersDirectory();
+        IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new WhitespaceAnalyzer()).setMergePolicy(NoMergePolicy.INSTANCE));
+        for (int i = 0; i < NUM_DOCS; i++) {
+            byte[] data = new byte[72];
+            random.nextBytes(data);
+            Document document = new Document();
+            document.add(new StringField("id", Integer.toString(i), Field.Store.YES));
+            if (i % 60 == 0) {
+                // near duplicates of the first document match all the hashes of the query.
+                data = features.isEmpty() ? data : features.get(0).clone();
+                data[random.nextInt(data.length)] ^= 1;
+                for (int h = 0; h < 5; h++) document.add(new StringField("ce_ha", "h" + h, Field.Store.NO));
+            } else {
+                document.add(new StringField("ce_ha", "h" + random.nextInt(5), Field.Store.NO));
+            }
+            features.add(data);
+            document.add(new BinaryDocValuesField("ce_hi", new BytesRef(data)));
+            writer.addDocument(document);
+            if (i % 1000 == 999) writer.commit();
+        }
+        writer.close();
+        reader = DirectoryReader.open(directory);
+        pool = new ForkJoinPool(4);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        pool.shutdown();
+        reader.close();
+        directory.close();
+    }
+
+    private Query hashQuery() {
+        BooleanQuery.Builder builder = new BooleanQuery.Builder();
+        for (int h = 0; h < 5; h++) {
+            builder.add(new TermQuery(new Term("ce_ha", "h" + h)), BooleanClause.Occur.SHOULD);
+        }
+        return builder.build();
+    }
+
+    private void assertSameResults(BoundedDistanceHeap expected, BoundedDistanceHeap results) {
+        assertEquals(expected.size(), results.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.doc(i), results.doc(i));
+            assertEquals(expected.distance(i), results.distance(i), 0.000001);
+        }
+    }
+
+    @Test
+    public void testAllCandidates() throws Exception {
+        IndexSearcher searcher = new IndexSearcher(reader);
+        CEDD query = new CEDD();
+        query.setByteArrayRepresentation(features.get(1));
+        ParallelReRanker reRanker = new ParallelReRanker(pool);
+        BoundedDistanceHeap expected = reRanker.reRank(new TopDocsIterator(searcher.search(hashQuery(), NUM_DOCS)),
+                "ce_hi", query, 20, searcher);
+        AdaptiveSearch adaptiveSearch = new AdaptiveSearch(reRanker, 100, NUM_DOCS, Integer.MAX_VALUE);
+        assertSameResults(expected, adaptiveSearch.search(searcher, hashQuery(), "ce_hi", query, 20, true));
+        assertEquals(NUM_DOCS, adaptiveSearch.getCandidates());
+        assertEquals(5, adaptiveSearch.getChunks()); // 100, 200, 400, 800, 1500
+        assertEquals("candidates", adaptiveSearch.getStopReason());
+        assertEquals(NUM_DOCS, adaptiveSearch.getFetched().length);
+    }
+
+    @Test
+    public void testStopByScore() throws Exception {
+        IndexSearcher searcher = new IndexSearcher(reader);
+        CEDD query = new CEDD();
+        query.setByteArrayRepresentation(features.get(0));
+        ParallelReRanker reRanker = new ParallelReRanker(pool);
+        BoundedDistanceHeap expected = reRanker.reRank(new TopDocsIterator(searcher.search(hashQuery(), NUM_DOCS)),
+                "ce_hi", query, 10, searcher);
+        // the near duplicates come first, the other candidates match less hashes and do not change the results.
+        AdaptiveSearch adaptiveSearch = new AdaptiveSearch(reRanker, 100, NUM_DOCS, Integer.MAX_VALUE);
+        assertSameResults(expected, adaptiveSearch.search(searcher, hashQuery(), "ce_hi", query, 10, false));
+        assertEquals("score", adaptiveSearch.getStopReason());
+        assertEquals(300, adaptiveSearch.getCandidates());
+        assertNull(adaptiveSearch.getFetched());
+    }
+
+    @Test
+    public void testStopByStableResults() throws Exception {
+        IndexSearcher searcher = new IndexSearcher(reader);
+        CEDD query = new CEDD();
+        query.setByteArrayRepresentation(features.get(0));
+        ParallelReRanker reRanker = new ParallelReRanker(pool);
+        // all scores are the same, the candidates come in doc id order and the query document is the first one.
+        AdaptiveSearch adaptiveSearch = new AdaptiveSearch(reRanker, 500, NUM_DOCS, 1000);
+        BoundedDistanceHeap results = adaptiveSearch.search(searcher, new MatchAllDocsQuery(), "ce_hi", query, 1, false);
+        assertEquals("stable", adaptiveSearch.getStopReason());
+        assertEquals(1500, adaptiveSearch.getCandidates());
+        assertEquals(1, results.size());
+        assertEquals(0, results.doc(0));
+    }
+}
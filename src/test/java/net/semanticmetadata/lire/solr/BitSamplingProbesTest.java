@@ -0,0 +1,105 @@
+package net.semanticmetadata.lire.solr;
+
+import net.semanticmetadata.lire.indexers.hashing.BitSampling;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectOutputStream;
+import java.lang.reflect.Field;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.*;
+
+public class BitSamplingProbesTest {
+    private static final int BITS = 12, DIMENSIONS = 32, BUNDLES = 20;
+
+    /**
+     * Random hash functions, with float precision like the ones read by BitSampling.
+     */
+    private static double[][][] createHashFunctions(Random random) {
+        double[][][] functions = new double[BUNDLES][BITS][DIMENSIONS];
+        for (double[][] bundle : functions) {
+            for (double[] bit : bundle) {
+                for (int i = 0; i < DIMENSIONS; i++) bit[i] = (float) random.nextGaussian();
+            }
+        }
+        return functions;
+    }
+
+    /**
+     * BitSampling keeps its hash functions in a static field for the whole JVM, it is read to restore them.
+     */
+    private static Field bitSamplingFunctions() throws Exception {
+        Field field = BitSampling.class.getDeclaredField("hashes");
+        field.setAccessible(true);
+        return field;
+    }
+
+    /**
+     * Makes BitSampling use the given hash functions, they are written in its file format and read with it.
+     */
+    private static void loadIntoBitSampling(double[][][] functions) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(new GZIPOutputStream(bytes))) {
+            out.writeInt(BITS);
+            out.writeInt(DIMENSIONS);
+            out.writeInt(BUNDLES);
+            for (double[][] bundle : functions) {
+                for (double[] bit : bundle) {
+                    for (double value : bit) out.writeFloat((float) value);
+                }
+            }
+        }
+        BitSampling.readHashFunctions(new ByteArrayInputStream(bytes.toByteArray()));
+    }
+
+    private static double[] createVector(Random random) {
+        double[] vector = new double[DIMENSIONS];
+        for (int i = 0; i < DIMENSIONS; i++) vector[i] = random.nextInt(16) - 7.5;
+        return vector;
+    }
+
+    @Test
+    public void testHashesMatchBitSampling() throws Exception {
+        Random random = new Random(17);
+        double[][][] functions = createHashFunctions(random);
+        Object previous = bitSamplingFunctions().get(null);
+        loadIntoBitSampling(functions);
+        try {
+            for (int j = 0; j < 50; j++) {
+                double[] vector = createVector(random);
+                assertArrayEquals(BitSampling.generateHashes(vector), new BitSamplingProbes(vector, functions).getHashes());
+            }
+        } finally {
+            // other tests in the same JVM must not hash with these functions.
+            bitSamplingFunctions().set(null, previous);
+        }
+    }
+
+    @Test
+    public void testProbeOrder() throws Exception {
+        Random random = new Random(3);
+        BitSamplingProbes probes = new BitSamplingProbes(createVector(random), createHashFunctions(random));
+        int hash = probes.getHashes()[4];
+        List<BitSamplingProbes.Probe> list = probes.probes(4, 100);
+        assertEquals(100, list.size());
+        // the first probe flips the bit with the smallest margin.
+        assertEquals(1, Integer.bitCount(list.get(0).getHash() ^ hash));
+        Set<Integer> seen = new HashSet<>();
+        for (int i = 0; i < list.size(); i++) {
+            BitSamplingProbes.Probe probe = list.get(i);
+            assertEquals(4, probe.getBundle());
+            assertNotEquals(hash, probe.getHash());
+            assertTrue("duplicate probe", seen.add(probe.getHash()));
+            if (i > 0) assertTrue(list.get(i - 1).getScore() <= probe.getScore());
+            assertTrue(probes.weight(probe.getScore()) <= 1d);
+        }
+        // all other buckets of the bundle can be enumerated.
+        assertEquals((1 << BITS) - 1, probes.probes(4, 1 << BITS).size());
+    }
+}
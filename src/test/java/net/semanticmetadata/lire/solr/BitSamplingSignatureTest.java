@@ -0,0 +1,112 @@
+package net.semanticmetadata.lire.solr;
+
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.BinaryDocValuesField;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+public class BitSamplingSignatureTest {
+    private static final int BITS = 12, BUNDLES = 100;
+
+    private static int[] createHashes(Random random) {
+        int[] hashes = new int[BUNDLES];
+        for (int i = 0; i < BUNDLES; i++) hashes[i] = random.nextInt(1 << BITS);
+        return hashes;
+    }
+
+    private static int hammingOfHashes(int[] a, int[] b) {
+        int distance = 0;
+        for (int i = 0; i < a.length; i++) distance += Integer.bitCount(a[i] ^ b[i]);
+        return distance;
+    }
+
+    @Test
+    public void testPacking() {
+        Random random = new Random(1);
+        for (int j = 0; j < 20; j++) {
+            int[] a = createHashes(random), b = createHashes(random);
+            long[] signatureA = BitSamplingSignature.fromHashes(a, BITS);
+            long[] signatureB = BitSamplingSignature.fromHashes(b, BITS);
+            assertEquals((BUNDLES * BITS + 63) / 64, signatureA.length);
+            byte[] bytes = BitSamplingSignature.toBytes(signatureB);
+            assertArrayEquals(signatureB, BitSamplingSignature.fromBytes(bytes, 0, bytes.length));
+            assertEquals(hammingOfHashes(a, b), BitSamplingSignature.distance(signatureA, bytes, 0, bytes.length));
+        }
+        long[] signature = BitSamplingSignature.fromHashes(createHashes(random), BITS);
+        assertEquals(Integer.MAX_VALUE, BitSamplingSignature.distance(signature, new byte[8], 0, 8));
+    }
+
+    @Test
+    public void testScanSignatures() throws Exception {
+        Random random = new Random(9);
+        List<int[]> hashes = new ArrayList<>();
+        ByteBuffersDirectory directory = new ByteBuffersDirectory();
+        IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new WhitespaceAnalyzer()).setMergePolicy(NoMergePolicy.INSTANCE));
+        for (int i = 0; i < 3000; i++) {
+            int[] h = createHashes(random);
+            hashes.add(h);
+            Document document = new Document();
+            document.add(new StringField("id", Integer.toString(i), Field.Store.YES));
+            if (i % 11 != 5) { // some documents without signature.
+                document.add(new BinaryDocValuesField("cl_bs", new BytesRef(BitSamplingSignature.toBytes(BitSamplingSignature.fromHashes(h, BITS)))));
+            }
+            writer.addDocument(document);
+            if (i % 800 == 799) writer.commit();
+        }
+        for (int i = 0; i < 3000; i += 5) writer.deleteDocuments(new Term("id", Integer.toString(i)));
+        writer.close();
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try (DirectoryReader reader = DirectoryReader.open(directory)) {
+            IndexSearcher searcher = new IndexSearcher(reader);
+            int[] query = hashes.get(42);
+            Bits odd = new Bits() {
+                @Override
+                public boolean get(int index) {
+                    return index % 2 == 1;
+                }
+
+                @Override
+                public int length() {
+                    return reader.maxDoc();
+                }
+            };
+            BoundedDistanceHeap results = new ParallelReRanker(pool).scanSignatures(searcher, "cl_bs",
+                    BitSamplingSignature.fromHashes(query, BITS), 30, odd);
+
+            BoundedDistanceHeap expected = new BoundedDistanceHeap(30);
+            for (int i = 1; i < hashes.size(); i += 2) {
+                if (i % 5 == 0 || i % 11 == 5) continue;
+                expected.offer(i, hammingOfHashes(query, hashes.get(i)));
+            }
+            expected.sort();
+            assertEquals(30, results.size());
+            for (int i = 0; i < results.size(); i++) {
+                int id = Integer.parseInt(searcher.doc(results.doc(i)).get("id"));
+                assertEquals(1, id % 2);
+                assertEquals(hammingOfHashes(query, hashes.get(id)), results.distance(i), 0d);
+                assertEquals(expected.distance(i), results.distance(i), 0d);
+            }
+        } finally {
+            pool.shutdown();
+            directory.close();
+        }
+    }
+}
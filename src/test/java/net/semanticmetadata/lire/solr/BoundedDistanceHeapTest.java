@@ -0,0 +1,79 @@
+package net.semanticmetadata.lire.solr;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class BoundedDistanceHeapTest {
+
+    @Test
+    public void testTopK() {
+        Random random = new Random(1);
+        double[] d = new double[10000];
+        BoundedDistanceHeap heap = new BoundedDistanceHeap(50);
+        for (int i = 0; i < d.length; i++) {
+            d[i] = random.nextInt(2000) / 10d; // lots of ties.
+            heap.offer(i, d[i]);
+        }
+        assertTrue(heap.isFull());
+        heap.sort();
+        double[] sorted = d.clone();
+        Arrays.sort(sorted);
+        for (int i = 0; i < heap.size(); i++) {
+            assertEquals(sorted[i], heap.distance(i), 0d);
+            assertEquals(d[heap.doc(i)], heap.distance(i), 0d);
+            if (i > 0 && heap.distance(i) == heap.distance(i - 1)) {
+                assertTrue(heap.doc(i) > heap.doc(i - 1)); // ties are ordered by doc id
+            }
+        }
+    }
+
+    @Test
+    public void testMergeAndBounds() {
+        BoundedDistanceHeap a = new BoundedDistanceHeap(3);
+        BoundedDistanceHeap b = new BoundedDistanceHeap(3);
+        assertEquals(Double.MAX_VALUE, a.worstDistance(), 0d);
+        assertTrue(a.offer(1, 5d));
+        assertTrue(a.offer(2, 1d));
+        assertTrue(a.offer(3, 3d));
+        assertFalse(a.offer(4, 7d));
+        assertEquals(5d, a.worstDistance(), 0d);
+        b.offer(5, 2d);
+        b.offer(6, 9d);
+        a.addAll(b);
+        a.sort();
+        assertEquals(3, a.size());
+        assertEquals(2, a.doc(0));
+        assertEquals(5, a.doc(1));
+        assertEquals(3, a.doc(2));
+
+        BoundedDistanceHeap empty = new BoundedDistanceHeap(0);
+        assertFalse(empty.offer(1, 0d));
+        empty.sort();
+        assertEquals(0, empty.size());
+    }
+
+    @Test
+    public void testNaN() {
+        BoundedDistanceHeap heap = new BoundedDistanceHeap(2);
+        assertFalse(heap.offer(1, Double.NaN));
+        assertTrue(heap.offer(2, 4d));
+        assertTrue(heap.offer(3, 1d));
+        assertFalse(heap.offer(4, Double.NaN));
+        heap.sort();
+        assertEquals(2, heap.size());
+        assertEquals(3, heap.doc(0));
+        assertEquals(2, heap.doc(1));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testOfferAfterSort() {
+        BoundedDistanceHeap heap = new BoundedDistanceHeap(2);
+        heap.offer(1, 1d);
+        heap.sort();
+        heap.offer(2, 0d);
+    }
+}
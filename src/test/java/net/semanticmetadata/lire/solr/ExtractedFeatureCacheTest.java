@@ -0,0 +1,58 @@
+package net.semanticmetadata.lire.solr;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class ExtractedFeatureCacheTest {
+    private static final int[] HASHES = new int[100];
+
+    @Test
+    public void testLeastRecentlyUsedEviction() {
+        // room for about three entries of 1KB.
+        ExtractedFeatureCache cache = new ExtractedFeatureCache(3 * 1700, 0);
+        cache.put("http://a", "cl", new byte[1024], HASHES);
+        cache.put("http://b", "cl", new byte[1024], HASHES);
+        cache.put("http://c", "cl", new byte[1024], HASHES);
+        assertNotNull(cache.get("http://a", "cl")); // a is the most recently used now.
+        cache.put("http://d", "cl", new byte[1024], HASHES);
+        assertNull(cache.get("http://b", "cl"));
+        assertNotNull(cache.get("http://a", "cl"));
+        assertNotNull(cache.get("http://c", "cl"));
+        assertNotNull(cache.get("http://d", "cl"));
+        // same URL, different feature.
+        assertNull(cache.get("http://a", "eh"));
+
+        // entries larger than the cache are not kept.
+        assertNotNull(cache.put("http://e", "cl", new byte[10000], HASHES));
+        assertNull(cache.get("http://e", "cl"));
+
+        Map<String, Object> statistics = new HashMap<>();
+        cache.getStatistics(statistics);
+        assertEquals(4L, statistics.get("hits"));
+        assertEquals(7L, statistics.get("lookups"));
+        assertEquals(1L, statistics.get("evictions"));
+        assertEquals(3, statistics.get("size"));
+        assertTrue((Long) statistics.get("ramBytesUsed") <= 3 * 1700);
+    }
+
+    @Test
+    public void testTimeToLive() throws Exception {
+        ExtractedFeatureCache cache = new ExtractedFeatureCache(1 << 20, 50);
+        byte[] feature = new byte[]{1, 2, 3};
+        cache.put("http://a", "cl", feature, HASHES);
+        ExtractedFeatureCache.Entry entry = cache.get("http://a", "cl");
+        assertArrayEquals(feature, entry.getFeature());
+        assertSame(HASHES, entry.getHashes());
+        Thread.sleep(100);
+        assertNull(cache.get("http://a", "cl"));
+        Map<String, Object> statistics = new HashMap<>();
+        cache.getStatistics(statistics);
+        assertEquals(1L, statistics.get("expirations"));
+        assertEquals(0, statistics.get("size"));
+        assertEquals(0L, statistics.get("ramBytesUsed"));
+    }
+}
@@ -0,0 +1,69 @@
+package net.semanticmetadata.lire.solr;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import org.apache.solr.core.SolrInfoBean;
+import org.apache.solr.metrics.SolrMetricManager;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class LireMetricsTest {
+
+    @Test
+    public void testRecord() throws Exception {
+        LireMetrics metrics = new LireMetrics();
+        long start = System.nanoTime();
+        Thread.sleep(5);
+        assertTrue(metrics.record("rerank", "cl_hi", "hash", start) >= 5000000);
+        metrics.record("rerank", "cl_hi", "hash", System.nanoTime());
+        metrics.record("rerank", "eh_hi", "hash", System.nanoTime());
+        Timer timer = metrics.timer("rerank", "cl_hi", "hash");
+        assertEquals(2, timer.getCount());
+        assertTrue(timer.getSnapshot().getMax() >= 5000000);
+        assertEquals(1, metrics.timer("rerank", "eh_hi", "hash").getCount());
+        metrics.update("docs", "cl_hi", "hash", 1234);
+        assertEquals(1234, metrics.timer("docs", "cl_hi", "hash").getSnapshot().getMax());
+        metrics.count("candidates", "cl_hi", "hash", 42);
+        assertEquals(42, metrics.histogram("candidates", "cl_hi", "hash").getSnapshot().getMax());
+    }
+
+    @Test
+    public void testRegistered() {
+        SolrMetricManager manager = new SolrMetricManager();
+        Set<String> metricNames = new HashSet<>();
+        SolrInfoBean bean = new SolrInfoBean() {
+            @Override
+            public String getName() {
+                return "lireq";
+            }
+
+            @Override
+            public String getDescription() {
+                return getName();
+            }
+
+            @Override
+            public Category getCategory() {
+                return Category.QUERY;
+            }
+
+            @Override
+            public Set<String> getMetricNames() {
+                return metricNames;
+            }
+        };
+        LireMetrics metrics = new LireMetrics(manager, "solr.core.test", bean, "/lireq");
+        metrics.record("rerank", "cl_hi", "hash", System.nanoTime());
+        metrics.record("download", null, null, System.nanoTime());
+        metrics.count("candidates", "cl_hi", "hash", 1000);
+        MetricRegistry registry = manager.registry("solr.core.test");
+        assertEquals(1, registry.getTimers().get("QUERY./lireq.phases.rerank.cl_hi.hash").getCount());
+        assertEquals(1, registry.getTimers().get("QUERY./lireq.phases.download").getCount());
+        assertEquals(1000, registry.getHistograms().get("QUERY./lireq.candidates.cl_hi.hash").getSnapshot().getMax());
+        assertTrue(metricNames.contains("QUERY./lireq.phases.rerank.cl_hi.hash"));
+    }
+}
@@ -0,0 +1,214 @@
+package net.semanticmetadata.lire.solr;
+
+import com.codahale.metrics.Timer;
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import net.semanticmetadata.lire.imageanalysis.features.global.ColorLayout;
+import net.semanticmetadata.lire.imageanalysis.features.global.EdgeHistogram;
+import net.semanticmetadata.lire.indexers.hashing.BitSampling;
+import net.semanticmetadata.lire.solr.indexing.ParallelSolrIndexer;
+import net.semanticmetadata.lire.utils.ImageUtils;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.io.FileUtils;
+import org.apache.solr.client.solrj.embedded.EmbeddedSolrServer;
+import org.apache.solr.client.solrj.request.QueryRequest;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.SolrCore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the request handler on an embedded core, with the configuration in src/test/resources/solr.
+ */
+public class LireRequestHandlerTest {
+    private static final int NUM_DOCS = 40;
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private EmbeddedSolrServer server;
+    private List<File> images = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        // the hash functions shipped with LIRE, the handler uses the ones loaded.
+        BitSampling.readHashFunctions();
+        File solrHome = folder.newFolder("solr");
+        FileUtils.copyDirectory(new File(getClass().getResource("/solr").toURI()), solrHome);
+        FileUtils.write(new File(solrHome, "lire/core.properties"), "name=lire\n", "UTF-8");
+        server = new EmbeddedSolrServer(solrHome.toPath(), "lire");
+
+        Random random = new Random(7);
+        for (int i = 0; i < NUM_DOCS; i++) {
+            BufferedImage image = createImage(random);
+            File file = folder.newFile("img" + i + ".png");
+            ImageIO.write(image, "png", file);
+            images.add(file);
+            SolrInputDocument document = new SolrInputDocument();
+            document.addField("id", "img" + i);
+            // the features of the image as the handler extracts them from a URL.
+            BufferedImage trimmed = ImageUtils.trimWhiteSpace(image);
+            for (GlobalFeature feature : new GlobalFeature[]{new ColorLayout(), new EdgeHistogram()}) {
+                feature.extract(trimmed);
+                String code = FeatureRegistry.getCodeForClass(feature.getClass());
+                document.addField(FeatureRegistry.codeToFeatureField(code), Base64.encodeBase64String(feature.getByteArrayRepresentation()));
+                document.addField(FeatureRegistry.codeToHashField(code),
+                        ParallelSolrIndexer.arrayToString(BitSampling.generateHashes(feature.getFeatureVector())));
+            }
+            server.add(document);
+        }
+        server.commit();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.close();
+    }
+
+    private static BufferedImage createImage(Random random) {
+        BufferedImage image = new BufferedImage(128, 128, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setColor(new Color(random.nextInt(0x1000000)));
+        g.fillRect(0, 0, 128, 128);
+        for (int i = 0; i < 10; i++) {
+            g.setColor(new Color(random.nextInt(0x1000000)));
+            g.fillRect(random.nextInt(128), random.nextInt(128), 8 + random.nextInt(64), 8 + random.nextInt(64));
+        }
+        g.dispose();
+        return image;
+    }
+
+    private NamedList<Object> request(String... params) throws Exception {
+        ModifiableSolrParams solrParams = new ModifiableSolrParams();
+        for (int i = 0; i < params.length; i += 2) solrParams.add(params[i], params[i + 1]);
+        QueryRequest request = new QueryRequest(solrParams);
+        request.setPath("/lireq");
+        return server.request(request);
+    }
+
+    private long downloads() {
+        return timerCount("download");
+    }
+
+    /**
+     * @param phase the phase, field and mode of the timer, eg. search.cl_hi.exact
+     */
+    private long timerCount(String phase) {
+        try (SolrCore core = server.getCoreContainer().getCore("lire")) {
+            Timer timer = core.getCoreMetricManager().getRegistry().getTimers().get("QUERY./lireq.phases." + phase);
+            return timer != null ? timer.getCount() : 0;
+        }
+    }
+
+    private static void assertFieldRankings(NamedList<Object> response) {
+        assertNull(response.get("Error"));
+        NamedList<?> fields = (NamedList<?>) response.get("fields");
+        assertNotNull(fields);
+        assertNull(response.get("response"));
+        assertEquals(2, fields.size());
+        assertEquals("cl_ha", fields.getName(0));
+        assertEquals("eh_ha", fields.getName(1));
+        for (int i = 0; i < fields.size(); i++) {
+            NamedList<?> fieldResponse = (NamedList<?>) fields.getVal(i);
+            assertNull(fieldResponse.get("Error"));
+            SolrDocumentList results = (SolrDocumentList) fieldResponse.get("response");
+            assertEquals(5, results.size());
+            // the image itself comes first for each of the features.
+            assertEquals("img3", results.get(0).get("id"));
+            assertEquals(0d, ((Number) results.get(0).get("d")).doubleValue(), 0.000001);
+        }
+    }
+
+    private static void assertFusedRanking(NamedList<Object> response) {
+        assertNull(response.get("Error"));
+        assertNull(response.get("fields"));
+        SolrDocumentList results = (SolrDocumentList) response.get("response");
+        assertEquals(5, results.size());
+        assertEquals("img3", results.get(0).get("id"));
+    }
+
+    @Test
+    public void testMultiFieldUrlSearch() throws Exception {
+        String url = images.get(3).toURI().toURL().toString();
+        assertFieldRankings(request("url", url, "field", "cl,eh", "rows", "5", "accuracy", "0.95"));
+        // the image is downloaded once for both features.
+        assertEquals(1, downloads());
+    }
+
+    @Test
+    public void testMultiFieldIdSearch() throws Exception {
+        NamedList<Object> response = request("id", "img3", "field", "cl, eh_ha", "rows", "5", "accuracy", "0.95");
+        assertFieldRankings(response);
+        NamedList<?> fields = (NamedList<?>) response.get("fields");
+        for (int i = 0; i < fields.size(); i++) {
+            assertEquals(fields.getName(i), ((NamedList<?>) fields.getVal(i)).get("QueryField"));
+        }
+    }
+
+    @Test
+    public void testFusedSearch() throws Exception {
+        String url = images.get(3).toURI().toURL().toString();
+        // the same syntax fuses the rankings by id and by URL, with fuse=true or weights.
+        assertFusedRanking(request("id", "img3", "field", "cl,eh", "fuse", "true", "rows", "5", "accuracy", "0.95"));
+        assertFusedRanking(request("url", url, "field", "cl,eh", "fuse", "true", "rows", "5", "accuracy", "0.95"));
+        assertFusedRanking(request("id", "img3", "field", "cl:2,eh", "rows", "5", "accuracy", "0.95"));
+        NamedList<Object> response = request("url", url, "field", "cl:2,eh", "rows", "5", "accuracy", "0.95");
+        assertFusedRanking(response);
+        // the features extracted by the earlier search are taken from the cache.
+        assertEquals(2, response.getAll("FeatureCache").size());
+    }
+
+    @Test
+    public void testFusedHammingSearch() throws Exception {
+        String url = images.get(3).toURI().toURL().toString();
+        // there is no hash query to take the candidates of a fused search from.
+        NamedList<Object> response = request("id", "img3", "field", "cl,eh", "fuse", "true", "mode", "hamming");
+        assertNotNull(response.get("Error"));
+        assertNull(response.get("response"));
+        response = request("url", url, "field", "cl:2,eh", "mode", "hamming");
+        assertNotNull(response.get("Error"));
+        assertNull(response.get("response"));
+        assertEquals(0, downloads());
+    }
+
+    @Test
+    public void testSearchMode() throws Exception {
+        // without featureColumns an accuracy of 0.9 or more re-ranks all documents instead of the exact scan.
+        NamedList<Object> response = request("id", "img3", "field", "cl", "rows", "5", "accuracy", "0.95");
+        assertNull(response.get("ExactSearchTime"));
+        assertEquals("img3", ((SolrDocumentList) response.get("response")).get(0).get("id"));
+        assertEquals(1, timerCount("response.cl_hi.hash"));
+        assertEquals(0, timerCount("response.cl_hi.exact"));
+        response = request("id", "img3", "field", "cl", "rows", "5", "mode", "exact");
+        assertNotNull(response.get("ExactSearchTime"));
+        assertEquals("img3", ((SolrDocumentList) response.get("response")).get(0).get("id"));
+        assertEquals(1, timerCount("search.cl_hi.exact"));
+        assertEquals(1, timerCount("response.cl_hi.exact"));
+    }
+
+    @Test
+    public void testBatchHammingSearch() throws Exception {
+        NamedList<Object> response = request("ids", "img1,img2", "field", "cl", "mode", "hamming");
+        assertNotNull(response.get("Error"));
+        assertNull(response.get("batch"));
+        response = request("ids", "img1,img2", "field", "cl", "rows", "5");
+        assertNull(response.get("Error"));
+        List<?> batch = (List<?>) response.get("batch");
+        assertEquals(2, batch.size());
+        assertEquals("img2", ((SolrDocumentList) ((NamedList<?>) batch.get(1)).get("response")).get(0).get("id"));
+    }
+}
@@ -0,0 +1,211 @@
+package net.semanticmetadata.lire.solr;
+
+import net.semanticmetadata.lire.imageanalysis.features.global.CEDD;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.BinaryDocValuesField;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+public class ParallelReRankerTest {
+    private static final int NUM_DOCS = 5000;
+    private ByteBuffersDirectory directory;
+    private DirectoryReader reader;
+    private ForkJoinPool pool;
+    private List<byte[]> features = new ArrayList<>();
+    private List<byte[]> otherFeatures = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        Random random = new Random(42);
+        Random otherRandom = new Random(43);
+        directory = new ByteBuffersDirectory();
+        // no merges to make sure we have multiple segments.
+        IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new WhitespaceAnalyzer()).setMergePolicy(NoMergePolicy.INSTANCE));
+        for (int i = 0; i < NUM_DOCS; i++) {
+            byte[] data = new byte[72];
+            random.nextBytes(data);
+            features.add(data);
+            Document document = new Document();
+            document.add(new StringField("id", Integer.toString(i), Field.Store.YES));
+            document.add(new BinaryDocValuesField("ce_hi", new BytesRef(data)));
+            // a second CEDD field, missing for some documents.
+            byte[] other = null;
+            if (i % 13 != 5) {
+                other = new byte[72];
+                otherRandom.nextBytes(other);
+                document.add(new BinaryDocValuesField("cx_hi", new BytesRef(other)));
+            }
+            otherFeatures.add(other);
+            writer.addDocument(document);
+            if (i % 700 == 699) writer.commit();
+        }
+        writer.close();
+        reader = DirectoryReader.open(directory);
+        pool = new ForkJoinPool(4);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        pool.shutdown();
+        reader.close();
+        directory.close();
+    }
+
+    @Test
+    public void testReRankEqualsLinearSearch() throws Exception {
+        assertTrue(reader.leaves().size() > 1);
+        IndexSearcher searcher = new IndexSearcher(reader);
+        CEDD query = new CEDD();
+        query.setByteArrayRepresentation(features.get(17));
+
+        // all documents as candidates, in random order like the hash query would deliver them.
+        List<Integer> candidates = new ArrayList<>();
+        for (int i = 0; i < NUM_DOCS; i++) candidates.add(i);
+        Collections.shuffle(candidates, new Random(7));
+
+        BoundedDistanceHeap results = new ParallelReRanker(pool).reRank(candidates.iterator(), "ce_hi", query, 20, searcher);
+
+        // linear search for comparison
+        TreeSet<CachingSimpleResult> expected = new TreeSet<>();
+        CEDD tmp = new CEDD();
+        for (int i = 0; i < NUM_DOCS; i++) {
+            tmp.setByteArrayRepresentation(features.get(i));
+            expected.add(new CachingSimpleResult(query.getDistance(tmp), null, i));
+            if (expected.size() > 20) expected.pollLast();
+        }
+
+        assertEquals(expected.size(), results.size());
+        int rank = 0;
+        for (CachingSimpleResult e : expected) {
+            assertEquals(e.getIndexNumber(), results.doc(rank));
+            assertEquals(e.getDistance(), results.distance(rank), 0.000001);
+            assertEquals(Integer.toString(e.getIndexNumber()), searcher.doc(results.doc(rank)).get("id"));
+            rank++;
+        }
+        assertEquals(0d, results.distance(0), 0.000001);
+    }
+
+    @Test
+    public void testReRankFused() throws Exception {
+        IndexSearcher searcher = new IndexSearcher(reader);
+        CEDD query = new CEDD(), otherQuery = new CEDD();
+        query.setByteArrayRepresentation(features.get(21));
+        otherQuery.setByteArrayRepresentation(otherFeatures.get(21));
+
+        // every third document, some of them twice, like the union of two hash queries.
+        List<Integer> candidates = new ArrayList<>();
+        for (int i = 0; i < NUM_DOCS; i += 3) candidates.add(i);
+        for (int i = 0; i < NUM_DOCS; i += 9) candidates.add(i);
+        Collections.shuffle(candidates, new Random(3));
+
+        BoundedDistanceHeap results = new ParallelReRanker(pool).reRankFused(candidates.iterator(),
+                new String[]{"ce_hi", "cx_hi"}, new CEDD[]{query, otherQuery}, new double[]{3, 1}, 20, searcher);
+
+        // min max normalised distances of the candidates, missing values count as 1.
+        int n = (NUM_DOCS + 2) / 3;
+        double[][] distances = new double[2][n];
+        CEDD tmp = new CEDD();
+        for (int j = 0; j < n; j++) {
+            tmp.setByteArrayRepresentation(features.get(3 * j));
+            distances[0][j] = query.getDistance(tmp);
+            if (otherFeatures.get(3 * j) != null) {
+                tmp.setByteArrayRepresentation(otherFeatures.get(3 * j));
+                distances[1][j] = otherQuery.getDistance(tmp);
+            } else {
+                distances[1][j] = Double.NaN;
+            }
+        }
+        BoundedDistanceHeap expected = new BoundedDistanceHeap(20);
+        double[] fused = new double[n];
+        double[] weights = {0.75, 0.25};
+        for (int f = 0; f < 2; f++) {
+            double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+            for (double d : distances[f]) {
+                if (Double.isNaN(d)) continue;
+                min = Math.min(min, d);
+                max = Math.max(max, d);
+            }
+            for (int j = 0; j < n; j++) {
+                fused[j] += weights[f] * (Double.isNaN(distances[f][j]) ? 1 : (distances[f][j] - min) / (max - min));
+            }
+        }
+        for (int j = 0; j < n; j++) expected.offer(3 * j, fused[j]);
+        expected.sort();
+
+        assertEquals(20, results.size());
+        for (int i = 0; i < results.size(); i++) {
+            assertEquals(expected.doc(i), results.doc(i));
+            assertEquals(expected.distance(i), results.distance(i), 0.000001);
+        }
+        // the query document is the nearest one by both features.
+        assertEquals(21, results.doc(0));
+        assertEquals(0d, results.distance(0), 0.000001);
+    }
+
+    @Test
+    public void testDistances() throws Exception {
+        IndexSearcher searcher = new IndexSearcher(reader);
+        CEDD query = new CEDD(), tmp = new CEDD();
+        query.setByteArrayRepresentation(otherFeatures.get(0));
+        int[] docs = new int[NUM_DOCS / 7];
+        for (int i = 0; i < docs.length; i++) docs[i] = i * 7;
+        double[] distances = new ParallelReRanker(pool).distances(docs, "cx_hi", query, searcher);
+        assertEquals(docs.length, distances.length);
+        for (int i = 0; i < docs.length; i++) {
+            if (otherFeatures.get(docs[i]) == null) {
+                assertTrue(Double.isNaN(distances[i]));
+            } else {
+                tmp.setByteArrayRepresentation(otherFeatures.get(docs[i]));
+                assertEquals(query.getDistance(tmp), distances[i], 0.000001);
+            }
+        }
+    }
+
+    @Test
+    public void testReRankBatchEqualsSingleQueries() throws Exception {
+        IndexSearcher searcher = new IndexSearcher(reader);
+        ParallelReRanker reRanker = new ParallelReRanker(pool);
+        Random random = new Random(9);
+        CEDD[] queries = new CEDD[12];
+        int[][] candidates = new int[queries.length][];
+        for (int q = 0; q < queries.length; q++) {
+            queries[q] = new CEDD();
+            queries[q].setByteArrayRepresentation(features.get(random.nextInt(NUM_DOCS)));
+            // overlapping candidate sets of different sizes, one of them empty.
+            candidates[q] = new int[q == 3 ? 0 : 500 + random.nextInt(2000)];
+            for (int j = 0; j < candidates[q].length; j++) candidates[q][j] = (q * 97 + j * 2) % NUM_DOCS;
+        }
+        BoundedDistanceHeap[] results = reRanker.reRankBatch(candidates, "ce_hi", queries, 15, searcher);
+        assertEquals(queries.length, results.length);
+        for (int q = 0; q < queries.length; q++) {
+            List<Integer> docs = new ArrayList<>();
+            for (int doc : candidates[q]) docs.add(doc);
+            BoundedDistanceHeap expected = reRanker.reRank(docs.iterator(), "ce_hi", queries[q], 15, searcher);
+            assertEquals(expected.size(), results[q].size());
+            for (int i = 0; i < expected.size(); i++) {
+                assertEquals(expected.distance(i), results[q].distance(i), 0.000001);
+            }
+        }
+        assertEquals(0, results[3].size());
+    }
+}
@@ -0,0 +1,43 @@
+package net.semanticmetadata.lire.solr;
+
+import net.semanticmetadata.lire.imageanalysis.features.global.ColorLayout;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+
+import static org.junit.Assert.*;
+
+public class ResultCacheKeyTest {
+    private static ColorLayout createFeature(int rgb) {
+        BufferedImage image = new BufferedImage(32, 32, BufferedImage.TYPE_INT_RGB);
+        for (int x = 0; x < 32; x++) image.setRGB(x, x, rgb);
+        ColorLayout feature = new ColorLayout();
+        feature.extract(image);
+        return feature;
+    }
+
+    private static ModifiableSolrParams params(String... keyValues) {
+        ModifiableSolrParams params = new ModifiableSolrParams();
+        for (int i = 0; i < keyValues.length; i += 2) params.add(keyValues[i], keyValues[i + 1]);
+        return params;
+    }
+
+    @Test
+    public void testEquality() {
+        ColorLayout feature = createFeature(0xff0000);
+        ResultCacheKey key = new ResultCacheKey(params("id", "a", "rows", "10", "fq", "x:1", "fl", "id"), "cl_ha", feature);
+        // the same search with a different response format.
+        ResultCacheKey same = new ResultCacheKey(params("id", "a", "rows", "10", "fq", "x:1", "wt", "xml"), "cl_ha", createFeature(0xff0000));
+        assertEquals(key, same);
+        assertEquals(key.hashCode(), same.hashCode());
+        assertEquals("id", key.getParams().get("fl"));
+
+        assertNotEquals(key, new ResultCacheKey(params("id", "a", "rows", "20", "fq", "x:1"), "cl_ha", feature));
+        assertNotEquals(key, new ResultCacheKey(params("id", "a", "rows", "10", "fq", "x:2"), "cl_ha", feature));
+        assertNotEquals(key, new ResultCacheKey(params("id", "a", "rows", "10", "fq", "x:1", "fq", "y:1"), "cl_ha", feature));
+        assertNotEquals(key, new ResultCacheKey(params("id", "a", "rows", "10", "fq", "x:1", "mode", "exact"), "cl_ha", feature));
+        assertNotEquals(key, new ResultCacheKey(params("id", "a", "rows", "10", "fq", "x:1"), "cl_ha", createFeature(0x00ff00)));
+        assertNotEquals(key, new ResultCacheKey(params("id", "a", "rows", "10", "fq", "x:1"), "ph_ha", feature));
+    }
+}
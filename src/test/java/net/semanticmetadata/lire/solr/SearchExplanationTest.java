@@ -0,0 +1,110 @@
+package net.semanticmetadata.lire.solr;
+
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.BoostQuery;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.solr.common.util.NamedList;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SearchExplanationTest {
+    private ByteBuffersDirectory directory;
+    private DirectoryReader reader;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = new ByteBuffersDirectory();
+        IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new WhitespaceAnalyzer()).setMergePolicy(NoMergePolicy.INSTANCE));
+        for (int i = 0; i < 100; i++) {
+            Document document = new Document();
+            document.add(new StringField("id", Integer.toString(i), Field.Store.YES));
+            // hash a in every document, b in every second, c in every tenth.
+            document.add(new StringField("cl_ha", "a", Field.Store.NO));
+            if (i % 2 == 0) document.add(new StringField("cl_ha", "b", Field.Store.NO));
+            if (i % 10 == 0) document.add(new StringField("cl_ha", "c", Field.Store.NO));
+            writer.addDocument(document);
+            if (i % 40 == 39) writer.commit();
+        }
+        writer.close();
+        reader = DirectoryReader.open(directory);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        reader.close();
+        directory.close();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testExplainQuery() throws Exception {
+        BooleanQuery query = new BooleanQuery.Builder()
+                .add(new TermQuery(new Term("cl_ha", "c")), BooleanClause.Occur.SHOULD)
+                .add(new BoostQuery(new TermQuery(new Term("cl_ha", "b")), 0.5f), BooleanClause.Occur.SHOULD)
+                .build();
+        // 0xa is in the index but not in the query, 0xd is not in the index.
+        NamedList<Object> explanation = SearchExplanation.explainQuery(reader, "cl_ha", query, new int[]{0xc, 0xa, 0xd});
+        List<NamedList<Object>> terms = (List<NamedList<Object>>) explanation.get("terms");
+        assertEquals(2, terms.size());
+        assertEquals("c", terms.get(0).get("term"));
+        assertEquals(10, terms.get(0).get("docFreq"));
+        assertEquals(1f, terms.get(0).get("boost"));
+        assertEquals(50, terms.get(1).get("docFreq"));
+        assertEquals(0.5f, terms.get(1).get("boost"));
+        List<NamedList<Object>> dropped = (List<NamedList<Object>>) explanation.get("dropped");
+        assertEquals(2, dropped.size());
+        assertEquals("a", dropped.get(0).get("term"));
+        assertEquals(100, dropped.get(0).get("docFreq"));
+        assertEquals("accuracy", dropped.get(0).get("reason"));
+        assertEquals("docFreq=0", dropped.get(1).get("reason"));
+
+        assertNull(SearchExplanation.explainQuery(reader, "cl_ha", new MatchAllDocsQuery(), null).get("terms"));
+    }
+
+    @Test
+    public void testExplainCandidates() {
+        assertEquals(3, reader.leaves().size());
+        List<NamedList<Object>> segments = SearchExplanation.explainCandidates(new int[]{3, 5, 90, 95, 99}, reader.leaves());
+        assertEquals(2, segments.size());
+        assertEquals(0, segments.get(0).get("segment"));
+        assertEquals(2, segments.get(0).get("candidates"));
+        assertEquals(2, segments.get(1).get("segment"));
+        assertEquals(3, segments.get(1).get("candidates"));
+        assertEquals(20, segments.get(1).get("maxDoc"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testExplainReRank() {
+        // descending distances, each candidate is better than the ones before.
+        double[] distances = new double[100];
+        for (int i = 0; i < distances.length; i++) distances[i] = 100 - i;
+        distances[50] = Double.NaN;
+        NamedList<Object> explanation = SearchExplanation.explainReRank(distances, 10);
+        assertEquals(100, explanation.get("candidates"));
+        assertEquals(1, explanation.get("missing"));
+        assertEquals(99, explanation.get("entered"));
+        assertEquals(89, explanation.get("evicted"));
+        NamedList<Object> distribution = (NamedList<Object>) explanation.get("distances");
+        assertEquals(1d, distribution.get("min"));
+        assertEquals(100d, distribution.get("max"));
+        assertEquals(10d, distribution.get("kth"));
+    }
+}
@@ -0,0 +1,91 @@
+package net.semanticmetadata.lire.solr;
+
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.solr.common.IteratorWriter;
+import org.apache.solr.common.MapWriter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class StreamingResultsTest {
+    private ByteBuffersDirectory directory;
+    private DirectoryReader reader;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = new ByteBuffersDirectory();
+        IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new WhitespaceAnalyzer()));
+        for (int i = 0; i < 100; i++) {
+            Document document = new Document();
+            document.add(new StringField("id", "img" + i, Field.Store.YES));
+            document.add(new StoredField("title", "Image " + i));
+            document.add(new StoredField("tag", "a"));
+            document.add(new StoredField("tag", "b"));
+            writer.addDocument(document);
+        }
+        writer.close();
+        reader = DirectoryReader.open(directory);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        reader.close();
+        directory.close();
+    }
+
+    private List<Map<String, Object>> write(BoundedDistanceHeap results, String fieldsRequested) throws Exception {
+        List<Map<String, Object>> rows = new ArrayList<>();
+        new StreamingResults(new IndexSearcher(reader), results, fieldsRequested).writeIter(new IteratorWriter.ItemWriter() {
+            @Override
+            public IteratorWriter.ItemWriter add(Object o) {
+                Map<String, Object> row = new HashMap<>();
+                ((MapWriter) o).toMap(row);
+                rows.add(row);
+                return this;
+            }
+        });
+        return rows;
+    }
+
+    @Test
+    public void testWriteIter() throws Exception {
+        BoundedDistanceHeap results = new BoundedDistanceHeap(10);
+        for (int i = 0; i < 100; i++) results.offer(i, 100 - i);
+        results.sort();
+
+        List<Map<String, Object>> rows = write(results, null);
+        assertEquals(10, rows.size());
+        for (int i = 0; i < rows.size(); i++) {
+            assertEquals("img" + (99 - i), rows.get(i).get("id"));
+            assertEquals("Image " + (99 - i), rows.get(i).get("title"));
+            assertEquals(i + 1d, (Double) rows.get(i).get("d"), 0.000001);
+            assertFalse(rows.get(i).containsKey("tag"));
+        }
+
+        rows = write(results, "id,tag,score");
+        assertEquals("img99", rows.get(0).get("id"));
+        assertArrayEquals(new String[]{"a", "b"}, (String[]) rows.get(0).get("tag"));
+        assertEquals(1d, (Double) rows.get(0).get("score"), 0.000001);
+        assertFalse(rows.get(0).containsKey("title"));
+
+        rows = write(results, "*");
+        assertEquals(4, rows.get(0).size());
+        assertEquals("Image 99", rows.get(0).get("title"));
+    }
+}
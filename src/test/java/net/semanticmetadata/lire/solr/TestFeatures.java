@@ -0,0 +1,59 @@
+package net.semanticmetadata.lire.solr;
+
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import net.semanticmetadata.lire.imageanalysis.features.global.GenericGlobalIntFeature;
+import net.semanticmetadata.lire.solr.features.DoubleFeatureCosineDistance;
+import net.semanticmetadata.lire.solr.features.ShortFeatureCosineDistance;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+/**
+ * Random images and features of every registered code for the distance tests.
+ */
+public final class TestFeatures {
+    private TestFeatures() {
+    }
+
+    /**
+     * Creates a feature of the given class, extracted from the image or, for the generic features without an
+     * extraction, filled with random data.
+     */
+    public static GlobalFeature createFeature(Class<? extends GlobalFeature> featureClass, BufferedImage image, Random random) throws Exception {
+        if (featureClass == ShortFeatureCosineDistance.class) {
+            short[] d = new short[512];
+            for (int i = 0; i < 40; i++) d[random.nextInt(d.length)] = (short) random.nextInt(Short.MAX_VALUE);
+            ShortFeatureCosineDistance f = new ShortFeatureCosineDistance();
+            f.setData(d);
+            return f;
+        } else if (featureClass == DoubleFeatureCosineDistance.class) {
+            double[] d = new double[256];
+            for (int i = 0; i < 40; i++) d[random.nextInt(d.length)] = random.nextDouble();
+            DoubleFeatureCosineDistance f = new DoubleFeatureCosineDistance();
+            f.setData(d);
+            return f;
+        } else if (featureClass == GenericGlobalIntFeature.class) {
+            int[] d = new int[128];
+            for (int i = 0; i < d.length; i++) d[i] = random.nextInt(1000);
+            GenericGlobalIntFeature f = new GenericGlobalIntFeature();
+            f.setData(d);
+            return f;
+        }
+        GlobalFeature f = featureClass.getDeclaredConstructor().newInstance();
+        f.extract(image);
+        return f;
+    }
+
+    public static BufferedImage createImage(Random random) {
+        BufferedImage image = new BufferedImage(128, 96, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        for (int i = 0; i < 30; i++) {
+            g.setColor(new Color(random.nextInt(256), random.nextInt(256), random.nextInt(256)));
+            g.fillRect(random.nextInt(128), random.nextInt(96), 5 + random.nextInt(60), 5 + random.nextInt(40));
+        }
+        g.dispose();
+        return image;
+    }
+}
@@ -0,0 +1,123 @@
+package net.semanticmetadata.lire.solr.columns;
+
+import net.semanticmetadata.lire.imageanalysis.features.global.CEDD;
+import net.semanticmetadata.lire.imageanalysis.features.global.GenericGlobalIntFeature;
+import net.semanticmetadata.lire.solr.BoundedDistanceHeap;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.BinaryDocValuesField;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+public class ExactSearchTest {
+    // large enough for a segment to be split into several ranges.
+    private static final int NUM_DOCS = 40000;
+    private static final int DIMENSIONS = 8;
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private ByteBuffersDirectory directory;
+    private DirectoryReader reader;
+    private ForkJoinPool pool;
+    private List<int[]> features = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        Random random = new Random(23);
+        directory = new ByteBuffersDirectory();
+        IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new WhitespaceAnalyzer())
+                .setMergePolicy(NoMergePolicy.INSTANCE).setRAMBufferSizeMB(64));
+        for (int i = 0; i < NUM_DOCS; i++) {
+            Document document = new Document();
+            document.add(new StringField("id", Integer.toString(i), Field.Store.YES));
+            int[] data = null;
+            if (i % 13 != 4) { // some documents without feature.
+                data = new int[DIMENSIONS];
+                for (int j = 0; j < DIMENSIONS; j++) data[j] = random.nextInt(256);
+                GenericGlobalIntFeature feature = new GenericGlobalIntFeature();
+                feature.setData(data);
+                document.add(new BinaryDocValuesField("if_hi", new BytesRef(feature.getByteArrayRepresentation())));
+            }
+            features.add(data);
+            writer.addDocument(document);
+            if (i == 35000) writer.commit();
+        }
+        for (int i = 0; i < NUM_DOCS; i += 3) writer.deleteDocuments(new Term("id", Integer.toString(i)));
+        writer.close();
+        reader = DirectoryReader.open(directory);
+        pool = new ForkJoinPool(4);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        pool.shutdown();
+        reader.close();
+        directory.close();
+    }
+
+    @Test
+    public void testEqualsLinearSearch() throws Exception {
+        assertEquals(2, reader.leaves().size());
+        IndexSearcher searcher = new IndexSearcher(reader);
+        GenericGlobalIntFeature query = new GenericGlobalIntFeature();
+        query.setData(features.get(1));
+        // only even documents are allowed.
+        Bits even = new Bits() {
+            @Override
+            public boolean get(int index) {
+                return index % 2 == 0;
+            }
+
+            @Override
+            public int length() {
+                return reader.maxDoc();
+            }
+        };
+        BoundedDistanceHeap results = ExactSearch.search(searcher, "if_hi", query, 50, even, folder.newFolder(), pool);
+
+        BoundedDistanceHeap expected = new BoundedDistanceHeap(50);
+        GenericGlobalIntFeature tmp = new GenericGlobalIntFeature();
+        for (int i = 0; i < NUM_DOCS; i += 2) {
+            if (features.get(i) == null || i % 3 == 0) continue;
+            tmp.setData(features.get(i));
+            expected.offer(i, query.getDistance(tmp));
+        }
+        expected.sort();
+        assertEquals(50, results.size());
+        for (int i = 0; i < results.size(); i++) {
+            int id = Integer.parseInt(searcher.doc(results.doc(i)).get("id"));
+            assertEquals(0, id % 2);
+            assertNotEquals(0, id % 3);
+            assertEquals(expected.distance(i), results.distance(i), 0.0001);
+        }
+
+        // without filter the query document itself comes first.
+        BoundedDistanceHeap all = ExactSearch.search(searcher, "if_hi", query, 1, null, folder.newFolder(), pool);
+        assertEquals("1", searcher.doc(all.doc(0)).get("id"));
+        assertEquals(0d, all.distance(0), 0.0001);
+
+        // the field has to match the feature.
+        assertNull(ExactSearch.search(searcher, "ce_hi", query, 10, null, folder.newFolder(), pool));
+        assertNull(ExactSearch.search(searcher, "if_hi", new CEDD(), 10, null, folder.newFolder(), pool));
+    }
+}
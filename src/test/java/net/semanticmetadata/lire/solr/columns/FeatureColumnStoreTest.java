@@ -0,0 +1,152 @@
+package net.semanticmetadata.lire.solr.columns;
+
+import net.semanticmetadata.lire.imageanalysis.features.global.CEDD;
+import net.semanticmetadata.lire.solr.BoundedDistanceHeap;
+import net.semanticmetadata.lire.solr.ParallelReRanker;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.BinaryDocValuesField;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+public class FeatureColumnStoreTest {
+    private static final int NUM_DOCS = 3000;
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private ByteBuffersDirectory directory;
+    private DirectoryReader reader;
+    private List<byte[]> features = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        Random random = new Random(3);
+        directory = new ByteBuffersDirectory();
+        IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new WhitespaceAnalyzer()).setMergePolicy(NoMergePolicy.INSTANCE));
+        for (int i = 0; i < NUM_DOCS; i++) {
+            Document document = new Document();
+            document.add(new StringField("id", Integer.toString(i), Field.Store.YES));
+            byte[] data = null;
+            if (i % 10 != 3) { // some documents without feature.
+                data = new byte[72];
+                random.nextBytes(data);
+                document.add(new BinaryDocValuesField("ce_hi", new BytesRef(data)));
+            }
+            features.add(data);
+            writer.addDocument(document);
+            if (i % 1000 == 999) writer.commit();
+        }
+        writer.close();
+        reader = DirectoryReader.open(directory);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        reader.close();
+        directory.close();
+    }
+
+    @Test
+    public void testColumnContent() throws Exception {
+        File columnDirectory = folder.newFolder();
+        CEDD cedd = new CEDD();
+        float[] vector = new float[144];
+        for (LeafReaderContext context : reader.leaves()) {
+            assertNull(FeatureColumnStore.getColumn(context.reader(), "ce_hi"));
+            FeatureColumn column = FeatureColumnStore.getOrBuildColumn(context.reader(), "ce_hi", columnDirectory);
+            assertNotNull(column);
+            assertSame(column, FeatureColumnStore.getColumn(context.reader(), "ce_hi"));
+            assertEquals(144, column.getDimensions());
+            for (int doc = 0; doc < context.reader().maxDoc(); doc++) {
+                byte[] data = features.get(context.docBase + doc);
+                assertEquals(data != null, column.read(doc, vector));
+                if (data != null) {
+                    cedd.setByteArrayRepresentation(data);
+                    double[] expected = cedd.getFeatureVector();
+                    for (int i = 0; i < expected.length; i++) assertEquals(expected[i], vector[i], 0d);
+                }
+            }
+            // fields not in the index and unknown fields
+            assertNull(FeatureColumnStore.getOrBuildColumn(context.reader(), "cl_hi", columnDirectory));
+            assertNull(FeatureColumnStore.getOrBuildColumn(context.reader(), "xx_hi", columnDirectory));
+        }
+        assertEquals(reader.leaves().size(), columnDirectory.listFiles().length);
+
+        // files are re-used when opened again.
+        int maxDoc = reader.leaves().get(0).reader().maxDoc();
+        FeatureColumn reopened = FeatureColumn.open(columnDirectory.listFiles()[0], maxDoc);
+        assertNotNull(reopened);
+        assertNull(FeatureColumn.open(columnDirectory.listFiles()[0], maxDoc + 1));
+
+        // all files belong to segments of the index.
+        FeatureColumnStore.removeStaleFiles(columnDirectory, reader);
+        assertEquals(reader.leaves().size(), columnDirectory.listFiles().length);
+        IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new WhitespaceAnalyzer()));
+        writer.forceMerge(1);
+        writer.close();
+        try (DirectoryReader merged = DirectoryReader.open(directory)) {
+            FeatureColumnStore.removeStaleFiles(columnDirectory, merged);
+            assertEquals(0, columnDirectory.listFiles().length);
+        }
+    }
+
+    @Test
+    public void testRetryAfterFailure() throws Exception {
+        // the directory cannot be created, as there is a file with its name.
+        File blocked = new File(folder.newFile(), "columns");
+        LeafReader leaf = reader.leaves().get(0).reader();
+        assertNull(FeatureColumnStore.getOrBuildColumn(leaf, "ce_hi", blocked));
+        assertNull(FeatureColumnStore.getColumn(leaf, "ce_hi"));
+        // the failure is not cached.
+        File columnDirectory = folder.newFolder();
+        assertNotNull(FeatureColumnStore.getOrBuildColumn(leaf, "ce_hi", columnDirectory));
+        assertNotNull(FeatureColumnStore.getColumn(leaf, "ce_hi"));
+    }
+
+    @Test
+    public void testReRankWithColumns() throws Exception {
+        ForkJoinPool pool = new ForkJoinPool(3);
+        try {
+            IndexSearcher searcher = new IndexSearcher(reader);
+            CEDD query = new CEDD();
+            query.setByteArrayRepresentation(features.get(42));
+            List<Integer> candidates = new ArrayList<>();
+            for (int i = 0; i < NUM_DOCS; i++) candidates.add(i);
+
+            ParallelReRanker reRanker = new ParallelReRanker(pool);
+            BoundedDistanceHeap expected = reRanker.reRank(candidates.iterator(), "ce_hi", query, 30, searcher);
+            reRanker.setColumnDirectory(folder.newFolder());
+            BoundedDistanceHeap actual = reRanker.reRank(candidates.iterator(), "ce_hi", query, 30, searcher);
+
+            assertEquals(expected.size(), actual.size());
+            for (int i = 0; i < expected.size(); i++) {
+                assertEquals(expected.doc(i), actual.doc(i));
+                assertEquals(expected.distance(i), actual.distance(i), 0.000001);
+            }
+            assertEquals(42, actual.doc(0));
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
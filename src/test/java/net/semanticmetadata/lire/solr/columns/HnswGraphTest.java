@@ -0,0 +1,203 @@
+package net.semanticmetadata.lire.solr.columns;
+
+import net.semanticmetadata.lire.imageanalysis.features.global.GenericGlobalIntFeature;
+import net.semanticmetadata.lire.solr.BoundedDistanceHeap;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.BinaryDocValuesField;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+public class HnswGraphTest {
+    private static final int NUM_DOCS = 4000;
+    private static final int DIMENSIONS = 32;
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private ByteBuffersDirectory directory;
+    private DirectoryReader reader;
+    private ForkJoinPool pool;
+    private List<int[]> features = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        Random random = new Random(5);
+        int[][] centers = new int[50][DIMENSIONS];
+        for (int[] center : centers) {
+            for (int i = 0; i < DIMENSIONS; i++) center[i] = random.nextInt(200);
+        }
+        directory = new ByteBuffersDirectory();
+        IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new WhitespaceAnalyzer()).setMergePolicy(NoMergePolicy.INSTANCE));
+        for (int i = 0; i < NUM_DOCS; i++) {
+            Document document = new Document();
+            document.add(new StringField("id", Integer.toString(i), Field.Store.YES));
+            int[] data = null;
+            if (i % 10 != 3) { // some documents without feature.
+                int[] center = centers[random.nextInt(centers.length)];
+                data = new int[DIMENSIONS];
+                for (int j = 0; j < DIMENSIONS; j++) data[j] = Math.max(0, center[j] + random.nextInt(41) - 20);
+                GenericGlobalIntFeature feature = new GenericGlobalIntFeature();
+                feature.setData(data);
+                document.add(new BinaryDocValuesField("if_hi", new BytesRef(feature.getByteArrayRepresentation())));
+            }
+            features.add(data);
+            writer.addDocument(document);
+            if (i % 1500 == 1499) writer.commit();
+        }
+        // deleted documents must not show up in the results.
+        for (int i = 0; i < NUM_DOCS; i += 7) writer.deleteDocuments(new Term("id", Integer.toString(i)));
+        writer.close();
+        reader = DirectoryReader.open(directory);
+        pool = new ForkJoinPool(4);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        pool.shutdown();
+        reader.close();
+        directory.close();
+    }
+
+    @Test
+    public void testRecall() throws Exception {
+        assertTrue(reader.leaves().size() > 1);
+        File columnDirectory = folder.newFolder();
+        IndexSearcher searcher = new IndexSearcher(reader);
+        Random random = new Random(11);
+        int found = 0, expectedCount = 0;
+        for (int q = 0; q < 30; q++) {
+            int[] data = features.get(random.nextInt(NUM_DOCS));
+            if (data == null) continue;
+            GenericGlobalIntFeature query = new GenericGlobalIntFeature();
+            query.setData(data);
+            BoundedDistanceHeap results = HnswGraphStore.search(searcher, "if_hi", query, 10, 50, null, columnDirectory, pool);
+            assertEquals(10, results.size());
+
+            // linear search over the live documents with the LIRE distance.
+            BoundedDistanceHeap expected = new BoundedDistanceHeap(10);
+            GenericGlobalIntFeature tmp = new GenericGlobalIntFeature();
+            for (int i = 0; i < NUM_DOCS; i++) {
+                if (features.get(i) == null || i % 7 == 0) continue;
+                tmp.setData(features.get(i));
+                expected.offer(i, query.getDistance(tmp));
+            }
+            expected.sort();
+            Set<Integer> resultDocs = new HashSet<>();
+            for (int i = 0; i < results.size(); i++) {
+                int id = Integer.parseInt(searcher.doc(results.doc(i)).get("id"));
+                assertNotEquals(0, id % 7);
+                tmp.setData(features.get(id));
+                assertEquals(query.getDistance(tmp), results.distance(i), 0.0001);
+                if (i > 0) assertTrue(results.distance(i - 1) <= results.distance(i));
+                resultDocs.add(id);
+            }
+            for (int i = 0; i < expected.size(); i++) {
+                expectedCount++;
+                if (resultDocs.contains(expected.doc(i))) found++;
+            }
+        }
+        assertTrue("recall too low: " + found + " of " + expectedCount, found >= 0.95 * expectedCount);
+    }
+
+    @Test
+    public void testReopenAndFilter() throws Exception {
+        File columnDirectory = folder.newFolder();
+        IndexSearcher searcher = new IndexSearcher(reader);
+        GenericGlobalIntFeature query = new GenericGlobalIntFeature();
+        query.setData(features.get(1));
+        BoundedDistanceHeap first = HnswGraphStore.search(searcher, "if_hi", query, 20, 100, null, columnDirectory, pool);
+        File[] files = columnDirectory.listFiles((dir, name) -> name.endsWith(HnswGraphStore.EXTENSION));
+        assertEquals(reader.leaves().size(), files.length);
+
+        // graphs read from the files give the same results.
+        for (LeafReaderContext context : reader.leaves()) {
+            HnswGraph graph = HnswGraph.open(new File(columnDirectory, FeatureColumnStore.filePrefix(
+                    FeatureColumnStore.toSegmentReader(context.reader())) + "if_hi" + HnswGraphStore.EXTENSION),
+                    FeatureColumnStore.getColumn(context.reader(), "if_hi"), GenericGlobalIntFeature.class);
+            assertNotNull(graph);
+            assertEquals(context.reader().maxDoc(), graph.getMaxDoc());
+            BoundedDistanceHeap reopened = graph.search(VectorDistance.forQuery(query), 20, 100, context.reader().getLiveDocs(), context.docBase);
+            BoundedDistanceHeap built = HnswGraphStore.getOrBuildGraph(context.reader(), "if_hi", columnDirectory)
+                    .search(VectorDistance.forQuery(query), 20, 100, context.reader().getLiveDocs(), context.docBase);
+            reopened.sort();
+            built.sort();
+            assertEquals(built.size(), reopened.size());
+            for (int i = 0; i < built.size(); i++) {
+                assertEquals(built.doc(i), reopened.doc(i));
+            }
+        }
+
+        // only even documents are allowed.
+        Bits even = new Bits() {
+            @Override
+            public boolean get(int index) {
+                return index % 2 == 0;
+            }
+
+            @Override
+            public int length() {
+                return reader.maxDoc();
+            }
+        };
+        BoundedDistanceHeap filtered = HnswGraphStore.search(searcher, "if_hi", query, 20, 100, even, columnDirectory, pool);
+        assertEquals(20, filtered.size());
+        for (int i = 0; i < filtered.size(); i++) {
+            assertEquals(0, filtered.doc(i) % 2);
+        }
+        assertTrue(first.distance(0) <= filtered.distance(0));
+
+        // unknown fields are not supported.
+        assertNull(HnswGraphStore.search(searcher, "ce_hi", query, 20, 100, null, columnDirectory, pool));
+    }
+
+    @Test
+    public void testChunkedLevel0() throws Exception {
+        File columnDirectory = folder.newFolder();
+        GenericGlobalIntFeature query = new GenericGlobalIntFeature();
+        query.setData(features.get(1));
+        for (LeafReaderContext context : reader.leaves()) {
+            FeatureColumn column = FeatureColumnStore.getOrBuildColumn(context.reader(), "if_hi", columnDirectory);
+            long recordBytes = 4L * (2 * HnswGraph.DEFAULT_M + 1);
+            HnswGraph single = HnswGraph.build(column, GenericGlobalIntFeature.class, new File(columnDirectory, context.ord + ".single"),
+                    HnswGraph.DEFAULT_M, HnswGraph.DEFAULT_EF_CONSTRUCTION);
+            // 7 records per chunk while building, the last chunk is only partly used.
+            File chunkedFile = new File(columnDirectory, context.ord + ".chunked");
+            HnswGraph chunked = HnswGraph.build(column, GenericGlobalIntFeature.class, chunkedFile,
+                    HnswGraph.DEFAULT_M, HnswGraph.DEFAULT_EF_CONSTRUCTION, 7 * recordBytes + 3);
+            assertEquals(new File(columnDirectory, context.ord + ".single").length(), chunkedFile.length());
+            assertTrue(chunkedFile.length() > 24 + recordBytes * column.getMaxDoc());
+            BoundedDistanceHeap expected = single.search(VectorDistance.forQuery(query), 20, 100, null, context.docBase);
+            BoundedDistanceHeap results = chunked.search(VectorDistance.forQuery(query), 20, 100, null, context.docBase);
+            expected.sort();
+            results.sort();
+            assertEquals(expected.size(), results.size());
+            for (int i = 0; i < expected.size(); i++) {
+                assertEquals(expected.doc(i), results.doc(i));
+            }
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package net.semanticmetadata.lire.solr.columns;
+
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import net.semanticmetadata.lire.solr.FeatureRegistry;
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static net.semanticmetadata.lire.solr.TestFeatures.createFeature;
+import static net.semanticmetadata.lire.solr.TestFeatures.createImage;
+import static org.junit.Assert.*;
+
+public class VectorDistanceTest {
+    @Test
+    public void testDistancesEqualLire() throws Exception {
+        Random random = new Random(11);
+        List<BufferedImage> images = new ArrayList<>();
+        for (int i = 0; i < 6; i++) images.add(createImage(random));
+        for (String code : FeatureRegistry.getCodes()) {
+            Class<? extends GlobalFeature> featureClass = FeatureRegistry.getClassForCode(code);
+            assertTrue(code, VectorDistance.isSupported(featureClass));
+            List<byte[]> data = new ArrayList<>();
+            for (BufferedImage image : images) {
+                data.add(createFeature(featureClass, image, random).getByteArrayRepresentation());
+            }
+            for (byte[] queryData : data) {
+                GlobalFeature query = featureClass.getDeclaredConstructor().newInstance();
+                query.setByteArrayRepresentation(queryData.clone());
+                VectorDistance distance = VectorDistance.forQuery(query);
+                for (byte[] candidateData : data) {
+                    GlobalFeature candidate = featureClass.getDeclaredConstructor().newInstance();
+                    candidate.setByteArrayRepresentation(candidateData.clone());
+                    double[] v = VectorDistance.toVector(candidate);
+                    assertEquals(code, distance.getDimensions(), v.length);
+                    float[] vector = new float[v.length];
+                    for (int i = 0; i < v.length; i++) vector[i] = (float) v[i];
+                    double expected = query.getDistance(candidate);
+                    assertEquals(code, expected, distance.distance(vector), Math.max(1e-6, Math.abs(expected) * 1e-5));
+                }
+            }
+        }
+    }
+}
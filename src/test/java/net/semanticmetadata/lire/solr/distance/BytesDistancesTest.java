@@ -0,0 +1,88 @@
+package net.semanticmetadata.lire.solr.distance;
+
+import net.semanticmetadata.lire.imageanalysis.features.GlobalFeature;
+import net.semanticmetadata.lire.imageanalysis.features.global.CEDD;
+import net.semanticmetadata.lire.solr.FeatureRegistry;
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static net.semanticmetadata.lire.solr.TestFeatures.createFeature;
+import static net.semanticmetadata.lire.solr.TestFeatures.createImage;
+import static org.junit.Assert.*;
+
+public class BytesDistancesTest {
+    @Test
+    public void testDistancesEqualLire() throws Exception {
+        Random random = new Random(5);
+        List<BufferedImage> images = new ArrayList<>();
+        for (int i = 0; i < 6; i++) images.add(createImage(random));
+        for (String code : FeatureRegistry.getCodes()) {
+            Class<? extends GlobalFeature> featureClass = FeatureRegistry.getClassForCode(code);
+            List<byte[]> data = new ArrayList<>();
+            for (BufferedImage image : images) {
+                data.add(createFeature(featureClass, image, random).getByteArrayRepresentation());
+            }
+            for (byte[] queryData : data) {
+                GlobalFeature query = featureClass.getDeclaredConstructor().newInstance();
+                query.setByteArrayRepresentation(queryData.clone());
+                BytesDistance distance = FeatureRegistry.getBytesDistance(FeatureRegistry.codeToFeatureField(code), query);
+                assertNotNull(code, distance);
+                for (byte[] candidateData : data) {
+                    GlobalFeature candidate = featureClass.getDeclaredConstructor().newInstance();
+                    candidate.setByteArrayRepresentation(candidateData.clone());
+                    double expected = query.getDistance(candidate);
+                    // the candidate somewhere in a larger array, like in a BytesRef.
+                    byte[] padded = new byte[candidateData.length + 10];
+                    System.arraycopy(candidateData, 0, padded, 7, candidateData.length);
+                    assertEquals(code, expected, distance.distance(padded, 7, candidateData.length), Math.max(1e-9, Math.abs(expected) * 1e-9));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testMaxDistance() throws Exception {
+        Random random = new Random(9);
+        List<BufferedImage> images = new ArrayList<>();
+        for (int i = 0; i < 8; i++) images.add(createImage(random));
+        for (String code : FeatureRegistry.getCodes()) {
+            Class<? extends GlobalFeature> featureClass = FeatureRegistry.getClassForCode(code);
+            List<byte[]> data = new ArrayList<>();
+            for (BufferedImage image : images) {
+                data.add(createFeature(featureClass, image, random).getByteArrayRepresentation());
+            }
+            for (byte[] queryData : data) {
+                GlobalFeature query = featureClass.getDeclaredConstructor().newInstance();
+                query.setByteArrayRepresentation(queryData.clone());
+                BytesDistance distance = FeatureRegistry.getBytesDistance(FeatureRegistry.codeToFeatureField(code), query);
+                for (byte[] candidateData : data) {
+                    double exact = distance.distance(candidateData, 0, candidateData.length);
+                    for (double factor : new double[]{0d, 0.1, 0.5, 0.9, 1d, 1.1, 2d}) {
+                        double maxDistance = exact * factor;
+                        double bounded = distance.distance(candidateData, 0, candidateData.length, maxDistance);
+                        if (exact <= maxDistance) {
+                            assertEquals(code, exact, bounded, 0d);
+                        } else {
+                            assertTrue(code, bounded > maxDistance);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testEmptyCandidate() {
+        CEDD query = new CEDD();
+        query.extract(createImage(new Random(1)));
+        CEDD empty = new CEDD();
+        empty.setByteArrayRepresentation(new byte[0]);
+        BytesDistance distance = FeatureRegistry.getBytesDistance("ce_hi", query);
+        assertEquals(query.getDistance(empty), distance.distance(new byte[0], 0, 0), 0d);
+        assertNull(FeatureRegistry.getBytesDistance("xx_hi", query));
+    }
+}
@@ -1,7 +1,10 @@
 package net.semanticmetadata.lire.solr.features;
 
+import net.semanticmetadata.lire.utils.MetricsUtils;
 import org.junit.Test;
 
+import java.util.Random;
+
 import static org.junit.Assert.*;
 
 public class ShortFeatureCosineDistanceTest {
@@ -20,4 +23,24 @@ public class ShortFeatureCosineDistanceTest {
         se.setByteArrayRepresentation(byteArrayRepresentation);
         assertArrayEquals(se.getFeatureVector(), sd.getFeatureVector(), 0.001);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testSparseDistance() {
+        Random random = new Random(17);
+        ShortFeatureCosineDistance[] features = new ShortFeatureCosineDistance[20];
+        for (int k = 0; k < features.length; k++) {
+            short[] d = new short[1000];
+            for (int i = 0; i < 32; i++) d[random.nextInt(d.length)] = (short) random.nextInt(Short.MAX_VALUE);
+            ShortFeatureCosineDistance tmp = new ShortFeatureCosineDistance();
+            tmp.setData(d);
+            features[k] = new ShortFeatureCosineDistance();
+            features[k].setByteArrayRepresentation(tmp.getByteArrayRepresentation());
+        }
+        features[0].setData(new short[1000]); // all zeros
+        for (ShortFeatureCosineDistance f1 : features) {
+            for (ShortFeatureCosineDistance f2 : features) {
+                assertEquals(MetricsUtils.cosineDistance(f1.getFeatureVector(), f2.getFeatureVector()), f1.getDistance(f2), 0.0000001);
+            }
+        }
+    }
+}
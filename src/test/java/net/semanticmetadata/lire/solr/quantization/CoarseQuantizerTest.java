@@ -0,0 +1,113 @@
+package net.semanticmetadata.lire.solr.quantization;
+
+import net.semanticmetadata.lire.imageanalysis.features.global.CEDD;
+import net.semanticmetadata.lire.imageanalysis.features.global.GenericGlobalIntFeature;
+import net.semanticmetadata.lire.solr.columns.VectorDistance;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class CoarseQuantizerTest {
+    private static final int DIMENSIONS = 32;
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static List<double[]> createVectors(int count, int clusters, Random random) {
+        double[][] centers = new double[clusters][DIMENSIONS];
+        for (double[] center : centers) {
+            for (int i = 0; i < DIMENSIONS; i++) center[i] = random.nextInt(200);
+        }
+        List<double[]> vectors = new ArrayList<>();
+        for (int j = 0; j < count; j++) {
+            double[] center = centers[random.nextInt(centers.length)];
+            double[] v = new double[DIMENSIONS];
+            for (int i = 0; i < DIMENSIONS; i++) v[i] = Math.max(0, center[i] + random.nextInt(21) - 10);
+            vectors.add(v);
+        }
+        return vectors;
+    }
+
+    @Test
+    public void testProbing() {
+        Random random = new Random(3);
+        List<double[]> vectors = createVectors(4000, 30, random);
+        CoarseQuantizer quantizer = CoarseQuantizer.train(GenericGlobalIntFeature.class, vectors.subList(0, 2000), 64, 20, 1L);
+        assertEquals(64, quantizer.getNumberOfClusters());
+        int[] assignment = new int[vectors.size()];
+        for (int j = 0; j < vectors.size(); j++) assignment[j] = quantizer.assign(vectors.get(j));
+
+        int found = 0, expected = 0;
+        for (int q = 0; q < 20; q++) {
+            double[] query = vectors.get(random.nextInt(vectors.size()));
+            int[] probes = quantizer.nearest(query, 4);
+            assertEquals(4, probes.length);
+            assertEquals(quantizer.assign(query), probes[0]);
+            // probes are sorted by distance to the query.
+            VectorDistance distance = VectorDistance.forVector(GenericGlobalIntFeature.class, query);
+            for (int i = 1; i < probes.length; i++) {
+                assertTrue(distance.distance(quantizer.getCentroid(probes[i - 1]))
+                        <= distance.distance(quantizer.getCentroid(probes[i])));
+            }
+            // the true nearest neighbours are mostly in the probed clusters.
+            List<Integer> nearest = new ArrayList<>();
+            for (int j = 0; j < vectors.size(); j++) nearest.add(j);
+            nearest.sort((a, b) -> Double.compare(distance.distance(toFloats(vectors.get(a))), distance.distance(toFloats(vectors.get(b)))));
+            for (int i = 0; i < 10; i++) {
+                expected++;
+                int cluster = assignment[nearest.get(i)];
+                for (int probe : probes) {
+                    if (probe == cluster) {
+                        found++;
+                        break;
+                    }
+                }
+            }
+        }
+        assertTrue("recall too low: " + found + " of " + expected, found >= 0.9 * expected);
+        // more clusters than available are limited.
+        assertEquals(64, quantizer.nearest(vectors.get(0), 1000).length);
+    }
+
+    @Test
+    public void testFewVectors() {
+        List<double[]> vectors = createVectors(5, 2, new Random(1));
+        CoarseQuantizer quantizer = CoarseQuantizer.train(GenericGlobalIntFeature.class, vectors, 1024, 10, 1L);
+        assertEquals(5, quantizer.getNumberOfClusters());
+    }
+
+    @Test
+    public void testSaveAndLoad() throws Exception {
+        List<double[]> vectors = createVectors(500, 10, new Random(7));
+        CoarseQuantizer quantizer = CoarseQuantizer.train(GenericGlobalIntFeature.class, vectors, 16, 10, 1L);
+        File directory = folder.newFolder();
+        quantizer.save(new File(directory, "if" + CoarseQuantizer.FILE_EXTENSION));
+        // stored for another feature than the one of the code, so it is skipped.
+        quantizer.save(new File(directory, "ce" + CoarseQuantizer.FILE_EXTENSION));
+        CoarseQuantizer.train(CEDD.class, createVectors(50, 2, new Random(2)), 4, 5, 1L)
+                .save(new File(directory, "cl" + CoarseQuantizer.FILE_EXTENSION));
+
+        HashMap<String, CoarseQuantizer> loaded = CoarseQuantizer.loadAll(directory);
+        assertEquals(1, loaded.size());
+        CoarseQuantizer reloaded = loaded.get("if");
+        assertEquals(GenericGlobalIntFeature.class, reloaded.getFeatureClass());
+        assertEquals(16, reloaded.getNumberOfClusters());
+        for (double[] v : vectors) {
+            assertArrayEquals(quantizer.nearest(v, 5), reloaded.nearest(v, 5));
+        }
+        assertTrue(CoarseQuantizer.loadAll(new File(directory, "missing")).isEmpty());
+    }
+
+    private static float[] toFloats(double[] vector) {
+        float[] result = new float[vector.length];
+        for (int i = 0; i < vector.length; i++) result[i] = (float) vector[i];
+        return result;
+    }
+}
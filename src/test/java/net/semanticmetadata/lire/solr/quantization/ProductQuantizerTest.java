@@ -0,0 +1,157 @@
+package net.semanticmetadata.lire.solr.quantization;
+
+import net.semanticmetadata.lire.solr.BoundedDistanceHeap;
+import net.semanticmetadata.lire.solr.ParallelReRanker;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.BinaryDocValuesField;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.junit.Test;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+public class ProductQuantizerTest {
+    private static final int DIMENSIONS = 60;
+
+    /**
+     * Vectors scattered around a number of cluster centers, like image features are.
+     */
+    private static List<double[]> createVectors(int count, Random random) {
+        double[][] centers = new double[40][DIMENSIONS];
+        for (double[] center : centers) {
+            for (int i = 0; i < DIMENSIONS; i++) center[i] = random.nextInt(16);
+        }
+        List<double[]> vectors = new ArrayList<>();
+        for (int j = 0; j < count; j++) {
+            double[] center = centers[random.nextInt(centers.length)];
+            double[] v = new double[DIMENSIONS];
+            for (int i = 0; i < DIMENSIONS; i++) v[i] = Math.max(0, center[i] + random.nextGaussian());
+            vectors.add(v);
+        }
+        return vectors;
+    }
+
+    private static double squaredDistance(double[] a, double[] b) {
+        double sum = 0d;
+        for (int i = 0; i < a.length; i++) sum += (a[i] - b[i]) * (a[i] - b[i]);
+        return sum;
+    }
+
+    @Test
+    public void testRecallOfAsymmetricDistance() {
+        Random random = new Random(42);
+        List<double[]> vectors = createVectors(3000, random);
+        ProductQuantizer quantizer = ProductQuantizer.train(vectors.subList(0, 1000), 12, 20, 1L);
+        assertEquals(DIMENSIONS, quantizer.getDimensions());
+        assertEquals(12, quantizer.getSubspaces());
+        List<byte[]> codes = new ArrayList<>();
+        for (double[] v : vectors) codes.add(quantizer.encode(v));
+
+        int found = 0;
+        for (int q = 0; q < 20; q++) {
+            double[] query = vectors.get(random.nextInt(vectors.size()));
+            float[] table = quantizer.distanceTable(query);
+            BoundedDistanceHeap exact = new BoundedDistanceHeap(10);
+            BoundedDistanceHeap approximated = new BoundedDistanceHeap(100);
+            for (int j = 0; j < vectors.size(); j++) {
+                exact.offer(j, squaredDistance(query, vectors.get(j)));
+                byte[] code = codes.get(j);
+                approximated.offer(j, ProductQuantizer.distance(table, code, 0, code.length));
+            }
+            List<Integer> selected = new ArrayList<>();
+            approximated.docIterator().forEachRemaining(selected::add);
+            for (int i = 0; i < exact.size(); i++) {
+                if (selected.contains(exact.doc(i))) found++;
+            }
+        }
+        // the true 10 nearest neighbours are nearly always among the best 100 by the quantization codes.
+        assertTrue("recall too low: " + found, found >= 190);
+    }
+
+    @Test
+    public void testFewTrainingVectors() {
+        List<double[]> vectors = createVectors(10, new Random(1));
+        ProductQuantizer quantizer = ProductQuantizer.train(vectors, 100, 10, 1L);
+        // no more sub spaces than dimensions and no more centroids than training vectors.
+        assertEquals(DIMENSIONS, quantizer.getSubspaces());
+        for (double[] v : vectors) {
+            byte[] code = quantizer.encode(v);
+            assertEquals(0d, ProductQuantizer.distance(quantizer.distanceTable(v), code, 0, code.length), 0.001);
+        }
+        assertEquals(Double.POSITIVE_INFINITY, ProductQuantizer.distance(quantizer.distanceTable(vectors.get(0)), new byte[3], 0, 3), 0d);
+    }
+
+    @Test
+    public void testSaveAndLoad() throws IOException {
+        List<double[]> vectors = createVectors(500, new Random(2));
+        ProductQuantizer quantizer = ProductQuantizer.train(vectors, 7, 10, 1L);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        quantizer.write(new DataOutputStream(bytes));
+        ProductQuantizer loaded = ProductQuantizer.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(quantizer.getDimensions(), loaded.getDimensions());
+        assertEquals(quantizer.getSubspaces(), loaded.getSubspaces());
+        for (double[] v : vectors.subList(0, 50)) {
+            assertArrayEquals(quantizer.encode(v), loaded.encode(v));
+            assertArrayEquals(quantizer.distanceTable(v), loaded.distanceTable(v), 0f);
+        }
+    }
+
+    @Test
+    public void testPreSelect() throws Exception {
+        Random random = new Random(3);
+        List<double[]> vectors = createVectors(3000, random);
+        ProductQuantizer quantizer = ProductQuantizer.train(vectors.subList(0, 1000), 8, 10, 1L);
+        ByteBuffersDirectory directory = new ByteBuffersDirectory();
+        IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new WhitespaceAnalyzer()).setMergePolicy(NoMergePolicy.INSTANCE));
+        for (int i = 0; i < vectors.size(); i++) {
+            Document document = new Document();
+            document.add(new StringField("id", Integer.toString(i), Field.Store.YES));
+            // every 10th document has no code.
+            if (i % 10 != 0) {
+                document.add(new BinaryDocValuesField("ce_pq", new BytesRef(quantizer.encode(vectors.get(i)))));
+            }
+            writer.addDocument(document);
+            if (i % 700 == 699) writer.commit();
+        }
+        writer.close();
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try (DirectoryReader reader = DirectoryReader.open(directory)) {
+            float[] table = quantizer.distanceTable(vectors.get(5));
+            List<Integer> candidates = new ArrayList<>();
+            for (int i = 0; i < vectors.size(); i++) candidates.add(i);
+            Collections.shuffle(candidates, new Random(7));
+            BoundedDistanceHeap selected = new ParallelReRanker(pool).preSelect(candidates.iterator(), "ce_pq", table, 50, new IndexSearcher(reader));
+
+            BoundedDistanceHeap expected = new BoundedDistanceHeap(50);
+            for (int i = 0; i < vectors.size(); i++) {
+                byte[] code = quantizer.encode(vectors.get(i));
+                expected.offer(i, i % 10 != 0 ? ProductQuantizer.distance(table, code, 0, code.length) : Double.POSITIVE_INFINITY);
+            }
+            expected.sort();
+            assertEquals(expected.size(), selected.size());
+            for (int i = 0; i < expected.size(); i++) {
+                assertEquals(expected.doc(i), selected.doc(i));
+                assertEquals(expected.distance(i), selected.distance(i), 0.000001);
+                assertNotEquals(0, selected.doc(i) % 10);
+            }
+        } finally {
+            pool.shutdown();
+            directory.close();
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package net.semanticmetadata.lire.solr.tools;
+
+import net.semanticmetadata.lire.imageanalysis.features.global.CEDD;
+import net.semanticmetadata.lire.solr.ParallelReRanker;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.BinaryDocValuesField;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+public class RecallEvaluationTest {
+    private static final int NUM_DOCS = 1000;
+    private ByteBuffersDirectory directory;
+    private DirectoryReader reader;
+    private ForkJoinPool pool;
+    private List<byte[]> features = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        Random random = new Random(11);
+        directory = new ByteBuffersDirectory();
+        IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new WhitespaceAnalyzer()).setMergePolicy(NoMergePolicy.INSTANCE));
+        for (int i = 0; i < NUM_DOCS; i++) {
+            byte[] data = new byte[72];
+            random.nextBytes(data);
+            features.add(data);
+            Document document = new Document();
+            document.add(new StringField("id", "img" + i, Field.Store.YES));
+            if (i % 50 != 7) document.add(new BinaryDocValuesField("ce_hi", new BytesRef(data)));
+            writer.addDocument(document);
+            if (i % 300 == 299) writer.commit();
+        }
+        writer.deleteDocuments(new Term("id", "img3"));
+        writer.close();
+        reader = DirectoryReader.open(directory);
+        pool = new ForkJoinPool(2);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        pool.shutdown();
+        reader.close();
+        directory.close();
+    }
+
+    @Test
+    public void testGroundTruth() throws Exception {
+        IndexSearcher searcher = new IndexSearcher(reader);
+        CEDD query = new CEDD(), tmp = new CEDD();
+        query.setByteArrayRepresentation(features.get(3));
+        List<String> truth = RecallEvaluation.groundTruth(searcher, new ParallelReRanker(pool), "ce_hi", query, 5);
+        assertEquals(5, truth.size());
+        // the query document itself is deleted.
+        assertFalse(truth.contains("img3"));
+        double previous = -1;
+        for (String id : truth) {
+            tmp.setByteArrayRepresentation(features.get(Integer.parseInt(id.substring(3))));
+            double distance = query.getDistance(tmp);
+            assertTrue(distance >= previous);
+            previous = distance;
+        }
+
+        List<String> ids = RecallEvaluation.sampleIds(searcher, "ce_hi", 20, new Random(1));
+        assertEquals(20, ids.size());
+        for (String id : ids) {
+            int i = Integer.parseInt(id.substring(3));
+            assertTrue(i != 3 && i % 50 != 7);
+        }
+    }
+
+    @Test
+    public void testEvaluate() throws Exception {
+        IndexSearcher searcher = new IndexSearcher(reader);
+        ParallelReRanker reRanker = new ParallelReRanker(pool);
+        // a fake handler returning the first half of the ground truth and then unrelated ids.
+        List<List<String>> truths = new ArrayList<>();
+        List<SolrParams> requests = new ArrayList<>();
+        SolrClient client = new SolrClient() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            @SuppressWarnings("rawtypes") // the signature of SolrClient.
+            public NamedList<Object> request(SolrRequest request, String collection) {
+                SolrParams params = request.getParams();
+                requests.add(params);
+                assertEquals("/lireq", request.getPath());
+                List<String> truth = truths.get(Integer.parseInt(params.get("id").substring(3)) / 100);
+                SolrDocumentList results = new SolrDocumentList();
+                for (int i = 0; i < params.getInt("rows"); i++) {
+                    SolrDocument document = new SolrDocument();
+                    document.setField("id", i < params.getInt("rows") / 2 ? truth.get(i) : "other" + i);
+                    results.add(document);
+                }
+                NamedList<Object> response = new NamedList<>();
+                response.add("RawDocsCount", params.get("candidates"));
+                response.add("response", results);
+                return response;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        RecallEvaluation evaluation = new RecallEvaluation(client, "/lireq", "ce", 10);
+        CEDD query = new CEDD();
+        for (int i = 0; i < 4; i++) {
+            query.setByteArrayRepresentation(features.get(i * 100));
+            List<String> truth = RecallEvaluation.groundTruth(searcher, reRanker, "ce_hi", query, 10);
+            truths.add(truth);
+            evaluation.addQuery("id", "img" + (i * 100), truth);
+        }
+        List<SolrParams> settings = RecallEvaluation.grid(Arrays.asList("0.1", "0.5"),
+                Arrays.asList("1000"), Arrays.asList("false"), "probes=2&adaptive=true");
+        assertEquals(2, settings.size());
+        RecallEvaluation.Result result = evaluation.evaluate(settings.get(1));
+        assertEquals(0.5, result.getRecall(), 0.000001);
+        assertEquals(1000, result.getCandidates(), 0.000001);
+        assertEquals(0, result.getErrors());
+        assertTrue(result.getLatency(0.5) <= result.getLatency(1));
+        assertEquals(4, requests.size());
+        assertEquals("0.5", requests.get(0).get("accuracy"));
+        assertEquals("2", requests.get(0).get("probes"));
+        assertEquals("ce", requests.get(0).get("field"));
+        assertEquals("false", requests.get(0).get("cache"));
+    }
+}
@@ -0,0 +1,181 @@
+package net.semanticmetadata.lire.solr.tools;
+
+import net.semanticmetadata.lire.imageanalysis.features.global.CEDD;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.BinaryDocValuesField;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+public class SimilarityJoinTest {
+    private static final int NUM_DOCS = 1500;
+    private ByteBuffersDirectory directory;
+    private DirectoryReader reader;
+    private ForkJoinPool pool;
+    private List<byte[]> features = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        Random random = new Random(1);
+        directory = new ByteBuffersDirectory();
+        IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new WhitespaceAnalyzer()).setMergePolicy(NoMergePolicy.INSTANCE));
+        for (int i = 0; i < NUM_DOCS; i++) {
+            byte[] data = new byte[72];
+            if (i % 5 == 0) {
+                random.nextBytes(data);
+            } else {
+                // a near duplicate of the last random feature, one bin changed.
+                data = features.get(i - i % 5).clone();
+                data[random.nextInt(data.length)] ^= 1;
+            }
+            features.add(data);
+            Document document = new Document();
+            document.add(new StringField("id", Integer.toString(i), Field.Store.YES));
+            if (i % 97 != 42) {
+                document.add(new BinaryDocValuesField("ce_hi", new BytesRef(data)));
+            }
+            writer.addDocument(document);
+            if (i % 600 == 599) writer.commit();
+        }
+        writer.deleteDocuments(new Term("id", "7"));
+        writer.close();
+        reader = DirectoryReader.open(directory);
+        pool = new ForkJoinPool(4);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        pool.shutdown();
+        reader.close();
+        directory.close();
+    }
+
+    private static double[][][] createFunctions() {
+        Random random = new Random(3);
+        double[][][] functions = new double[100][12][144];
+        for (double[][] bundle : functions) {
+            for (double[] bit : bundle) {
+                for (int i = 0; i < bit.length; i++) bit[i] = random.nextGaussian();
+            }
+        }
+        return functions;
+    }
+
+    @Test
+    public void testJoin() throws Exception {
+        assertTrue(reader.leaves().size() > 1);
+        double[][][] functions = createFunctions();
+        double threshold = 4;
+        SimilarityJoin.Pairs pairs = new SimilarityJoin(reader, "ce", threshold, functions).join(pool);
+
+        // all pairs by brute force.
+        Set<Long> expected = new HashSet<>();
+        CEDD a = new CEDD(), b = new CEDD();
+        for (int i = 0; i < NUM_DOCS; i++) {
+            if (i == 7 || i % 97 == 42) continue;
+            a.setByteArrayRepresentation(features.get(i));
+            for (int j = i + 1; j < NUM_DOCS; j++) {
+                if (j == 7 || j % 97 == 42) continue;
+                b.setByteArrayRepresentation(features.get(j));
+                if (a.getDistance(b) <= threshold) expected.add((long) i << 32 | j);
+            }
+        }
+        assertTrue(expected.size() > NUM_DOCS);
+
+        Set<Long> found = new HashSet<>();
+        for (int i = 0; i < pairs.size(); i++) {
+            int left = pairs.getLeft(i), right = pairs.getRight(i);
+            assertTrue(left < right);
+            if (i > 0) assertTrue(((long) pairs.getLeft(i - 1) << 32 | pairs.getRight(i - 1)) < ((long) left << 32 | right));
+            a.setByteArrayRepresentation(features.get(left));
+            b.setByteArrayRepresentation(features.get(right));
+            assertEquals(a.getDistance(b), pairs.getDistance(i), 0.0001);
+            assertTrue(found.add((long) left << 32 | right));
+        }
+        assertTrue(expected.containsAll(found));
+        assertTrue("recall too low: " + found.size() + " of " + expected.size(), found.size() >= 0.9 * expected.size());
+
+        // the near duplicates of a random feature form a cluster.
+        int[][] clusters = SimilarityJoin.clusters(pairs, reader.maxDoc());
+        boolean foundCluster = false;
+        for (int[] cluster : clusters) {
+            assertTrue(cluster.length > 1);
+            if (cluster[0] == 10) {
+                assertArrayEquals(new int[]{10, 11, 12, 13, 14}, cluster);
+                foundCluster = true;
+            }
+        }
+        assertTrue(foundCluster);
+    }
+
+    @Test
+    public void testBatches() throws Exception {
+        double[][][] functions = createFunctions();
+        SimilarityJoin.Pairs pairs = new SimilarityJoin(reader, "ce", 4, functions).join(pool);
+        // the candidates verified a few at a time, the pairs found in several batches are kept once.
+        SimilarityJoin join = new SimilarityJoin(reader, "ce", 4, functions);
+        join.setBatchSize(100);
+        SimilarityJoin.Pairs batched = join.join(pool);
+        assertEquals(pairs.size(), batched.size());
+        for (int i = 0; i < pairs.size(); i++) {
+            assertEquals(pairs.getLeft(i), batched.getLeft(i));
+            assertEquals(pairs.getRight(i), batched.getRight(i));
+            assertEquals(pairs.getDistance(i), batched.getDistance(i), 0f);
+        }
+    }
+
+    @Test
+    public void testMaxPairsPerBlock() throws Exception {
+        // the same feature for all documents, they end up in one block in every band.
+        byte[] data = features.get(0);
+        try (Directory blockDirectory = new ByteBuffersDirectory()) {
+            try (IndexWriter writer = new IndexWriter(blockDirectory, new IndexWriterConfig(new WhitespaceAnalyzer()))) {
+                for (int i = 0; i < 300; i++) {
+                    Document document = new Document();
+                    document.add(new StringField("id", Integer.toString(i), Field.Store.YES));
+                    document.add(new BinaryDocValuesField("ce_hi", new BytesRef(data)));
+                    writer.addDocument(document);
+                }
+            }
+            try (DirectoryReader blockReader = DirectoryReader.open(blockDirectory)) {
+                SimilarityJoin join = new SimilarityJoin(blockReader, "ce", 0, createFunctions());
+                join.setBands(3);
+                join.setMaxBlockSize(50);
+                // all the pairs of documents at most 50 apart.
+                assertEquals(300 * 299 / 2 - 250 * 249 / 2, join.join(pool).size());
+                assertEquals(0, join.getTruncatedBlocks());
+
+                join.setMaxPairsPerBlock(1000);
+                join.setBatchSize(300);
+                SimilarityJoin.Pairs pairs = join.join(pool);
+                // the same first pairs of the block in all bands.
+                assertEquals(1000, pairs.size());
+                assertEquals(3, join.getTruncatedBlocks());
+                for (int i = 0; i < pairs.size(); i++) {
+                    assertTrue(pairs.getRight(i) - pairs.getLeft(i) <= 50);
+                    assertEquals(0f, pairs.getDistance(i), 0f);
+                }
+            }
+        }
+    }
+}